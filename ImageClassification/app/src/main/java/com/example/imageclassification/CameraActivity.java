@@ -20,19 +20,12 @@ import android.Manifest;
 import android.app.Fragment;
 import android.content.Context;
 import android.content.pm.PackageManager;
-import android.hardware.Camera;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.params.StreamConfigurationMap;
-import android.media.Image;
-import android.media.Image.Plane;
-import android.media.ImageReader;
-import android.media.ImageReader.OnImageAvailableListener;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Trace;
 import android.util.Size;
 import android.view.Surface;
@@ -46,59 +39,77 @@ import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 import androidx.annotation.NonNull;
-import androidx.annotation.UiThread;
 import androidx.appcompat.app.AppCompatActivity;
-import com.example.imageclassification.env.ImageUtils;
 import com.example.imageclassification.env.Logger;
+import com.example.imageclassification.pipeline.Camera2FrameSource;
+import com.example.imageclassification.pipeline.Frame;
+import com.example.imageclassification.pipeline.FramePipeline;
+import com.example.imageclassification.pipeline.FrameSlot;
+import com.example.imageclassification.pipeline.FrameSource;
+import com.example.imageclassification.pipeline.LegacyFrameSource;
+import com.example.imageclassification.pipeline.ResultPublisher;
+import com.example.imageclassification.pipeline.StreamConfigPolicy;
+import com.example.imageclassification.pipeline.ThroughputStreamConfigPolicy;
 import com.example.tflite.Classifier;
 import com.example.tflite.Classifier.Device;
-import com.example.tflite.Classifier.Recognition;
+import com.example.tflite.ClassifierTuner;
+import com.example.tflite.LatencyMetrics;
 import com.google.android.material.bottomsheet.BottomSheetBehavior;
-import java.nio.ByteBuffer;
-import java.util.List;
 
 /**
  *
  */
-public abstract class CameraActivity extends AppCompatActivity implements OnImageAvailableListener,
-        Camera.PreviewCallback, View.OnClickListener, AdapterView.OnItemSelectedListener {
+public abstract class CameraActivity extends AppCompatActivity implements FrameSource.Listener,
+        View.OnClickListener, AdapterView.OnItemSelectedListener, FramePipeline.FrameProcessor {
+
+    static final Device DEFAULT_DEVICE = Device.CPU;
+    static final Classifier.Model DEFAULT_MODEL = Classifier.Model.QUANTIZED_EFFICIENTNET;
+    // Input size of the default model, assumed until a classifier is loaded.
+    static final Size DEFAULT_MODEL_INPUT_SIZE = new Size(224, 224);
+    static final int DEFAULT_NUM_THREADS = 1;
+    // Entry of the device spinner picking the model, device and threads automatically.
+    private static final String AUTO_DEVICE = "AUTO";
 
     protected ImageView bottomSheetArrowImageView;
     private LinearLayout bottomSheetLayout;
     protected TextView cameraResolutionTextView;
     protected TextView cropValueTextView;
-    private Device device = Device.CPU;
+    private Device device = DEFAULT_DEVICE;
     private Spinner deviceSpinner;
     protected TextView frameValueTextView;
     private LinearLayout gestureLayout;
-    private Handler handler;
-    private HandlerThread handlerThread;
-    private Runnable imageConverter;
     protected TextView inferenceTimeTextView;
-    private boolean isProcessingFrame = false;
-    private static final Logger LOGGER = new Logger();
+    private static final Logger LOGGER = new Logger(CameraActivity.class);
+    private byte[] luminance;
     private ImageView minusImageView;
-    private Classifier.Model model = Classifier.Model.QUANTIZED_EFFICIENTNET;
+    private Classifier.Model model = DEFAULT_MODEL;
     private int numThreads = -1;
     private static final int PERMISSIONS_REQUEST = 1;
     private static final String PERMISSION_CAMERA = Manifest.permission.CAMERA;
+    // Delivers the camera frames, once the camera fragment is set.
+    private FrameSource frameSource;
+    private FramePipeline pipeline;
     private ImageView plusImageView;
-    private Runnable postInferenceCallback;
     protected int previewWidth = 0;
     protected int previewHeight = 0;
+    // Size of the last frame copied into the pipeline, smaller than the preview on camera2.
+    private volatile int analysisFrameWidth;
+    private volatile int analysisFrameHeight;
     protected TextView recognitionTextView;
     protected TextView recognition1TextView;
     protected TextView recognition2TextView;
     protected TextView recognitionValueTextView;
     protected TextView recognition1ValueTextView;
     protected TextView recognition2ValueTextView;
-    private int[] rgbBytes = null;
+    // Shows the results and frame info, once per display frame at most.
+    protected ResultPublisher resultPublisher;
     protected TextView rotationTextView;
     private BottomSheetBehavior<LinearLayout> sheetBehavior;
     private TextView threadsTextView;
+    // Set while the auto-tuner times candidates, during which camera frames are dropped.
+    private volatile boolean tuning;
     private boolean useCamera2API;
     private int yRowStride;
-    private byte[][] yuvBytes = new byte[3][];
 
     /**
      *
@@ -150,27 +161,34 @@ public abstract class CameraActivity extends AppCompatActivity implements OnImag
 
     /**
      *
-     * @param planes
-     * @param yuvBytes
+     * @return
      */
-    protected void fillBytes(final Plane[] planes, final byte[][] yuvBytes) {
-        // Because of the variable row stride it's not possible to know in
-        // advance the actual necessary dimensions of the yuv planes.
-        for (int i = 0; i < planes.length; ++i) {
-            final ByteBuffer buffer = planes[i].getBuffer();
-            if (yuvBytes[i] == null) {
-                LOGGER.d("Initializing buffer %d at size %d", i, buffer.capacity());
-                yuvBytes[i] = new byte[buffer.capacity()];
-            }
-            buffer.get(yuvBytes[i]);
-        }
+    protected abstract Size getDesiredPreviewFrameSize();
+
+    /**
+     * Gets the input size of the model, which the analysis frames are sized for.
+     *
+     * @return
+     */
+    protected Size getModelInputSize() {
+        return DEFAULT_MODEL_INPUT_SIZE;
     }
 
     /**
+     * Creates the policy choosing the camera streams, by default the smallest analysis frames
+     * suiting the model at the conversion cost measured so far.
      *
      * @return
      */
-    protected abstract Size getDesiredPreviewFrameSize();
+    protected StreamConfigPolicy createStreamConfigPolicy() {
+        final Size inputSize = getModelInputSize();
+        final Size previewSize = getDesiredPreviewFrameSize();
+        final ThroughputStreamConfigPolicy policy = new ThroughputStreamConfigPolicy(
+                inputSize.getWidth(), inputSize.getHeight(),
+                previewSize.getWidth(), previewSize.getHeight());
+        policy.setConversionCost(getClassificationApplication().getConversionNanosPerPixel());
+        return policy;
+    }
 
     /**
      *
@@ -187,11 +205,12 @@ public abstract class CameraActivity extends AppCompatActivity implements OnImag
     protected abstract int getLayoutId();
 
     /**
+     * Returns the luma plane of the frame being submitted to the pipeline.
      *
      * @return
      */
     protected byte[] getLuminance() {
-        return yuvBytes[0];
+        return luminance;
     }
 
     /**
@@ -219,12 +238,36 @@ public abstract class CameraActivity extends AppCompatActivity implements OnImag
     }
 
     /**
+     * Returns the latency histograms shared by the pipeline, the classifier and the UI.
      *
      * @return
      */
-    protected int[] getRgbBytes() {
-        imageConverter.run();
-        return rgbBytes;
+    protected LatencyMetrics getMetrics() {
+        return getClassificationApplication().getMetrics();
+    }
+
+    /**
+     *
+     * @return
+     */
+    protected ImageClassificationApplication getClassificationApplication() {
+        return (ImageClassificationApplication) getApplication();
+    }
+
+    /**
+     *
+     * @return
+     */
+    protected LatencyMetrics.Snapshot getMetricsSnapshot() {
+        return getMetrics().getSnapshot();
+    }
+
+    /**
+     *
+     * @return
+     */
+    protected FramePipeline.Stats getPipelineStats() {
+        return pipeline != null ? pipeline.getStats() : null;
     }
 
     /**
@@ -368,6 +411,15 @@ public abstract class CameraActivity extends AppCompatActivity implements OnImag
         cameraResolutionTextView = findViewById(R.id.view_info);
         rotationTextView = findViewById(R.id.rotation_info);
         inferenceTimeTextView = findViewById(R.id.inference_info);
+        resultPublisher = new ResultPublisher(
+                new TextView[] {recognitionTextView, recognition1TextView, recognition2TextView},
+                new TextView[] {recognitionValueTextView, recognition1ValueTextView,
+                        recognition2ValueTextView},
+                frameValueTextView, cropValueTextView, cameraResolutionTextView, rotationTextView,
+                inferenceTimeTextView, resultsReadyNanos -> {
+                    getMetrics().recordSince(LatencyMetrics.Stage.PUBLISH, resultsReadyNanos);
+                    getClassificationApplication().onResultPublished();
+                });
         deviceSpinner.setOnItemSelectedListener(this);
         plusImageView.setOnClickListener(this);
         minusImageView.setOnClickListener(this);
@@ -381,67 +433,49 @@ public abstract class CameraActivity extends AppCompatActivity implements OnImag
     @Override
     public synchronized void onDestroy() {
         LOGGER.d("onDestroy " + this);
+        if (resultPublisher != null) {
+            resultPublisher.cancel();
+        }
+        if (frameSource != null) {
+            frameSource.stop();
+        }
         super.onDestroy();
     }
 
     /**
-     * Callback for Camera2 API
+     * Copies a frame of the camera into the pipeline. Runs on the thread of the frame source.
+     *
+     * @param frame
      */
     @Override
-    public void onImageAvailable(final ImageReader reader) {
-        // We need wait until we have some size from onPreviewSizeChosen
-        if (previewWidth == 0 || previewHeight == 0) {
-            return;
-        }
-        if (rgbBytes == null) {
-            rgbBytes = new int[previewWidth * previewHeight];
-        }
+    public void onFrame(final Frame frame) {
+        // The planes are copied into a frame slot, so the frame goes back to its source right away.
+        Trace.beginSection("frameAvailable");
         try {
-            final Image image = reader.acquireLatestImage();
-
-            if (image == null) {
-                return;
+            if (previewWidth == 0 || previewHeight == 0) {
+                // Only camera2 reports the frame size beforehand, other sources deliver frames
+                // rotated like those of the legacy camera.
+                previewWidth = frame.getWidth();
+                previewHeight = frame.getHeight();
+                onPreviewSizeChosen(new Size(previewWidth, previewHeight), 90);
             }
-
-            if (isProcessingFrame) {
-                image.close();
+            final FramePipeline pipeline = tuning ? null : this.pipeline;
+            final FrameSlot slot = pipeline != null ? pipeline.acquireSlot() : null;
+            if (slot == null) {
                 return;
             }
-
-            isProcessingFrame = true;
-            Trace.beginSection("imageAvailable");
-            final Plane[] planes = image.getPlanes();
-            fillBytes(planes, yuvBytes);
-            yRowStride = planes[0].getRowStride();
-            final int uvRowStride = planes[1].getRowStride();
-            final int uvPixelStride = planes[1].getPixelStride();
-
-            imageConverter = new Runnable() {
-                @Override
-                public void run() {
-                    ImageUtils.convertYUV420ToARGB8888(
-                            yuvBytes[0], yuvBytes[1], yuvBytes[2], previewWidth, previewHeight,
-                            yRowStride, uvRowStride, uvPixelStride, rgbBytes);
-                }
-            };
-
-            postInferenceCallback = new Runnable() {
-                @Override
-                public void run() {
-                    image.close();
-                    isProcessingFrame = false;
-                }
-            };
-
-            processImage();
-
+            final long copyStartTime = LatencyMetrics.now();
+            slot.setFrame(frame);
+            getMetrics().recordSince(LatencyMetrics.Stage.COPY, copyStartTime);
+            analysisFrameWidth = frame.getWidth();
+            analysisFrameHeight = frame.getHeight();
+            submitFrame(pipeline, slot);
         } catch (final Exception e) {
             LOGGER.e(e, "Exception!");
+        } finally {
+            frame.release();
             Trace.endSection();
-            return;
         }
-
-        Trace.endSection();
     }
 
     /**
@@ -459,7 +493,12 @@ public abstract class CameraActivity extends AppCompatActivity implements OnImag
     @Override
     public void onItemSelected(AdapterView<?> parent, View view, int pos, long id) {
         if (parent == deviceSpinner) {
-            setDevice(Device.valueOf(parent.getItemAtPosition(pos).toString()));
+            final String item = parent.getItemAtPosition(pos).toString();
+            if (AUTO_DEVICE.equals(item)) {
+                autoTune();
+            } else {
+                setDevice(Device.valueOf(item));
+            }
         }
     }
 
@@ -470,61 +509,30 @@ public abstract class CameraActivity extends AppCompatActivity implements OnImag
     @Override
     public void onNothingSelected(AdapterView<?> parent) { }
 
-    /**
-     * Callback for android.hardware.Camera API
-     */
-    @Override
-    public void onPreviewFrame(final byte[] bytes, final Camera camera) {
-        if (isProcessingFrame) {
-            LOGGER.w("Dropping frame!");
-            return;
-        }
-        try {
-            // Initialize the storage bitmaps once when the resolution is known.
-            if (rgbBytes == null) {
-                Camera.Size previewSize = camera.getParameters().getPreviewSize();
-                previewHeight = previewSize.height;
-                previewWidth = previewSize.width;
-                rgbBytes = new int[previewWidth * previewHeight];
-                onPreviewSizeChosen(new Size(previewSize.width, previewSize.height), 90);
-            }
-        } catch (final Exception e) {
-            LOGGER.e(e, "Exception!");
-            return;
-        }
-        isProcessingFrame = true;
-        yuvBytes[0] = bytes;
-        yRowStride = previewWidth;
-        imageConverter = new Runnable() {
-            @Override
-            public void run() {
-                ImageUtils.convertYUV420SPToARGB8888(bytes, previewWidth, previewHeight, rgbBytes);
-            }
-        };
-        postInferenceCallback = new Runnable() {
-            @Override
-            public void run() {
-                camera.addCallbackBuffer(bytes);
-                isProcessingFrame = false;
-            }
-        };
-        processImage();
-    }
-
     /**
      *
      */
     @Override
     public synchronized void onPause() {
         LOGGER.d("onPause " + this);
-        handlerThread.quitSafely();
-        try {
-            handlerThread.join();
-            handlerThread = null;
-            handler = null;
-        } catch (final InterruptedException e) {
-            LOGGER.e(e, "Exception!");
+        final FramePipeline pipeline = this.pipeline;
+        this.pipeline = null;
+        pipeline.close();
+        LOGGER.i("Pipeline: %s", pipeline.getStats());
+        final LatencyMetrics.Snapshot metrics = getMetrics().getSnapshot();
+        LOGGER.i("Latencies:%n%s", metrics.toText());
+        // Only the copy of the planes, and their conversion to ARGB if the pipeline does it,
+        // grow with the analysis frame: preprocessing reads as many pixels whatever its size.
+        final long copiedFrames = metrics.get(LatencyMetrics.Stage.COPY).getCount();
+        final long frameArea = (long) analysisFrameWidth * analysisFrameHeight;
+        if (copiedFrames > 0 && frameArea > 0) {
+            final long frameNanos = metrics.get(LatencyMetrics.Stage.COPY).getMeanNanos()
+                    + metrics.get(LatencyMetrics.Stage.CONVERT).getMeanNanos();
+            getClassificationApplication().setConversionNanosPerPixel(
+                    (double) frameNanos / frameArea);
         }
+        LOGGER.i("Classifier cache: %s",
+                getClassificationApplication().getClassifierCache().getStats());
         super.onPause();
     }
 
@@ -561,9 +569,7 @@ public abstract class CameraActivity extends AppCompatActivity implements OnImag
     public synchronized void onResume() {
         LOGGER.d("onResume " + this);
         super.onResume();
-        handlerThread = new HandlerThread("inference");
-        handlerThread.start();
-        handler = new Handler(handlerThread.getLooper());
+        pipeline = new FramePipeline(this, FramePipeline.DEFAULT_NUM_SLOTS, false, getMetrics());
     }
 
     /**
@@ -584,20 +590,6 @@ public abstract class CameraActivity extends AppCompatActivity implements OnImag
         super.onStop();
     }
 
-    /**
-     *
-     */
-    protected abstract void processImage();
-
-    /**
-     *
-     */
-    protected void readyForNextImage() {
-        if (postInferenceCallback != null) {
-            postInferenceCallback.run();
-        }
-    }
-
     /**
      *
      */
@@ -614,12 +606,90 @@ public abstract class CameraActivity extends AppCompatActivity implements OnImag
     }
 
     /**
+     * Runs a task on the inference thread, in between two frames.
      *
      * @param r
+     * @return false if the activity is paused and the task was dropped.
      */
-    protected synchronized void runInBackground(final Runnable r) {
-        if (handler != null) {
-            handler.post(r);
+    protected synchronized boolean runInBackground(final Runnable r) {
+        return pipeline != null && pipeline.runOnInferenceThread(r);
+    }
+
+    /**
+     * Switches to the fastest configuration found by the auto-tuner.
+     *
+     * <p>The tuner times candidates on the same cores as the pipeline, and its result is saved for
+     * good, so camera frames are dropped while it runs, and it starts once the frame being
+     * classified is done.
+     */
+    private void autoTune() {
+        if (tuning) {
+            return;
+        }
+        tuning = true;
+        Toast.makeText(this, R.string.tfe_ic_auto_tuning, Toast.LENGTH_SHORT).show();
+        final ClassifierTuner.Callback callback = new ClassifierTuner.Callback() {
+            @Override
+            public void onTuned(final ClassifierTuner.Result result) {
+                LOGGER.i("Auto-tuned configuration: %s", result);
+                runOnUiThread(() -> {
+                    tuning = false;
+                    setConfiguration(result.model, result.device, result.numThreads);
+                });
+            }
+
+            @Override
+            public void onFailed(final Throwable error) {
+                LOGGER.e(error, "Auto-tuning failed.");
+                runOnUiThread(() -> {
+                    tuning = false;
+                    selectDevice(device);
+                    Toast.makeText(CameraActivity.this, R.string.tfe_ic_auto_tune_error,
+                            Toast.LENGTH_LONG).show();
+                });
+            }
+        };
+        final Runnable startTuning = () -> getClassificationApplication().autoTune(callback);
+        if (!runInBackground(startTuning)) {
+            // Paused, so nothing is being classified.
+            startTuning.run();
+        }
+    }
+
+    /**
+     * Applies a model, device and thread count at once, with a single classifier switch.
+     *
+     * @param model
+     * @param device
+     * @param numThreads
+     */
+    private void setConfiguration(
+            final Classifier.Model model, final Device device, final int numThreads) {
+        selectDevice(device);
+        if (this.model == model && this.device == device && this.numThreads == numThreads) {
+            return;
+        }
+        this.model = model;
+        this.device = device;
+        this.numThreads = numThreads;
+        final boolean threadsEnabled = device == Device.CPU;
+        plusImageView.setEnabled(threadsEnabled);
+        minusImageView.setEnabled(threadsEnabled);
+        threadsTextView.setText(threadsEnabled ? String.valueOf(numThreads) : "N/A");
+        onInferenceConfigurationChanged();
+    }
+
+    /**
+     * Shows {@code device} in the device spinner, in place of the auto-tuning entry.
+     *
+     * @param device
+     */
+    private void selectDevice(final Device device) {
+        for (int i = 0; i < deviceSpinner.getCount(); ++i) {
+            if (device.name().equals(deviceSpinner.getItemAtPosition(i).toString())) {
+                deviceSpinner.setSelection(i);
+                return;
+            }
         }
     }
 
@@ -645,7 +715,12 @@ public abstract class CameraActivity extends AppCompatActivity implements OnImag
     protected void setFragment() {
         String cameraId = chooseCamera();
         Fragment fragment;
+        if (frameSource != null) {
+            frameSource.stop();
+        }
         if (useCamera2API) {
+            final Camera2FrameSource camera2Source = new Camera2FrameSource();
+            frameSource = camera2Source;
             CameraConnectionFragment camera2Fragment = CameraConnectionFragment.newInstance(
                     new CameraConnectionFragment.ConnectionCallback() {
                         @Override
@@ -653,13 +728,16 @@ public abstract class CameraActivity extends AppCompatActivity implements OnImag
                             previewHeight = size.getHeight();
                             previewWidth = size.getWidth();
                             CameraActivity.this.onPreviewSizeChosen(size, rotation);
-                        }}, this, getLayoutId(), getDesiredPreviewFrameSize());
+                        }}, camera2Source, getLayoutId(), createStreamConfigPolicy());
             camera2Fragment.setCamera(cameraId);
             fragment = camera2Fragment;
         } else {
+            final LegacyFrameSource legacySource = new LegacyFrameSource();
+            frameSource = legacySource;
             fragment = new LegacyCameraConnectionFragment(
-                    this, getLayoutId(), getDesiredPreviewFrameSize());
+                    legacySource, getLayoutId(), createStreamConfigPolicy());
         }
+        frameSource.start(this);
         getFragmentManager().beginTransaction().replace(R.id.container, fragment).commit();
     }
 
@@ -677,81 +755,12 @@ public abstract class CameraActivity extends AppCompatActivity implements OnImag
 
     /**
      *
-     * @param cameraInfo
-     */
-    protected void showCameraResolution(String cameraInfo) {
-        cameraResolutionTextView.setText(cameraInfo);
-    }
-
-    /**
-     *
-     * @param cropInfo
-     */
-    protected void showCropInfo(String cropInfo) {
-        cropValueTextView.setText(cropInfo);
-    }
-
-    /**
-     *
-     * @param frameInfo
-     */
-    protected void showFrameInfo(String frameInfo) {
-        frameValueTextView.setText(frameInfo);
-    }
-
-    /**
-     *
-     * @param inferenceTime
-     */
-    protected void showInference(String inferenceTime) {
-        inferenceTimeTextView.setText(inferenceTime);
-    }
-
-    /**
-     *
-     * @param results
-     */
-    @UiThread
-    protected void showResultsInBottomSheet(List<Recognition> results) {
-        if (results != null && results.size() >= 3) {
-            Recognition recognition = results.get(0);
-            if (recognition != null) {
-                if (recognition.getTitle() != null) {
-                    recognitionTextView.setText(recognition.getTitle());
-                }
-                if (recognition.getConfidence() != null) {
-                    recognitionValueTextView.setText(
-                            String.format("%.2f", (100 * recognition.getConfidence())) + "%");
-                }
-            }
-            Recognition recognition1 = results.get(1);
-            if (recognition1 != null) {
-                if (recognition1.getTitle() != null) {
-                    recognition1TextView.setText(recognition1.getTitle());
-                }
-                if (recognition1.getConfidence() != null) {
-                    recognition1ValueTextView.setText(
-                            String.format("%.2f", (100 * recognition1.getConfidence())) + "%");
-                }
-            }
-            Recognition recognition2 = results.get(2);
-            if (recognition2 != null) {
-                if (recognition2.getTitle() != null) {
-                    recognition2TextView.setText(recognition2.getTitle());
-                }
-                if (recognition2.getConfidence() != null) {
-                    recognition2ValueTextView.setText(
-                            String.format("%.2f", (100 * recognition2.getConfidence())) + "%");
-                }
-            }
-        }
-    }
-
-    /**
-     *
-     * @param rotation
+     * @param pipeline
+     * @param slot
      */
-    protected void showRotationInfo(String rotation) {
-        rotationTextView.setText(rotation);
+    private void submitFrame(final FramePipeline pipeline, final FrameSlot slot) {
+        luminance = slot.getLuminance();
+        yRowStride = slot.getLuminanceStride();
+        pipeline.submit(slot);
     }
 }
@@ -44,7 +44,6 @@ import android.media.ImageReader.OnImageAvailableListener;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
-import android.text.TextUtils;
 import android.util.Size;
 import android.util.SparseIntArray;
 import android.view.LayoutInflater;
@@ -53,15 +52,13 @@ import android.view.TextureView;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Toast;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.List;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import com.example.imageclassification.customview.AutoFitTextureView;
 import com.example.imageclassification.env.Logger;
+import com.example.imageclassification.pipeline.StreamConfig;
+import com.example.imageclassification.pipeline.StreamConfigPolicy;
 
 /**
  * Camera Connection Fragment that captures images from camera.
@@ -87,14 +84,11 @@ public class CameraConnectionFragment extends Fragment {
     private static final String FRAGMENT_DIALOG = "dialog";
     // A {@link OnImageAvailableListener} to receive frames as they are available.
     private final OnImageAvailableListener imageListener;
-    // The input size in pixels desired by TensorFlow (width and height of a square bitmap).
-    private final Size inputSize;
+    // The size of the frames delivered to the classifier.
+    private Size analysisSize;
     // The layout identifier to inflate for this Fragment.
     private final int layout;
-    private static final Logger LOGGER = new Logger();
-    // The camera preview size will be chosen to be the smallest frame by pixel size capable of
-    // containing a DESIRED_SIZE x DESIRED_SIZE square.
-    private static final int MINIMUM_PREVIEW_SIZE = 320;
+    private static final Logger LOGGER = new Logger(CameraConnectionFragment.class);
     // Conversion from screen rotation to JPEG orientation.
     private static final SparseIntArray ORIENTATIONS = new SparseIntArray();
     // An {@link ImageReader} that handles preview frame capture.
@@ -107,6 +101,10 @@ public class CameraConnectionFragment extends Fragment {
     private Size previewSize;
     // The rotation in degrees of the camera sensor from the display.
     private Integer sensorOrientation;
+    // Chooses the preview and analysis streams.
+    private final StreamConfigPolicy streamConfigPolicy;
+    // The streams chosen for the current camera.
+    private StreamConfig streamConfig;
     // An {@link AutoFitTextureView} for camera preview.
     private AutoFitTextureView textureView;
 
@@ -174,11 +172,11 @@ public class CameraConnectionFragment extends Fragment {
             final ConnectionCallback connectionCallback,
             final OnImageAvailableListener imageListener,
             final int layout,
-            final Size inputSize) {
+            final StreamConfigPolicy streamConfigPolicy) {
         this.cameraConnectionCallback = connectionCallback;
         this.imageListener = imageListener;
         this.layout = layout;
-        this.inputSize = inputSize;
+        this.streamConfigPolicy = streamConfigPolicy;
     }
 
     // {@link TextureView.SurfaceTextureListener} handles
@@ -209,64 +207,12 @@ public class CameraConnectionFragment extends Fragment {
                 }
             };
 
-    /**
-     * Given {@code choices} of {@code Size}s supported by a camera, chooses the smallest one whose
-     * width and height are at least as large as the minimum of both, or an exact match if possible.
-     *
-     * @param choices The list of sizes that the camera supports for the intended output class
-     * @param width The minimum desired width
-     * @param height The minimum desired height
-     * @return The optimal {@code Size}, or an arbitrary one if none were big enough
-     */
-    protected static Size chooseOptimalSize(
-            final Size[] choices, final int width, final int height) {
-
-        final List<Size> bigEnough = new ArrayList<Size>();
-        final Size desiredSize = new Size(width, height);
-        // Collect the supported resolutions that are at least as big as the preview Surface
-        boolean exactSizeFound = false;
-        final int minSize = Math.max(Math.min(width, height), MINIMUM_PREVIEW_SIZE);
-        final List<Size> tooSmall = new ArrayList<Size>();
-
-        for (final Size option : choices) {
-            if (option.equals(desiredSize)) {
-                // Set the size but don't return yet so that remaining sizes will still be logged.
-                exactSizeFound = true;
-            }
-
-            if (option.getHeight() >= minSize && option.getWidth() >= minSize) {
-                bigEnough.add(option);
-            } else {
-                tooSmall.add(option);
-            }
-        }
-
-        LOGGER.i("Desired size: " + desiredSize + ", min size: " + minSize + "x" + minSize);
-        LOGGER.i("Valid preview sizes: [" + TextUtils.join(", ", bigEnough) + "]");
-        LOGGER.i("Rejected preview sizes: [" + TextUtils.join(", ", tooSmall) + "]");
-
-        if (exactSizeFound) {
-            LOGGER.i("Exact size match found.");
-            return desiredSize;
-        }
-
-        // Pick the smallest of those, assuming we found any
-        if (bigEnough.size() > 0) {
-            final Size chosenSize = Collections.min(bigEnough, new CompareSizesByArea());
-            LOGGER.i("Chosen size: " + chosenSize.getWidth() + "x" + chosenSize.getHeight());
-            return chosenSize;
-        } else {
-            LOGGER.e("Couldn't find any suitable preview size");
-            return choices[0];
-        }
-    }
-
     public static CameraConnectionFragment newInstance(
             final ConnectionCallback callback,
             final OnImageAvailableListener imageListener,
             final int layout,
-            final Size inputSize) {
-        return new CameraConnectionFragment(callback, imageListener, layout, inputSize);
+            final StreamConfigPolicy streamConfigPolicy) {
+        return new CameraConnectionFragment(callback, imageListener, layout, streamConfigPolicy);
     }
 
     /**
@@ -354,12 +300,12 @@ public class CameraConnectionFragment extends Fragment {
 
             previewRequestBuilder.addTarget(surface);
 
-            LOGGER.i("Opening camera preview: " + previewSize.getWidth() + "x" + previewSize.getHeight());
+            LOGGER.i("Opening camera streams: " + streamConfig);
 
-            // Create the reader for the preview frames.
+            // Create the reader for the frames to classify, which may be smaller than the preview.
             previewReader = ImageReader.newInstance(
-                    previewSize.getWidth(), previewSize.getHeight(),
-                    ImageFormat.YUV_420_888, 2);
+                    analysisSize.getWidth(), analysisSize.getHeight(),
+                    ImageFormat.YUV_420_888, streamConfig.maxImages);
 
             previewReader.setOnImageAvailableListener(imageListener, backgroundHandler);
             previewRequestBuilder.addTarget(previewReader.getSurface());
@@ -529,10 +475,12 @@ public class CameraConnectionFragment extends Fragment {
             // NOTE: Attempting to use too large a preview size could exceed the camera
             // bus' bandwidth limitation, resulting in gorgeous previews but the storage of
             // garbage capture data.
-            previewSize = chooseOptimalSize(
-                    map.getOutputSizes(SurfaceTexture.class),
-                    inputSize.getWidth(),
-                    inputSize.getHeight());
+            streamConfig = streamConfigPolicy.choose(
+                    toArray(map.getOutputSizes(SurfaceTexture.class)),
+                    toArray(map.getOutputSizes(ImageFormat.YUV_420_888)),
+                    true);
+            previewSize = new Size(streamConfig.previewWidth, streamConfig.previewHeight);
+            analysisSize = new Size(streamConfig.analysisWidth, streamConfig.analysisHeight);
 
             // We fit the aspect ratio of TextureView to the size of preview we picked.
             final int orientation = getResources().getConfiguration().orientation;
@@ -554,7 +502,22 @@ public class CameraConnectionFragment extends Fragment {
             throw new IllegalStateException(getString(R.string.tfe_ic_camera_error));
         }
 
-        cameraConnectionCallback.onPreviewSizeChosen(previewSize, sensorOrientation);
+        // The frames classified are those of the analysis stream.
+        cameraConnectionCallback.onPreviewSizeChosen(analysisSize, sensorOrientation);
+    }
+
+    /**
+     * Converts sizes to the {@code {width, height}} pairs taken by a {@link StreamConfigPolicy}.
+     *
+     * @param sizes
+     * @return
+     */
+    static int[][] toArray(final Size[] sizes) {
+        final int[][] result = new int[sizes.length][];
+        for (int i = 0; i < sizes.length; ++i) {
+            result[i] = new int[] {sizes[i].getWidth(), sizes[i].getHeight()};
+        }
+        return result;
     }
 
     /**
@@ -605,18 +568,6 @@ public class CameraConnectionFragment extends Fragment {
         void onPreviewSizeChosen(Size size, int cameraRotation);
     }
 
-    /**
-     * Compares two {@code Size}s based on their areas.
-     */
-    static class CompareSizesByArea implements Comparator<Size> {
-        @Override
-        public int compare(final Size lhs, final Size rhs) {
-            // We cast here to ensure the multiplications won't overflow
-            return Long.signum(
-                    (long) lhs.getWidth() * lhs.getHeight() - (long) rhs.getWidth() * rhs.getHeight());
-        }
-    }
-
     /**
      * Shows an error message dialog.
      */
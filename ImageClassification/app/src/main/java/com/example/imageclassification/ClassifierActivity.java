@@ -16,36 +16,44 @@ package com.example.imageclassification;
  * limitations under the License.
  */
 
-import android.app.Activity;
-import android.graphics.Bitmap;
-import android.graphics.Bitmap.Config;
 import android.graphics.Typeface;
-import android.media.ImageReader.OnImageAvailableListener;
 import android.os.SystemClock;
+import android.util.Log;
 import android.util.Size;
 import android.util.TypedValue;
 import com.example.imageclassification.env.BorderedText;
 import com.example.imageclassification.env.Logger;
+import com.example.imageclassification.pipeline.FrameSlot;
+import com.example.imageclassification.pipeline.SceneChangeDetector;
 import com.example.tflite.Classifier;
 import com.example.tflite.Classifier.Device;
 import com.example.tflite.Classifier.Model;
-import java.io.IOException;
-import java.util.List;
+import com.example.tflite.ClassifierLoader;
+import com.example.tflite.LatencyMetrics;
+import com.example.tflite.Recognitions;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  *
  */
-public class ClassifierActivity extends CameraActivity implements OnImageAvailableListener {
+public class ClassifierActivity extends CameraActivity {
 
     private BorderedText borderedText;
-    private Classifier classifier;
+    // Incremented on every requested configuration, so that only the latest load is swapped in.
+    private final AtomicInteger classifierGeneration = new AtomicInteger();
+    // Written on the inference thread, read by the preprocess thread.
+    private volatile Classifier classifier;
     private static final Size DESIRED_PREVIEW_SIZE = new Size(640, 480);
     private int imageSizeX; // Input image size of the model along x axis
     private int imageSizeY; // Input image size of the model along y axis
-    private long lastProcessingTimeMs;
-    private static final Logger LOGGER = new Logger();
-    private Bitmap rgbFrameBitmap = null;
-    private Integer sensorOrientation;
+    // Results of the frame being classified, used on the inference thread only.
+    private final Recognitions inferenceResults =
+            new Recognitions(Classifier.DEFAULT_MAX_RESULTS);
+    // Skips frames of a static scene, keeping the results shown. Used on the preprocess thread.
+    private final SceneChangeDetector sceneChangeDetector = new SceneChangeDetector();
+    private static final Logger LOGGER = new Logger(ClassifierActivity.class);
+    private volatile int sensorOrientation;
     private static final float TEXT_SIZE_DIP = 10;
 
     /**
@@ -57,6 +65,19 @@ public class ClassifierActivity extends CameraActivity implements OnImageAvailab
         return DESIRED_PREVIEW_SIZE;
     }
 
+    /**
+     * Gets the input size of the current classifier, if one was loaded by this activity.
+     *
+     * @return
+     */
+    @Override
+    protected Size getModelInputSize() {
+        if (imageSizeX > 0 && imageSizeY > 0) {
+            return new Size(imageSizeX, imageSizeY);
+        }
+        return super.getModelInputSize();
+    }
+
     /**
      *
      * @return
@@ -71,14 +92,11 @@ public class ClassifierActivity extends CameraActivity implements OnImageAvailab
      */
     @Override
     protected void onInferenceConfigurationChanged() {
-        if (rgbFrameBitmap == null) {
+        if (previewWidth == 0) {
             // defer creation until we're getting camera frames
             return;
         }
-        final Model model = getModel();
-        final Device device = getDevice();
-        final int numThreads = getNumThreads();
-        runInBackground(() -> recreateClassifier(model, device, numThreads));
+        switchClassifier(getModel(), getDevice(), getNumThreads());
     }
 
     /**
@@ -92,71 +110,186 @@ public class ClassifierActivity extends CameraActivity implements OnImageAvailab
                 TypedValue.COMPLEX_UNIT_DIP, TEXT_SIZE_DIP, getResources().getDisplayMetrics());
         borderedText = new BorderedText(textSizePx);
         borderedText.setTypeface(Typeface.MONOSPACE);
-        recreateClassifier(getModel(), getDevice(), getNumThreads());
-        if (classifier == null) {
-            LOGGER.e("No classifier on preview!");
-            return;
-        }
         previewWidth = size.getWidth();
         previewHeight = size.getHeight();
         sensorOrientation = rotation - getScreenOrientation();
         LOGGER.i("Camera orientation relative to screen canvas: %d", sensorOrientation);
         LOGGER.i("Initializing at size %dx%d", previewWidth, previewHeight);
-        rgbFrameBitmap = Bitmap.createBitmap(previewWidth, previewHeight, Config.ARGB_8888);
+        // Frames are dropped until the classifier, usually preloaded since process start, is ready.
+        switchClassifier(getModel(), getDevice(), getNumThreads());
     }
 
     /**
+     * Runs on the preprocess thread, while the previous frame is being classified.
      *
+     * @param slot
+     * @return
      */
     @Override
-    protected void processImage() {
-        rgbFrameBitmap.setPixels(
-                getRgbBytes(), 0, previewWidth, 0, 0, previewWidth, previewHeight);
-        final int cropSize = Math.min(previewWidth, previewHeight);
-        runInBackground(new Runnable() {
-            @Override
-            public void run() {
-                if (classifier != null) {
-                    final long startTime = SystemClock.uptimeMillis();
-                    final List<Classifier.Recognition> results = classifier.recognizeImage(
-                            rgbFrameBitmap, sensorOrientation);
-                    lastProcessingTimeMs = SystemClock.uptimeMillis() - startTime;
-                    LOGGER.v("Detect: %s", results);
-                    runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            showResultsInBottomSheet(results);
-                            showFrameInfo(previewWidth + "x" + previewHeight);
-                            showCropInfo(imageSizeX + "x" + imageSizeY);
-                            showCameraResolution(cropSize + "x" + cropSize);
-                            showRotationInfo(String.valueOf(sensorOrientation));
-                            showInference(lastProcessingTimeMs + "ms");
-                        }
-                    });
-                }
-                readyForNextImage();
-            }
-        });
+    public boolean preprocess(final FrameSlot slot) {
+        final Classifier classifier = this.classifier;
+        if (classifier == null) {
+            return false;
+        }
+        final long checkStartTime = LatencyMetrics.now();
+        final boolean changed = sceneChangeDetector.hasChanged(
+                slot.getLuminance(), slot.getWidth(), slot.getHeight(),
+                slot.getLuminanceStride(), slot.getTimestampNs());
+        getMetrics().recordSince(LatencyMetrics.Stage.SCENE_CHECK, checkStartTime);
+        if (!changed) {
+            // The results shown still describe the scene.
+            return false;
+        }
+        writeInput(classifier, slot);
+        return true;
+    }
+
+    /**
+     * Writes the model input of a frame for the given classifier.
+     *
+     * @param classifier
+     * @param slot
+     */
+    private void writeInput(final Classifier classifier, final FrameSlot slot) {
+        final ByteBuffer input = slot.getInputBuffer(classifier.getInputByteSize());
+        if (slot.isConverted()) {
+            classifier.preprocess(
+                    slot.getRgbBytes(), slot.getWidth(), slot.getHeight(), sensorOrientation, input);
+        } else {
+            // Samples only the pixels the model needs straight from the YUV planes.
+            classifier.preprocessYuv(
+                    slot.getLuminance(), slot.getUPlane(), slot.getUOffset(),
+                    slot.getVPlane(), slot.getVOffset(), slot.getWidth(), slot.getHeight(),
+                    slot.getLuminanceStride(), slot.getUvRowStride(), slot.getUvPixelStride(),
+                    sensorOrientation, input);
+        }
+        slot.setInputOwner(classifier);
     }
 
     /**
+     * Runs on the inference thread.
      *
+     * @param slot
+     */
+    @Override
+    public void infer(final FrameSlot slot) {
+        final Classifier classifier = this.classifier;
+        if (classifier == null) {
+            return;
+        }
+        if (slot.getInputOwner() != classifier) {
+            // The classifier was replaced after this frame was preprocessed.
+            writeInput(classifier, slot);
+        }
+        final long startTime = SystemClock.uptimeMillis();
+        classifier.recognize(
+                slot.getInputBuffer(classifier.getInputByteSize()), inferenceResults);
+        final long processingTimeMs = SystemClock.uptimeMillis() - startTime;
+        if (LOGGER.isLoggable(Log.VERBOSE)) {
+            // Skips the varargs array and formatting on every frame when verbose logs are off.
+            LOGGER.v("Detect: %s", inferenceResults);
+        }
+        // Results arriving before the next display frame replace the pending ones.
+        resultPublisher.publish(inferenceResults, previewWidth, previewHeight, imageSizeX,
+                imageSizeY, sensorOrientation, processingTimeMs);
+    }
+
+    /**
+     * Runs on the thread that dropped the frame.
+     *
+     * @param slot
+     */
+    @Override
+    public void onDropped(final FrameSlot slot) {
+        // The frame was the reference of the detector but its results were never shown.
+        sceneChangeDetector.requestRefresh();
+    }
+
+    /**
+     * Loads a classifier in the background while the current one keeps serving frames, then swaps
+     * it in between two frames.
+     *
+     * @param model
      * @param device
      * @param numThreads
      */
-    private void recreateClassifier(Model model, Device device, int numThreads) {
-        if (classifier != null) {
-            LOGGER.d("Closing classifier.");
-            classifier.close();
-            classifier = null;
+    private void switchClassifier(final Model model, final Device device, final int numThreads) {
+        final int generation = classifierGeneration.incrementAndGet();
+        LOGGER.d("Switching classifier (model=%s, device=%s, numThreads=%d)",
+                model, device, numThreads);
+        ClassifierLoader.whenLoaded(
+                getClassificationApplication().takeClassifier(model, device, numThreads),
+                new ClassifierLoader.Callback() {
+                    @Override
+                    public void onLoaded(final Classifier loaded) {
+                        final Runnable swap = () -> swapClassifier(loaded, generation);
+                        if (!runInBackground(swap)) {
+                            // Paused, so no frame is being classified.
+                            swap.run();
+                        }
+                    }
+
+                    @Override
+                    public void onFailed(final Throwable error) {
+                        LOGGER.e(error, "Failed to create classifier, keeping the current one.");
+                    }
+                });
+    }
+
+    /**
+     * Replaces the classifier. Runs on the inference thread, so the replaced classifier has no
+     * inference in flight and can be handed back to the cache right away.
+     *
+     * @param loaded
+     * @param generation
+     */
+    private void swapClassifier(final Classifier loaded, final int generation) {
+        final Classifier previous;
+        synchronized (classifierGeneration) {
+            if (generation != classifierGeneration.get()) {
+                // A newer configuration was requested while this one was loading, or the activity
+                // was destroyed.
+                previous = loaded;
+            } else {
+                previous = classifier;
+                imageSizeX = loaded.getImageSizeX();
+                imageSizeY = loaded.getImageSizeY();
+                classifier = loaded;
+                // The new classifier gives its own results, even for an unchanged scene.
+                sceneChangeDetector.requestRefresh();
+            }
+        }
+        if (previous != null) {
+            LOGGER.d("Releasing classifier.");
+            getClassificationApplication().releaseClassifier(previous);
         }
-        try {
-            LOGGER.d("Creating classifier (device=%s, numThreads=%d)", device, numThreads);
-            classifier = Classifier.create(this, model, device, numThreads);
-        } catch (IOException e) {
-            LOGGER.e(e, "Failed to create classifier.");
+    }
+
+    /**
+     *
+     */
+    @Override
+    public synchronized void onPause() {
+        super.onPause();
+        LOGGER.i("Scene changes: %s",
+                sceneChangeDetector.getStats().toText(getMetrics().getSnapshot()));
+    }
+
+    /**
+     * Hands the classifier back to the cache, so that a recreated activity gets it back at once.
+     */
+    @Override
+    public synchronized void onDestroy() {
+        final Classifier classifier;
+        synchronized (classifierGeneration) {
+            // Loads still in flight are released by swapClassifier.
+            classifierGeneration.incrementAndGet();
+            classifier = this.classifier;
+            this.classifier = null;
+        }
+        if (classifier != null) {
+            getClassificationApplication().releaseClassifier(classifier);
         }
-        imageSizeX = classifier.getImageSizeX();
-        imageSizeY = classifier.getImageSizeY();
+        super.onDestroy();
     }
 }
\ No newline at end of file
@@ -0,0 +1,244 @@
+package com.example.imageclassification;
+
+/*
+ * Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import android.app.Application;
+import android.content.ComponentCallbacks2;
+import com.example.imageclassification.env.Logger;
+import com.example.tflite.ChromeTraceExporter;
+import com.example.tflite.Classifier;
+import com.example.tflite.Classifier.Device;
+import com.example.tflite.Classifier.Model;
+import com.example.tflite.ClassifierCache;
+import com.example.tflite.ClassifierLoader;
+import com.example.tflite.ClassifierTuner;
+import com.example.tflite.LatencyMetrics;
+import com.example.tflite.Tracer;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Starts loading the default classifier as soon as the process starts, so that it is usually
+ * ready by the time the camera delivers its first frame, and keeps classifiers that are no longer
+ * used in a {@link ClassifierCache} so that switching back to them is instant.
+ */
+public class ImageClassificationApplication extends Application {
+
+    private static final Logger LOGGER = new Logger(ImageClassificationApplication.class);
+    // Blank inferences run before a classifier is handed over, to prepare its graph.
+    static final int NUM_WARMUP_RUNS = ClassifierLoader.DEFAULT_NUM_WARMUP_RUNS;
+
+    private final ClassifierCache cache = new ClassifierCache();
+    // Measured cost of converting a camera frame, in nanoseconds per pixel, 0 until measured.
+    private volatile double conversionNanosPerPixel;
+    // Latency the auto-tuner tries to meet with the most preferred model, 30 frames per second.
+    static final long TARGET_LATENCY_NANOS = 33000000L;
+
+    private final AtomicBoolean firstResultPending = new AtomicBoolean(true);
+    private final LatencyMetrics metrics = new LatencyMetrics();
+    private Future<Classifier> preloaded;
+    private Device preloadedDevice;
+    private Model preloadedModel;
+    private int preloadedNumThreads;
+    private long startNanos;
+    private ClassifierTuner tuner;
+
+    /**
+     *
+     * @return
+     */
+    public LatencyMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public ClassifierCache getClassifierCache() {
+        return cache;
+    }
+
+    /**
+     * Gets the per-pixel cost of copying, and converting if done in full, the camera frames
+     * measured by a previous activity, so that the next one can choose its frame size accordingly.
+     *
+     * @return nanoseconds per pixel, or 0 if not measured yet.
+     */
+    public double getConversionNanosPerPixel() {
+        return conversionNanosPerPixel;
+    }
+
+    /**
+     *
+     * @param conversionNanosPerPixel
+     */
+    public void setConversionNanosPerPixel(final double conversionNanosPerPixel) {
+        this.conversionNanosPerPixel = conversionNanosPerPixel;
+    }
+
+    /**
+     *
+     */
+    @Override
+    public void onCreate() {
+        startNanos = LatencyMetrics.now();
+        super.onCreate();
+        if (BuildConfig.DEBUG) {
+            startTracing();
+        }
+        preload(CameraActivity.DEFAULT_MODEL, CameraActivity.DEFAULT_DEVICE,
+                CameraActivity.DEFAULT_NUM_THREADS);
+    }
+
+    /**
+     * Records Tracer spans and counters into trace.json in the external files directory, where
+     * they can be pulled with adb and opened in chrome://tracing or the Perfetto UI. Past 16 MB the
+     * file is moved to trace.json.1, so at most the last 32 MB of events are kept.
+     */
+    private void startTracing() {
+        final File directory = getExternalFilesDir(null);
+        if (directory == null) {
+            return;
+        }
+        final ChromeTraceExporter traceExporter;
+        try {
+            traceExporter = ChromeTraceExporter.open(
+                    new File(directory, "trace.json"), ChromeTraceExporter.DEFAULT_MAX_FILE_BYTES);
+        } catch (final IOException e) {
+            LOGGER.w(e, "Failed to open the trace file, tracing disabled.");
+            return;
+        }
+        Tracer.enable();
+        traceExporter.start(ChromeTraceExporter.DEFAULT_PERIOD_MILLIS);
+    }
+
+    /**
+     * Finds the fastest configuration on this device in the background, or reads it back if it
+     * was found on an earlier start.
+     *
+     * @param callback called on a background thread.
+     */
+    public synchronized void autoTune(final ClassifierTuner.Callback callback) {
+        if (tuner == null) {
+            tuner = new ClassifierTuner(this);
+            // Most preferred first: the default model, then the more accurate EfficientNet ones.
+            tuner.setModels(Model.QUANTIZED_EFFICIENTNET, Model.FLOAT_EFFICIENTNET,
+                    Model.QUANTIZED_MOBILENET, Model.FLOAT_MOBILENET);
+            tuner.setTargetLatencyNanos(TARGET_LATENCY_NANOS);
+        }
+        tuner.tuneAsync(callback);
+    }
+
+    /**
+     * Drops idle classifiers when the system runs low on memory.
+     *
+     * @param level
+     */
+    @Override
+    public void onTrimMemory(final int level) {
+        super.onTrimMemory(level);
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            LOGGER.i("Trimming memory (level=%d), closing idle classifiers: %s",
+                    level, cache.getStats());
+            cache.clear();
+        } else if (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            cache.trimToSize(cache.getMemoryBudgetBytes() / 2);
+        }
+    }
+
+    /**
+     *
+     */
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        cache.clear();
+    }
+
+    /**
+     * Records the time to first result, the first time results are shown.
+     */
+    public void onResultPublished() {
+        if (firstResultPending.compareAndSet(true, false)) {
+            metrics.recordSince(LatencyMetrics.Stage.FIRST_RESULT, startNanos);
+            LOGGER.i("Time to first result: %d ms", (LatencyMetrics.now() - startNanos) / 1000000);
+        }
+    }
+
+    /**
+     * Starts loading a classifier in the background, replacing any classifier preloaded before.
+     *
+     * @param model
+     * @param device
+     * @param numThreads
+     */
+    public synchronized void preload(final Model model, final Device device, final int numThreads) {
+        discardPreloaded();
+        LOGGER.d("Preloading classifier (model=%s, device=%s, numThreads=%d)",
+                model, device, numThreads);
+        preloaded = ClassifierLoader.loadAsync(
+                this, model, device, numThreads, NUM_WARMUP_RUNS, metrics);
+        preloadedModel = model;
+        preloadedDevice = device;
+        preloadedNumThreads = numThreads;
+    }
+
+    /**
+     * Hands over the preloaded classifier if it has the requested configuration, a cached one if
+     * idle, or starts loading one otherwise. The caller owns the returned classifier and hands it
+     * back with {@link #releaseClassifier(Classifier)}.
+     *
+     * @param model
+     * @param device
+     * @param numThreads
+     * @return
+     */
+    public synchronized Future<Classifier> takeClassifier(
+            final Model model, final Device device, final int numThreads) {
+        if (preloaded != null && preloadedModel == model && preloadedDevice == device
+                && preloadedNumThreads == numThreads) {
+            final Future<Classifier> classifier = preloaded;
+            preloaded = null;
+            return classifier;
+        }
+        discardPreloaded();
+        return cache.get(this, model, device, numThreads, NUM_WARMUP_RUNS, metrics);
+    }
+
+    /**
+     * Keeps a classifier that is no longer used in the cache, closing it if it does not fit.
+     *
+     * @param classifier
+     */
+    public void releaseClassifier(final Classifier classifier) {
+        cache.release(classifier);
+    }
+
+    /**
+     * Moves the preloaded classifier, if any, to the cache once it is loaded.
+     */
+    private void discardPreloaded() {
+        if (preloaded != null) {
+            cache.releaseWhenLoaded(preloaded);
+            preloaded = null;
+        }
+    }
+}
@@ -25,7 +25,6 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.view.LayoutInflater;
-import android.util.Size;
 import android.util.SparseIntArray;
 import android.view.Surface;
 import android.view.TextureView;
@@ -34,6 +33,8 @@ import android.view.ViewGroup;
 import com.example.imageclassification.customview.AutoFitTextureView;
 import com.example.imageclassification.env.ImageUtils;
 import com.example.imageclassification.env.Logger;
+import com.example.imageclassification.pipeline.StreamConfig;
+import com.example.imageclassification.pipeline.StreamConfigPolicy;
 import java.io.IOException;
 import java.util.List;
 
@@ -42,15 +43,18 @@ public class LegacyCameraConnectionFragment extends Fragment {
     // An additional thread for running tasks that shouldn't block the UI.
     private HandlerThread backgroundThread;
     private Camera camera;
-    private Size desiredSize;
     private Camera.PreviewCallback imageListener;
     // he layout identifier to inflate for this Fragment.
     private int layout;
-    private static final Logger LOGGER = new Logger();
+    private static final Logger LOGGER = new Logger(LegacyCameraConnectionFragment.class);
     // Conversion from screen rotation to JPEG orientation.
     private static final SparseIntArray ORIENTATIONS = new SparseIntArray();
     // An {@link AutoFitTextureView} for camera preview.
     private AutoFitTextureView textureView;
+    // Chooses the preview size, which is also the size of the frames classified.
+    private StreamConfigPolicy streamConfigPolicy;
+    // The streams chosen for the current camera.
+    private StreamConfig streamConfig;
 
     static {
         ORIENTATIONS.append(Surface.ROTATION_0, 90);
@@ -81,18 +85,20 @@ public class LegacyCameraConnectionFragment extends Fragment {
                         }
 
                         List<Camera.Size> cameraSizes = parameters.getSupportedPreviewSizes();
-                        Size[] sizes = new Size[cameraSizes.size()];
+                        int[][] sizes = new int[cameraSizes.size()][];
 
                         int i = 0;
 
                         for (Camera.Size size : cameraSizes) {
-                            sizes[i++] = new Size(size.width, size.height);
+                            sizes[i++] = new int[] {size.width, size.height};
                         }
 
-                        Size previewSize = CameraConnectionFragment.chooseOptimalSize(
-                                sizes, desiredSize.getWidth(), desiredSize.getHeight());
+                        // The preview frames are the frames classified, there is no other stream.
+                        streamConfig = streamConfigPolicy.choose(sizes, sizes, false);
+                        LOGGER.i("Opening camera streams: " + streamConfig);
 
-                        parameters.setPreviewSize(previewSize.getWidth(), previewSize.getHeight());
+                        parameters.setPreviewSize(
+                                streamConfig.previewWidth, streamConfig.previewHeight);
 
                         camera.setDisplayOrientation(90);
                         camera.setParameters(parameters);
@@ -104,7 +110,12 @@ public class LegacyCameraConnectionFragment extends Fragment {
 
                     camera.setPreviewCallbackWithBuffer(imageListener);
                     Camera.Size s = camera.getParameters().getPreviewSize();
-                    camera.addCallbackBuffer(new byte[ImageUtils.getYUVByteSize(s.height, s.width)]);
+                    // One buffer per image the pipeline may hold, plus one for the camera to fill.
+                    final int numBuffers = streamConfig != null ? streamConfig.maxImages : 1;
+                    for (int b = 0; b < numBuffers; ++b) {
+                        camera.addCallbackBuffer(
+                                new byte[ImageUtils.getYUVByteSize(s.height, s.width)]);
+                    }
                     textureView.setAspectRatio(s.height, s.width);
                     camera.startPreview();
                 }
@@ -141,14 +152,15 @@ public class LegacyCameraConnectionFragment extends Fragment {
      *
      * @param imageListener
      * @param layout
-     * @param desiredSize
+     * @param streamConfigPolicy
      */
     @SuppressLint("ValidFragment")
     public LegacyCameraConnectionFragment(
-            final Camera.PreviewCallback imageListener, final int layout, final Size desiredSize) {
+            final Camera.PreviewCallback imageListener, final int layout,
+            final StreamConfigPolicy streamConfigPolicy) {
         this.imageListener = imageListener;
         this.layout = layout;
-        this.desiredSize = desiredSize;
+        this.streamConfigPolicy = streamConfigPolicy;
     }
 
     /**
@@ -26,7 +26,8 @@ public class RecognitionScoreView extends View implements ResultsView {
     private final float textSizePx;
     private final Paint fgPaint;
     private final Paint bgPaint;
-    private List<Recognition> results;
+    // Text of every row, built once per update rather than on every draw.
+    private volatile String[] rows;
 
     public RecognitionScoreView(final Context context, final AttributeSet set) {
         super(context, set);
@@ -43,7 +44,15 @@ public class RecognitionScoreView extends View implements ResultsView {
 
     @Override
     public void setResults(final List<Recognition> results) {
-        this.results = results;
+        String[] rows = null;
+        if (results != null) {
+            rows = new String[results.size()];
+            for (int i = 0; i < rows.length; ++i) {
+                final Recognition recog = results.get(i);
+                rows[i] = recog.getTitle() + ": " + recog.getConfidence();
+            }
+        }
+        this.rows = rows;
         postInvalidate();
     }
 
@@ -54,9 +63,10 @@ public class RecognitionScoreView extends View implements ResultsView {
 
         canvas.drawPaint(bgPaint);
 
-        if (results != null) {
-            for (final Recognition recog : results) {
-                canvas.drawText(recog.getTitle() + ": " + recog.getConfidence(), x, y, fgPaint);
+        final String[] rows = this.rows;
+        if (rows != null) {
+            for (final String row : rows) {
+                canvas.drawText(row, x, y, fgPaint);
                 y += (int) (fgPaint.getTextSize() * 1.5f);
             }
         }
@@ -111,6 +111,23 @@ public class BorderedText {
         interiorPaint.getTextBounds(line, index, count, lineBounds);
     }
 
+    /**
+     *
+     * @return the metrics of the font, without the border.
+     */
+    public Paint.FontMetrics getFontMetrics() {
+        return interiorPaint.getFontMetrics();
+    }
+
+    /**
+     *
+     * @param text
+     * @return the horizontal advance of the text, without the border.
+     */
+    public float measureText(final String text) {
+        return interiorPaint.measureText(text);
+    }
+
     /**
      *
      * @return
@@ -17,18 +17,15 @@ import android.graphics.Bitmap;
 import android.os.Environment;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Utility class for manipulating images.
  */
 public class ImageUtils {
 
-    // This value is 2 ^ 18 - 1,
-    // and is used to clamp the RGB values before their ranges
-    // are normalized to eight bits.
-    static final int kMaxChannelValue = 262143;
     @SuppressWarnings("unused")
-    private static final Logger LOGGER = new Logger();
+    private static final Logger LOGGER = new Logger(ImageUtils.class);
 
     /**
      *
@@ -45,18 +42,9 @@ public class ImageUtils {
     public static void convertYUV420ToARGB8888(
             byte[] yData, byte[] uData, byte[] vData, int width, int height, int yRowStride,
             int uvRowStride, int uvPixelStride, int[] out) {
-
-        int yp = 0;
-        for (int j = 0; j < height; j++) {
-            int pY = yRowStride * j;
-            int pUV = uvRowStride * (j >> 1);
-
-            for (int i = 0; i < width; i++) {
-                int uv_offset = pUV + (i >> 1) * uvPixelStride;
-
-                out[yp++] = YUV2RGB(0xff & yData[pY + i], 0xff & uData[uv_offset], 0xff & vData[uv_offset]);
-            }
-        }
+        YuvConverter.convertYUV420ToARGB8888(
+                ByteBuffer.wrap(yData), ByteBuffer.wrap(uData), ByteBuffer.wrap(vData),
+                width, height, yRowStride, uvRowStride, uvPixelStride, out);
     }
 
     /**
@@ -68,24 +56,7 @@ public class ImageUtils {
      */
     public static void convertYUV420SPToARGB8888(
             byte[] input, int width, int height, int[] output) {
-
-        final int frameSize = width * height;
-
-        for (int j = 0, yp = 0; j < height; j++) {
-            int uvp = frameSize + (j >> 1) * width;
-            int u = 0;
-            int v = 0;
-
-            for (int i = 0; i < width; i++, yp++) {
-                int y = 0xff & input[yp];
-                if ((i & 1) == 0) {
-                    v = 0xff & input[uvp++];
-                    u = 0xff & input[uvp++];
-                }
-
-                output[yp] = YUV2RGB(y, u, v);
-            }
-        }
+        YuvConverter.convertYUV420SPToARGB8888(ByteBuffer.wrap(input), width, height, output);
     }
 
     /**
@@ -151,36 +122,4 @@ public class ImageUtils {
     public static void saveBitmap(final Bitmap bitmap) {
         saveBitmap(bitmap, "preview.png");
     }
-
-    /**
-     *
-     * @param y
-     * @param u
-     * @param v
-     * @return
-     */
-    private static int YUV2RGB(int y, int u, int v) {
-        // Adjust and check YUV values
-        y = (y - 16) < 0 ? 0 : (y - 16);
-        u -= 128;
-        v -= 128;
-
-        // This is the floating point equivalent.
-        // We do the conversion in integer
-        // because some Android devices do not have floating point in hardware.
-        //nR = (int)(1.164 * nY + 2.018 * nU);
-        //nG = (int)(1.164 * nY - 0.813 * nV - 0.391 * nU);
-        //nB = (int)(1.164 * nY + 1.596 * nV);
-        int y1192 = 1192 * y;
-        int r = (y1192 + 1634 * v);
-        int g = (y1192 - 833 * v - 400 * u);
-        int b = (y1192 + 2066 * u);
-
-        // Clipping RGB values to be inside boundaries [ 0 , kMaxChannelValue ]
-        r = r > kMaxChannelValue ? kMaxChannelValue : (r < 0 ? 0 : r);
-        g = g > kMaxChannelValue ? kMaxChannelValue : (g < 0 ? 0 : g);
-        b = b > kMaxChannelValue ? kMaxChannelValue : (b < 0 ? 0 : b);
-
-        return 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
-    }
-}
\ No newline at end of file
+}
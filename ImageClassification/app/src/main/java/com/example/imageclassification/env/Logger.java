@@ -146,7 +146,8 @@ public final class Logger {
      * com.google.android.apps.unveil.env.UnveilLogger stackTrace[3]:
      * com.google.android.apps.unveil.BaseApplication
      *
-     * <p>This function returns the simple version of the first non-filtered name.
+     * <p>This function returns the simple version of the first non-filtered name. Capturing the
+     * stack trace is slow, so loggers created once per class should rather be given the class.
      *
      * @return caller's simple name
      */
@@ -158,8 +159,7 @@ public final class Logger {
             final String className = elem.getClassName();
             if (!IGNORED_CLASS_NAMES.contains(className)) {
                 // We're only interested in the simple name of the class, not the complete package.
-                final String[] classParts = className.split("\\.");
-                return classParts[classParts.length - 1];
+                return className.substring(className.lastIndexOf('.') + 1);
             }
         }
 
@@ -0,0 +1,306 @@
+package com.example.imageclassification.env;
+
+/*
+ * Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Draws {@link BorderedText} from sprites rasterized once into a bitmap atlas, so that drawing a
+ * label costs one bitmap blit whatever its length, instead of shaping and filling the text twice.
+ *
+ * <p>The atlas is split into shelves of one line of text each. Strings, typically labels, are
+ * rasterized whole, and numbers are drawn glyph by glyph from single-char sprites, so changing
+ * values do not fill the atlas. When no shelf has room for a new sprite, the least recently drawn
+ * shelf is cleared and reused.
+ *
+ * <p>Text is drawn left-aligned. Call {@link #clear()} after changing the colors, alpha or
+ * typeface of the bordered text. Must be used from a single thread.
+ */
+public class TextAtlas {
+
+    // Width of the atlas, in pixels.
+    public static final int DEFAULT_WIDTH = 1024;
+    // Number of lines of text the atlas holds.
+    public static final int DEFAULT_NUM_SHELVES = 16;
+    // First and last chars cached as glyphs.
+    private static final char FIRST_GLYPH = ' ';
+    private static final char LAST_GLYPH = '~';
+
+    /**
+     * A sprite of the atlas.
+     */
+    private static final class Sprite {
+        float advance;
+        int left;
+        Shelf shelf;
+        final String text;
+        int width;
+
+        Sprite(final String text) {
+            this.text = text;
+        }
+    }
+
+    /**
+     * A line of the atlas, filled left to right.
+     */
+    private static final class Shelf {
+        long lastUsed;
+        final List<Sprite> sprites = new ArrayList<>();
+        final int top;
+        int usedWidth;
+
+        Shelf(final int top) {
+            this.top = top;
+        }
+    }
+
+    private final Bitmap atlas;
+    private final Canvas atlasCanvas;
+    private final float baseline;
+    private final BorderedText borderedText;
+    private long clock;
+    private final RectF destination = new RectF();
+    private final Sprite[] glyphs = new Sprite[LAST_GLYPH - FIRST_GLYPH + 1];
+    private final int padding;
+    private final Shelf[] shelves;
+    private final int spriteHeight;
+    private final Rect source = new Rect();
+    private final Map<String, Sprite> sprites = new HashMap<>();
+    private final int width;
+
+    /**
+     *
+     * @param borderedText
+     */
+    public TextAtlas(final BorderedText borderedText) {
+        this(borderedText, DEFAULT_WIDTH, DEFAULT_NUM_SHELVES);
+    }
+
+    /**
+     *
+     * @param borderedText the text style of the sprites.
+     * @param width width of the atlas, in pixels.
+     * @param numShelves number of lines of text the atlas holds.
+     */
+    public TextAtlas(final BorderedText borderedText, final int width, final int numShelves) {
+        this.borderedText = borderedText;
+        this.width = width;
+        final Paint.FontMetrics metrics = borderedText.getFontMetrics();
+        // Room for the half of the border stroke drawn outside of the glyphs.
+        padding = (int) Math.ceil(borderedText.getTextSize() / 16) + 1;
+        spriteHeight = (int) Math.ceil(metrics.descent - metrics.ascent) + 2 * padding;
+        baseline = padding - metrics.ascent;
+        atlas = Bitmap.createBitmap(width, spriteHeight * numShelves, Bitmap.Config.ARGB_8888);
+        atlasCanvas = new Canvas(atlas);
+        shelves = new Shelf[numShelves];
+        for (int i = 0; i < numShelves; ++i) {
+            shelves[i] = new Shelf(i * spriteHeight);
+        }
+    }
+
+    /**
+     * Draws a string, rasterizing it the first time it is drawn.
+     *
+     * @param canvas
+     * @param posX
+     * @param posY baseline of the text.
+     * @param text
+     */
+    public void drawText(final Canvas canvas, final float posX, final float posY,
+                         final String text) {
+        Sprite sprite = sprites.get(text);
+        if (sprite == null) {
+            sprite = new Sprite(text);
+            if (!rasterize(sprite)) {
+                // Wider than the atlas.
+                borderedText.drawText(canvas, posX, posY, text);
+                return;
+            }
+            sprites.put(text, sprite);
+        }
+        blit(canvas, sprite, posX, posY);
+    }
+
+    /**
+     * Draws chars glyph by glyph, for text that changes often such as numbers. Chars outside of
+     * printable ASCII are skipped.
+     *
+     * @param canvas
+     * @param posX
+     * @param posY baseline of the text.
+     * @param text
+     * @param start
+     * @param count
+     * @return the horizontal advance of the text drawn.
+     */
+    public float drawChars(final Canvas canvas, final float posX, final float posY,
+                           final char[] text, final int start, final int count) {
+        float x = posX;
+        for (int i = start; i < start + count; ++i) {
+            final char c = text[i];
+            if (c < FIRST_GLYPH || c > LAST_GLYPH) {
+                continue;
+            }
+            Sprite glyph = glyphs[c - FIRST_GLYPH];
+            if (glyph == null || glyph.shelf == null) {
+                glyph = new Sprite(String.valueOf(c));
+                if (!rasterize(glyph)) {
+                    continue;
+                }
+                glyphs[c - FIRST_GLYPH] = glyph;
+            }
+            if (c != ' ') {
+                blit(canvas, glyph, x, posY);
+            }
+            x += glyph.advance;
+        }
+        return x - posX;
+    }
+
+    /**
+     * Draws lines bottom-aligned on {@code posY}, like {@link BorderedText#drawLines}.
+     *
+     * @param canvas
+     * @param posX
+     * @param posY
+     * @param lines
+     */
+    public void drawLines(final Canvas canvas, final float posX, final float posY,
+                          final List<String> lines) {
+        final int size = lines.size();
+        for (int i = 0; i < size; ++i) {
+            drawText(canvas, posX, posY - borderedText.getTextSize() * (size - i - 1),
+                    lines.get(i));
+        }
+    }
+
+    /**
+     * Drops every sprite, for instance after the style of the bordered text changed.
+     */
+    public void clear() {
+        for (final Shelf shelf : shelves) {
+            evict(shelf);
+        }
+    }
+
+    /**
+     * Releases the atlas bitmap. The atlas must not be used afterwards.
+     */
+    public void recycle() {
+        atlas.recycle();
+    }
+
+    /**
+     * Gets the number of strings and glyphs held by the atlas.
+     *
+     * @return
+     */
+    public int getSpriteCount() {
+        int count = 0;
+        for (final Shelf shelf : shelves) {
+            count += shelf.sprites.size();
+        }
+        return count;
+    }
+
+    /**
+     * Copies a sprite to the canvas.
+     *
+     * @param canvas
+     * @param sprite
+     * @param posX
+     * @param posY
+     */
+    private void blit(final Canvas canvas, final Sprite sprite, final float posX,
+                      final float posY) {
+        final Shelf shelf = sprite.shelf;
+        shelf.lastUsed = ++clock;
+        source.set(sprite.left, shelf.top, sprite.left + sprite.width, shelf.top + spriteHeight);
+        destination.set(posX - padding, posY - baseline, posX - padding + sprite.width,
+                posY - baseline + spriteHeight);
+        canvas.drawBitmap(atlas, source, destination, null);
+    }
+
+    /**
+     * Finds room for a sprite, evicting the least recently used shelf if needed, and draws it.
+     *
+     * @param sprite
+     * @return false if the sprite is wider than the atlas.
+     */
+    private boolean rasterize(final Sprite sprite) {
+        sprite.advance = borderedText.measureText(sprite.text);
+        sprite.width = (int) Math.ceil(sprite.advance) + 2 * padding;
+        if (sprite.width > width) {
+            return false;
+        }
+        Shelf target = null;
+        Shelf leastRecentlyUsed = shelves[0];
+        for (final Shelf shelf : shelves) {
+            if (shelf.usedWidth + sprite.width <= width) {
+                target = shelf;
+                break;
+            }
+            if (shelf.lastUsed < leastRecentlyUsed.lastUsed) {
+                leastRecentlyUsed = shelf;
+            }
+        }
+        if (target == null) {
+            target = leastRecentlyUsed;
+            evict(target);
+        }
+        sprite.left = target.usedWidth;
+        sprite.shelf = target;
+        target.usedWidth += sprite.width;
+        target.sprites.add(sprite);
+        target.lastUsed = ++clock;
+        atlasCanvas.save();
+        atlasCanvas.clipRect(sprite.left, target.top, sprite.left + sprite.width,
+                target.top + spriteHeight);
+        borderedText.drawText(atlasCanvas, sprite.left + padding, target.top + baseline,
+                sprite.text);
+        atlasCanvas.restore();
+        return true;
+    }
+
+    /**
+     * Empties a shelf and erases its pixels.
+     *
+     * @param shelf
+     */
+    private void evict(final Shelf shelf) {
+        for (final Sprite sprite : shelf.sprites) {
+            sprite.shelf = null;
+            // Glyphs are not in the map, but may share their text with a string that is.
+            if (sprites.get(sprite.text) == sprite) {
+                sprites.remove(sprite.text);
+            }
+        }
+        shelf.sprites.clear();
+        shelf.usedWidth = 0;
+        atlasCanvas.save();
+        atlasCanvas.clipRect(0, shelf.top, width, shelf.top + spriteHeight);
+        atlasCanvas.drawColor(0, PorterDuff.Mode.CLEAR);
+        atlasCanvas.restore();
+    }
+}
@@ -0,0 +1,230 @@
+package com.example.imageclassification.env;
+
+/*
+ * Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.example.tflite.YuvToRgb;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Converts YUV 4:2:0 frames to ARGB pixels with the integer formula of {@link YuvToRgb}, which
+ * the model input preprocessed straight from YUV planes uses too.
+ *
+ * <p>Planes are read straight from {@link ByteBuffer}s, so camera2 planes need not be copied
+ * first. Every term of the formula is looked up in a per-channel contribution table, the chroma
+ * terms are computed once per 2x2 block and the three clamps are a single table lookup each.
+ * Large frames are split into bands of rows converted in parallel on the common fork-join pool.
+ */
+public final class YuvConverter {
+
+    // Rows per parallel band. Even, so that a band never splits a 2x2 chroma block.
+    static final int BAND_ROWS = 32;
+    // Frames smaller than this many pixels are converted on the calling thread.
+    static final int PARALLEL_THRESHOLD = 320 * 240;
+
+    private YuvConverter() {
+    }
+
+    /**
+     * Converts a YUV_420_888 frame. Plane offsets are relative to the position of each buffer.
+     *
+     * @param yData
+     * @param uData
+     * @param vData
+     * @param width
+     * @param height
+     * @param yRowStride
+     * @param uvRowStride
+     * @param uvPixelStride
+     * @param out
+     */
+    public static void convertYUV420ToARGB8888(
+            final ByteBuffer yData, final ByteBuffer uData, final ByteBuffer vData,
+            final int width, final int height, final int yRowStride, final int uvRowStride,
+            final int uvPixelStride, final int[] out) {
+        final Frame frame = new Frame(
+                yData, yData.position(), yRowStride,
+                uData, uData.position(), vData, vData.position(), uvRowStride, uvPixelStride,
+                width, out);
+        convert(frame, height);
+    }
+
+    /**
+     * Converts an NV21 frame, a Y plane followed by interleaved V and U samples.
+     *
+     * @param input
+     * @param width
+     * @param height
+     * @param output
+     */
+    public static void convertYUV420SPToARGB8888(
+            final ByteBuffer input, final int width, final int height, final int[] output) {
+        final int base = input.position();
+        final int frameSize = width * height;
+        final Frame frame = new Frame(
+                input, base, width,
+                input, base + frameSize + 1, input, base + frameSize, width, 2,
+                width, output);
+        convert(frame, height);
+    }
+
+    /**
+     * Converts a single pixel with the contribution tables.
+     *
+     * @param y
+     * @param u
+     * @param v
+     * @return
+     */
+    static int toArgb(final int y, final int u, final int v) {
+        return YuvToRgb.toArgb(y, u, v);
+    }
+
+    /**
+     * Clamps and packs the sums of the contribution tables.
+     *
+     * @param luma
+     * @param red
+     * @param green
+     * @param blue
+     * @return
+     */
+    private static int pixel(final int luma, final int red, final int green, final int blue) {
+        return 0xff000000
+                | YuvToRgb.channel(luma + red) << 16
+                | YuvToRgb.channel(luma + green) << 8
+                | YuvToRgb.channel(luma + blue);
+    }
+
+    /**
+     *
+     * @param frame
+     * @param height
+     */
+    private static void convert(final Frame frame, final int height) {
+        if (frame.width * height < PARALLEL_THRESHOLD) {
+            frame.convertRows(0, height);
+        } else {
+            ForkJoinPool.commonPool().invoke(new Band(frame, 0, height));
+        }
+    }
+
+    /**
+     * Plane layout and destination of one conversion.
+     */
+    private static final class Frame {
+        final int[] out;
+        final ByteBuffer uData;
+        final int uOffset;
+        final int uvPixelStride;
+        final int uvRowStride;
+        final ByteBuffer vData;
+        final int vOffset;
+        final int width;
+        final ByteBuffer yData;
+        final int yOffset;
+        final int yRowStride;
+
+        Frame(final ByteBuffer yData, final int yOffset, final int yRowStride,
+              final ByteBuffer uData, final int uOffset, final ByteBuffer vData, final int vOffset,
+              final int uvRowStride, final int uvPixelStride, final int width, final int[] out) {
+            this.yData = yData;
+            this.yOffset = yOffset;
+            this.yRowStride = yRowStride;
+            this.uData = uData;
+            this.uOffset = uOffset;
+            this.vData = vData;
+            this.vOffset = vOffset;
+            this.uvRowStride = uvRowStride;
+            this.uvPixelStride = uvPixelStride;
+            this.width = width;
+            this.out = out;
+        }
+
+        /**
+         * Converts rows {@code [startRow, endRow)}, two at a time so that both rows of a 2x2
+         * block share its chroma terms. {@code startRow} must be even.
+         *
+         * @param startRow
+         * @param endRow
+         */
+        void convertRows(final int startRow, final int endRow) {
+            final int[] out = this.out;
+            final int width = this.width;
+            for (int j = startRow; j < endRow; j += 2) {
+                final boolean pair = j + 1 < endRow;
+                final int y0 = yOffset + j * yRowStride;
+                final int y1 = y0 + yRowStride;
+                final int p0 = j * width;
+                final int p1 = p0 + width;
+                int uv = (j >> 1) * uvRowStride;
+                for (int i = 0; i < width; i += 2, uv += uvPixelStride) {
+                    final int u = uData.get(uOffset + uv) & 0xff;
+                    final int v = vData.get(vOffset + uv) & 0xff;
+                    final int red = YuvToRgb.redTerm(v);
+                    final int green = YuvToRgb.greenTerm(u, v);
+                    final int blue = YuvToRgb.blueTerm(u);
+                    final boolean second = i + 1 < width;
+                    out[p0 + i] = pixel(luma(y0 + i), red, green, blue);
+                    if (second) {
+                        out[p0 + i + 1] = pixel(luma(y0 + i + 1), red, green, blue);
+                    }
+                    if (pair) {
+                        out[p1 + i] = pixel(luma(y1 + i), red, green, blue);
+                        if (second) {
+                            out[p1 + i + 1] = pixel(luma(y1 + i + 1), red, green, blue);
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Gets the luma term of the Y sample at {@code index}.
+         *
+         * @param index
+         * @return
+         */
+        private int luma(final int index) {
+            return YuvToRgb.lumaTerm(yData.get(index) & 0xff);
+        }
+    }
+
+    /**
+     * Converts a range of rows, splitting it in halves down to {@link #BAND_ROWS} rows.
+     */
+    private static final class Band extends RecursiveAction {
+        private final int endRow;
+        private final Frame frame;
+        private final int startRow;
+
+        Band(final Frame frame, final int startRow, final int endRow) {
+            this.frame = frame;
+            this.startRow = startRow;
+            this.endRow = endRow;
+        }
+
+        @Override
+        protected void compute() {
+            if (endRow - startRow <= BAND_ROWS) {
+                frame.convertRows(startRow, endRow);
+                return;
+            }
+            // Split on an even row so that no 2x2 block straddles two bands.
+            final int middle = startRow + (((endRow - startRow) >> 1) & ~1);
+            invokeAll(new Band(frame, startRow, middle), new Band(frame, middle, endRow));
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.imageclassification.pipeline;
+
+/*
+ * Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import android.media.Image;
+import android.media.ImageReader;
+import android.media.ImageReader.OnImageAvailableListener;
+
+/**
+ * Delivers the images of a camera2 {@link ImageReader}, set up elsewhere with this source as its
+ * listener. Images are closed when their frame is released, so the reader drops new images while
+ * its {@code maxImages} are all borrowed.
+ */
+public final class Camera2FrameSource implements FrameSource, OnImageAvailableListener,
+        Frame.ReleaseCallback {
+
+    private volatile Listener listener;
+    private final FramePool pool = new FramePool();
+
+    /**
+     *
+     * @param listener
+     */
+    @Override
+    public void start(final Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     *
+     */
+    @Override
+    public void stop() {
+        listener = null;
+    }
+
+    /**
+     *
+     * @param reader
+     */
+    @Override
+    public void onImageAvailable(final ImageReader reader) {
+        final Image image = reader.acquireLatestImage();
+        if (image == null) {
+            return;
+        }
+        final Listener listener = this.listener;
+        if (listener == null) {
+            image.close();
+            return;
+        }
+        final Image.Plane[] planes = image.getPlanes();
+        final Frame frame = pool.obtain();
+        frame.setYuv420(
+                planes[0].getBuffer(), planes[1].getBuffer(), planes[2].getBuffer(),
+                planes[0].getRowStride(), planes[1].getRowStride(), planes[1].getPixelStride(),
+                image.getWidth(), image.getHeight(), image.getTimestamp(), this, image);
+        listener.onFrame(frame);
+    }
+
+    /**
+     *
+     * @param frame
+     */
+    @Override
+    public void onRelease(final Frame frame) {
+        ((Image) frame.getToken()).close();
+        pool.recycle(frame);
+    }
+}
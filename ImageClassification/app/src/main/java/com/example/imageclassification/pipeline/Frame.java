@@ -0,0 +1,222 @@
+package com.example.imageclassification.pipeline;
+
+/*
+ * Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.ByteBuffer;
+
+/**
+ * A YUV frame delivered by a {@link FrameSource}, borrowed from the source until released.
+ *
+ * <p>Frames are pooled by their source and refilled once released, so the planes and fields of a
+ * frame must not be used after {@link #release()}. Planes are positioned at their first byte, and
+ * reading them moves their positions.
+ */
+public final class Frame {
+
+    // Three planes with row and pixel strides, as delivered by camera2.
+    public static final int FORMAT_YUV_420_888 = 0;
+    // A single NV21 buffer, as delivered by the legacy camera API, in the Y plane.
+    public static final int FORMAT_NV21 = 1;
+
+    /**
+     * Gives the resources of a frame back to its source.
+     */
+    public interface ReleaseCallback {
+
+        /**
+         *
+         * @param frame
+         */
+        void onRelease(Frame frame);
+    }
+
+    private int format;
+    private int height;
+    private ReleaseCallback releaseCallback;
+    private long timestampNs;
+    // What the source releases the frame to, such as the camera image.
+    private Object token;
+    private ByteBuffer uPlane;
+    private int uvPixelStride;
+    private int uvRowStride;
+    private ByteBuffer vPlane;
+    private int width;
+    private ByteBuffer yPlane;
+    private int yRowStride;
+
+    /**
+     * Fills this frame with an NV21 buffer.
+     *
+     * @param data
+     * @param width
+     * @param height
+     * @param timestampNs
+     * @param releaseCallback
+     * @param token
+     */
+    public void setNv21(final ByteBuffer data, final int width, final int height,
+                        final long timestampNs, final ReleaseCallback releaseCallback,
+                        final Object token) {
+        set(FORMAT_NV21, data, null, null, width, width, 2, width, height, timestampNs,
+                releaseCallback, token);
+    }
+
+    /**
+     * Fills this frame with YUV_420_888 planes.
+     *
+     * @param yPlane
+     * @param uPlane
+     * @param vPlane
+     * @param yRowStride
+     * @param uvRowStride
+     * @param uvPixelStride
+     * @param width
+     * @param height
+     * @param timestampNs
+     * @param releaseCallback
+     * @param token
+     */
+    public void setYuv420(
+            final ByteBuffer yPlane, final ByteBuffer uPlane, final ByteBuffer vPlane,
+            final int yRowStride, final int uvRowStride, final int uvPixelStride,
+            final int width, final int height, final long timestampNs,
+            final ReleaseCallback releaseCallback, final Object token) {
+        set(FORMAT_YUV_420_888, yPlane, uPlane, vPlane, yRowStride, uvRowStride, uvPixelStride,
+                width, height, timestampNs, releaseCallback, token);
+    }
+
+    /**
+     * Gives the frame back to its source. Releasing a frame twice has no effect.
+     */
+    public void release() {
+        final ReleaseCallback callback = releaseCallback;
+        if (callback == null) {
+            return;
+        }
+        releaseCallback = null;
+        yPlane = null;
+        uPlane = null;
+        vPlane = null;
+        callback.onRelease(this);
+    }
+
+    /**
+     *
+     * @return {@link #FORMAT_YUV_420_888} or {@link #FORMAT_NV21}.
+     */
+    public int getFormat() {
+        return format;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Gets when the frame was captured, in nanoseconds of the clock of the source.
+     *
+     * @return
+     */
+    public long getTimestampNs() {
+        return timestampNs;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public Object getToken() {
+        return token;
+    }
+
+    /**
+     *
+     * @return null for NV21 frames.
+     */
+    public ByteBuffer getUPlane() {
+        return uPlane;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public int getUvPixelStride() {
+        return uvPixelStride;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public int getUvRowStride() {
+        return uvRowStride;
+    }
+
+    /**
+     *
+     * @return null for NV21 frames.
+     */
+    public ByteBuffer getVPlane() {
+        return vPlane;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Gets the Y plane, or the whole buffer of NV21 frames.
+     *
+     * @return
+     */
+    public ByteBuffer getYPlane() {
+        return yPlane;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public int getYRowStride() {
+        return yRowStride;
+    }
+
+    private void set(final int format, final ByteBuffer yPlane, final ByteBuffer uPlane,
+                     final ByteBuffer vPlane, final int yRowStride, final int uvRowStride,
+                     final int uvPixelStride, final int width, final int height,
+                     final long timestampNs, final ReleaseCallback releaseCallback,
+                     final Object token) {
+        this.format = format;
+        this.yPlane = yPlane;
+        this.uPlane = uPlane;
+        this.vPlane = vPlane;
+        this.yRowStride = yRowStride;
+        this.uvRowStride = uvRowStride;
+        this.uvPixelStride = uvPixelStride;
+        this.width = width;
+        this.height = height;
+        this.timestampNs = timestampNs;
+        this.releaseCallback = releaseCallback;
+        this.token = token;
+    }
+}
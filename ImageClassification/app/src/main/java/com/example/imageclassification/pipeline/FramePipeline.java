@@ -0,0 +1,373 @@
+package com.example.imageclassification.pipeline;
+
+/*
+ * Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import android.os.Trace;
+import com.example.imageclassification.env.Logger;
+import com.example.tflite.LatencyMetrics;
+import com.example.tflite.Tracer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs camera frames through convert, preprocess and inference stages, each on its own thread.
+ *
+ * <p>The convert stage, which turns the whole frame into ARGB pixels, is optional: a processor
+ * that reads the YUV planes of the slot directly can skip it and save a full-frame pass.
+ *
+ * <p>Frames live in a small fixed ring of {@link FrameSlot}s, so converting frame N+1 overlaps
+ * with classifying frame N and nothing is allocated per frame. Every stage holds at most one
+ * pending frame: when a newer frame arrives before the stage got to the pending one, the older
+ * frame is dropped and its slot recycled, so results always follow the latest frame.
+ */
+public class FramePipeline {
+
+    public static final int DEFAULT_NUM_SLOTS = 4;
+    private static final Logger LOGGER = new Logger(FramePipeline.class);
+    // Names of the Tracer spans and counters of the pipeline.
+    private static final int TRACE_CONVERT = Tracer.registerName("convertFrame");
+    private static final int TRACE_PREPROCESS = Tracer.registerName("preprocessFrame");
+    private static final int TRACE_INFER = Tracer.registerName("inferFrame");
+    private static final int TRACE_FRAMES_IN_FLIGHT = Tracer.registerName("framesInFlight");
+
+    /**
+     * The model specific work of the pipeline. Each method is called on its own stage thread.
+     */
+    public interface FrameProcessor {
+
+        /**
+         * Writes the model input of a frame, from its ARGB pixels if the pipeline converts frames
+         * and from its YUV planes otherwise.
+         *
+         * @param slot
+         * @return false to drop the frame.
+         */
+        boolean preprocess(FrameSlot slot);
+
+        /**
+         * Classifies a preprocessed frame and publishes its results.
+         *
+         * @param slot
+         */
+        void infer(FrameSlot slot);
+
+        /**
+         * Tells that a frame accepted by {@link #preprocess} will not be classified, because a
+         * newer frame replaced it, its inference failed or the pipeline was closed. Called on
+         * whichever stage thread dropped the frame, before its slot is recycled.
+         *
+         * @param slot
+         */
+        void onDropped(FrameSlot slot);
+    }
+
+    /**
+     * Counters of a pipeline at one point in time.
+     */
+    public static final class Stats {
+        public final long completedFrames;
+        public final long droppedAtConvert;
+        public final long droppedAtIngress;
+        public final long droppedAtInference;
+        public final long droppedAtPreprocess;
+        public final int queueDepth;
+        public final long submittedFrames;
+
+        Stats(final long submittedFrames, final long completedFrames, final long droppedAtIngress,
+              final long droppedAtConvert, final long droppedAtPreprocess,
+              final long droppedAtInference, final int queueDepth) {
+            this.submittedFrames = submittedFrames;
+            this.completedFrames = completedFrames;
+            this.droppedAtIngress = droppedAtIngress;
+            this.droppedAtConvert = droppedAtConvert;
+            this.droppedAtPreprocess = droppedAtPreprocess;
+            this.droppedAtInference = droppedAtInference;
+            this.queueDepth = queueDepth;
+        }
+
+        /**
+         *
+         * @return
+         */
+        public long getDroppedFrames() {
+            return droppedAtIngress + droppedAtConvert + droppedAtPreprocess + droppedAtInference;
+        }
+
+        /**
+         *
+         * @return
+         */
+        @Override
+        public String toString() {
+            return "submitted=" + submittedFrames
+                    + " completed=" + completedFrames
+                    + " dropped=" + getDroppedFrames()
+                    + " (ingress=" + droppedAtIngress
+                    + " convert=" + droppedAtConvert
+                    + " preprocess=" + droppedAtPreprocess
+                    + " inference=" + droppedAtInference
+                    + ") queueDepth=" + queueDepth;
+        }
+    }
+
+    /**
+     * A single-threaded stage holding at most one pending frame.
+     */
+    private abstract class Stage {
+
+        final AtomicLong droppedFrames = new AtomicLong();
+        final ExecutorService executor;
+        final AtomicReference<FrameSlot> pending = new AtomicReference<>();
+
+        Stage(final String name) {
+            executor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, name));
+        }
+
+        /**
+         * Hands a frame to this stage, replacing the pending one if any.
+         *
+         * @param slot
+         */
+        void offer(final FrameSlot slot) {
+            final FrameSlot replaced = pending.getAndSet(slot);
+            if (replaced != null) {
+                // A task is already scheduled and will pick up the newer frame.
+                droppedFrames.incrementAndGet();
+                drop(replaced);
+                return;
+            }
+            try {
+                executor.execute(this::runPending);
+            } catch (final RejectedExecutionException e) {
+                final FrameSlot rejected = pending.getAndSet(null);
+                if (rejected != null) {
+                    drop(rejected);
+                }
+            }
+        }
+
+        /**
+         * Recycles a frame this stage will not process.
+         *
+         * @param slot
+         */
+        void drop(final FrameSlot slot) {
+            recycle(slot);
+        }
+
+        /**
+         * Processes the pending frame. One task runs per frame, so other work posted to the
+         * executor is never starved by a steady stream of frames.
+         */
+        private void runPending() {
+            final FrameSlot slot = pending.getAndSet(null);
+            if (slot == null) {
+                return;
+            }
+            try {
+                process(slot);
+            } catch (final RuntimeException e) {
+                LOGGER.e(e, "Failed to process frame.");
+                drop(slot);
+            }
+        }
+
+        /**
+         * Processes a frame, then either passes its slot on or recycles it.
+         *
+         * @param slot
+         */
+        abstract void process(FrameSlot slot);
+    }
+
+    private final AtomicLong completedFrames = new AtomicLong();
+    private final Stage convertStage;
+    private final boolean convertToArgb;
+    private final AtomicLong droppedAtIngress = new AtomicLong();
+    private final LatencyMetrics metrics;
+    private final BlockingQueue<FrameSlot> freeSlots;
+    private final Stage inferenceStage;
+    private final int numSlots;
+    private final Stage preprocessStage;
+    private final FrameProcessor processor;
+    private final AtomicLong submittedFrames = new AtomicLong();
+
+    /**
+     *
+     * @param processor
+     */
+    public FramePipeline(final FrameProcessor processor) {
+        this(processor, DEFAULT_NUM_SLOTS, true, new LatencyMetrics());
+    }
+
+    /**
+     *
+     * @param processor
+     * @param numSlots
+     * @param convertToArgb whether frames go through the convert stage before being preprocessed.
+     * @param metrics where the latency of the convert stage is recorded.
+     */
+    public FramePipeline(
+            final FrameProcessor processor, final int numSlots, final boolean convertToArgb,
+            final LatencyMetrics metrics) {
+        this.processor = processor;
+        this.numSlots = numSlots;
+        this.convertToArgb = convertToArgb;
+        this.metrics = metrics;
+        freeSlots = new ArrayBlockingQueue<>(numSlots);
+        for (int i = 0; i < numSlots; ++i) {
+            freeSlots.add(new FrameSlot(i));
+        }
+        convertStage = new Stage("convert") {
+            @Override
+            void process(final FrameSlot slot) {
+                Trace.beginSection("convertFrame");
+                Tracer.begin(TRACE_CONVERT);
+                final long startTime = LatencyMetrics.now();
+                slot.convertToArgb();
+                metrics.recordSince(LatencyMetrics.Stage.CONVERT, startTime);
+                Tracer.end(TRACE_CONVERT);
+                Trace.endSection();
+                preprocessStage.offer(slot);
+            }
+        };
+        preprocessStage = new Stage("preprocess") {
+            @Override
+            void process(final FrameSlot slot) {
+                Trace.beginSection("preprocessFrame");
+                Tracer.begin(TRACE_PREPROCESS);
+                final boolean accepted = processor.preprocess(slot);
+                Tracer.end(TRACE_PREPROCESS);
+                Trace.endSection();
+                if (accepted) {
+                    inferenceStage.offer(slot);
+                } else {
+                    recycle(slot);
+                }
+            }
+        };
+        inferenceStage = new Stage("inference") {
+            @Override
+            void process(final FrameSlot slot) {
+                Trace.beginSection("inferFrame");
+                Tracer.begin(TRACE_INFER);
+                processor.infer(slot);
+                Tracer.end(TRACE_INFER);
+                Trace.endSection();
+                completedFrames.incrementAndGet();
+                recycle(slot);
+            }
+
+            @Override
+            void drop(final FrameSlot slot) {
+                try {
+                    processor.onDropped(slot);
+                } finally {
+                    recycle(slot);
+                }
+            }
+        };
+    }
+
+    /**
+     * Takes a free slot to copy a new frame into, or returns null and counts the frame as dropped
+     * if every slot is in flight.
+     *
+     * @return
+     */
+    public FrameSlot acquireSlot() {
+        final FrameSlot slot = freeSlots.poll();
+        if (slot == null) {
+            droppedAtIngress.incrementAndGet();
+        }
+        return slot;
+    }
+
+    /**
+     * Stops every stage, waiting for the frames being processed to finish.
+     */
+    public void close() {
+        for (final Stage stage : new Stage[] {convertStage, preprocessStage, inferenceStage}) {
+            stage.executor.shutdown();
+        }
+        for (final Stage stage : new Stage[] {convertStage, preprocessStage, inferenceStage}) {
+            try {
+                stage.executor.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (final InterruptedException e) {
+                LOGGER.e(e, "Exception!");
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     *
+     * @return
+     */
+    public Stats getStats() {
+        return new Stats(
+                submittedFrames.get(), completedFrames.get(), droppedAtIngress.get(),
+                convertStage.droppedFrames.get(), preprocessStage.droppedFrames.get(),
+                inferenceStage.droppedFrames.get(), numSlots - freeSlots.size());
+    }
+
+    /**
+     * Returns a slot to the free ring.
+     *
+     * @param slot
+     */
+    public void recycle(final FrameSlot slot) {
+        freeSlots.offer(slot);
+    }
+
+    /**
+     * Runs a task on the inference thread, in between two frames. This is where the model used by
+     * {@link FrameProcessor#infer} can be safely replaced.
+     *
+     * @param r
+     * @return false if the pipeline is closed and the task was dropped.
+     */
+    public boolean runOnInferenceThread(final Runnable r) {
+        try {
+            inferenceStage.executor.execute(r);
+            return true;
+        } catch (final RejectedExecutionException e) {
+            LOGGER.w("Pipeline closed, dropping task.");
+            return false;
+        }
+    }
+
+    /**
+     * Hands a slot obtained from {@link #acquireSlot()} and filled with a frame to the pipeline.
+     *
+     * @param slot
+     */
+    public void submit(final FrameSlot slot) {
+        submittedFrames.incrementAndGet();
+        if (Tracer.isEnabled()) {
+            Tracer.counter(TRACE_FRAMES_IN_FLIGHT, numSlots - freeSlots.size());
+        }
+        if (convertToArgb) {
+            convertStage.offer(slot);
+        } else {
+            preprocessStage.offer(slot);
+        }
+    }
+}
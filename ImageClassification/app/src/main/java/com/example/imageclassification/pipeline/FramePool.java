@@ -0,0 +1,44 @@
+package com.example.imageclassification.pipeline;
+
+/*
+ * Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayDeque;
+
+/**
+ * The frames of a {@link FrameSource}, reused once released so that no frame is allocated per
+ * delivery in the steady state. Thread-safe, as frames may be released from any thread.
+ */
+final class FramePool {
+
+    private final ArrayDeque<Frame> freeFrames = new ArrayDeque<>();
+
+    /**
+     * Takes a free frame, or a new one if all are borrowed.
+     *
+     * @return
+     */
+    synchronized Frame obtain() {
+        final Frame frame = freeFrames.poll();
+        return frame != null ? frame : new Frame();
+    }
+
+    /**
+     * Takes back a released frame.
+     *
+     * @param frame
+     */
+    synchronized void recycle(final Frame frame) {
+        freeFrames.push(frame);
+    }
+}
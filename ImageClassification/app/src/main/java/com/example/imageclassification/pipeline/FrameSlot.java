@@ -0,0 +1,325 @@
+package com.example.imageclassification.pipeline;
+
+/*
+ * Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.example.imageclassification.env.ImageUtils;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Preallocated storage for one frame travelling through a {@link FramePipeline}.
+ *
+ * <p>A slot owns a copy of the YUV planes, the converted ARGB pixels and the model input of its
+ * frame. Buffers are allocated on first use and reused for every later frame of the same size.
+ */
+public final class FrameSlot {
+
+    // Three planes with row and pixel strides, as delivered by camera2.
+    public static final int FORMAT_YUV_420_888 = Frame.FORMAT_YUV_420_888;
+    // A single NV21 buffer, as delivered by the legacy camera API.
+    public static final int FORMAT_NV21 = Frame.FORMAT_NV21;
+
+    private boolean converted;
+    private int format;
+    private int height;
+    private final int index;
+    private ByteBuffer inputBuffer;
+    private Object inputOwner;
+    private int[] rgbBytes;
+    private long timestampNs;
+    private int uvPixelStride;
+    private int uvRowStride;
+    private int width;
+    private int yRowStride;
+    private final byte[][] yuvBytes = new byte[3][];
+
+    /**
+     *
+     * @param index
+     */
+    FrameSlot(final int index) {
+        this.index = index;
+    }
+
+    /**
+     * Converts the YUV planes of this frame into ARGB pixels.
+     */
+    void convertToArgb() {
+        if (rgbBytes == null || rgbBytes.length != width * height) {
+            rgbBytes = new int[width * height];
+        }
+        if (format == FORMAT_NV21) {
+            ImageUtils.convertYUV420SPToARGB8888(yuvBytes[0], width, height, rgbBytes);
+        } else {
+            ImageUtils.convertYUV420ToARGB8888(
+                    yuvBytes[0], yuvBytes[1], yuvBytes[2], width, height,
+                    yRowStride, uvRowStride, uvPixelStride, rgbBytes);
+        }
+        converted = true;
+    }
+
+    /**
+     * Copies the remaining bytes of a plane into this slot.
+     *
+     * @param plane
+     * @param buffer
+     */
+    private void copyPlane(final int plane, final ByteBuffer buffer) {
+        // Because of the variable row stride it's not possible to know in
+        // advance the actual necessary dimensions of the yuv planes.
+        final int size = buffer.remaining();
+        if (yuvBytes[plane] == null || yuvBytes[plane].length != size) {
+            yuvBytes[plane] = new byte[size];
+        }
+        buffer.get(yuvBytes[plane]);
+    }
+
+    /**
+     *
+     * @return
+     */
+    public int getFormat() {
+        return format;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Returns the array holding the U samples, laid out as described by {@link #getUOffset()},
+     * {@link #getUvRowStride()} and {@link #getUvPixelStride()}.
+     *
+     * @return
+     */
+    public byte[] getUPlane() {
+        return format == FORMAT_NV21 ? yuvBytes[0] : yuvBytes[1];
+    }
+
+    /**
+     * Returns the offset of the first U sample in {@link #getUPlane()}. NV21 interleaves V and U
+     * after the Y plane.
+     *
+     * @return
+     */
+    public int getUOffset() {
+        return format == FORMAT_NV21 ? width * height + 1 : 0;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public int getUvPixelStride() {
+        return uvPixelStride;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public int getUvRowStride() {
+        return uvRowStride;
+    }
+
+    /**
+     * Returns the array holding the V samples.
+     *
+     * @return
+     */
+    public byte[] getVPlane() {
+        return format == FORMAT_NV21 ? yuvBytes[0] : yuvBytes[2];
+    }
+
+    /**
+     * Returns the offset of the first V sample in {@link #getVPlane()}.
+     *
+     * @return
+     */
+    public int getVOffset() {
+        return format == FORMAT_NV21 ? width * height : 0;
+    }
+
+    /**
+     * Returns the model input of this frame, reallocating it if it cannot hold {@code capacity}
+     * bytes.
+     *
+     * @param capacity
+     * @return
+     */
+    public ByteBuffer getInputBuffer(final int capacity) {
+        if (inputBuffer == null || inputBuffer.capacity() != capacity) {
+            inputBuffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+            inputOwner = null;
+        }
+        return inputBuffer;
+    }
+
+    /**
+     * Returns whatever produced the current model input, for instance the classifier whose
+     * preprocessing was applied.
+     *
+     * @return
+     */
+    public Object getInputOwner() {
+        return inputOwner;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public byte[] getLuminance() {
+        return yuvBytes[0];
+    }
+
+    /**
+     *
+     * @return
+     */
+    public int getLuminanceStride() {
+        return yRowStride;
+    }
+
+    /**
+     * Returns the ARGB pixels of this frame, only valid if {@link #isConverted()}.
+     *
+     * @return
+     */
+    public int[] getRgbBytes() {
+        return rgbBytes;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public long getTimestampNs() {
+        return timestampNs;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Whether the ARGB pixels of this frame are up to date.
+     *
+     * @return
+     */
+    public boolean isConverted() {
+        return converted;
+    }
+
+    /**
+     *
+     * @param inputOwner
+     */
+    public void setInputOwner(final Object inputOwner) {
+        this.inputOwner = inputOwner;
+    }
+
+    /**
+     * Copies a frame of a {@link FrameSource} into this slot. The frame is not released.
+     *
+     * @param frame
+     */
+    public void setFrame(final Frame frame) {
+        if (frame.getFormat() == Frame.FORMAT_NV21) {
+            copyPlane(0, frame.getYPlane());
+            this.converted = false;
+            this.format = FORMAT_NV21;
+            this.width = frame.getWidth();
+            this.height = frame.getHeight();
+            this.yRowStride = width;
+            this.uvRowStride = width;
+            this.uvPixelStride = 2;
+            this.timestampNs = frame.getTimestampNs();
+        } else {
+            setYuv420(frame.getYPlane(), frame.getUPlane(), frame.getVPlane(),
+                    frame.getYRowStride(), frame.getUvRowStride(), frame.getUvPixelStride(),
+                    frame.getWidth(), frame.getHeight(), frame.getTimestampNs());
+        }
+    }
+
+    /**
+     * Copies an NV21 frame into this slot.
+     *
+     * @param data
+     * @param width
+     * @param height
+     * @param timestampNs
+     */
+    public void setNv21(final byte[] data, final int width, final int height, final long timestampNs) {
+        final int size = ImageUtils.getYUVByteSize(width, height);
+        if (yuvBytes[0] == null || yuvBytes[0].length != size) {
+            yuvBytes[0] = new byte[size];
+        }
+        System.arraycopy(data, 0, yuvBytes[0], 0, size);
+        this.converted = false;
+        this.format = FORMAT_NV21;
+        this.width = width;
+        this.height = height;
+        this.yRowStride = width;
+        this.uvRowStride = width;
+        this.uvPixelStride = 2;
+        this.timestampNs = timestampNs;
+    }
+
+    /**
+     * Copies a YUV_420_888 frame into this slot.
+     *
+     * @param yPlane
+     * @param uPlane
+     * @param vPlane
+     * @param yRowStride
+     * @param uvRowStride
+     * @param uvPixelStride
+     * @param width
+     * @param height
+     * @param timestampNs
+     */
+    public void setYuv420(
+            final ByteBuffer yPlane, final ByteBuffer uPlane, final ByteBuffer vPlane,
+            final int yRowStride, final int uvRowStride, final int uvPixelStride,
+            final int width, final int height, final long timestampNs) {
+        copyPlane(0, yPlane);
+        copyPlane(1, uPlane);
+        copyPlane(2, vPlane);
+        this.converted = false;
+        this.format = FORMAT_YUV_420_888;
+        this.width = width;
+        this.height = height;
+        this.yRowStride = yRowStride;
+        this.uvRowStride = uvRowStride;
+        this.uvPixelStride = uvPixelStride;
+        this.timestampNs = timestampNs;
+    }
+}
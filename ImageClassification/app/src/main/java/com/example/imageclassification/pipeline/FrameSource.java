@@ -0,0 +1,49 @@
+package com.example.imageclassification.pipeline;
+
+/*
+ * Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Delivers YUV frames, from a camera or recorded ones, so that frames are consumed the same way
+ * whatever their origin.
+ *
+ * <p>Every frame delivered must be {@link Frame#release() released}, possibly after the listener
+ * returns and from another thread. Sources only hold a few frames, and deliver no more, or drop
+ * newer frames, while those are all borrowed.
+ */
+public interface FrameSource {
+
+    /**
+     * Receives the frames of a source, on a thread of the source.
+     */
+    interface Listener {
+
+        /**
+         *
+         * @param frame
+         */
+        void onFrame(Frame frame);
+    }
+
+    /**
+     * Starts delivering frames to a listener.
+     *
+     * @param listener
+     */
+    void start(Listener listener);
+
+    /**
+     * Stops delivering frames. Frames being delivered may still reach the listener.
+     */
+    void stop();
+}
@@ -0,0 +1,84 @@
+package com.example.imageclassification.pipeline;
+
+/*
+ * Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import android.hardware.Camera;
+import android.os.SystemClock;
+import java.nio.ByteBuffer;
+
+/**
+ * Delivers the preview frames of a legacy {@link Camera}, set up elsewhere with this source as its
+ * preview callback with buffers. A buffer goes back to the camera when its frame is released.
+ */
+public final class LegacyFrameSource implements FrameSource, Camera.PreviewCallback,
+        Frame.ReleaseCallback {
+
+    private volatile Camera camera;
+    private volatile Listener listener;
+    private final FramePool pool = new FramePool();
+    // Preview size of the camera, read once as reading camera parameters is slow.
+    private int previewHeight;
+    private int previewWidth;
+
+    /**
+     *
+     * @param listener
+     */
+    @Override
+    public void start(final Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     *
+     */
+    @Override
+    public void stop() {
+        listener = null;
+    }
+
+    /**
+     *
+     * @param bytes
+     * @param camera
+     */
+    @Override
+    public void onPreviewFrame(final byte[] bytes, final Camera camera) {
+        if (camera != this.camera) {
+            final Camera.Size size = camera.getParameters().getPreviewSize();
+            previewWidth = size.width;
+            previewHeight = size.height;
+            this.camera = camera;
+        }
+        final Listener listener = this.listener;
+        if (listener == null) {
+            camera.addCallbackBuffer(bytes);
+            return;
+        }
+        final Frame frame = pool.obtain();
+        frame.setNv21(ByteBuffer.wrap(bytes), previewWidth, previewHeight,
+                SystemClock.elapsedRealtimeNanos(), this, bytes);
+        listener.onFrame(frame);
+    }
+
+    /**
+     *
+     * @param frame
+     */
+    @Override
+    public void onRelease(final Frame frame) {
+        camera.addCallbackBuffer((byte[]) frame.getToken());
+        pool.recycle(frame);
+    }
+}
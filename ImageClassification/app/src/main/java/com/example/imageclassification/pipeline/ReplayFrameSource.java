@@ -0,0 +1,371 @@
+package com.example.imageclassification.pipeline;
+
+/*
+ * Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays frames recorded by a {@link Recorder}, as fast as they are released or at a fixed
+ * rate, so that the pipeline can be run and measured without a camera, on a device or on the JVM.
+ *
+ * <p>The recording is memory-mapped, so frames are delivered without copies or reads on the
+ * replay thread once the pages are cached. Replays are deterministic: frames come in recorded
+ * order, none is dropped, and timestamps keep increasing over loops.
+ */
+public final class ReplayFrameSource implements FrameSource, Frame.ReleaseCallback {
+
+    // Frames borrowed at once by default, like an ImageReader with two images.
+    public static final int DEFAULT_MAX_FRAMES_IN_FLIGHT = 2;
+    // Marks the start of every recorded frame, "YUVF".
+    static final int MAGIC = 0x59555646;
+    // Magic, format, width, height, three strides, timestamp and three plane sizes.
+    static final int HEADER_SIZE = 10 * 4 + 8;
+
+    /**
+     * A recorded frame, as slices of the mapped recording.
+     */
+    private static final class Record {
+        int format;
+        int height;
+        long timestampNs;
+        ByteBuffer uPlane;
+        int uvPixelStride;
+        int uvRowStride;
+        ByteBuffer vPlane;
+        int width;
+        ByteBuffer yPlane;
+        int yRowStride;
+    }
+
+    /**
+     * Writes frames to a recording, for instance from a camera source on a device.
+     */
+    public static final class Recorder implements Closeable {
+
+        private final DataOutputStream out;
+
+        /**
+         *
+         * @param file
+         * @throws IOException
+         */
+        public Recorder(final File file) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        }
+
+        /**
+         * Appends a frame, leaving its planes and positions unchanged. The frame is not released.
+         *
+         * @param frame
+         * @throws IOException
+         */
+        public void write(final Frame frame) throws IOException {
+            final ByteBuffer yPlane = frame.getYPlane();
+            final ByteBuffer uPlane = frame.getUPlane();
+            final ByteBuffer vPlane = frame.getVPlane();
+            out.writeInt(MAGIC);
+            out.writeInt(frame.getFormat());
+            out.writeInt(frame.getWidth());
+            out.writeInt(frame.getHeight());
+            out.writeInt(frame.getYRowStride());
+            out.writeInt(frame.getUvRowStride());
+            out.writeInt(frame.getUvPixelStride());
+            out.writeLong(frame.getTimestampNs());
+            out.writeInt(yPlane.remaining());
+            out.writeInt(uPlane != null ? uPlane.remaining() : 0);
+            out.writeInt(vPlane != null ? vPlane.remaining() : 0);
+            writePlane(yPlane);
+            writePlane(uPlane);
+            writePlane(vPlane);
+        }
+
+        /**
+         *
+         * @throws IOException
+         */
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+
+        private void writePlane(final ByteBuffer plane) throws IOException {
+            if (plane == null) {
+                return;
+            }
+            if (plane.hasArray()) {
+                out.write(plane.array(), plane.arrayOffset() + plane.position(), plane.remaining());
+                return;
+            }
+            final ByteBuffer source = plane.duplicate();
+            final byte[] chunk = new byte[Math.min(source.remaining(), 64 * 1024)];
+            while (source.hasRemaining()) {
+                final int length = Math.min(chunk.length, source.remaining());
+                source.get(chunk, 0, length);
+                out.write(chunk, 0, length);
+            }
+        }
+    }
+
+    private volatile long deliveredFrames;
+    private long frameIntervalNanos;
+    // Permits for the frames that may still be borrowed.
+    private final Semaphore freeFrames;
+    private final int loops;
+    // Timestamp added to the recorded ones on every loop, so that they keep increasing.
+    private final long loopDurationNanos;
+    private final FramePool pool = new FramePool();
+    private final List<Record> records;
+    private volatile boolean running;
+    private Thread thread;
+
+    /**
+     *
+     * @param file a recording written by a {@link Recorder}.
+     * @param loops times every frame is replayed.
+     * @throws IOException if the file is not a valid recording.
+     */
+    public ReplayFrameSource(final File file, final int loops) throws IOException {
+        this(file, loops, DEFAULT_MAX_FRAMES_IN_FLIGHT);
+    }
+
+    /**
+     *
+     * @param file a recording written by a {@link Recorder}.
+     * @param loops times every frame is replayed.
+     * @param maxFramesInFlight frames borrowed at once, after which the replay waits for a frame
+     *     to be released.
+     * @throws IOException if the file is not a valid recording.
+     */
+    public ReplayFrameSource(final File file, final int loops, final int maxFramesInFlight)
+            throws IOException {
+        this.loops = loops;
+        records = readRecords(file);
+        if (records.isEmpty()) {
+            throw new IOException("No frames in " + file);
+        }
+        final long first = records.get(0).timestampNs;
+        final long last = records.get(records.size() - 1).timestampNs;
+        final long interval = records.size() > 1 ? (last - first) / (records.size() - 1) : 0;
+        loopDurationNanos = last - first + Math.max(interval, 1);
+        freeFrames = new Semaphore(maxFramesInFlight);
+    }
+
+    /**
+     *
+     * @return frames delivered since the replay started.
+     */
+    public long getDeliveredFrames() {
+        return deliveredFrames;
+    }
+
+    /**
+     *
+     * @return frames of the recording, delivered once per loop.
+     */
+    public int getFrameCount() {
+        return records.size();
+    }
+
+    /**
+     * Paces the replay, or lets it deliver frames as fast as they are released if 0, the default.
+     * Must be set before {@link #start}.
+     *
+     * @param frameIntervalNanos
+     */
+    public void setFrameIntervalNanos(final long frameIntervalNanos) {
+        this.frameIntervalNanos = frameIntervalNanos;
+    }
+
+    /**
+     * Starts replaying on a thread of its own.
+     *
+     * @param listener
+     */
+    @Override
+    public synchronized void start(final Listener listener) {
+        if (thread != null) {
+            throw new IllegalStateException("Already started");
+        }
+        running = true;
+        deliveredFrames = 0;
+        thread = new Thread(() -> replay(listener), "FrameReplay");
+        thread.start();
+    }
+
+    /**
+     * Stops replaying and waits for the replay thread to exit.
+     */
+    @Override
+    public void stop() {
+        final Thread thread;
+        synchronized (this) {
+            thread = this.thread;
+            this.thread = null;
+        }
+        if (thread == null) {
+            return;
+        }
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits until every loop was delivered, or the replay was stopped.
+     *
+     * @throws InterruptedException
+     */
+    public void awaitCompletion() throws InterruptedException {
+        final Thread thread;
+        synchronized (this) {
+            thread = this.thread;
+        }
+        if (thread != null) {
+            thread.join();
+        }
+    }
+
+    /**
+     *
+     * @param frame
+     */
+    @Override
+    public void onRelease(final Frame frame) {
+        pool.recycle(frame);
+        freeFrames.release();
+    }
+
+    /**
+     * Delivers every frame of every loop. Runs on the replay thread.
+     *
+     * @param listener
+     */
+    private void replay(final Listener listener) {
+        final long startNanos = System.nanoTime();
+        long delivered = 0;
+        try {
+            for (int loop = 0; loop < loops && running; ++loop) {
+                for (int i = 0; i < records.size() && running; ++i) {
+                    if (frameIntervalNanos > 0) {
+                        final long dueNanos = startNanos + delivered * frameIntervalNanos;
+                        long remaining;
+                        while ((remaining = dueNanos - System.nanoTime()) > 0 && running) {
+                            LockSupport.parkNanos(remaining);
+                        }
+                    }
+                    freeFrames.acquire();
+                    final Record record = records.get(i);
+                    final Frame frame = pool.obtain();
+                    final long timestampNs = record.timestampNs + loop * loopDurationNanos;
+                    // Frames of the same record may be in flight at once, so each gets its view.
+                    if (record.format == Frame.FORMAT_NV21) {
+                        frame.setNv21(record.yPlane.duplicate(), record.width, record.height,
+                                timestampNs, this, record);
+                    } else {
+                        frame.setYuv420(record.yPlane.duplicate(), record.uPlane.duplicate(),
+                                record.vPlane.duplicate(), record.yRowStride, record.uvRowStride,
+                                record.uvPixelStride, record.width, record.height, timestampNs,
+                                this, record);
+                    }
+                    deliveredFrames = ++delivered;
+                    listener.onFrame(frame);
+                }
+            }
+        } catch (final InterruptedException e) {
+            // Stopped.
+        } finally {
+            synchronized (this) {
+                if (thread == Thread.currentThread()) {
+                    thread = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Maps a recording and slices it into frames.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    private static List<Record> readRecords(final File file) throws IOException {
+        final MappedByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        final List<Record> records = new ArrayList<>();
+        while (buffer.remaining() >= HEADER_SIZE) {
+            final int offset = buffer.position();
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Bad frame header at offset " + offset + " of " + file);
+            }
+            final Record record = new Record();
+            record.format = buffer.getInt();
+            record.width = buffer.getInt();
+            record.height = buffer.getInt();
+            record.yRowStride = buffer.getInt();
+            record.uvRowStride = buffer.getInt();
+            record.uvPixelStride = buffer.getInt();
+            record.timestampNs = buffer.getLong();
+            final int ySize = buffer.getInt();
+            final int uSize = buffer.getInt();
+            final int vSize = buffer.getInt();
+            if (ySize < 0 || uSize < 0 || vSize < 0
+                    || (long) ySize + uSize + vSize > buffer.remaining()) {
+                throw new IOException("Truncated frame at offset " + offset + " of " + file);
+            }
+            record.yPlane = slice(buffer, ySize);
+            record.uPlane = slice(buffer, uSize);
+            record.vPlane = slice(buffer, vSize);
+            records.add(record);
+        }
+        if (buffer.hasRemaining()) {
+            throw new IOException("Truncated frame header at the end of " + file);
+        }
+        return records;
+    }
+
+    /**
+     * Slices the next bytes of a buffer and skips them.
+     *
+     * @param buffer
+     * @param size
+     * @return
+     */
+    private static ByteBuffer slice(final ByteBuffer buffer, final int size) {
+        final ByteBuffer slice = buffer.slice();
+        slice.limit(size);
+        buffer.position(buffer.position() + size);
+        return slice;
+    }
+}
@@ -0,0 +1,306 @@
+package com.example.imageclassification.pipeline;
+
+/*
+ * Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import android.view.Choreographer;
+import android.widget.TextView;
+import com.example.tflite.LatencyMetrics;
+import com.example.tflite.Recognitions;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Shows classification results and frame info in text views, at most once per display frame.
+ *
+ * <p>Results published from any thread replace the pending ones, and a single {@link Choreographer}
+ * callback shows the latest of them right before the next frame is drawn, so a fast classifier
+ * costs the UI thread one update per refresh at most. Every view remembers the text it shows, and
+ * is only updated when its text changes. Numbers are formatted into reused char arrays rather than
+ * with String.format, so steady updates allocate next to nothing.
+ */
+public final class ResultPublisher implements Choreographer.FrameCallback {
+
+    /**
+     * Called on the UI thread once results are shown.
+     */
+    public interface Listener {
+
+        /**
+         *
+         * @param resultsReadyNanos when the results were published, from
+         *     {@link LatencyMetrics#now()}.
+         */
+        void onPublished(long resultsReadyNanos);
+    }
+
+    /**
+     * A text view and the text it shows.
+     */
+    private static final class CachedText {
+        private final TextView view;
+        private char[] shown = new char[16];
+        private int shownLength = -1;
+        private String shownString;
+
+        CachedText(final TextView view) {
+            this.view = view;
+        }
+
+        /**
+         * Shows {@code length} chars of {@code text} unless they are already shown.
+         *
+         * @param text
+         * @param length
+         */
+        void set(final char[] text, final int length) {
+            if (length == shownLength && regionMatches(text, shown, length)) {
+                return;
+            }
+            if (shown.length < length) {
+                shown = new char[length];
+            }
+            System.arraycopy(text, 0, shown, 0, length);
+            shownLength = length;
+            shownString = null;
+            view.setText(shown, 0, length);
+        }
+
+        /**
+         * Shows a string unless it is already shown. Labels are interned, so comparing references
+         * is enough in the common case.
+         *
+         * @param text
+         */
+        void set(final String text) {
+            if (text == shownString || (shownString != null && shownString.equals(text))) {
+                return;
+            }
+            shownString = text;
+            shownLength = -1;
+            view.setText(text);
+        }
+
+        private static boolean regionMatches(final char[] a, final char[] b, final int length) {
+            for (int i = 0; i < length; ++i) {
+                if (a[i] != b[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final Choreographer choreographer;
+    private final CachedText cameraResolutionText;
+    private final CachedText cropText;
+    private final CachedText frameText;
+    private final CachedText inferenceTimeText;
+    private final Listener listener;
+    // Latest values not shown yet, guarded by pendingResults.
+    private final Recognitions pendingResults;
+    private int pendingFrameWidth;
+    private int pendingFrameHeight;
+    private int pendingInputWidth;
+    private int pendingInputHeight;
+    private int pendingRotation;
+    private long pendingInferenceTimeMs;
+    private long pendingReadyNanos;
+    private final CachedText rotationText;
+    // Whether a frame callback is posted and has not picked up the pending values yet.
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    // Formatting buffer, used on the UI thread only.
+    private final char[] scratch = new char[32];
+    // Values being shown, used on the UI thread only.
+    private final Recognitions shownResults;
+    private final CachedText[] titleTexts;
+    private final CachedText[] valueTexts;
+
+    /**
+     * Must be created on the UI thread.
+     *
+     * @param titleViews show the labels of the results, best first.
+     * @param valueViews show the confidences of the results, best first.
+     * @param frameView
+     * @param cropView
+     * @param cameraResolutionView
+     * @param rotationView
+     * @param inferenceTimeView
+     * @param listener
+     */
+    public ResultPublisher(final TextView[] titleViews, final TextView[] valueViews,
+                           final TextView frameView, final TextView cropView,
+                           final TextView cameraResolutionView, final TextView rotationView,
+                           final TextView inferenceTimeView, final Listener listener) {
+        choreographer = Choreographer.getInstance();
+        titleTexts = new CachedText[titleViews.length];
+        valueTexts = new CachedText[titleViews.length];
+        for (int i = 0; i < titleViews.length; ++i) {
+            titleTexts[i] = new CachedText(titleViews[i]);
+            valueTexts[i] = new CachedText(valueViews[i]);
+        }
+        frameText = new CachedText(frameView);
+        cropText = new CachedText(cropView);
+        cameraResolutionText = new CachedText(cameraResolutionView);
+        rotationText = new CachedText(rotationView);
+        inferenceTimeText = new CachedText(inferenceTimeView);
+        this.listener = listener;
+        pendingResults = new Recognitions(titleViews.length);
+        shownResults = new Recognitions(titleViews.length);
+    }
+
+    /**
+     * Schedules results to be shown on the next display frame, replacing those not shown yet. May
+     * be called from any thread.
+     *
+     * @param results
+     * @param frameWidth
+     * @param frameHeight
+     * @param inputWidth width of the model input.
+     * @param inputHeight height of the model input.
+     * @param rotation
+     * @param inferenceTimeMs
+     */
+    public void publish(final Recognitions results, final int frameWidth, final int frameHeight,
+                        final int inputWidth, final int inputHeight, final int rotation,
+                        final long inferenceTimeMs) {
+        synchronized (pendingResults) {
+            pendingResults.copyFrom(results);
+            pendingFrameWidth = frameWidth;
+            pendingFrameHeight = frameHeight;
+            pendingInputWidth = inputWidth;
+            pendingInputHeight = inputHeight;
+            pendingRotation = rotation;
+            pendingInferenceTimeMs = inferenceTimeMs;
+            pendingReadyNanos = LatencyMetrics.now();
+        }
+        if (scheduled.compareAndSet(false, true)) {
+            choreographer.postFrameCallback(this);
+        }
+    }
+
+    /**
+     * Drops the update scheduled, if any. Must be called on the UI thread.
+     */
+    public void cancel() {
+        choreographer.removeFrameCallback(this);
+        scheduled.set(false);
+    }
+
+    /**
+     * Shows the latest values. Runs on the UI thread.
+     *
+     * @param frameTimeNanos
+     */
+    @Override
+    public void doFrame(final long frameTimeNanos) {
+        final int frameWidth;
+        final int frameHeight;
+        final int inputWidth;
+        final int inputHeight;
+        final int rotation;
+        final long inferenceTimeMs;
+        final long readyNanos;
+        scheduled.set(false);
+        synchronized (pendingResults) {
+            shownResults.copyFrom(pendingResults);
+            frameWidth = pendingFrameWidth;
+            frameHeight = pendingFrameHeight;
+            inputWidth = pendingInputWidth;
+            inputHeight = pendingInputHeight;
+            rotation = pendingRotation;
+            inferenceTimeMs = pendingInferenceTimeMs;
+            readyNanos = pendingReadyNanos;
+        }
+        for (int rank = 0; rank < titleTexts.length; ++rank) {
+            if (rank < shownResults.size()) {
+                titleTexts[rank].set(shownResults.getTitle(rank));
+                valueTexts[rank].set(scratch,
+                        appendPercent(scratch, 0, shownResults.getConfidence(rank)));
+            } else {
+                titleTexts[rank].set("");
+                valueTexts[rank].set(scratch, 0);
+            }
+        }
+        frameText.set(scratch, appendSize(scratch, 0, frameWidth, frameHeight));
+        cropText.set(scratch, appendSize(scratch, 0, inputWidth, inputHeight));
+        final int cropSize = Math.min(frameWidth, frameHeight);
+        cameraResolutionText.set(scratch, appendSize(scratch, 0, cropSize, cropSize));
+        rotationText.set(scratch, appendInt(scratch, 0, rotation));
+        int length = appendInt(scratch, 0, inferenceTimeMs);
+        scratch[length++] = 'm';
+        scratch[length++] = 's';
+        inferenceTimeText.set(scratch, length);
+        listener.onPublished(readyNanos);
+    }
+
+    /**
+     * Writes the decimal digits of a number.
+     *
+     * @param out
+     * @param position
+     * @param value
+     * @return the position after the last char written.
+     */
+    static int appendInt(final char[] out, int position, long value) {
+        if (value < 0) {
+            out[position++] = '-';
+            value = -value;
+        }
+        final int start = position;
+        do {
+            out[position++] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        // Digits were written backwards.
+        for (int i = start, j = position - 1; i < j; ++i, --j) {
+            final char c = out[i];
+            out[i] = out[j];
+            out[j] = c;
+        }
+        return position;
+    }
+
+    /**
+     * Writes a confidence as a percentage with two decimals, like {@code "%.2f%%"}.
+     *
+     * @param out
+     * @param position
+     * @param confidence between 0 and 1.
+     * @return the position after the last char written.
+     */
+    static int appendPercent(final char[] out, int position, final float confidence) {
+        final long hundredths = Math.round(confidence * 10000.0);
+        position = appendInt(out, position, hundredths / 100);
+        final int fraction = (int) Math.abs(hundredths % 100);
+        out[position++] = '.';
+        out[position++] = (char) ('0' + fraction / 10);
+        out[position++] = (char) ('0' + fraction % 10);
+        out[position++] = '%';
+        return position;
+    }
+
+    /**
+     * Writes a size as {@code "<width>x<height>"}.
+     *
+     * @param out
+     * @param position
+     * @param width
+     * @param height
+     * @return the position after the last char written.
+     */
+    static int appendSize(final char[] out, int position, final int width, final int height) {
+        position = appendInt(out, position, width);
+        out[position++] = 'x';
+        return appendInt(out, position, height);
+    }
+}
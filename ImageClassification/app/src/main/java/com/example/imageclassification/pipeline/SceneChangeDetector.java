@@ -0,0 +1,256 @@
+package com.example.imageclassification.pipeline;
+
+/*
+ * Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.example.tflite.LatencyMetrics;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tells whether a frame differs enough from the last classified one to be worth classifying.
+ *
+ * <p>The luma plane is split into a {@link #GRID} x {@link #GRID} grid of blocks, and the mean of
+ * each block is estimated from every {@link #SAMPLE_STEP}th pixel of every {@link #SAMPLE_STEP}th
+ * row, about 20k reads on a 640x480 frame. A frame is a new scene when enough blocks moved away
+ * from the blocks of the last classified frame by more than the noise of the sensor. Comparing
+ * against the last classified frame rather than the previous one catches slow pans too.
+ *
+ * <p>A frame is classified anyway once {@link #getMaxStaleNanos()} passed since the last one, so
+ * results never stay stale for long. Methods other than {@link #requestRefresh()} and
+ * {@link #getStats()} must be called from a single thread.
+ */
+public final class SceneChangeDetector {
+
+    // Blocks per side of the grid.
+    static final int GRID = 16;
+    // Distance in pixels between two samples, along both axes.
+    static final int SAMPLE_STEP = 4;
+    // Luma difference of a block mean above which the block counts as changed.
+    public static final int DEFAULT_BLOCK_THRESHOLD = 12;
+    // Fraction of changed blocks above which the frame is a new scene.
+    public static final float DEFAULT_MIN_CHANGED_FRACTION = 0.05f;
+    // Longest time results may be reused while the scene looks unchanged.
+    public static final long DEFAULT_MAX_STALE_NANOS = 1000000000L;
+
+    /**
+     * Counters of a detector at one point in time.
+     */
+    public static final class Stats {
+        public final long changedFrames;
+        public final long checkedFrames;
+        public final long refreshedFrames;
+        public final long skippedFrames;
+
+        Stats(final long checkedFrames, final long skippedFrames, final long changedFrames,
+              final long refreshedFrames) {
+            this.checkedFrames = checkedFrames;
+            this.skippedFrames = skippedFrames;
+            this.changedFrames = changedFrames;
+            this.refreshedFrames = refreshedFrames;
+        }
+
+        /**
+         * Fraction of checked frames that were not classified.
+         *
+         * @return
+         */
+        public float getSkipRatio() {
+            return checkedFrames == 0 ? 0 : (float) skippedFrames / checkedFrames;
+        }
+
+        /**
+         * Estimates the time the skipped frames would have spent being preprocessed, run through
+         * the model and post-processed, net of the time spent checking every frame.
+         *
+         * @param latencies
+         * @return
+         */
+        public long getSavedNanos(final LatencyMetrics.Snapshot latencies) {
+            final long perFrame = latencies.get(LatencyMetrics.Stage.PREPROCESS).getMeanNanos()
+                    + latencies.get(LatencyMetrics.Stage.INFERENCE).getMeanNanos()
+                    + latencies.get(LatencyMetrics.Stage.POSTPROCESS).getMeanNanos()
+                    + latencies.get(LatencyMetrics.Stage.TOP_K).getMeanNanos();
+            return skippedFrames * perFrame
+                    - latencies.get(LatencyMetrics.Stage.SCENE_CHECK).getTotalNanos();
+        }
+
+        /**
+         *
+         * @param latencies
+         * @return
+         */
+        public String toText(final LatencyMetrics.Snapshot latencies) {
+            return String.format(Locale.US, "%s saved=%d ms", this,
+                    getSavedNanos(latencies) / 1000000);
+        }
+
+        /**
+         *
+         * @return
+         */
+        @Override
+        public String toString() {
+            return "checked=" + checkedFrames
+                    + " skipped=" + skippedFrames
+                    + " (" + Math.round(getSkipRatio() * 100) + "%)"
+                    + " changed=" + changedFrames
+                    + " refreshed=" + refreshedFrames;
+        }
+    }
+
+    private final AtomicLong changedFrames = new AtomicLong();
+    private final AtomicLong checkedFrames = new AtomicLong();
+    private final int[] current = new int[GRID * GRID];
+    private int blockThreshold = DEFAULT_BLOCK_THRESHOLD;
+    private long maxStaleNanos = DEFAULT_MAX_STALE_NANOS;
+    private float minChangedFraction = DEFAULT_MIN_CHANGED_FRACTION;
+    private final int[] reference = new int[GRID * GRID];
+    private int referenceHeight;
+    private long referenceTimestampNs;
+    private int referenceWidth;
+    private final AtomicLong refreshedFrames = new AtomicLong();
+    private final AtomicBoolean refreshRequested = new AtomicBoolean(true);
+    private final AtomicLong skippedFrames = new AtomicLong();
+
+    /**
+     * Compares a frame with the last classified one, and makes it the new reference if it is to
+     * be classified.
+     *
+     * @param luma
+     * @param width
+     * @param height
+     * @param rowStride
+     * @param timestampNs
+     * @return true if the frame should be classified, false if the last results still hold.
+     */
+    public boolean hasChanged(final byte[] luma, final int width, final int height,
+                              final int rowStride, final long timestampNs) {
+        checkedFrames.incrementAndGet();
+        computeBlockMeans(luma, width, height, rowStride, current);
+        final boolean comparable = !refreshRequested.getAndSet(false)
+                && width == referenceWidth && height == referenceHeight;
+        if (comparable) {
+            if (countChangedBlocks() > minChangedFraction * current.length) {
+                changedFrames.incrementAndGet();
+            } else if (timestampNs - referenceTimestampNs >= maxStaleNanos) {
+                refreshedFrames.incrementAndGet();
+            } else {
+                skippedFrames.incrementAndGet();
+                return false;
+            }
+        }
+        System.arraycopy(current, 0, reference, 0, current.length);
+        referenceWidth = width;
+        referenceHeight = height;
+        referenceTimestampNs = timestampNs;
+        return true;
+    }
+
+    /**
+     * Makes the next frame be classified whatever its content, for instance after the classifier
+     * was replaced or when a frame that became the reference is dropped before being classified.
+     * May be called from any thread.
+     */
+    public void requestRefresh() {
+        refreshRequested.set(true);
+    }
+
+    /**
+     *
+     * @return
+     */
+    public Stats getStats() {
+        return new Stats(checkedFrames.get(), skippedFrames.get(), changedFrames.get(),
+                refreshedFrames.get());
+    }
+
+    /**
+     *
+     * @param blockThreshold luma difference of a block mean above which the block has changed.
+     */
+    public void setBlockThreshold(final int blockThreshold) {
+        this.blockThreshold = blockThreshold;
+    }
+
+    /**
+     *
+     * @param minChangedFraction fraction of changed blocks above which the frame is a new scene.
+     */
+    public void setMinChangedFraction(final float minChangedFraction) {
+        this.minChangedFraction = minChangedFraction;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public long getMaxStaleNanos() {
+        return maxStaleNanos;
+    }
+
+    /**
+     *
+     * @param maxStaleNanos longest time results may be reused, 0 to classify every frame.
+     */
+    public void setMaxStaleNanos(final long maxStaleNanos) {
+        this.maxStaleNanos = maxStaleNanos;
+    }
+
+    /**
+     * Counts the blocks whose mean moved by more than the threshold since the reference frame.
+     *
+     * @return
+     */
+    private int countChangedBlocks() {
+        int changed = 0;
+        for (int i = 0; i < current.length; ++i) {
+            if (Math.abs(current[i] - reference[i]) > blockThreshold) {
+                ++changed;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Estimates the mean luma of every block of the grid from a subset of its pixels.
+     *
+     * @param luma
+     * @param width
+     * @param height
+     * @param rowStride
+     * @param means
+     */
+    static void computeBlockMeans(final byte[] luma, final int width, final int height,
+                                  final int rowStride, final int[] means) {
+        for (int by = 0; by < GRID; ++by) {
+            final int top = by * height / GRID;
+            final int bottom = (by + 1) * height / GRID;
+            for (int bx = 0; bx < GRID; ++bx) {
+                final int left = bx * width / GRID;
+                final int right = (bx + 1) * width / GRID;
+                int sum = 0;
+                int count = 0;
+                for (int y = top; y < bottom; y += SAMPLE_STEP) {
+                    final int row = y * rowStride;
+                    for (int x = left; x < right; x += SAMPLE_STEP) {
+                        sum += luma[row + x] & 0xff;
+                        ++count;
+                    }
+                }
+                means[by * GRID + bx] = count == 0 ? 0 : sum / count;
+            }
+        }
+    }
+}
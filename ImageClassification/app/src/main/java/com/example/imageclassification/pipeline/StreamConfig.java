@@ -0,0 +1,66 @@
+package com.example.imageclassification.pipeline;
+
+/*
+ * Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * The camera streams chosen by a {@link StreamConfigPolicy}: the preview shown on screen, and the
+ * frames delivered to the classifier, which may be a separate, smaller stream.
+ */
+public final class StreamConfig {
+
+    public final int analysisHeight;
+    public final int analysisWidth;
+    // Images the analysis ImageReader holds at most.
+    public final int maxImages;
+    public final int previewHeight;
+    public final int previewWidth;
+
+    /**
+     *
+     * @param previewWidth
+     * @param previewHeight
+     * @param analysisWidth
+     * @param analysisHeight
+     * @param maxImages
+     */
+    public StreamConfig(final int previewWidth, final int previewHeight, final int analysisWidth,
+                        final int analysisHeight, final int maxImages) {
+        this.previewWidth = previewWidth;
+        this.previewHeight = previewHeight;
+        this.analysisWidth = analysisWidth;
+        this.analysisHeight = analysisHeight;
+        this.maxImages = maxImages;
+    }
+
+    /**
+     * Whether frames are analyzed at another size than the preview, from a stream of their own.
+     *
+     * @return
+     */
+    public boolean hasSeparateAnalysisStream() {
+        return analysisWidth != previewWidth || analysisHeight != previewHeight;
+    }
+
+    /**
+     *
+     * @return
+     */
+    @Override
+    public String toString() {
+        return "preview=" + previewWidth + "x" + previewHeight
+                + " analysis=" + analysisWidth + "x" + analysisHeight
+                + (hasSeparateAnalysisStream() ? " (separate)" : "")
+                + " maxImages=" + maxImages;
+    }
+}
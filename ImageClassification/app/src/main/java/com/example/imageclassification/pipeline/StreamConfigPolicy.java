@@ -0,0 +1,31 @@
+package com.example.imageclassification.pipeline;
+
+/*
+ * Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Chooses the camera streams from the sizes a camera supports. Sizes are given as
+ * {@code {width, height}} pairs, so that policies can be unit tested on the JVM.
+ */
+public interface StreamConfigPolicy {
+
+    /**
+     *
+     * @param previewSizes sizes supported for the on-screen preview.
+     * @param analysisSizes sizes supported for YUV frames delivered to the classifier.
+     * @param separateStreams whether the analysis frames may come from a stream of their own, or
+     *     must be the preview frames themselves, as with the legacy camera API.
+     * @return
+     */
+    StreamConfig choose(int[][] previewSizes, int[][] analysisSizes, boolean separateStreams);
+}
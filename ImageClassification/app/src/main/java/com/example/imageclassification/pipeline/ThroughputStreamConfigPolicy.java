@@ -0,0 +1,258 @@
+package com.example.imageclassification.pipeline;
+
+/*
+ * Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Picks the smallest analysis frames that still give the model a full resolution crop, instead of
+ * frames sized for the screen.
+ *
+ * <p>The preview keeps the size it had before, the smallest at least as large as the desired
+ * preview size. Analysis frames come from a separate stream with the same aspect ratio, whose crop
+ * covers the model input {@link #getOversampling()} times over if the full-frame work on such
+ * frames fits the conversion budget, and at least once otherwise. Every frame is copied in full out
+ * of the camera buffers, and converted in full too if the pipeline converts frames to ARGB, while
+ * preprocessing only samples the pixels the model sees. The smaller frames save that copy and
+ * memory bandwidth on every frame.
+ *
+ * <p>Without a separate stream, the preview is the smallest size covering both the model input and
+ * the minimum preview size, as it is copied on every frame too.
+ */
+public final class ThroughputStreamConfigPolicy implements StreamConfigPolicy {
+
+    // Relative difference of aspect ratio under which two sizes show the same field of view.
+    static final float ASPECT_TOLERANCE = 0.05f;
+    // Longest time the full-frame work on one analysis frame may take, a fraction of a 30 fps frame
+    // interval.
+    public static final long DEFAULT_CONVERSION_BUDGET_NANOS = 4000000L;
+    // Cost of the full-frame work on one pixel when it was not measured, as if frames were
+    // converted.
+    public static final double DEFAULT_NANOS_PER_PIXEL = 4.0;
+    // Size under which previews look blurry, on the short side.
+    public static final int DEFAULT_MIN_PREVIEW_SIZE = 320;
+    // Model input pixels per crop pixel aimed for, for a smoother downscale.
+    public static final float DEFAULT_OVERSAMPLING = 1.5f;
+
+    private long conversionBudgetNanos = DEFAULT_CONVERSION_BUDGET_NANOS;
+    private float cropFraction = 1.0f;
+    private final int desiredPreviewHeight;
+    private final int desiredPreviewWidth;
+    private int imagesHeld = 1;
+    private final int inputHeight;
+    private final int inputWidth;
+    private int minPreviewSize = DEFAULT_MIN_PREVIEW_SIZE;
+    private double nanosPerPixel = DEFAULT_NANOS_PER_PIXEL;
+    private float oversampling = DEFAULT_OVERSAMPLING;
+
+    /**
+     *
+     * @param inputWidth width of the model input.
+     * @param inputHeight height of the model input.
+     * @param desiredPreviewWidth
+     * @param desiredPreviewHeight
+     */
+    public ThroughputStreamConfigPolicy(final int inputWidth, final int inputHeight,
+                                        final int desiredPreviewWidth,
+                                        final int desiredPreviewHeight) {
+        this.inputWidth = inputWidth;
+        this.inputHeight = inputHeight;
+        this.desiredPreviewWidth = desiredPreviewWidth;
+        this.desiredPreviewHeight = desiredPreviewHeight;
+    }
+
+    /**
+     *
+     * @param previewSizes
+     * @param analysisSizes
+     * @param separateStreams
+     * @return
+     */
+    @Override
+    public StreamConfig choose(final int[][] previewSizes, final int[][] analysisSizes,
+                               final boolean separateStreams) {
+        final int maxImages = Math.max(2, imagesHeld + 1);
+        if (!separateStreams) {
+            // The frames shown are the frames analyzed, so they must suit both.
+            final int[] size = smallestCovering(previewSizes,
+                    Math.max(minPreviewSize, getRequiredShortSide(1.0f)), Long.MAX_VALUE);
+            final int[] single = size != null ? size : choosePreviewSize(previewSizes);
+            return new StreamConfig(single[0], single[1], single[0], single[1], maxImages);
+        }
+        final int[] preview = choosePreviewSize(previewSizes);
+        final int[] analysis = chooseAnalysisSize(analysisSizes, preview);
+        return new StreamConfig(preview[0], preview[1], analysis[0], analysis[1], maxImages);
+    }
+
+    /**
+     * Chooses the desired preview size if supported, or else the smallest size whose sides are
+     * both at least the short side of the desired size.
+     *
+     * @param sizes
+     * @return
+     */
+    int[] choosePreviewSize(final int[][] sizes) {
+        for (final int[] size : sizes) {
+            if (size[0] == desiredPreviewWidth && size[1] == desiredPreviewHeight) {
+                return size;
+            }
+        }
+        final int minSize = Math.max(
+                Math.min(desiredPreviewWidth, desiredPreviewHeight), minPreviewSize);
+        final int[] size = smallestCovering(sizes, minSize, Long.MAX_VALUE);
+        return size != null ? size : sizes[0];
+    }
+
+    /**
+     * Chooses the smallest analysis size with the field of view of the preview that covers the
+     * oversampled model input within the conversion budget, or the model input at least.
+     *
+     * @param sizes
+     * @param preview
+     * @return
+     */
+    int[] chooseAnalysisSize(final int[][] sizes, final int[] preview) {
+        final int[][] candidates = withAspectOf(sizes, preview);
+        final long budgetPixels = (long) (conversionBudgetNanos / nanosPerPixel);
+        int[] size = smallestCovering(candidates, getRequiredShortSide(oversampling), budgetPixels);
+        if (size == null) {
+            size = smallestCovering(candidates, getRequiredShortSide(1.0f), Long.MAX_VALUE);
+        }
+        if (size == null || area(size) >= area(preview)) {
+            // Nothing smaller than the preview would do.
+            return preview;
+        }
+        return size;
+    }
+
+    /**
+     * Gets the short side a frame needs so that its crop holds {@code scale} times the model input.
+     *
+     * @param scale
+     * @return
+     */
+    int getRequiredShortSide(final float scale) {
+        return (int) Math.ceil(Math.max(inputWidth, inputHeight) * scale / cropFraction);
+    }
+
+    /**
+     *
+     * @return
+     */
+    public float getOversampling() {
+        return oversampling;
+    }
+
+    /**
+     *
+     * @param conversionBudgetNanos longest time the full-frame work on one analysis frame may take.
+     */
+    public void setConversionBudgetNanos(final long conversionBudgetNanos) {
+        this.conversionBudgetNanos = conversionBudgetNanos;
+    }
+
+    /**
+     *
+     * @param nanosPerPixel measured cost of the full-frame work on one pixel: its copy, and its
+     *                      conversion to ARGB if the pipeline converts frames.
+     */
+    public void setConversionCost(final double nanosPerPixel) {
+        if (nanosPerPixel > 0) {
+            this.nanosPerPixel = nanosPerPixel;
+        }
+    }
+
+    /**
+     *
+     * @param cropFraction fraction of the short side of frames cropped for the model.
+     */
+    public void setCropFraction(final float cropFraction) {
+        if (cropFraction <= 0 || cropFraction > 1) {
+            throw new IllegalArgumentException("cropFraction must be in (0, 1], was "
+                    + cropFraction);
+        }
+        this.cropFraction = cropFraction;
+    }
+
+    /**
+     *
+     * @param imagesHeld images the frame consumer holds at once, 1 when frames are copied out
+     *     right away.
+     */
+    public void setImagesHeld(final int imagesHeld) {
+        this.imagesHeld = imagesHeld;
+    }
+
+    /**
+     *
+     * @param minPreviewSize
+     */
+    public void setMinPreviewSize(final int minPreviewSize) {
+        this.minPreviewSize = minPreviewSize;
+    }
+
+    /**
+     *
+     * @param oversampling model input pixels per crop pixel aimed for, 1 for the smallest frames.
+     */
+    public void setOversampling(final float oversampling) {
+        this.oversampling = Math.max(1.0f, oversampling);
+    }
+
+    private static long area(final int[] size) {
+        return (long) size[0] * size[1];
+    }
+
+    /**
+     * Finds the smallest size whose sides are both at least {@code minSide}.
+     *
+     * @param sizes
+     * @param minSide
+     * @param maxPixels
+     * @return null if no size fits.
+     */
+    private static int[] smallestCovering(final int[][] sizes, final int minSide,
+                                          final long maxPixels) {
+        int[] best = null;
+        for (final int[] size : sizes) {
+            if (size[0] >= minSide && size[1] >= minSide && area(size) <= maxPixels
+                    && (best == null || area(size) < area(best))) {
+                best = size;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Keeps the sizes with the aspect ratio of {@code reference}, or every size if none has it.
+     *
+     * @param sizes
+     * @param reference
+     * @return
+     */
+    private static int[][] withAspectOf(final int[][] sizes, final int[] reference) {
+        final float aspect = (float) reference[0] / reference[1];
+        int count = 0;
+        final int[][] matching = new int[sizes.length][];
+        for (final int[] size : sizes) {
+            if (Math.abs((float) size[0] / size[1] - aspect) <= ASPECT_TOLERANCE * aspect) {
+                matching[count++] = size;
+            }
+        }
+        if (count == 0) {
+            return sizes;
+        }
+        final int[][] result = new int[count][];
+        System.arraycopy(matching, 0, result, 0, count);
+        return result;
+    }
+}
@@ -0,0 +1,159 @@
+package com.example.imageclassification.env;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Checks {@link YuvConverter} against the original integer conversion of {@link ImageUtils}.
+ */
+public class YuvConverterTest {
+
+    private static final int[][] SIZES = {
+            {1, 1}, {2, 2}, {3, 5}, {17, 9}, {320, 240}, {641, 481}, {1280, 720}
+    };
+
+    /**
+     * The per-pixel formula {@link ImageUtils} used before the conversion engine.
+     */
+    private static int referenceYuv2Rgb(int y, int u, int v) {
+        y = (y - 16) < 0 ? 0 : (y - 16);
+        u -= 128;
+        v -= 128;
+        int y1192 = 1192 * y;
+        int r = (y1192 + 1634 * v);
+        int g = (y1192 - 833 * v - 400 * u);
+        int b = (y1192 + 2066 * u);
+        r = r > 262143 ? 262143 : (r < 0 ? 0 : r);
+        g = g > 262143 ? 262143 : (g < 0 ? 0 : g);
+        b = b > 262143 ? 262143 : (b < 0 ? 0 : b);
+        return 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
+    }
+
+    private static void referenceYuv420(
+            byte[] yData, byte[] uData, byte[] vData, int width, int height, int yRowStride,
+            int uvRowStride, int uvPixelStride, int[] out) {
+        int yp = 0;
+        for (int j = 0; j < height; j++) {
+            int pY = yRowStride * j;
+            int pUV = uvRowStride * (j >> 1);
+            for (int i = 0; i < width; i++) {
+                int uvOffset = pUV + (i >> 1) * uvPixelStride;
+                out[yp++] = referenceYuv2Rgb(
+                        0xff & yData[pY + i], 0xff & uData[uvOffset], 0xff & vData[uvOffset]);
+            }
+        }
+    }
+
+    private static void referenceNv21(byte[] input, int width, int height, int[] output) {
+        final int frameSize = width * height;
+        for (int j = 0, yp = 0; j < height; j++) {
+            int uvp = frameSize + (j >> 1) * width;
+            int u = 0;
+            int v = 0;
+            for (int i = 0; i < width; i++, yp++) {
+                int y = 0xff & input[yp];
+                if ((i & 1) == 0) {
+                    v = 0xff & input[uvp++];
+                    u = 0xff & input[uvp++];
+                }
+                output[yp] = referenceYuv2Rgb(y, u, v);
+            }
+        }
+    }
+
+    private static byte[] randomBytes(Random random, int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Copies {@code bytes} into a direct buffer whose position is not zero.
+     */
+    private static ByteBuffer toOffsetDirectBuffer(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length + 7);
+        buffer.position(7);
+        buffer.put(bytes);
+        buffer.position(7);
+        return buffer;
+    }
+
+    @Test
+    public void everyYuvTripleMatchesTheIntegerFormula() {
+        for (int y = 0; y < 256; ++y) {
+            for (int u = 0; u < 256; ++u) {
+                for (int v = 0; v < 256; ++v) {
+                    int expected = referenceYuv2Rgb(y, u, v);
+                    int actual = YuvConverter.toArgb(y, u, v);
+                    if (expected != actual) {
+                        assertEquals("y=" + y + " u=" + u + " v=" + v, expected, actual);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void yuv420PlanesMatchTheReference() {
+        Random random = new Random(42);
+        for (int[] size : SIZES) {
+            int width = size[0];
+            int height = size[1];
+            for (int uvPixelStride = 1; uvPixelStride <= 2; ++uvPixelStride) {
+                int yRowStride = width + 3;
+                int chromaWidth = (width + 1) / 2;
+                int uvRowStride = chromaWidth * uvPixelStride + 5;
+                int chromaSize = uvRowStride * ((height + 1) / 2);
+                byte[] yData = randomBytes(random, yRowStride * height);
+                byte[] uData = randomBytes(random, chromaSize);
+                byte[] vData = randomBytes(random, chromaSize);
+
+                int[] expected = new int[width * height];
+                referenceYuv420(yData, uData, vData, width, height,
+                        yRowStride, uvRowStride, uvPixelStride, expected);
+
+                int[] fromArrays = new int[width * height];
+                ImageUtils.convertYUV420ToARGB8888(yData, uData, vData, width, height,
+                        yRowStride, uvRowStride, uvPixelStride, fromArrays);
+                assertArrayEquals(width + "x" + height, expected, fromArrays);
+
+                int[] fromBuffers = new int[width * height];
+                YuvConverter.convertYUV420ToARGB8888(
+                        toOffsetDirectBuffer(yData), toOffsetDirectBuffer(uData),
+                        toOffsetDirectBuffer(vData), width, height,
+                        yRowStride, uvRowStride, uvPixelStride, fromBuffers);
+                assertArrayEquals(width + "x" + height, expected, fromBuffers);
+            }
+        }
+    }
+
+    @Test
+    public void nv21MatchesTheReference() {
+        Random random = new Random(7);
+        for (int[] size : SIZES) {
+            int width = size[0];
+            int height = size[1];
+            if ((width & 1) == 1) {
+                // Chroma rows are assumed to be exactly width bytes, which needs an even width.
+                continue;
+            }
+            byte[] input = randomBytes(random, ImageUtils.getYUVByteSize(width, height));
+
+            int[] expected = new int[width * height];
+            referenceNv21(input, width, height, expected);
+
+            int[] fromArray = new int[width * height];
+            ImageUtils.convertYUV420SPToARGB8888(input, width, height, fromArray);
+            assertArrayEquals(width + "x" + height, expected, fromArray);
+
+            int[] fromBuffer = new int[width * height];
+            YuvConverter.convertYUV420SPToARGB8888(
+                    toOffsetDirectBuffer(input), width, height, fromBuffer);
+            assertArrayEquals(width + "x" + height, expected, fromBuffer);
+        }
+    }
+}
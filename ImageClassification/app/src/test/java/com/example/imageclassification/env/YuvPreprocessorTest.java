@@ -0,0 +1,109 @@
+package com.example.imageclassification.env;
+
+import static org.junit.Assert.assertEquals;
+
+import com.example.tflite.FusedPreprocessor;
+import com.example.tflite.YuvPreprocessor;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import org.junit.Test;
+import org.tensorflow.lite.DataType;
+
+/**
+ * Checks that the model input {@link YuvPreprocessor} samples straight from YUV planes is the one
+ * {@link FusedPreprocessor} writes from the frame converted in full by {@link YuvConverter}.
+ */
+public class YuvPreprocessorTest {
+
+    private static final int[][] SIZES = {{64, 48}, {33, 25}};
+    private static final int[] ROTATIONS = {0, 90, 180, 270};
+    // Not square, so that rotations change which source pixels are sampled.
+    private static final int IMAGE_SIZE_X = 24;
+    private static final int IMAGE_SIZE_Y = 20;
+
+    private static byte[] randomBytes(final Random random, final int size) {
+        final byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static FusedPreprocessor geometry(
+            final int width, final int height, final int rotation, final DataType dataType) {
+        return FusedPreprocessor.get(width, height, rotation, IMAGE_SIZE_X, IMAGE_SIZE_Y, dataType,
+                new float[] {127.5f}, new float[] {127.5f});
+    }
+
+    private static ByteBuffer newOutput(final FusedPreprocessor geometry) {
+        return ByteBuffer.allocateDirect(geometry.getOutputByteSize())
+                .order(ByteOrder.nativeOrder());
+    }
+
+    private static void assertSameInput(
+            final String message, final ByteBuffer expected, final ByteBuffer actual) {
+        for (int i = 0; i < expected.capacity(); ++i) {
+            if (expected.get(i) != actual.get(i)) {
+                assertEquals(message + " byte " + i, expected.get(i), actual.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void nv21MatchesConvertedFrame() {
+        final Random random = new Random(42);
+        for (final int[] size : SIZES) {
+            final int width = size[0];
+            final int height = size[1];
+            final int frameSize = width * height;
+            final int chromaSize = ((width + 1) / 2) * ((height + 1) / 2);
+            final byte[] nv21 = randomBytes(random, frameSize + 2 * chromaSize);
+            final int[] pixels = new int[frameSize];
+            YuvConverter.convertYUV420SPToARGB8888(ByteBuffer.wrap(nv21), width, height, pixels);
+            for (final DataType dataType : new DataType[] {DataType.UINT8, DataType.FLOAT32}) {
+                for (final int rotation : ROTATIONS) {
+                    final FusedPreprocessor geometry = geometry(width, height, rotation, dataType);
+                    final ByteBuffer expected = newOutput(geometry);
+                    geometry.apply(pixels, expected, 0);
+                    final ByteBuffer actual = newOutput(geometry);
+                    // NV21 as three planes, the way Classifier.preprocessYuv documents it.
+                    YuvPreprocessor.get(geometry, width, width, 2)
+                            .apply(nv21, nv21, frameSize + 1, nv21, frameSize, actual, 0);
+                    assertSameInput(width + "x" + height + " " + dataType + " " + rotation,
+                            expected, actual);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void paddedPlanesMatchConvertedFrame() {
+        final Random random = new Random(7);
+        for (final int[] size : SIZES) {
+            final int width = size[0];
+            final int height = size[1];
+            // Rows padded past the frame width, as camera2 planes often are.
+            final int yRowStride = width + 3;
+            final int chromaWidth = (width + 1) / 2;
+            final int chromaHeight = (height + 1) / 2;
+            final int uvRowStride = chromaWidth + 5;
+            final byte[] y = randomBytes(random, yRowStride * height);
+            final byte[] u = randomBytes(random, uvRowStride * chromaHeight);
+            final byte[] v = randomBytes(random, uvRowStride * chromaHeight);
+            final int[] pixels = new int[width * height];
+            YuvConverter.convertYUV420ToARGB8888(ByteBuffer.wrap(y), ByteBuffer.wrap(u),
+                    ByteBuffer.wrap(v), width, height, yRowStride, uvRowStride, 1, pixels);
+            for (final DataType dataType : new DataType[] {DataType.UINT8, DataType.FLOAT32}) {
+                for (final int rotation : ROTATIONS) {
+                    final FusedPreprocessor geometry = geometry(width, height, rotation, dataType);
+                    final ByteBuffer expected = newOutput(geometry);
+                    geometry.apply(pixels, expected, 0);
+                    final ByteBuffer actual = newOutput(geometry);
+                    YuvPreprocessor.get(geometry, yRowStride, uvRowStride, 1)
+                            .apply(y, u, 0, v, 0, actual, 0);
+                    assertSameInput(width + "x" + height + " " + dataType + " " + rotation,
+                            expected, actual);
+                }
+            }
+        }
+    }
+}
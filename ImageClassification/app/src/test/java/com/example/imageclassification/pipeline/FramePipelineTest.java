@@ -0,0 +1,194 @@
+package com.example.imageclassification.pipeline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.example.tflite.LatencyMetrics;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Runs slots through {@link FramePipeline} with a fake processor, and checks which frames are
+ * dropped, how they are counted and that every slot goes back to the free ring.
+ */
+public class FramePipelineTest {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    /** Records the slots it sees, and can hold the inference stage on its first frame. */
+    private static final class FakeProcessor implements FramePipeline.FrameProcessor {
+        final Semaphore preprocessed = new Semaphore(0);
+        final CountDownLatch inferring = new CountDownLatch(1);
+        final CountDownLatch resumeInference = new CountDownLatch(1);
+        final List<Integer> inferred = new ArrayList<>();
+        final List<Integer> dropped = new ArrayList<>();
+        volatile boolean accepting = true;
+        volatile boolean failing;
+
+        @Override
+        public boolean preprocess(final FrameSlot slot) {
+            preprocessed.release();
+            return accepting;
+        }
+
+        @Override
+        public void infer(final FrameSlot slot) {
+            synchronized (inferred) {
+                inferred.add(slot.getIndex());
+            }
+            inferring.countDown();
+            try {
+                resumeInference.await();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (failing) {
+                throw new IllegalStateException("inference failed");
+            }
+        }
+
+        @Override
+        public void onDropped(final FrameSlot slot) {
+            synchronized (dropped) {
+                dropped.add(slot.getIndex());
+            }
+        }
+
+        List<Integer> getInferred() {
+            synchronized (inferred) {
+                return new ArrayList<>(inferred);
+            }
+        }
+
+        List<Integer> getDropped() {
+            synchronized (dropped) {
+                return new ArrayList<>(dropped);
+            }
+        }
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    private final FakeProcessor processor = new FakeProcessor();
+    private final FramePipeline pipeline =
+            new FramePipeline(processor, FramePipeline.DEFAULT_NUM_SLOTS, false,
+                    new LatencyMetrics());
+
+    @After
+    public void tearDown() {
+        processor.resumeInference.countDown();
+        pipeline.close();
+    }
+
+    private static void await(final Condition condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.holds()) {
+            assertTrue("Timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private FrameSlot submit() {
+        final FrameSlot slot = pipeline.acquireSlot();
+        assertNotNull(slot);
+        pipeline.submit(slot);
+        return slot;
+    }
+
+    private void awaitPreprocessed() throws InterruptedException {
+        assertTrue(processor.preprocessed.tryAcquire(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    private void awaitAllSlotsFree() throws InterruptedException {
+        await(() -> pipeline.getStats().queueDepth == 0);
+    }
+
+    @Test
+    public void slowInferenceDropsOlderPreprocessedFrame() throws Exception {
+        final FrameSlot first = submit();
+        assertTrue(processor.inferring.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        awaitPreprocessed();
+
+        // Waits for each frame to be preprocessed, so that none is dropped at that stage.
+        final FrameSlot older = submit();
+        awaitPreprocessed();
+        final FrameSlot newer = submit();
+        awaitPreprocessed();
+        // The newer frame replaces the older one waiting for the busy inference stage.
+        await(() -> pipeline.getStats().droppedAtInference == 1);
+        assertEquals(2, pipeline.getStats().queueDepth);
+
+        processor.resumeInference.countDown();
+        await(() -> pipeline.getStats().completedFrames == 2);
+        awaitAllSlotsFree();
+        final List<Integer> inferred = processor.getInferred();
+        assertEquals(2, inferred.size());
+        assertEquals(first.getIndex(), (int) inferred.get(0));
+        assertEquals(newer.getIndex(), (int) inferred.get(1));
+        assertFalse(inferred.contains(older.getIndex()));
+        // The processor hears of the preprocessed frame that was never classified.
+        assertEquals(1, processor.getDropped().size());
+        assertEquals(older.getIndex(), (int) processor.getDropped().get(0));
+
+        final FramePipeline.Stats stats = pipeline.getStats();
+        assertEquals(3, stats.submittedFrames);
+        assertEquals(1, stats.getDroppedFrames());
+        assertEquals(0, stats.droppedAtIngress);
+        assertEquals(0, stats.droppedAtPreprocess);
+        assertEquals(0, stats.droppedAtConvert);
+    }
+
+    @Test
+    public void countsFramesDroppedWithoutFreeSlot() throws Exception {
+        final List<FrameSlot> slots = new ArrayList<>();
+        for (int i = 0; i < FramePipeline.DEFAULT_NUM_SLOTS; ++i) {
+            slots.add(pipeline.acquireSlot());
+        }
+        assertNull(pipeline.acquireSlot());
+        assertEquals(1, pipeline.getStats().droppedAtIngress);
+        assertEquals(FramePipeline.DEFAULT_NUM_SLOTS, pipeline.getStats().queueDepth);
+        for (final FrameSlot slot : slots) {
+            pipeline.recycle(slot);
+        }
+        assertEquals(0, pipeline.getStats().queueDepth);
+    }
+
+    @Test
+    public void recyclesRejectedAndFailedFrames() throws Exception {
+        processor.accepting = false;
+        submit();
+        awaitPreprocessed();
+        awaitAllSlotsFree();
+        assertTrue(processor.getInferred().isEmpty());
+        // Frames the processor rejected itself are not reported back to it.
+        assertTrue(processor.getDropped().isEmpty());
+
+        processor.accepting = true;
+        processor.failing = true;
+        processor.resumeInference.countDown();
+        final FrameSlot failed = submit();
+        await(() -> processor.getInferred().size() == 1);
+        awaitAllSlotsFree();
+        assertEquals(0, pipeline.getStats().completedFrames);
+        assertEquals(1, processor.getDropped().size());
+        assertEquals(failed.getIndex(), (int) processor.getDropped().get(0));
+    }
+
+    @Test
+    public void recyclesFramesSubmittedAfterClose() throws Exception {
+        pipeline.close();
+        submit();
+        assertEquals(0, pipeline.getStats().queueDepth);
+        assertFalse(pipeline.runOnInferenceThread(() -> { }));
+    }
+}
@@ -0,0 +1,121 @@
+package com.example.imageclassification.pipeline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/**
+ * Records frames and checks that {@link ReplayFrameSource} gives them back in order, with
+ * increasing timestamps over loops.
+ */
+public class ReplayFrameSourceTest {
+
+    private static final int WIDTH = 6;
+    private static final int HEIGHT = 4;
+
+    private static ByteBuffer filled(final int size, final int seed) {
+        final byte[] bytes = new byte[size];
+        for (int i = 0; i < size; ++i) {
+            bytes[i] = (byte) (seed + i);
+        }
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private static File record() throws IOException {
+        final File file = File.createTempFile("frames", ".yuv");
+        file.deleteOnExit();
+        try (ReplayFrameSource.Recorder recorder = new ReplayFrameSource.Recorder(file)) {
+            final Frame yuv = new Frame();
+            // Chroma planes of a semi-planar frame, with a pixel stride of 2.
+            yuv.setYuv420(filled(WIDTH * HEIGHT, 0), filled(WIDTH * HEIGHT / 2 - 1, 50),
+                    filled(WIDTH * HEIGHT / 2 - 1, 100), WIDTH, WIDTH, 2, WIDTH, HEIGHT,
+                    1000, null, null);
+            recorder.write(yuv);
+            final Frame nv21 = new Frame();
+            nv21.setNv21(filled(WIDTH * HEIGHT * 3 / 2, 7), WIDTH, HEIGHT, 2000, null, null);
+            recorder.write(nv21);
+        }
+        return file;
+    }
+
+    @Test
+    public void replaysRecordedFramesInOrder() throws Exception {
+        final ReplayFrameSource source = new ReplayFrameSource(record(), 2);
+        assertEquals(2, source.getFrameCount());
+        final List<Long> timestamps = new ArrayList<>();
+        final List<Integer> formats = new ArrayList<>();
+        final List<Byte> firstBytes = new ArrayList<>();
+        // Width, height, Y plane size, U plane size, first U sample and UV pixel stride, with
+        // -1 for the U plane of NV21 frames.
+        final List<List<Integer>> layouts = new ArrayList<>();
+        // Collected on the replay thread, checked here once the replay is over.
+        source.start(frame -> {
+            timestamps.add(frame.getTimestampNs());
+            formats.add(frame.getFormat());
+            firstBytes.add(frame.getYPlane().get(1));
+            final ByteBuffer uPlane = frame.getUPlane();
+            layouts.add(Arrays.asList(frame.getWidth(), frame.getHeight(),
+                    frame.getYPlane().remaining(), uPlane == null ? -1 : uPlane.remaining(),
+                    uPlane == null ? -1 : (int) uPlane.get(0),
+                    uPlane == null ? -1 : frame.getUvPixelStride()));
+            frame.release();
+        });
+        source.awaitCompletion();
+        assertEquals(4, source.getDeliveredFrames());
+        assertEquals(4, timestamps.size());
+        assertEquals(Frame.FORMAT_YUV_420_888, (int) formats.get(2));
+        assertEquals(Frame.FORMAT_NV21, (int) formats.get(3));
+        assertEquals(1, (byte) firstBytes.get(0));
+        assertEquals(8, (byte) firstBytes.get(1));
+        assertEquals(1, (byte) firstBytes.get(2));
+        for (int i = 0; i < layouts.size(); i += 2) {
+            assertEquals(
+                    Arrays.asList(WIDTH, HEIGHT, WIDTH * HEIGHT, WIDTH * HEIGHT / 2 - 1, 50, 2),
+                    layouts.get(i));
+            assertEquals(Arrays.asList(WIDTH, HEIGHT, WIDTH * HEIGHT * 3 / 2, -1, -1, -1),
+                    layouts.get(i + 1));
+        }
+        for (int i = 1; i < timestamps.size(); ++i) {
+            assertTrue(timestamps.get(i) > timestamps.get(i - 1));
+        }
+        assertEquals(1000 + 2000, (long) timestamps.get(2));
+    }
+
+    @Test
+    public void waitsForFramesToBeReleased() throws Exception {
+        final ReplayFrameSource source = new ReplayFrameSource(record(), 5, 2);
+        final List<Frame> borrowed = new ArrayList<>();
+        // One permit per delivered frame.
+        final Semaphore delivered = new Semaphore(0);
+        source.start(frame -> {
+            synchronized (borrowed) {
+                borrowed.add(frame);
+            }
+            delivered.release();
+        });
+        try {
+            assertTrue(delivered.tryAcquire(2, 5, TimeUnit.SECONDS));
+            // No third frame while both are held.
+            assertFalse(delivered.tryAcquire(100, TimeUnit.MILLISECONDS));
+            assertEquals(2, source.getDeliveredFrames());
+            synchronized (borrowed) {
+                borrowed.get(0).release();
+            }
+            assertTrue(delivered.tryAcquire(5, TimeUnit.SECONDS));
+            assertFalse(delivered.tryAcquire(100, TimeUnit.MILLISECONDS));
+            assertEquals(3, source.getDeliveredFrames());
+        } finally {
+            source.stop();
+        }
+    }
+}
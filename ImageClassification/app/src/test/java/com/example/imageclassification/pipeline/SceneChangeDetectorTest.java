@@ -0,0 +1,136 @@
+package com.example.imageclassification.pipeline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import org.junit.Test;
+
+/**
+ * Checks which frames {@link SceneChangeDetector} lets through to the classifier.
+ */
+public class SceneChangeDetectorTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    private static final long FRAME_NANOS = 33000000L;
+
+    private static byte[] flat(final int luma) {
+        final byte[] frame = new byte[WIDTH * HEIGHT];
+        Arrays.fill(frame, (byte) luma);
+        return frame;
+    }
+
+    /**
+     * Paints the top {@code rows} block rows of the grid with {@code luma}.
+     *
+     * @param frame
+     * @param rows
+     * @param luma
+     * @return
+     */
+    private static byte[] paintBlockRows(final byte[] frame, final int rows, final int luma) {
+        Arrays.fill(frame, 0, rows * HEIGHT / SceneChangeDetector.GRID * WIDTH, (byte) luma);
+        return frame;
+    }
+
+    private static boolean check(final SceneChangeDetector detector, final byte[] frame,
+                                 final int index) {
+        return detector.hasChanged(frame, WIDTH, HEIGHT, WIDTH, index * FRAME_NANOS);
+    }
+
+    @Test
+    public void skipsUnchangedFrames() {
+        final SceneChangeDetector detector = new SceneChangeDetector();
+        assertTrue(check(detector, flat(100), 0));
+        assertFalse(check(detector, flat(100), 1));
+        // Sensor noise stays below the block threshold.
+        assertFalse(check(detector, flat(100 + SceneChangeDetector.DEFAULT_BLOCK_THRESHOLD), 2));
+        // A single changed block is below the 5% of blocks needed.
+        final byte[] corner = flat(100);
+        corner[0] = (byte) 255;
+        assertFalse(check(detector, corner, 3));
+
+        final SceneChangeDetector.Stats stats = detector.getStats();
+        assertEquals(4, stats.checkedFrames);
+        assertEquals(3, stats.skippedFrames);
+        assertEquals(0, stats.changedFrames);
+        assertEquals(0.75f, stats.getSkipRatio(), 0.0f);
+    }
+
+    @Test
+    public void detectsChangedFrames() {
+        final SceneChangeDetector detector = new SceneChangeDetector();
+        assertTrue(check(detector, flat(100), 0));
+        assertTrue(check(detector, paintBlockRows(flat(100), 1, 200), 1));
+        // The changed frame is the new reference.
+        assertFalse(check(detector, paintBlockRows(flat(100), 1, 200), 2));
+        assertTrue(check(detector, flat(50), 3));
+        assertEquals(2, detector.getStats().changedFrames);
+    }
+
+    @Test
+    public void detectsSlowDrift() {
+        final SceneChangeDetector detector = new SceneChangeDetector();
+        assertTrue(check(detector, flat(100), 0));
+        // Each frame is close to the previous one, but not to the last classified one.
+        assertFalse(check(detector, flat(105), 1));
+        assertFalse(check(detector, flat(110), 2));
+        assertTrue(check(detector, flat(115), 3));
+    }
+
+    @Test
+    public void refreshesStaleResults() {
+        final SceneChangeDetector detector = new SceneChangeDetector();
+        detector.setMaxStaleNanos(10 * FRAME_NANOS);
+        assertTrue(check(detector, flat(100), 0));
+        for (int i = 1; i < 10; ++i) {
+            assertFalse(check(detector, flat(100), i));
+        }
+        assertTrue(check(detector, flat(100), 10));
+        // The interval starts again from the refreshed frame.
+        assertFalse(check(detector, flat(100), 19));
+        assertTrue(check(detector, flat(100), 20));
+        assertEquals(2, detector.getStats().refreshedFrames);
+    }
+
+    @Test
+    public void classifiesEveryFrameWithoutStaleness() {
+        final SceneChangeDetector detector = new SceneChangeDetector();
+        detector.setMaxStaleNanos(0);
+        for (int i = 0; i < 3; ++i) {
+            assertTrue(check(detector, flat(100), i));
+        }
+    }
+
+    @Test
+    public void requestedRefreshClassifiesNextFrame() {
+        final SceneChangeDetector detector = new SceneChangeDetector();
+        assertTrue(check(detector, flat(100), 0));
+        detector.requestRefresh();
+        assertTrue(check(detector, flat(100), 1));
+        assertFalse(check(detector, flat(100), 2));
+    }
+
+    @Test
+    public void newFrameSizeIsClassified() {
+        final SceneChangeDetector detector = new SceneChangeDetector();
+        assertTrue(check(detector, flat(100), 0));
+        assertTrue(detector.hasChanged(flat(100), HEIGHT, WIDTH, HEIGHT, FRAME_NANOS));
+    }
+
+    @Test
+    public void blockMeansFollowRowStride() {
+        final int rowStride = WIDTH + 16;
+        final byte[] luma = new byte[rowStride * HEIGHT];
+        for (int y = 0; y < HEIGHT; ++y) {
+            Arrays.fill(luma, y * rowStride, y * rowStride + WIDTH, (byte) 200);
+        }
+        final int[] means = new int[SceneChangeDetector.GRID * SceneChangeDetector.GRID];
+        SceneChangeDetector.computeBlockMeans(luma, WIDTH, HEIGHT, rowStride, means);
+        for (final int mean : means) {
+            assertEquals(200, mean);
+        }
+    }
+}
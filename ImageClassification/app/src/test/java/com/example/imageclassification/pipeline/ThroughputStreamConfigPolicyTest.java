@@ -0,0 +1,101 @@
+package com.example.imageclassification.pipeline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks the streams chosen by {@link ThroughputStreamConfigPolicy} for typical camera sizes.
+ */
+public class ThroughputStreamConfigPolicyTest {
+
+    private static final int[][] SIZES = {
+            {1920, 1080}, {1280, 720}, {640, 480}, {480, 360}, {352, 288}, {320, 240}, {176, 144}
+    };
+
+    private static ThroughputStreamConfigPolicy newPolicy(final int inputSize) {
+        return new ThroughputStreamConfigPolicy(inputSize, inputSize, 640, 480);
+    }
+
+    private static void assertSizes(final StreamConfig config, final int previewWidth,
+                                    final int previewHeight, final int analysisWidth,
+                                    final int analysisHeight) {
+        assertEquals(previewWidth, config.previewWidth);
+        assertEquals(previewHeight, config.previewHeight);
+        assertEquals(analysisWidth, config.analysisWidth);
+        assertEquals(analysisHeight, config.analysisHeight);
+    }
+
+    @Test
+    public void oversampledAnalysisStream() {
+        final StreamConfig config = newPolicy(224).choose(SIZES, SIZES, true);
+        // 336 pixels are needed on the short side, with the aspect ratio of the preview.
+        assertSizes(config, 640, 480, 480, 360);
+        assertTrue(config.hasSeparateAnalysisStream());
+        assertEquals(2, config.maxImages);
+    }
+
+    @Test
+    public void smallestAnalysisStreamWithoutOversampling() {
+        final ThroughputStreamConfigPolicy policy = newPolicy(224);
+        policy.setOversampling(1.0f);
+        assertSizes(policy.choose(SIZES, SIZES, true), 640, 480, 320, 240);
+    }
+
+    @Test
+    public void conversionBudgetLimitsOversampling() {
+        final ThroughputStreamConfigPolicy policy = newPolicy(224);
+        // 480x360 would take 17 ms to convert, 320x240 takes 7.7 ms.
+        policy.setConversionCost(100.0);
+        policy.setConversionBudgetNanos(10000000L);
+        assertSizes(policy.choose(SIZES, SIZES, true), 640, 480, 320, 240);
+    }
+
+    @Test
+    public void cropNeedsLargerFrames() {
+        final ThroughputStreamConfigPolicy policy = newPolicy(224);
+        policy.setCropFraction(0.5f);
+        // Only the preview itself covers the 448 pixels needed.
+        final StreamConfig config = policy.choose(SIZES, SIZES, true);
+        assertSizes(config, 640, 480, 640, 480);
+        assertFalse(config.hasSeparateAnalysisStream());
+    }
+
+    @Test
+    public void otherAspectRatioWhenNoneMatches() {
+        final int[][] analysisSizes = {{1280, 720}, {480, 270}, {400, 400}};
+        final StreamConfig config = newPolicy(224).choose(SIZES, analysisSizes, true);
+        assertSizes(config, 640, 480, 400, 400);
+    }
+
+    @Test
+    public void singleStreamCoversModelAndMinimumPreview() {
+        final StreamConfig config = newPolicy(224).choose(SIZES, SIZES, false);
+        assertSizes(config, 480, 360, 480, 360);
+        assertFalse(config.hasSeparateAnalysisStream());
+    }
+
+    @Test
+    public void singleStreamForLargeModel() {
+        final StreamConfig config = newPolicy(600).choose(SIZES, SIZES, false);
+        assertSizes(config, 1280, 720, 1280, 720);
+    }
+
+    @Test
+    public void nonExactPreviewSize() {
+        final ThroughputStreamConfigPolicy policy =
+                new ThroughputStreamConfigPolicy(224, 224, 800, 600);
+        final int[][] analysisSizes = {{1280, 720}, {640, 480}, {640, 360}, {480, 270}};
+        // The smallest preview at least 600 pixels high, and analysis frames of the same aspect.
+        assertSizes(policy.choose(SIZES, analysisSizes, true), 1280, 720, 640, 360);
+    }
+
+    @Test
+    public void maxImagesFollowsImagesHeld() {
+        final ThroughputStreamConfigPolicy policy = newPolicy(224);
+        policy.setImagesHeld(3);
+        assertEquals(4, policy.choose(SIZES, SIZES, true).maxImages);
+    }
+}
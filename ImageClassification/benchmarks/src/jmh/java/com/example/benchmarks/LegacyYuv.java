@@ -0,0 +1,79 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.benchmarks;
+
+/**
+ * The per-pixel YUV to ARGB conversion {@code ImageUtils} used before {@code YuvConverter}, kept as
+ * a baseline.
+ */
+public final class LegacyYuv {
+
+  private static final int MAX_CHANNEL_VALUE = 262143;
+
+  private LegacyYuv() {}
+
+  public static void convertYUV420ToARGB8888(
+      byte[] yData,
+      byte[] uData,
+      byte[] vData,
+      int width,
+      int height,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride,
+      int[] out) {
+    int yp = 0;
+    for (int j = 0; j < height; j++) {
+      int pY = yRowStride * j;
+      int pUV = uvRowStride * (j >> 1);
+      for (int i = 0; i < width; i++) {
+        int uvOffset = pUV + (i >> 1) * uvPixelStride;
+        out[yp++] = yuv2Rgb(0xff & yData[pY + i], 0xff & uData[uvOffset], 0xff & vData[uvOffset]);
+      }
+    }
+  }
+
+  public static void convertYUV420SPToARGB8888(byte[] input, int width, int height, int[] output) {
+    final int frameSize = width * height;
+    for (int j = 0, yp = 0; j < height; j++) {
+      int uvp = frameSize + (j >> 1) * width;
+      int u = 0;
+      int v = 0;
+      for (int i = 0; i < width; i++, yp++) {
+        int y = 0xff & input[yp];
+        if ((i & 1) == 0) {
+          v = 0xff & input[uvp++];
+          u = 0xff & input[uvp++];
+        }
+        output[yp] = yuv2Rgb(y, u, v);
+      }
+    }
+  }
+
+  public static int yuv2Rgb(int y, int u, int v) {
+    y = (y - 16) < 0 ? 0 : (y - 16);
+    u -= 128;
+    v -= 128;
+    int y1192 = 1192 * y;
+    int r = (y1192 + 1634 * v);
+    int g = (y1192 - 833 * v - 400 * u);
+    int b = (y1192 + 2066 * u);
+    r = r > MAX_CHANNEL_VALUE ? MAX_CHANNEL_VALUE : (r < 0 ? 0 : r);
+    g = g > MAX_CHANNEL_VALUE ? MAX_CHANNEL_VALUE : (g < 0 ? 0 : g);
+    b = b > MAX_CHANNEL_VALUE ? MAX_CHANNEL_VALUE : (b < 0 ? 0 : b);
+    return 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
+  }
+}
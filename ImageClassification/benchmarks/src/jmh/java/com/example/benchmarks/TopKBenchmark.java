@@ -0,0 +1,131 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.benchmarks;
+
+import com.example.tflite.TopK;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Post-processing of one classifier output: picking the best {@code maxResults} of {@code
+ * numClasses} probabilities.
+ */
+@State(Scope.Benchmark)
+public class TopKBenchmark {
+
+  @Param({"1001"})
+  public int numClasses;
+
+  @Param({"1", "3", "10"})
+  public int maxResults;
+
+  private List<String> labels;
+  private float[] probabilities;
+  private ByteBuffer quantized;
+  private TopK topK;
+
+  /** What {@code Classifier.Recognition} holds, minus the Android-only location. */
+  static final class Result {
+    final String id;
+    final String title;
+    final Float confidence;
+
+    Result(String id, String title, Float confidence) {
+      this.id = id;
+      this.title = title;
+      this.confidence = confidence;
+    }
+  }
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(0);
+    labels = new ArrayList<>(numClasses);
+    probabilities = new float[numClasses];
+    quantized = ByteBuffer.allocateDirect(numClasses).order(ByteOrder.nativeOrder());
+    for (int i = 0; i < numClasses; ++i) {
+      labels.add("label" + i);
+      probabilities[i] = random.nextFloat();
+      quantized.put(i, (byte) random.nextInt(256));
+    }
+    topK = new TopK(maxResults);
+  }
+
+  /**
+   * The original {@code getTopKProbability}: a label map, then a priority queue holding one
+   * recognition per class.
+   */
+  @Benchmark
+  public List<Result> legacyPriorityQueue() {
+    Map<String, Float> labelProb = new LinkedHashMap<>();
+    for (int i = 0; i < numClasses; ++i) {
+      labelProb.put(labels.get(i), probabilities[i]);
+    }
+    PriorityQueue<Result> pq =
+        new PriorityQueue<>(
+            maxResults,
+            new Comparator<Result>() {
+              @Override
+              public int compare(Result lhs, Result rhs) {
+                return Float.compare(rhs.confidence, lhs.confidence);
+              }
+            });
+    for (Map.Entry<String, Float> entry : labelProb.entrySet()) {
+      pq.add(new Result("" + entry.getKey(), entry.getKey(), entry.getValue()));
+    }
+    List<Result> results = new ArrayList<>();
+    int size = Math.min(pq.size(), maxResults);
+    for (int i = 0; i < size; ++i) {
+      results.add(pq.poll());
+    }
+    return results;
+  }
+
+  @Benchmark
+  public List<Result> topKFloat() {
+    int size = topK.select(probabilities, numClasses);
+    List<Result> results = new ArrayList<>(size);
+    for (int i = 0; i < size; ++i) {
+      String label = labels.get(topK.getIndex(i));
+      results.add(new Result(label, label, topK.getScore(i)));
+    }
+    return results;
+  }
+
+  @Benchmark
+  public List<Result> topKUint8() {
+    int size = topK.selectUint8(quantized, 0, numClasses, 0);
+    List<Result> results = new ArrayList<>(size);
+    for (int i = 0; i < size; ++i) {
+      String label = labels.get(topK.getIndex(i));
+      // Dequantizes the winners only, as Classifier does for quantized models.
+      results.add(new Result(label, label, topK.getScore(i) / 255.0f));
+    }
+    return results;
+  }
+}
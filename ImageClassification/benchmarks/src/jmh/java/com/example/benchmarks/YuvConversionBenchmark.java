@@ -0,0 +1,125 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.benchmarks;
+
+import com.example.imageclassification.env.YuvConverter;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Full-frame YUV to ARGB conversion at the usual preview sizes. */
+@State(Scope.Benchmark)
+public class YuvConversionBenchmark {
+
+  @Param({"320x240", "640x480", "1280x720", "1920x1080"})
+  public String size;
+
+  private int width;
+  private int height;
+  private int rowStride;
+
+  // YUV_420_888 as most camera2 devices deliver it: semi-planar chroma with a pixel stride of 2.
+  private byte[] yPlane;
+  private byte[] uPlane;
+  private byte[] vPlane;
+  private ByteBuffer yBuffer;
+  private ByteBuffer uBuffer;
+  private ByteBuffer vBuffer;
+
+  private byte[] nv21;
+  private ByteBuffer nv21Buffer;
+
+  private int[] argb;
+
+  @Setup
+  public void setUp() {
+    String[] dimensions = size.split("x");
+    width = Integer.parseInt(dimensions[0]);
+    height = Integer.parseInt(dimensions[1]);
+    rowStride = width;
+    Random random = new Random(0);
+
+    yPlane = new byte[rowStride * height];
+    random.nextBytes(yPlane);
+    // U and V alias one interleaved buffer, V one byte after U.
+    byte[] chroma = new byte[rowStride * height / 2];
+    random.nextBytes(chroma);
+    uPlane = chroma;
+    vPlane = new byte[chroma.length];
+    System.arraycopy(chroma, 1, vPlane, 0, chroma.length - 1);
+    yBuffer = toDirect(yPlane);
+    uBuffer = toDirect(uPlane);
+    vBuffer = toDirect(vPlane);
+
+    nv21 = new byte[width * height * 3 / 2];
+    random.nextBytes(nv21);
+    nv21Buffer = toDirect(nv21);
+
+    argb = new int[width * height];
+  }
+
+  private static ByteBuffer toDirect(byte[] bytes) {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+    buffer.put(bytes);
+    buffer.rewind();
+    return buffer;
+  }
+
+  @Benchmark
+  public int[] legacyYuv420() {
+    LegacyYuv.convertYUV420ToARGB8888(
+        yPlane, uPlane, vPlane, width, height, rowStride, rowStride, 2, argb);
+    return argb;
+  }
+
+  @Benchmark
+  public int[] yuv420DirectBuffers() {
+    YuvConverter.convertYUV420ToARGB8888(
+        yBuffer, uBuffer, vBuffer, width, height, rowStride, rowStride, 2, argb);
+    return argb;
+  }
+
+  @Benchmark
+  public int[] yuv420Arrays() {
+    YuvConverter.convertYUV420ToARGB8888(
+        ByteBuffer.wrap(yPlane),
+        ByteBuffer.wrap(uPlane),
+        ByteBuffer.wrap(vPlane),
+        width,
+        height,
+        rowStride,
+        rowStride,
+        2,
+        argb);
+    return argb;
+  }
+
+  @Benchmark
+  public int[] legacyNv21() {
+    LegacyYuv.convertYUV420SPToARGB8888(nv21, width, height, argb);
+    return argb;
+  }
+
+  @Benchmark
+  public int[] nv21DirectBuffer() {
+    YuvConverter.convertYUV420SPToARGB8888(nv21Buffer, width, height, argb);
+    return argb;
+  }
+}
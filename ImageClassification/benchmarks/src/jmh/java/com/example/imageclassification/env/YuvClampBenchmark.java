@@ -0,0 +1,68 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.imageclassification.env;
+
+import com.example.benchmarks.LegacyYuv;
+import java.util.Random;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The per-pixel {@code YUV2RGB} formula with its three clamps against the table lookups of {@link
+ * YuvConverter}, on random samples so that the branches are not trivially predicted. Scores are per
+ * pixel.
+ *
+ * <p>Lives in the package of {@link YuvConverter} to reach its package-private single pixel path.
+ */
+@State(Scope.Benchmark)
+public class YuvClampBenchmark {
+
+  private static final int SAMPLES = 4096;
+
+  private final int[] y = new int[SAMPLES];
+  private final int[] u = new int[SAMPLES];
+  private final int[] v = new int[SAMPLES];
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(0);
+    for (int i = 0; i < SAMPLES; ++i) {
+      y[i] = random.nextInt(256);
+      u[i] = random.nextInt(256);
+      v[i] = random.nextInt(256);
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(SAMPLES)
+  public void legacyYuv2Rgb(Blackhole blackhole) {
+    for (int i = 0; i < SAMPLES; ++i) {
+      blackhole.consume(LegacyYuv.yuv2Rgb(y[i], u[i], v[i]));
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(SAMPLES)
+  public void tableYuv2Rgb(Blackhole blackhole) {
+    for (int i = 0; i < SAMPLES; ++i) {
+      blackhole.consume(YuvConverter.toArgb(y[i], u[i], v[i]));
+    }
+  }
+}
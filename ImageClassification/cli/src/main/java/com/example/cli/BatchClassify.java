@@ -0,0 +1,694 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.cli;
+
+import com.example.tflite.FusedPreprocessor;
+import com.example.tflite.RecognitionCache;
+import com.example.tflite.TopK;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import javax.imageio.ImageIO;
+import org.tensorflow.lite.DataType;
+import org.tensorflow.lite.Interpreter;
+
+/**
+ * Classifies every image of a directory tree on the host JVM, with XNNPACK CPU inference.
+ *
+ * <p>The tree is walked lazily and image paths flow through bounded queues: a pool of decoder
+ * threads decodes and preprocesses images into a fixed set of reusable input buffers, and a pool
+ * of interpreters classifies them and streams one line per image to a JSON lines or CSV file.
+ * Memory stays constant whatever the size of the dataset, and throughput is reported on stderr
+ * as the batch runs.
+ *
+ * <p>Images that fail to decode or classify are skipped. Failing to list the input or to write
+ * the output aborts the batch: every thread is interrupted out of its queue and the batch stops.
+ */
+public final class BatchClassify {
+
+  /** Seconds between two progress reports. */
+  private static final int PROGRESS_INTERVAL_SECONDS = 5;
+
+  /** Marks the end of the image paths, one per decoder. */
+  private static final Path END_OF_PATHS = Paths.get("");
+
+  private static final String USAGE =
+      "Usage: BatchClassify --model FILE --labels FILE --input DIR --output FILE.(jsonl|csv)\n"
+          + "    [--preset " + presetNames() + "]\n"
+          + "    [--decoders N] [--interpreters N] [--threads N] [--top-k K] [--queue N]\n"
+          + "    [--cache FILE] [--cache-mode exact|perceptual] [--cache-slots N]\n"
+          + "\n"
+          + "  --preset        Normalization of the model, QUANTIZED_EFFICIENTNET by default.\n"
+          + "  --decoders      Threads decoding images, the number of processors by default.\n"
+          + "  --interpreters  Interpreters classifying in parallel, 1 by default.\n"
+          + "  --threads       Threads of every interpreter, 1 by default.\n"
+          + "  --top-k         Results per image, 3 by default.\n"
+          + "  --queue         Preprocessed images in flight, 4 per interpreter by default.\n"
+          + "  --cache         Keeps results in FILE, so that images classified by an earlier\n"
+          + "                  run, or seen twice, skip the model.\n"
+          + "  --cache-mode    Reuses results for identical pixels only (exact, the default), or\n"
+          + "                  for near-duplicate images too (perceptual).\n"
+          + "  --cache-slots   Results kept in the cache file, 65536 by default.\n";
+
+  /** Results kept in memory when caching, on top of those in the cache file. */
+  private static final int CACHE_ENTRIES = 16384;
+
+  /** Command line options. */
+  static final class Options {
+    Path model;
+    Path labels;
+    Path input;
+    Path output;
+    ModelPreset preset = ModelPreset.QUANTIZED_EFFICIENTNET;
+    int decoders = Runtime.getRuntime().availableProcessors();
+    int interpreters = 1;
+    int threads = 1;
+    int topK = 3;
+    int queue;
+    Path cache;
+    RecognitionCache.KeyMode cacheMode;
+    int cacheSlots = 65536;
+
+    static Options parse(String[] args) {
+      Options options = new Options();
+      for (int i = 0; i < args.length; i += 2) {
+        if (i + 1 >= args.length) {
+          throw new IllegalArgumentException("Missing value of " + args[i]);
+        }
+        String value = args[i + 1];
+        switch (args[i]) {
+          case "--model":
+            options.model = Paths.get(value);
+            break;
+          case "--labels":
+            options.labels = Paths.get(value);
+            break;
+          case "--input":
+            options.input = Paths.get(value);
+            break;
+          case "--output":
+            options.output = Paths.get(value);
+            break;
+          case "--preset":
+            options.preset = ModelPreset.valueOf(value.toUpperCase(Locale.US));
+            break;
+          case "--decoders":
+            options.decoders = parsePositive(args[i], value);
+            break;
+          case "--interpreters":
+            options.interpreters = parsePositive(args[i], value);
+            break;
+          case "--threads":
+            options.threads = parsePositive(args[i], value);
+            break;
+          case "--top-k":
+            options.topK = parsePositive(args[i], value);
+            break;
+          case "--queue":
+            options.queue = parsePositive(args[i], value);
+            break;
+          case "--cache":
+            options.cache = Paths.get(value);
+            break;
+          case "--cache-mode":
+            options.cacheMode = RecognitionCache.KeyMode.valueOf(value.toUpperCase(Locale.US));
+            break;
+          case "--cache-slots":
+            options.cacheSlots = parsePositive(args[i], value);
+            break;
+          default:
+            throw new IllegalArgumentException("Unknown option " + args[i]);
+        }
+      }
+      if (options.model == null
+          || options.labels == null
+          || options.input == null
+          || options.output == null) {
+        throw new IllegalArgumentException("--model, --labels, --input and --output are required");
+      }
+      if (options.queue == 0) {
+        options.queue = 4 * options.interpreters;
+      }
+      if (options.cache != null && options.cacheMode == null) {
+        options.cacheMode = RecognitionCache.KeyMode.EXACT;
+      }
+      return options;
+    }
+
+    private static int parsePositive(String name, String value) {
+      int result = Integer.parseInt(value);
+      if (result <= 0) {
+        throw new IllegalArgumentException(name + " must be positive, was " + value);
+      }
+      return result;
+    }
+  }
+
+  /**
+   * The model as used by an interpreter thread, so that batches can run without TensorFlow Lite
+   * in tests.
+   */
+  interface ModelRunner extends AutoCloseable {
+    /** Gets the shape of the input, {1, height, width, 3}. */
+    int[] getInputShape();
+
+    DataType getInputType();
+
+    int getInputBytes();
+
+    DataType getOutputType();
+
+    int getOutputBytes();
+
+    int getOutputElements();
+
+    void run(ByteBuffer input, ByteBuffer output);
+
+    @Override
+    void close();
+  }
+
+  /** Runs the model with an XNNPACK interpreter. */
+  private static final class InterpreterRunner implements ModelRunner {
+    private final Interpreter interpreter;
+
+    InterpreterRunner(Interpreter interpreter) {
+      this.interpreter = interpreter;
+    }
+
+    @Override
+    public int[] getInputShape() {
+      return interpreter.getInputTensor(0).shape();
+    }
+
+    @Override
+    public DataType getInputType() {
+      return interpreter.getInputTensor(0).dataType();
+    }
+
+    @Override
+    public int getInputBytes() {
+      return interpreter.getInputTensor(0).numBytes();
+    }
+
+    @Override
+    public DataType getOutputType() {
+      return interpreter.getOutputTensor(0).dataType();
+    }
+
+    @Override
+    public int getOutputBytes() {
+      return interpreter.getOutputTensor(0).numBytes();
+    }
+
+    @Override
+    public int getOutputElements() {
+      return interpreter.getOutputTensor(0).numElements();
+    }
+
+    @Override
+    public void run(ByteBuffer input, ByteBuffer output) {
+      interpreter.run(input, output);
+    }
+
+    @Override
+    public void close() {
+      interpreter.close();
+    }
+  }
+
+  /** A preprocessed image on its way from a decoder to an interpreter. Buffers are reused. */
+  private static final class Job {
+    final ByteBuffer input;
+    Path path;
+    long decodeNanos;
+    long cacheKey;
+
+    Job(ByteBuffer input) {
+      this.input = input;
+    }
+  }
+
+  /** Marks the end of the jobs, one per interpreter. */
+  private static final Job END_OF_JOBS = new Job(null);
+
+  private final Options options;
+  private final String[] labels;
+  private final BlockingQueue<Path> paths;
+  private final BlockingQueue<Job> freeJobs;
+  private final BlockingQueue<Job> readyJobs;
+  private final AtomicInteger runningDecoders;
+  private final AtomicLong completed = new AtomicLong();
+  private final AtomicLong cached = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong decodeNanos = new AtomicLong();
+  private final AtomicLong inferenceNanos = new AtomicLong();
+  private final AtomicBoolean aborted = new AtomicBoolean();
+  /** The walker, decoder and interpreter threads, all created before any is started. */
+  private final List<Thread> workers = new ArrayList<>();
+  private final PrintStream log = System.err;
+  private final RecognitionCache cache;
+  /** Identifies the results in the cache, or null when not caching. */
+  private final String modelId;
+
+  private int imageSizeX;
+  private int imageSizeY;
+  private DataType inputType;
+  private ResultWriter writer;
+
+  BatchClassify(Options options) throws IOException {
+    this.options = options;
+    List<String> lines = Files.readAllLines(options.labels, StandardCharsets.UTF_8);
+    List<String> nonEmpty = new ArrayList<>(lines.size());
+    for (String line : lines) {
+      if (!line.trim().isEmpty()) {
+        nonEmpty.add(line.trim().intern());
+      }
+    }
+    labels = nonEmpty.toArray(new String[0]);
+    paths = new ArrayBlockingQueue<>(options.queue + options.decoders);
+    freeJobs = new ArrayBlockingQueue<>(options.queue);
+    readyJobs = new ArrayBlockingQueue<>(options.queue + options.interpreters);
+    runningDecoders = new AtomicInteger(options.decoders);
+    cache =
+        options.cacheMode == null
+            ? null
+            : new RecognitionCache(CACHE_ENTRIES, options.topK, options.cacheMode);
+    // The content of the model rather than its name, which stays the same when it is replaced,
+    // and every option the results depend on.
+    modelId =
+        cache == null
+            ? null
+            : sha256(options.model) + "/" + options.preset + "/top" + options.topK;
+    if (options.cache != null) {
+      cache.openPersistentStore(options.cache.toFile(), options.cacheSlots, modelId);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    Options options;
+    try {
+      options = Options.parse(args);
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.err.print(USAGE);
+      System.exit(2);
+      return;
+    }
+    System.exit(new BatchClassify(options).run() ? 0 : 1);
+  }
+
+  /**
+   * Classifies every image under the input directory.
+   *
+   * @return Whether every image was classified.
+   */
+  boolean run() throws IOException, InterruptedException {
+    List<ModelRunner> runners = new ArrayList<>(options.interpreters);
+    Interpreter.Options interpreterOptions =
+        new Interpreter.Options().setNumThreads(options.threads).setUseXNNPACK(true);
+    File modelFile = options.model.toFile();
+    try {
+      for (int i = 0; i < options.interpreters; ++i) {
+        runners.add(new InterpreterRunner(new Interpreter(modelFile, interpreterOptions)));
+      }
+      try (ResultWriter writer = ResultWriter.open(options.output)) {
+        return run(runners, writer);
+      }
+    } finally {
+      for (ModelRunner runner : runners) {
+        runner.close();
+      }
+    }
+  }
+
+  /**
+   * Classifies every image under the input directory with one thread per runner.
+   *
+   * @return Whether every image was classified.
+   */
+  boolean run(List<? extends ModelRunner> runners, ResultWriter writer)
+      throws InterruptedException {
+    ModelRunner first = runners.get(0);
+    int[] inputShape = first.getInputShape(); // {1, height, width, 3}
+    imageSizeY = inputShape[1];
+    imageSizeX = inputShape[2];
+    inputType = first.getInputType();
+    int inputBytes = first.getInputBytes();
+    for (int i = 0; i < options.queue; ++i) {
+      freeJobs.add(new Job(ByteBuffer.allocateDirect(inputBytes).order(ByteOrder.nativeOrder())));
+    }
+    this.writer = writer;
+
+    long startTime = System.nanoTime();
+    workers.add(new Thread(this::walk, "walker"));
+    for (int i = 0; i < options.decoders; ++i) {
+      workers.add(new Thread(this::decode, "decoder-" + i));
+    }
+    for (int i = 0; i < runners.size(); ++i) {
+      ModelRunner runner = runners.get(i);
+      workers.add(new Thread(() -> classify(runner, writer), "interpreter-" + i));
+    }
+    for (Thread thread : workers) {
+      thread.start();
+    }
+    ScheduledExecutorService progress =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "progress");
+              thread.setDaemon(true);
+              return thread;
+            });
+    AtomicLong lastCompleted = new AtomicLong();
+    progress.scheduleAtFixedRate(
+        () -> report(startTime, lastCompleted),
+        PROGRESS_INTERVAL_SECONDS,
+        PROGRESS_INTERVAL_SECONDS,
+        TimeUnit.SECONDS);
+    try {
+      for (Thread thread : workers) {
+        thread.join();
+      }
+    } finally {
+      progress.shutdownNow();
+      if (cache != null) {
+        cache.flush();
+      }
+    }
+
+    long elapsed = System.nanoTime() - startTime;
+    long count = completed.get();
+    log.printf(
+        Locale.US,
+        "%s %d images in %.1f s, %.1f images/s, %d failed.%n",
+        aborted.get() ? "Aborted after" : "Classified",
+        count,
+        elapsed / 1e9,
+        count * 1e9 / Math.max(1, elapsed),
+        failed.get());
+    if (count > 0) {
+      log.printf(
+          Locale.US,
+          "Mean decode %.2f ms, mean inference %.2f ms per image.%n",
+          decodeNanos.get() / 1e6 / count,
+          inferenceNanos.get() / 1e6 / count);
+    }
+    if (cache != null) {
+      log.println("Cache: " + cache.getStats());
+    }
+    return failed.get() == 0;
+  }
+
+  /** Streams the image paths of the input tree to the decoders. */
+  private void walk() {
+    try (Stream<Path> files = Files.walk(options.input)) {
+      Iterator<Path> it = files.filter(BatchClassify::isImage).iterator();
+      while (it.hasNext()) {
+        paths.put(it.next());
+      }
+      for (int i = 0; i < options.decoders; ++i) {
+        paths.put(END_OF_PATHS);
+      }
+    } catch (IOException | UncheckedIOException e) {
+      abort("Failed to list images: " + e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (RuntimeException e) {
+      abort("Walker failed: " + e);
+    }
+  }
+
+  /**
+   * Decodes and preprocesses images into free jobs, until the end of the paths. Images found in
+   * the cache are written right away instead.
+   */
+  private void decode() {
+    int[] pixels = new int[0];
+    int[] indices = new int[options.topK];
+    String[] resultLabels = new String[options.topK];
+    float[] scores = new float[options.topK];
+    float[] mean = {options.preset.imageMean};
+    float[] std = {options.preset.imageStd};
+    try {
+      while (!aborted.get()) {
+        Path path = paths.take();
+        if (path == END_OF_PATHS) {
+          break;
+        }
+        long startTime = System.nanoTime();
+        BufferedImage image;
+        try {
+          image = ImageIO.read(path.toFile());
+        } catch (IOException | RuntimeException e) {
+          fail(path, e.toString());
+          continue;
+        }
+        if (image == null) {
+          fail(path, "unsupported image format");
+          continue;
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (pixels.length < width * height) {
+          pixels = new int[width * height];
+        }
+        image.getRGB(0, 0, width, height, pixels, 0, width);
+        long cacheKey = 0;
+        if (cache != null) {
+          cacheKey = cache.computeKey(pixels, width, height, 0);
+          int size = cache.lookup(modelId, cacheKey, indices, scores);
+          if (size >= 0) {
+            for (int i = 0; i < size; ++i) {
+              resultLabels[i] = labels[indices[i]];
+            }
+            long jobDecodeNanos = System.nanoTime() - startTime;
+            writer.write(path.toString(), size, indices, resultLabels, scores, jobDecodeNanos, 0);
+            decodeNanos.addAndGet(jobDecodeNanos);
+            cached.incrementAndGet();
+            completed.incrementAndGet();
+            continue;
+          }
+        }
+        Job job = freeJobs.take();
+        boolean ready = false;
+        try {
+          FusedPreprocessor.get(width, height, 0, imageSizeX, imageSizeY, inputType, mean, std)
+              .apply(pixels, job.input, 0);
+          job.path = path;
+          job.decodeNanos = System.nanoTime() - startTime;
+          job.cacheKey = cacheKey;
+          readyJobs.put(job);
+          ready = true;
+        } catch (RuntimeException e) {
+          fail(path, e.toString());
+        } finally {
+          if (!ready) {
+            // Never blocks, the job was taken from this queue.
+            freeJobs.add(job);
+          }
+        }
+      }
+    } catch (IOException e) {
+      abort("Failed to write results: " + e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (RuntimeException e) {
+      abort(Thread.currentThread().getName() + " failed: " + e);
+    } finally {
+      if (runningDecoders.decrementAndGet() == 0) {
+        for (int i = 0; i < options.interpreters; ++i) {
+          readyJobs.add(END_OF_JOBS);
+        }
+      }
+    }
+  }
+
+  /** Classifies ready jobs and writes their results, until the end of the jobs. */
+  private void classify(ModelRunner runner, ResultWriter writer) {
+    int outputBytes = runner.getOutputBytes();
+    boolean quantized = runner.getOutputType() == DataType.UINT8;
+    int numClasses = Math.min(runner.getOutputElements(), labels.length);
+    ByteBuffer output = ByteBuffer.allocateDirect(outputBytes).order(ByteOrder.nativeOrder());
+    float[] probabilities = quantized ? null : new float[numClasses];
+    TopK topK = new TopK(options.topK);
+    int[] indices = new int[options.topK];
+    String[] resultLabels = new String[options.topK];
+    float[] scores = new float[options.topK];
+    float probabilityMean = options.preset.probabilityMean;
+    float probabilityStd = options.preset.probabilityStd;
+    try {
+      while (!aborted.get()) {
+        Job job = readyJobs.take();
+        if (job == END_OF_JOBS) {
+          break;
+        }
+        Path path = job.path;
+        long jobDecodeNanos = job.decodeNanos;
+        long cacheKey = job.cacheKey;
+        long startTime = System.nanoTime();
+        int size;
+        try {
+          job.input.rewind();
+          output.rewind();
+          runner.run(job.input, output);
+        } catch (RuntimeException e) {
+          fail(path, e.toString());
+          continue;
+        } finally {
+          // Never blocks, the job was taken from this queue.
+          freeJobs.add(job);
+        }
+        if (quantized) {
+          size = topK.selectUint8(output, 0, numClasses, 0);
+        } else {
+          for (int i = 0; i < numClasses; ++i) {
+            probabilities[i] = output.getFloat(i * 4);
+          }
+          size = topK.select(probabilities, numClasses);
+        }
+        for (int i = 0; i < size; ++i) {
+          indices[i] = topK.getIndex(i);
+          resultLabels[i] = labels[indices[i]];
+          scores[i] = (topK.getScore(i) - probabilityMean) / probabilityStd;
+        }
+        if (cache != null) {
+          cache.put(modelId, cacheKey, size, indices, scores);
+        }
+        long jobInferenceNanos = System.nanoTime() - startTime;
+        writer.write(
+            path.toString(),
+            size,
+            indices,
+            resultLabels,
+            scores,
+            jobDecodeNanos,
+            jobInferenceNanos);
+        decodeNanos.addAndGet(jobDecodeNanos);
+        inferenceNanos.addAndGet(jobInferenceNanos);
+        completed.incrementAndGet();
+      }
+    } catch (IOException e) {
+      abort("Failed to write results: " + e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (RuntimeException e) {
+      abort(Thread.currentThread().getName() + " failed: " + e);
+    }
+  }
+
+  /**
+   * Stops the batch after a fatal error. Every other worker is interrupted out of the queue it
+   * waits on, and exits instead of taking more work. Only the first error is reported.
+   */
+  private void abort(String reason) {
+    if (!aborted.compareAndSet(false, true)) {
+      return;
+    }
+    failed.incrementAndGet();
+    log.println(reason);
+    for (Thread worker : workers) {
+      if (worker != Thread.currentThread()) {
+        worker.interrupt();
+      }
+    }
+  }
+
+  private void fail(Path path, String reason) {
+    failed.incrementAndGet();
+    log.println("Skipping " + path + ": " + reason);
+  }
+
+  /** Prints the number of images classified so far, and the recent and overall throughput. */
+  private void report(long startTime, AtomicLong lastCompleted) {
+    long count = completed.get();
+    long recent = count - lastCompleted.getAndSet(count);
+    long elapsed = System.nanoTime() - startTime;
+    log.printf(
+        Locale.US,
+        "%d images, %.1f images/s (last %d s: %.1f), %d cached, %d failed%n",
+        count,
+        count * 1e9 / Math.max(1, elapsed),
+        PROGRESS_INTERVAL_SECONDS,
+        (double) recent / PROGRESS_INTERVAL_SECONDS,
+        cached.get(),
+        failed.get());
+  }
+
+  /** Gets the SHA-256 of a file in hex. */
+  private static String sha256(Path file) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    byte[] buffer = new byte[1 << 16];
+    try (InputStream in = Files.newInputStream(file)) {
+      int read;
+      while ((read = in.read(buffer)) > 0) {
+        digest.update(buffer, 0, read);
+      }
+    }
+    StringBuilder hex = new StringBuilder(64);
+    for (byte b : digest.digest()) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+
+  private static boolean isImage(Path path) {
+    String name = path.getFileName() == null ? "" : path.getFileName().toString();
+    name = name.toLowerCase(Locale.US);
+    return (name.endsWith(".jpg")
+            || name.endsWith(".jpeg")
+            || name.endsWith(".png")
+            || name.endsWith(".bmp")
+            || name.endsWith(".gif"))
+        && Files.isRegularFile(path);
+  }
+
+  private static String presetNames() {
+    StringBuilder names = new StringBuilder();
+    for (ModelPreset preset : ModelPreset.values()) {
+      names.append(names.length() == 0 ? "" : "|").append(preset);
+    }
+    return names.toString();
+  }
+}
@@ -0,0 +1,46 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.cli;
+
+/**
+ * Normalization constants of the models bundled with the app, mirroring the {@code Classifier}
+ * subclasses of lib_support, which cannot be loaded outside of Android.
+ */
+public enum ModelPreset {
+  FLOAT_MOBILENET(127.5f, 127.5f, 0.0f, 1.0f),
+  QUANTIZED_MOBILENET(0.0f, 1.0f, 0.0f, 255.0f),
+  FLOAT_EFFICIENTNET(127.0f, 128.0f, 0.0f, 1.0f),
+  QUANTIZED_EFFICIENTNET(0.0f, 1.0f, 0.0f, 255.0f);
+
+  /** Mean used to normalize the input image. */
+  public final float imageMean;
+
+  /** Standard deviation used to normalize the input image. */
+  public final float imageStd;
+
+  /** Mean used to dequantize the output probabilities. */
+  public final float probabilityMean;
+
+  /** Standard deviation used to dequantize the output probabilities. */
+  public final float probabilityStd;
+
+  ModelPreset(float imageMean, float imageStd, float probabilityMean, float probabilityStd) {
+    this.imageMean = imageMean;
+    this.imageStd = imageStd;
+    this.probabilityMean = probabilityMean;
+    this.probabilityStd = probabilityStd;
+  }
+}
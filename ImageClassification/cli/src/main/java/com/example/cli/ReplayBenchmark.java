@@ -0,0 +1,339 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.cli;
+
+import com.example.imageclassification.pipeline.Frame;
+import com.example.imageclassification.pipeline.ReplayFrameSource;
+import com.example.tflite.FusedPreprocessor;
+import com.example.tflite.YuvPreprocessor;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.tensorflow.lite.DataType;
+import org.tensorflow.lite.Interpreter;
+
+/**
+ * Measures the per-frame work of the app on the host JVM, by replaying recorded camera frames
+ * through the same plane copy, preprocessing straight from the YUV planes and inference.
+ *
+ * <p>Frames come from a {@link ReplayFrameSource}, as fast as they are taken unless a frame rate
+ * is given. The replay thread copies and preprocesses a frame while the interpreter thread
+ * classifies the previous one, like the preprocess and inference stages of the app. Unlike its
+ * pipeline, which keeps only the latest frame of each stage and drops the older ones, the replay
+ * thread waits for a free job and no frame is ever dropped. Runs over the same recording thus do
+ * the same work and can be compared, but measure the stages rather than the frame rate the app
+ * would show under a camera outpacing them.
+ */
+public final class ReplayBenchmark {
+
+  private static final String USAGE =
+      "Usage: ReplayBenchmark --model FILE --frames FILE\n"
+          + "    [--preset " + presetNames() + "]\n"
+          + "    [--loops N] [--threads N] [--rotation DEGREES] [--fps N] [--queue N]\n"
+          + "  --frames    Frames recorded with ReplayFrameSource.Recorder.\n"
+          + "  --preset    Normalization of the model, QUANTIZED_EFFICIENTNET by default.\n"
+          + "  --loops     Times the recording is replayed, 1 by default.\n"
+          + "  --threads   Threads of the interpreter, 1 by default.\n"
+          + "  --rotation  Rotation of the frames from the screen, 90 by default.\n"
+          + "  --fps       Frames replayed per second, as fast as possible by default.\n"
+          + "  --queue     Preprocessed frames waiting for the interpreter, 1 by default.\n";
+
+  /** Command line options. */
+  static final class Options {
+    Path model;
+    Path frames;
+    ModelPreset preset = ModelPreset.QUANTIZED_EFFICIENTNET;
+    int loops = 1;
+    int threads = 1;
+    int rotation = 90;
+    int fps;
+    int queue = 1;
+
+    static Options parse(String[] args) {
+      Options options = new Options();
+      for (int i = 0; i < args.length; i += 2) {
+        if (i + 1 >= args.length) {
+          throw new IllegalArgumentException("Missing value of " + args[i]);
+        }
+        String value = args[i + 1];
+        switch (args[i]) {
+          case "--model":
+            options.model = Paths.get(value);
+            break;
+          case "--frames":
+            options.frames = Paths.get(value);
+            break;
+          case "--preset":
+            options.preset = ModelPreset.valueOf(value.toUpperCase(Locale.US));
+            break;
+          case "--loops":
+            options.loops = parsePositive(args[i], value);
+            break;
+          case "--threads":
+            options.threads = parsePositive(args[i], value);
+            break;
+          case "--rotation":
+            options.rotation = Integer.parseInt(value);
+            if (options.rotation % 90 != 0) {
+              throw new IllegalArgumentException("--rotation must be a multiple of 90");
+            }
+            break;
+          case "--fps":
+            options.fps = parsePositive(args[i], value);
+            break;
+          case "--queue":
+            options.queue = parsePositive(args[i], value);
+            break;
+          default:
+            throw new IllegalArgumentException("Unknown option " + args[i]);
+        }
+      }
+      if (options.model == null || options.frames == null) {
+        throw new IllegalArgumentException("--model and --frames are required");
+      }
+      return options;
+    }
+
+    private static int parsePositive(String name, String value) {
+      int result = Integer.parseInt(value);
+      if (result <= 0) {
+        throw new IllegalArgumentException(name + " must be positive, was " + value);
+      }
+      return result;
+    }
+  }
+
+  /** A preprocessed frame on its way to the interpreter. Buffers are reused. */
+  private static final class Job {
+    final ByteBuffer input;
+    long deliveredNanos;
+
+    Job(ByteBuffer input) {
+      this.input = input;
+    }
+  }
+
+  /** Marks the end of the jobs. */
+  private static final Job END_OF_JOBS = new Job(null);
+
+  private final Options options;
+  private final BlockingQueue<Job> freeJobs;
+  private final BlockingQueue<Job> readyJobs;
+  private final PrintStream log = System.err;
+
+  // Used on the replay thread only.
+  private final float[] mean;
+  private final float[] std;
+  private final byte[][] planes = new byte[3][];
+  private long copyNanos;
+  private long preprocessNanos;
+
+  // Used on the interpreter thread only.
+  private long completed;
+  private long failed;
+  private long inferenceNanos;
+  private long latencyNanos;
+
+  private int imageSizeX;
+  private int imageSizeY;
+  private DataType inputType;
+
+  ReplayBenchmark(Options options) {
+    this.options = options;
+    // One more job than queued, for the frame being classified.
+    freeJobs = new ArrayBlockingQueue<>(options.queue + 1);
+    readyJobs = new ArrayBlockingQueue<>(options.queue + 1);
+    mean = new float[] {options.preset.imageMean};
+    std = new float[] {options.preset.imageStd};
+  }
+
+  public static void main(String[] args) throws Exception {
+    Options options;
+    try {
+      options = Options.parse(args);
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.err.print(USAGE);
+      System.exit(2);
+      return;
+    }
+    new ReplayBenchmark(options).run();
+  }
+
+  /** Replays every loop of the recording and reports the throughput and stage latencies. */
+  void run() throws IOException, InterruptedException {
+    ReplayFrameSource source = new ReplayFrameSource(options.frames.toFile(), options.loops);
+    if (options.fps > 0) {
+      source.setFrameIntervalNanos(TimeUnit.SECONDS.toNanos(1) / options.fps);
+    }
+    Interpreter.Options interpreterOptions =
+        new Interpreter.Options().setNumThreads(options.threads).setUseXNNPACK(true);
+    try (Interpreter interpreter = new Interpreter(options.model.toFile(), interpreterOptions)) {
+      int[] inputShape = interpreter.getInputTensor(0).shape(); // {1, height, width, 3}
+      imageSizeY = inputShape[1];
+      imageSizeX = inputShape[2];
+      inputType = interpreter.getInputTensor(0).dataType();
+      int inputBytes = interpreter.getInputTensor(0).numBytes();
+      for (int i = 0; i < options.queue + 1; ++i) {
+        freeJobs.add(
+            new Job(ByteBuffer.allocateDirect(inputBytes).order(ByteOrder.nativeOrder())));
+      }
+      log.printf(
+          Locale.US,
+          "Replaying %d frames %d times into a %dx%d model.%n",
+          source.getFrameCount(),
+          options.loops,
+          imageSizeX,
+          imageSizeY);
+
+      Thread classifier = new Thread(() -> classify(interpreter), "interpreter");
+      long startTime = System.nanoTime();
+      classifier.start();
+      source.start(this::onFrame);
+      source.awaitCompletion();
+      readyJobs.put(END_OF_JOBS);
+      classifier.join();
+      long elapsed = System.nanoTime() - startTime;
+
+      log.printf(
+          Locale.US,
+          "Classified %d frames in %.1f s, %.1f frames/s, %d failed.%n",
+          completed,
+          elapsed / 1e9,
+          completed * 1e9 / Math.max(1, elapsed),
+          failed);
+      if (completed > 0) {
+        // Failed frames were copied and preprocessed too.
+        long frames = completed + failed;
+        log.printf(
+            Locale.US,
+            "Mean copy %.2f ms, preprocess %.2f ms, inference %.2f ms, "
+                + "frame to result %.2f ms.%n",
+            copyNanos / 1e6 / frames,
+            preprocessNanos / 1e6 / frames,
+            inferenceNanos / 1e6 / completed,
+            latencyNanos / 1e6 / completed);
+      }
+    }
+  }
+
+  /**
+   * Copies the planes of a frame, then preprocesses them into a free job the way the app does.
+   * Runs on the replay thread, which holds the frame and delivers no other while the interpreter
+   * is busy with every job.
+   */
+  private void onFrame(Frame frame) {
+    try {
+      long startTime = System.nanoTime();
+      int width = frame.getWidth();
+      int height = frame.getHeight();
+      boolean nv21 = frame.getFormat() == Frame.FORMAT_NV21;
+      copyPlane(0, frame.getYPlane());
+      if (!nv21) {
+        copyPlane(1, frame.getUPlane());
+        copyPlane(2, frame.getVPlane());
+      }
+      copyNanos += System.nanoTime() - startTime;
+
+      Job job = freeJobs.take();
+      long preprocessStart = System.nanoTime();
+      FusedPreprocessor geometry =
+          FusedPreprocessor.get(
+              width, height, options.rotation, imageSizeX, imageSizeY, inputType, mean, std);
+      if (nv21) {
+        // A single array whose V and U samples follow the Y plane, interleaved.
+        int frameSize = width * height;
+        YuvPreprocessor.get(geometry, width, width, 2)
+            .apply(planes[0], planes[0], frameSize + 1, planes[0], frameSize, job.input, 0);
+      } else {
+        YuvPreprocessor.get(
+                geometry, frame.getYRowStride(), frame.getUvRowStride(), frame.getUvPixelStride())
+            .apply(planes[0], planes[1], 0, planes[2], 0, job.input, 0);
+      }
+      preprocessNanos += System.nanoTime() - preprocessStart;
+      job.deliveredNanos = startTime;
+      readyJobs.put(job);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      frame.release();
+    }
+  }
+
+  /** Copies the remaining bytes of a plane, like the frame slots of the app. */
+  private void copyPlane(int plane, ByteBuffer buffer) {
+    ByteBuffer source = buffer.duplicate();
+    if (planes[plane] == null || planes[plane].length != source.remaining()) {
+      planes[plane] = new byte[source.remaining()];
+    }
+    source.get(planes[plane]);
+  }
+
+  /**
+   * Classifies ready jobs until the end of the jobs. Runs on the interpreter thread. A frame
+   * failing inference is counted and skipped, and its job is always returned, so that the replay
+   * thread waiting for a free job never hangs.
+   */
+  private void classify(Interpreter interpreter) {
+    ByteBuffer output =
+        ByteBuffer.allocateDirect(interpreter.getOutputTensor(0).numBytes())
+            .order(ByteOrder.nativeOrder());
+    try {
+      while (true) {
+        Job job = readyJobs.take();
+        if (job == END_OF_JOBS) {
+          break;
+        }
+        try {
+          long startTime = System.nanoTime();
+          interpreter.run(job.input.rewind(), output.rewind());
+          long endTime = System.nanoTime();
+          inferenceNanos += endTime - startTime;
+          latencyNanos += endTime - job.deliveredNanos;
+          ++completed;
+        } catch (RuntimeException e) {
+          // Reports the first failure only, the next ones are likely the same.
+          if (failed++ == 0) {
+            log.println("Inference failed: " + e);
+          }
+        } finally {
+          // Never blocks: there are no more jobs than the queue holds.
+          freeJobs.add(job);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static String presetNames() {
+    StringBuilder names = new StringBuilder();
+    for (ModelPreset preset : ModelPreset.values()) {
+      if (names.length() > 0) {
+        names.append('|');
+      }
+      names.append(preset.name());
+    }
+    return names.toString();
+  }
+}
@@ -0,0 +1,224 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.cli;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Streams the results of a batch, one image per line, through a buffered writer.
+ *
+ * <p>Writes are serialized, so any worker thread may call {@link #write}. Lines come out in the
+ * order images finish, not in directory order.
+ */
+public abstract class ResultWriter implements Closeable {
+
+  /** Size of the output buffer, so that writes reach the disk in large chunks. */
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  protected final BufferedWriter out;
+
+  private final StringBuilder line = new StringBuilder(256);
+
+  protected ResultWriter(BufferedWriter out) {
+    this.out = out;
+  }
+
+  /** Opens a CSV writer for {@code .csv} paths, and a JSON lines writer otherwise. */
+  public static ResultWriter open(Path path) throws IOException {
+    BufferedWriter out =
+        new BufferedWriter(
+            new OutputStreamWriter(Files.newOutputStream(path), StandardCharsets.UTF_8),
+            BUFFER_SIZE);
+    return path.toString().endsWith(".csv") ? new Csv(out) : new Jsonl(out);
+  }
+
+  /**
+   * Writes the results of one image.
+   *
+   * @param path The image file.
+   * @param size The number of results.
+   * @param indices Class indices of the results, best first.
+   * @param labels Labels of the results, best first.
+   * @param scores Confidences of the results, best first.
+   * @param decodeNanos Time spent decoding and preprocessing the image.
+   * @param inferenceNanos Time spent running the model and selecting the results.
+   */
+  public synchronized void write(
+      String path,
+      int size,
+      int[] indices,
+      String[] labels,
+      float[] scores,
+      long decodeNanos,
+      long inferenceNanos)
+      throws IOException {
+    line.setLength(0);
+    format(line, path, size, indices, labels, scores, decodeNanos, inferenceNanos);
+    out.append(line).append('\n');
+  }
+
+  /** Appends the line of one image to {@code line}. */
+  protected abstract void format(
+      StringBuilder line,
+      String path,
+      int size,
+      int[] indices,
+      String[] labels,
+      float[] scores,
+      long decodeNanos,
+      long inferenceNanos);
+
+  @Override
+  public synchronized void close() throws IOException {
+    out.close();
+  }
+
+  /** Formats nanoseconds as milliseconds with microsecond precision. */
+  static void appendMillis(StringBuilder line, long nanos) {
+    line.append(nanos / 1000000).append('.');
+    long micros = nanos / 1000 % 1000;
+    if (micros < 100) {
+      line.append('0');
+    }
+    if (micros < 10) {
+      line.append('0');
+    }
+    line.append(micros);
+  }
+
+  /** One JSON object per line. */
+  static final class Jsonl extends ResultWriter {
+    Jsonl(BufferedWriter out) {
+      super(out);
+    }
+
+    @Override
+    protected void format(
+        StringBuilder line,
+        String path,
+        int size,
+        int[] indices,
+        String[] labels,
+        float[] scores,
+        long decodeNanos,
+        long inferenceNanos) {
+      line.append("{\"path\":");
+      appendString(line, path);
+      line.append(",\"indices\":[");
+      for (int i = 0; i < size; ++i) {
+        line.append(i == 0 ? "" : ",").append(indices[i]);
+      }
+      line.append("],\"labels\":[");
+      for (int i = 0; i < size; ++i) {
+        line.append(i == 0 ? "" : ",");
+        appendString(line, labels[i]);
+      }
+      line.append("],\"scores\":[");
+      for (int i = 0; i < size; ++i) {
+        line.append(i == 0 ? "" : ",").append(scores[i]);
+      }
+      line.append("],\"decode_ms\":");
+      appendMillis(line, decodeNanos);
+      line.append(",\"inference_ms\":");
+      appendMillis(line, inferenceNanos);
+      line.append('}');
+    }
+
+    private static void appendString(StringBuilder line, String value) {
+      line.append('"');
+      for (int i = 0; i < value.length(); ++i) {
+        char c = value.charAt(i);
+        if (c == '"' || c == '\\') {
+          line.append('\\').append(c);
+        } else if (c < 0x20) {
+          line.append("\\u00")
+              .append(Character.forDigit(c >> 4, 16))
+              .append(Character.forDigit(c & 0xf, 16));
+        } else {
+          line.append(c);
+        }
+      }
+      line.append('"');
+    }
+  }
+
+  /** Comma separated values, with a header and K index, label and score columns. */
+  static final class Csv extends ResultWriter {
+    private boolean headerWritten;
+
+    Csv(BufferedWriter out) {
+      super(out);
+    }
+
+    @Override
+    protected void format(
+        StringBuilder line,
+        String path,
+        int size,
+        int[] indices,
+        String[] labels,
+        float[] scores,
+        long decodeNanos,
+        long inferenceNanos) {
+      if (!headerWritten) {
+        // Sized on the first image, whose result count is the K of the whole batch.
+        line.append("path");
+        for (int i = 1; i <= indices.length; ++i) {
+          line.append(",index").append(i).append(",label").append(i).append(",score").append(i);
+        }
+        line.append(",decode_ms,inference_ms\n");
+        headerWritten = true;
+      }
+      appendField(line, path);
+      for (int i = 0; i < indices.length; ++i) {
+        line.append(',');
+        if (i < size) {
+          line.append(indices[i]).append(',');
+          appendField(line, labels[i]);
+          line.append(',').append(scores[i]);
+        } else {
+          line.append(",,");
+        }
+      }
+      line.append(',');
+      appendMillis(line, decodeNanos);
+      line.append(',');
+      appendMillis(line, inferenceNanos);
+    }
+
+    private static void appendField(StringBuilder line, String value) {
+      if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+        line.append(value);
+        return;
+      }
+      line.append('"');
+      for (int i = 0; i < value.length(); ++i) {
+        char c = value.charAt(i);
+        line.append(c);
+        if (c == '"') {
+          line.append('"');
+        }
+      }
+      line.append('"');
+    }
+  }
+}
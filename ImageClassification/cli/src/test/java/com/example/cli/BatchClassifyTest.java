@@ -0,0 +1,164 @@
+package com.example.cli;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.ImageIO;
+import org.junit.Test;
+import org.tensorflow.lite.DataType;
+
+/**
+ * Runs batches through {@link BatchClassify} with a fake model, and checks that failures end the
+ * batch instead of hanging it.
+ */
+public class BatchClassifyTest {
+
+  private static final int NUM_IMAGES = 24;
+  private static final int INPUT_SIZE = 4;
+
+  /** A quantized model scoring the second class highest, or failing on every run. */
+  private static final class FakeRunner implements BatchClassify.ModelRunner {
+    final AtomicInteger runs = new AtomicInteger();
+    private final boolean failing;
+
+    FakeRunner(boolean failing) {
+      this.failing = failing;
+    }
+
+    @Override
+    public int[] getInputShape() {
+      return new int[] {1, INPUT_SIZE, INPUT_SIZE, 3};
+    }
+
+    @Override
+    public DataType getInputType() {
+      return DataType.UINT8;
+    }
+
+    @Override
+    public int getInputBytes() {
+      return INPUT_SIZE * INPUT_SIZE * 3;
+    }
+
+    @Override
+    public DataType getOutputType() {
+      return DataType.UINT8;
+    }
+
+    @Override
+    public int getOutputBytes() {
+      return 2;
+    }
+
+    @Override
+    public int getOutputElements() {
+      return 2;
+    }
+
+    @Override
+    public void run(ByteBuffer input, ByteBuffer output) {
+      runs.incrementAndGet();
+      if (failing) {
+        throw new IllegalStateException("inference failed");
+      }
+      output.put(0, (byte) 10).put(1, (byte) 200);
+    }
+
+    @Override
+    public void close() {}
+  }
+
+  /** A writer whose every write fails, like one on a full disk. */
+  private static final class FailingWriter extends Writer {
+    @Override
+    public void write(char[] buffer, int offset, int length) throws IOException {
+      throw new IOException("No space left on device");
+    }
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public void close() {}
+  }
+
+  private static BatchClassify.Options newOptions() throws IOException {
+    Path dir = Files.createTempDirectory("batch");
+    Path images = Files.createDirectory(dir.resolve("images"));
+    for (int i = 0; i < NUM_IMAGES; ++i) {
+      BufferedImage image = new BufferedImage(8, 6, BufferedImage.TYPE_INT_RGB);
+      image.setRGB(i % 8, i % 6, 0xff8040);
+      ImageIO.write(image, "png", images.resolve("image" + i + ".png").toFile());
+    }
+    Path labels = dir.resolve("labels.txt");
+    Files.write(labels, Arrays.asList("cat", "dog"), StandardCharsets.UTF_8);
+
+    BatchClassify.Options options = new BatchClassify.Options();
+    options.model = dir.resolve("model.tflite");
+    options.labels = labels;
+    options.input = images;
+    options.output = dir.resolve("results.jsonl");
+    options.decoders = 3;
+    options.interpreters = 2;
+    options.topK = 2;
+    options.queue = 2;
+    return options;
+  }
+
+  private static List<FakeRunner> newRunners(int count, boolean failing) {
+    List<FakeRunner> runners = new ArrayList<>();
+    for (int i = 0; i < count; ++i) {
+      runners.add(new FakeRunner(failing));
+    }
+    return runners;
+  }
+
+  @Test(timeout = 10000)
+  public void classifiesEveryImage() throws Exception {
+    StringWriter output = new StringWriter();
+    BatchClassify.Options options = newOptions();
+    try (ResultWriter writer = new ResultWriter.Jsonl(new BufferedWriter(output))) {
+      assertTrue(new BatchClassify(options).run(newRunners(2, false), writer));
+    }
+    String[] lines = output.toString().split("\n");
+    assertEquals(NUM_IMAGES, lines.length);
+    for (String line : lines) {
+      assertTrue(line, line.contains("\"labels\":[\"dog\",\"cat\"]"));
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void skipsImagesFailingInference() throws Exception {
+    List<FakeRunner> runners = newRunners(2, true);
+    StringWriter output = new StringWriter();
+    try (ResultWriter writer = new ResultWriter.Jsonl(new BufferedWriter(output))) {
+      assertFalse(new BatchClassify(newOptions()).run(runners, writer));
+    }
+    // Every image was tried, and no input buffer was lost along the way.
+    assertEquals(NUM_IMAGES, runners.get(0).runs.get() + runners.get(1).runs.get());
+    assertEquals("", output.toString());
+  }
+
+  @Test(timeout = 10000)
+  public void abortsWhenResultsCannotBeWritten() throws Exception {
+    List<FakeRunner> runners = newRunners(2, false);
+    ResultWriter writer = new ResultWriter.Jsonl(new BufferedWriter(new FailingWriter(), 1));
+    assertFalse(new BatchClassify(newOptions()).run(runners, writer));
+    // The batch stopped early instead of classifying images it could not write.
+    assertTrue(runners.get(0).runs.get() + runners.get(1).runs.get() < NUM_IMAGES);
+  }
+}
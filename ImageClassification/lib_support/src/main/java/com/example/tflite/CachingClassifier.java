@@ -0,0 +1,123 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.tflite;
+
+import android.graphics.Bitmap;
+import android.os.Trace;
+import java.nio.ByteBuffer;
+
+/**
+ * Classifies images through a {@link RecognitionCache}, so that images seen before, such as
+ * repeated uploads or the same photo in several albums, are answered without running the model.
+ *
+ * <p>Not thread-safe, like the {@link Classifier} it wraps. A cache may be shared by several
+ * {@code CachingClassifier}s, including of different models.
+ */
+public final class CachingClassifier {
+  private final Classifier classifier;
+  private final RecognitionCache cache;
+  private final String modelSha256;
+  private final int[] indices;
+  private final float[] scores;
+  private int[] pixels;
+  private ByteBuffer input;
+  private String modelId;
+  private int modelIdMaxResults;
+  private float modelIdMinConfidence;
+
+  public CachingClassifier(Classifier classifier, RecognitionCache cache) {
+    this.classifier = classifier;
+    this.cache = cache;
+    modelSha256 = classifier.getModelSha256();
+    indices = new int[cache.getMaxResults()];
+    scores = new float[cache.getMaxResults()];
+  }
+
+  /**
+   * Writes the results of an image into {@code results}, from the cache if the image, or an image
+   * that looks the same in {@link RecognitionCache.KeyMode#PERCEPTUAL} mode, was classified
+   * before.
+   *
+   * @return true on a cache hit.
+   */
+  public boolean recognizeImage(Bitmap bitmap, int sensorOrientation, Recognitions results) {
+    Trace.beginSection("recognizeImageCached");
+    int width = bitmap.getWidth();
+    int height = bitmap.getHeight();
+    if (pixels == null || pixels.length < width * height) {
+      pixels = new int[width * height];
+    }
+    bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+    long key = cache.computeKey(pixels, width, height, sensorOrientation);
+    String modelId = getModelId();
+    int size = cache.lookup(modelId, key, indices, scores);
+    boolean hit = size >= 0;
+    if (hit) {
+      results.reset(classifier.getLabels());
+      for (int i = 0; i < size; ++i) {
+        results.add(indices[i], scores[i]);
+      }
+    } else {
+      if (input == null) {
+        input = classifier.createInputBuffer();
+      }
+      classifier.preprocess(pixels, width, height, sensorOrientation, input);
+      classifier.recognize(input, results);
+      size = results.size();
+      for (int i = 0; i < size && i < indices.length; ++i) {
+        indices[i] = results.getIndex(i);
+        scores[i] = results.getConfidence(i);
+      }
+      cache.put(modelId, key, size, indices, scores);
+    }
+    Trace.endSection();
+    return hit;
+  }
+
+  /**
+   * Gets the identity of the results: the content of the model rather than its name, which stays
+   * the same when the model is replaced, its normalization, and the results asked for.
+   */
+  private String getModelId() {
+    int maxResults = classifier.getMaxResults();
+    float minConfidence = classifier.getMinConfidence();
+    if (modelId == null
+        || maxResults != modelIdMaxResults
+        || minConfidence != modelIdMinConfidence) {
+      modelId =
+          modelSha256
+              + "/"
+              + classifier.getClass().getName()
+              + "/top"
+              + maxResults
+              + "/min"
+              + minConfidence;
+      modelIdMaxResults = maxResults;
+      modelIdMinConfidence = minConfidence;
+    }
+    return modelId;
+  }
+
+  /** Gets the classifier that runs the images missing from the cache. */
+  public Classifier getClassifier() {
+    return classifier;
+  }
+
+  /** Gets the cache the results are kept in. */
+  public RecognitionCache getCache() {
+    return cache;
+  }
+}
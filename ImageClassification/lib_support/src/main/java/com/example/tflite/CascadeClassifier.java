@@ -0,0 +1,237 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.tflite;
+
+import android.graphics.Bitmap;
+import android.os.Trace;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Classifies images with a fast model first, and only runs an accurate model on the images the
+ * fast one is unsure about.
+ *
+ * <p>The fast results are kept when their top-1 confidence reaches {@link #getMinConfidence()},
+ * or when the top-1 confidence exceeds the top-2 one by at least {@link #getMinMargin()}. Both
+ * are read from the raw output of the fast model, so the runner-up counts even when the minimum
+ * confidence or the number of results of the fast classifier leave it out of its results. Other
+ * images are escalated to the accurate model, which reuses the input of the fast one when both
+ * models take the same input, see {@link Classifier#hasSameInput}. On typical traffic most images
+ * are easy, so results are close to the accurate model at a cost close to the fast one.
+ *
+ * <p>Not thread-safe, like the classifiers it runs. The classifiers remain owned by the caller.
+ */
+public final class CascadeClassifier {
+  public static final float DEFAULT_MIN_CONFIDENCE = 0.6f;
+  public static final float DEFAULT_MIN_MARGIN = 0.3f;
+
+  /** Writes the input of an escalated image for the accurate classifier. */
+  public interface InputWriter {
+    /**
+     * Preprocesses the image being classified into {@code input}, for instance with {@link
+     * Classifier#preprocess} or {@link Classifier#preprocessYuv}.
+     */
+    void writeInput(Classifier classifier, ByteBuffer input);
+  }
+
+  /** Counters of a cascade at one point in time. */
+  public static final class Stats {
+    public final long images;
+    public final long escalations;
+    public final long totalNanos;
+    public final long escalatedNanos;
+
+    Stats(long images, long escalations, long totalNanos, long escalatedNanos) {
+      this.images = images;
+      this.escalations = escalations;
+      this.totalNanos = totalNanos;
+      this.escalatedNanos = escalatedNanos;
+    }
+
+    /** Gets the fraction of images that were run through the accurate model. */
+    public float getEscalationRate() {
+      return images == 0 ? 0 : (float) escalations / images;
+    }
+
+    /** Gets the mean latency over every image, whether escalated or not. */
+    public long getMeanNanos() {
+      return images == 0 ? 0 : totalNanos / images;
+    }
+
+    /** Gets the mean latency of the images answered by the fast model alone. */
+    public long getMeanFastNanos() {
+      long fast = images - escalations;
+      return fast == 0 ? 0 : (totalNanos - escalatedNanos) / fast;
+    }
+
+    /** Gets the mean latency of escalated images, both models included. */
+    public long getMeanEscalatedNanos() {
+      return escalations == 0 ? 0 : escalatedNanos / escalations;
+    }
+
+    @Override
+    public String toString() {
+      return "images="
+          + images
+          + " escalated="
+          + escalations
+          + " ("
+          + Math.round(getEscalationRate() * 100)
+          + "%) mean="
+          + getMeanNanos() / 1000
+          + " us (fast="
+          + getMeanFastNanos() / 1000
+          + " us, escalated="
+          + getMeanEscalatedNanos() / 1000
+          + " us)";
+    }
+  }
+
+  private final Classifier fast;
+  private final Classifier accurate;
+  private final boolean sharedInput;
+  private Recognitions fastResults;
+  /** The top-1 and top-2 confidences of the fast model. */
+  private final float[] topConfidences = new float[2];
+  private final AtomicLong images = new AtomicLong();
+  private final AtomicLong escalations = new AtomicLong();
+  private final AtomicLong totalNanos = new AtomicLong();
+  private final AtomicLong escalatedNanos = new AtomicLong();
+  private float minConfidence = DEFAULT_MIN_CONFIDENCE;
+  private float minMargin = DEFAULT_MIN_MARGIN;
+  private ByteBuffer fastInput;
+  private ByteBuffer accurateInput;
+  private int[] pixels;
+
+  /**
+   * Creates a cascade. The settings of both classifiers are left as they are.
+   *
+   * @param fast The classifier every image goes through first.
+   * @param accurate The classifier of the images {@code fast} is unsure about.
+   */
+  public CascadeClassifier(Classifier fast, Classifier accurate) {
+    this.fast = fast;
+    this.accurate = accurate;
+    sharedInput = fast.hasSameInput(accurate);
+    fastResults = new Recognitions(fast.getMaxResults());
+  }
+
+  /** Gets the classifier every image goes through first. */
+  public Classifier getFastClassifier() {
+    return fast;
+  }
+
+  /** Gets the classifier of the images the fast one is unsure about. */
+  public Classifier getAccurateClassifier() {
+    return accurate;
+  }
+
+  /** Sets the top-1 confidence from which the fast results are kept. */
+  public void setMinConfidence(float minConfidence) {
+    this.minConfidence = minConfidence;
+  }
+
+  /** Gets the top-1 confidence from which the fast results are kept. */
+  public float getMinConfidence() {
+    return minConfidence;
+  }
+
+  /** Sets the lead of the top-1 confidence over the top-2 one from which fast results are kept. */
+  public void setMinMargin(float minMargin) {
+    this.minMargin = minMargin;
+  }
+
+  /** Gets the lead of the top-1 confidence over the top-2 one from which fast results are kept. */
+  public float getMinMargin() {
+    return minMargin;
+  }
+
+  /** Runs inference on a bitmap and writes the classification results into {@code results}. */
+  public void recognizeImage(
+      final Bitmap bitmap, final int sensorOrientation, Recognitions results) {
+    final int width = bitmap.getWidth();
+    final int height = bitmap.getHeight();
+    if (pixels == null || pixels.length < width * height) {
+      pixels = new int[width * height];
+    }
+    bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+    if (fastInput == null) {
+      fastInput = fast.createInputBuffer();
+    }
+    fast.preprocess(pixels, width, height, sensorOrientation, fastInput);
+    recognize(
+        fastInput,
+        (classifier, input) ->
+            classifier.preprocess(pixels, width, height, sensorOrientation, input),
+        results);
+  }
+
+  /**
+   * Runs inference on an image already preprocessed for the fast classifier, and writes the
+   * classification results into {@code results} without allocating.
+   *
+   * @param input The image preprocessed with the fast classifier.
+   * @param writer Preprocesses the image again, if the accurate classifier takes another input.
+   * @param results Receives the results of the fast classifier, or of the accurate one when the
+   *     image was escalated.
+   * @return Whether the image was escalated.
+   */
+  public boolean recognize(ByteBuffer input, InputWriter writer, Recognitions results) {
+    Trace.beginSection("recognizeCascade");
+    long startTime = LatencyMetrics.now();
+    if (fastResults.getCapacity() < fast.getMaxResults()) {
+      fastResults = new Recognitions(fast.getMaxResults());
+    }
+    fast.recognize(input, fastResults);
+    fast.getTopConfidences(topConfidences);
+    // Nothing to show from the fast model is never a confident answer.
+    boolean escalate =
+        fastResults.size() == 0
+            || !isConfident(topConfidences[0], topConfidences[1], minConfidence, minMargin);
+    if (escalate) {
+      ByteBuffer accurateInput = input;
+      if (!sharedInput) {
+        if (this.accurateInput == null) {
+          this.accurateInput = accurate.createInputBuffer();
+        }
+        accurateInput = this.accurateInput;
+        writer.writeInput(accurate, accurateInput);
+      }
+      accurate.recognize(accurateInput, results);
+    } else {
+      results.copyFrom(fastResults);
+    }
+    long elapsed = LatencyMetrics.now() - startTime;
+    images.incrementAndGet();
+    totalNanos.addAndGet(elapsed);
+    if (escalate) {
+      escalations.incrementAndGet();
+      escalatedNanos.addAndGet(elapsed);
+    }
+    Trace.endSection();
+    return escalate;
+  }
+
+  /** Gets the escalation rate and latencies so far. May be called from any thread. */
+  public Stats getStats() {
+    return new Stats(images.get(), escalations.get(), totalNanos.get(), escalatedNanos.get());
+  }
+
+  /** Whether the fast results with the given top-1 and top-2 confidences are kept. */
+  static boolean isConfident(float top1, float top2, float minConfidence, float minMargin) {
+    return top1 >= minConfidence || top1 - top2 >= minMargin;
+  }
+}
@@ -0,0 +1,245 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.tflite;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drains the {@link Tracer} buffer into a file in the Chrome trace event format, which can be
+ * opened with chrome://tracing or https://ui.perfetto.dev.
+ *
+ * <p>Events are written as a JSON array, flushed after every drain. Viewers accept an array
+ * without its closing bracket, so the file stays readable if the process dies before {@link
+ * #close()}.
+ *
+ * <p>A file opened with a size limit is rolled over once it reaches it: it is closed and kept as
+ * {@link #getPreviousFile}, replacing the one before, and a new file is started. At most twice the
+ * limit is kept on disk, covering the most recent events.
+ */
+public final class ChromeTraceExporter implements Tracer.Sink, Closeable {
+  /** Default time between two drains of the buffer. */
+  public static final long DEFAULT_PERIOD_MILLIS = 1000;
+
+  /** Default size from which a trace file is rolled over. */
+  public static final long DEFAULT_MAX_FILE_BYTES = 16L << 20;
+
+  private static final String[] PHASES = {"B", "E", "C"};
+
+  private final File file;
+  private final long maxFileBytes;
+  private final Set<Long> namedThreads = new HashSet<>();
+  private final StringBuilder line = new StringBuilder(128);
+  private Writer writer;
+  private long writtenBytes;
+  private ScheduledExecutorService executor;
+  private boolean first = true;
+  private IOException error;
+
+  /** Writes events to {@code writer}, which is closed with this exporter. */
+  public ChromeTraceExporter(Writer writer) throws IOException {
+    this(writer, null, Long.MAX_VALUE);
+  }
+
+  private ChromeTraceExporter(Writer writer, File file, long maxFileBytes) throws IOException {
+    this.writer = writer;
+    this.file = file;
+    this.maxFileBytes = maxFileBytes;
+    writer.write("[");
+    writtenBytes = 1;
+  }
+
+  /** Writes events to a new file, replacing any existing one, with no size limit. */
+  public static ChromeTraceExporter open(File file) throws IOException {
+    return open(file, Long.MAX_VALUE);
+  }
+
+  /**
+   * Writes events to a new file, replacing any existing one, and rolls it over once it reaches
+   * {@code maxFileBytes}.
+   */
+  public static ChromeTraceExporter open(File file, long maxFileBytes) throws IOException {
+    if (maxFileBytes <= 0) {
+      throw new IllegalArgumentException("maxFileBytes must be positive, was " + maxFileBytes);
+    }
+    return new ChromeTraceExporter(newFileWriter(file), file, maxFileBytes);
+  }
+
+  /** Gets the file holding the events written before the last rollover of {@code file}. */
+  public static File getPreviousFile(File file) {
+    return new File(file.getPath() + ".1");
+  }
+
+  /** Drains the buffer every {@code periodMillis} on a background thread. */
+  public synchronized void start(long periodMillis) {
+    if (executor != null) {
+      return;
+    }
+    executor =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "trace-export");
+              thread.setDaemon(true);
+              return thread;
+            });
+    executor.scheduleWithFixedDelay(
+        () -> {
+          try {
+            flush();
+          } catch (IOException e) {
+            // Reported by close().
+          }
+        },
+        periodMillis,
+        periodMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /** Writes the events recorded so far to the file. */
+  public synchronized void flush() throws IOException {
+    if (error == null) {
+      Tracer.drain(this);
+    }
+    if (error != null) {
+      throw error;
+    }
+    writer.flush();
+  }
+
+  /** Stops the background drains, writes the remaining events and closes the file. */
+  @Override
+  public void close() throws IOException {
+    ScheduledExecutorService executor;
+    synchronized (this) {
+      executor = this.executor;
+      this.executor = null;
+    }
+    if (executor != null) {
+      executor.shutdown();
+      try {
+        executor.awaitTermination(1, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    synchronized (this) {
+      try {
+        flush();
+        writer.write("\n]\n");
+      } finally {
+        writer.close();
+      }
+    }
+  }
+
+  @Override
+  public void onEvent(int type, String name, long threadId, long timestampNanos, long value) {
+    if (error != null) {
+      return;
+    }
+    try {
+      if (writtenBytes >= maxFileBytes) {
+        rollOver();
+      }
+      if (namedThreads.add(threadId)) {
+        String threadName = Tracer.getThreadName(threadId);
+        if (threadName != null) {
+          startEvent("thread_name", "M", threadId);
+          line.append(",\"args\":{\"name\":");
+          appendString(threadName);
+          line.append("}}");
+          writeLine();
+        }
+      }
+      startEvent(name, PHASES[type], threadId);
+      line.append(",\"ts\":").append(timestampNanos / 1000).append('.');
+      long fraction = timestampNanos % 1000;
+      line.append(fraction < 100 ? (fraction < 10 ? "00" : "0") : "").append(fraction);
+      if (type == Tracer.COUNTER) {
+        line.append(",\"args\":{\"value\":").append(value).append('}');
+      }
+      line.append('}');
+      writeLine();
+    } catch (IOException e) {
+      error = e;
+    }
+  }
+
+  private void startEvent(String name, String phase, long threadId) {
+    line.setLength(0);
+    line.append(first ? "\n" : ",\n");
+    first = false;
+    line.append("{\"name\":");
+    appendString(name);
+    line.append(",\"ph\":\"").append(phase).append("\",\"pid\":1,\"tid\":").append(threadId);
+  }
+
+  private void appendString(String value) {
+    line.append('"');
+    for (int i = 0; i < value.length(); ++i) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        line.append('\\').append(c);
+      } else if (c < 0x20) {
+        line.append(String.format("\\u%04x", (int) c));
+      } else {
+        line.append(c);
+      }
+    }
+    line.append('"');
+  }
+
+  private void writeLine() throws IOException {
+    writer.append(line);
+    // Events are ASCII but for their names.
+    writtenBytes += line.length();
+  }
+
+  /** Ends the current file, keeps it as the previous one and starts a new one. */
+  private void rollOver() throws IOException {
+    writer.write("\n]\n");
+    writer.close();
+    File previous = getPreviousFile(file);
+    if (previous.exists() && !previous.delete()) {
+      throw new IOException("Failed to delete " + previous);
+    }
+    if (!file.renameTo(previous)) {
+      throw new IOException("Failed to rename " + file + " to " + previous);
+    }
+    writer = newFileWriter(file);
+    writer.write("[");
+    writtenBytes = 1;
+    first = true;
+    // Every file names its threads.
+    namedThreads.clear();
+  }
+
+  private static Writer newFileWriter(File file) throws IOException {
+    return new BufferedWriter(
+        new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+  }
+}
@@ -17,7 +17,7 @@ package com.example.tflite;
 
 import static java.lang.Math.min;
 
-import android.app.Activity;
+import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.RectF;
 import android.os.SystemClock;
@@ -25,28 +25,23 @@ import android.os.Trace;
 import android.util.Log;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.tensorflow.lite.DataType;
 import org.tensorflow.lite.Interpreter;
 import com.example.tflite.Classifier.Device;
 import org.tensorflow.lite.gpu.CompatibilityList;
 import org.tensorflow.lite.gpu.GpuDelegate;
 import org.tensorflow.lite.nnapi.NnApiDelegate;
-import org.tensorflow.lite.support.common.FileUtil;
-import org.tensorflow.lite.support.common.TensorOperator;
-import org.tensorflow.lite.support.common.TensorProcessor;
-import org.tensorflow.lite.support.image.ImageProcessor;
-import org.tensorflow.lite.support.image.TensorImage;
-import org.tensorflow.lite.support.image.ops.ResizeOp;
-import org.tensorflow.lite.support.image.ops.ResizeOp.ResizeMethod;
-import org.tensorflow.lite.support.image.ops.ResizeWithCropOrPadOp;
-import org.tensorflow.lite.support.image.ops.Rot90Op;
-import org.tensorflow.lite.support.label.TensorLabel;
 import org.tensorflow.lite.support.tensorbuffer.TensorBuffer;
 
 /** A classifier specialized to label images using TensorFlow Lite. */
@@ -68,10 +63,40 @@ public abstract class Classifier {
     GPU
   }
 
-  /** Number of results to show in the UI. */
-  private static final int MAX_RESULTS = 3;
+  /** Default number of results to show in the UI. */
+  public static final int DEFAULT_MAX_RESULTS = 3;
+
+  /** Default minimum confidence of the results, which keeps every class. */
+  public static final float DEFAULT_MIN_CONFIDENCE = 0.0f;
+
+  /** Default upper bound on the number of images run through the model at once. */
+  public static final int DEFAULT_MAX_BATCH_SIZE = 8;
+
+  /** Names of the {@link Tracer} spans of the classifier. */
+  private static final int TRACE_PREPROCESS = Tracer.registerName("preprocess");
+
+  private static final int TRACE_INFERENCE = Tracer.registerName("runInference");
+
+  /** Shared pool preprocessing the images of a batch in parallel. */
+  private static ExecutorService preprocessExecutor;
+
+  /** The model this classifier runs, set by {@link #create}. */
+  private Model model;
+
+  /** The device this classifier runs on. */
+  private final Device device;
+
+  /** The number of threads this classifier runs with. */
+  private final int numThreads;
 
   /** The loaded TensorFlow Lite model. */
+  private final MappedByteBuffer tfliteModel;
+
+  /** The repository reference to {@link #tfliteModel}, or null if it was passed in. */
+  private ModelRepository.Handle modelHandle;
+
+  /** SHA-256 of the model in hex, once asked for. */
+  private String modelSha256;
 
   /** Image size along the x axis. */
   private final int imageSizeX;
@@ -92,39 +117,95 @@ public abstract class Classifier {
   private final Interpreter.Options tfliteOptions = new Interpreter.Options();
 
   /** Labels corresponding to the output of the vision model. */
-  private final List<String> labels;
+  private final LabelTable labels;
+
+  /** Data type of the input image tensor. */
+  private final DataType imageDataType;
 
-  /** Input image TensorBuffer. */
-  private TensorImage inputImageBuffer;
+  /** Input image buffer, written directly by the preprocessing kernel. */
+  private final ByteBuffer inputImageBuffer;
+
+  /** ARGB pixels of the last loaded bitmap, reused across frames. */
+  private int[] pixels;
+
+  /** Fused preprocessing kernel for the last seen bitmap geometry. */
+  private FusedPreprocessor preprocessor;
 
   /** Output probability TensorBuffer. */
   private final TensorBuffer outputProbabilityBuffer;
 
-  /** Processer to apply post processing of the output probability. */
-  private final TensorProcessor probabilityProcessor;
+  /** Dequantized output probabilities, reused across frames. Unused for quantized outputs. */
+  private float[] probabilities;
+
+  /** Results with a lower confidence are skipped by top-k selection. */
+  private float minConfidence = DEFAULT_MIN_CONFIDENCE;
+
+  /** Selector for the top-k results, reused across frames. */
+  private TopK topK = new TopK(DEFAULT_MAX_RESULTS);
+
+  /** Upper bound on the number of images run through the model at once. */
+  private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+  /** Batch size the input tensor is currently resized to. */
+  private int batchSize = 1;
+
+  /** Views of the batch input buffer, indexed by batch size and allocated on first use. */
+  private ByteBuffer[] batchInputBuffers;
+
+  /** Views of the batch output buffer, indexed by batch size and allocated on first use. */
+  private ByteBuffer[] batchOutputBuffers;
+
+  /** ARGB pixels of every image of the last batch, reused across batches. */
+  private int[][] batchPixels;
+
+  /** Latencies of preprocessing, inference and post-processing. */
+  private volatile LatencyMetrics metrics = new LatencyMetrics();
 
   /**
    * Creates a classifier with the provided configuration.
    *
-   * @param activity The current Activity.
+   * @param context The context to load the model and labels from.
    * @param model The model to use for classification.
    * @param device The device to use for classification.
    * @param numThreads The number of threads to use for classification.
    * @return A classifier with the desired configuration.
    */
-  public static Classifier create(Activity activity, Model model, Device device, int numThreads)
+  public static Classifier create(Context context, Model model, Device device, int numThreads)
       throws IOException {
+    return create(context, model, device, numThreads, null);
+  }
+
+  /**
+   * Creates a classifier with the provided configuration over an already mapped model.
+   *
+   * @param context The context to load the model and labels from.
+   * @param model The model to use for classification.
+   * @param device The device to use for classification.
+   * @param numThreads The number of threads to use for classification.
+   * @param tfliteModel The mapped model file of {@code model}, or null to map it from assets.
+   * @return A classifier with the desired configuration.
+   */
+  public static Classifier create(
+      Context context,
+      Model model,
+      Device device,
+      int numThreads,
+      MappedByteBuffer tfliteModel)
+      throws IOException {
+    Classifier classifier;
     if (model == Model.QUANTIZED_MOBILENET) {
-      return new ClassifierQuantizedMobileNet(activity, device, numThreads);
+      classifier = new ClassifierQuantizedMobileNet(context, device, numThreads, tfliteModel);
     } else if (model == Model.FLOAT_MOBILENET) {
-      return new ClassifierFloatMobileNet(activity, device, numThreads);
+      classifier = new ClassifierFloatMobileNet(context, device, numThreads, tfliteModel);
     } else if (model == Model.FLOAT_EFFICIENTNET) {
-      return new ClassifierFloatEfficientNet(activity, device, numThreads);
+      classifier = new ClassifierFloatEfficientNet(context, device, numThreads, tfliteModel);
     } else if (model == Model.QUANTIZED_EFFICIENTNET) {
-      return new ClassifierQuantizedEfficientNet(activity, device, numThreads);
+      classifier = new ClassifierQuantizedEfficientNet(context, device, numThreads, tfliteModel);
     } else {
       throw new UnsupportedOperationException();
     }
+    classifier.model = model;
+    return classifier;
   }
 
   /** An immutable result returned by a Classifier describing what was recognized. */
@@ -198,8 +279,29 @@ public abstract class Classifier {
   }
 
   /** Initializes a {@code Classifier}. */
-  protected Classifier(Activity activity, Device device, int numThreads) throws IOException {
-    MappedByteBuffer tfliteModel = FileUtil.loadMappedFile(activity, getModelPath());
+  protected Classifier(Context context, Device device, int numThreads) throws IOException {
+    this(context, device, numThreads, null);
+  }
+
+  /**
+   * Initializes a {@code Classifier} over an already mapped model, which several classifiers may
+   * share. If {@code tfliteModel} is null, the model is acquired from the {@link ModelRepository},
+   * which maps it only once for every classifier of the process.
+   */
+  protected Classifier(
+      Context context, Device device, int numThreads, MappedByteBuffer tfliteModel)
+      throws IOException {
+    // Loads the labels in the background while the model is mapped and the interpreter built.
+    final String labelPath = getLabelPath();
+    Future<LabelTable> pendingLabels =
+        ClassifierLoader.getExecutor().submit(() -> LabelTable.load(context, labelPath));
+    if (tfliteModel == null) {
+      modelHandle = ModelRepository.getInstance(context).acquire(getModelPath());
+      tfliteModel = modelHandle.getBuffer();
+    }
+    this.tfliteModel = tfliteModel;
+    this.device = device;
+    this.numThreads = numThreads;
     switch (device) {
       case NNAPI:
         nnApiDelegate = new NnApiDelegate();
@@ -224,62 +326,398 @@ public abstract class Classifier {
         break;
     }
     tfliteOptions.setNumThreads(numThreads);
-    tflite = new Interpreter(tfliteModel, tfliteOptions);
-
-    // Loads labels out from the label file.
-    labels = FileUtil.loadLabels(activity, getLabelPath());
+    try {
+      tflite = new Interpreter(tfliteModel, tfliteOptions);
+
+      // Waits for the labels loaded in the background.
+      labels = awaitLabels(pendingLabels);
+    } catch (IOException | RuntimeException e) {
+      // Releases the delegates and the model.
+      close();
+      throw e;
+    }
 
     // Reads type and shape of input and output tensors, respectively.
     int imageTensorIndex = 0;
     int[] imageShape = tflite.getInputTensor(imageTensorIndex).shape(); // {1, height, width, 3}
     imageSizeY = imageShape[1];
     imageSizeX = imageShape[2];
-    DataType imageDataType = tflite.getInputTensor(imageTensorIndex).dataType();
+    imageDataType = tflite.getInputTensor(imageTensorIndex).dataType();
     int probabilityTensorIndex = 0;
     int[] probabilityShape =
         tflite.getOutputTensor(probabilityTensorIndex).shape(); // {1, NUM_CLASSES}
     DataType probabilityDataType = tflite.getOutputTensor(probabilityTensorIndex).dataType();
 
-    // Creates the input tensor.
-    inputImageBuffer = new TensorImage(imageDataType);
+    // Creates the input buffer.
+    inputImageBuffer =
+        ByteBuffer.allocateDirect(tflite.getInputTensor(imageTensorIndex).numBytes())
+            .order(ByteOrder.nativeOrder());
 
     // Creates the output tensor and its processor.
     outputProbabilityBuffer = TensorBuffer.createFixedSize(probabilityShape, probabilityDataType);
 
-    // Creates the post processor for the output probability.
-    probabilityProcessor = new TensorProcessor.Builder().add(getPostprocessNormalizeOp()).build();
+    // Creates the buffer for the post processed output probability. Quantized outputs are ranked
+    // on their raw values instead, and only the winners are dequantized.
+    if (probabilityDataType != DataType.UINT8) {
+      probabilities = new float[outputProbabilityBuffer.getFlatSize()];
+    }
 
     Log.d(TAG, "Created a Tensorflow Lite Image Classifier.");
   }
 
+  /**
+   * Runs {@code numRuns} inferences on a blank image, so that the interpreter and its delegate
+   * prepare their graph before the first real frame. Warm-up runs are not recorded in the metrics.
+   */
+  public void warmUp(int numRuns) {
+    resizeBatch(1);
+    ByteBuffer input = createInputBuffer();
+    ByteBuffer output = outputProbabilityBuffer.getBuffer();
+    for (int i = 0; i < numRuns; ++i) {
+      tflite.run(input.rewind(), output.rewind());
+    }
+  }
+
   /** Runs inference and returns the classification results. */
   public List<Recognition> recognizeImage(final Bitmap bitmap, int sensorOrientation) {
     // Logs this method so that it can be analyzed with systrace.
     Trace.beginSection("recognizeImage");
 
     Trace.beginSection("loadImage");
-    long startTimeForLoadImage = SystemClock.uptimeMillis();
-    inputImageBuffer = loadImage(bitmap, sensorOrientation);
-    long endTimeForLoadImage = SystemClock.uptimeMillis();
+    long startTimeForLoadImage = LatencyMetrics.now();
+    loadImage(bitmap, sensorOrientation);
+    metrics.recordSince(LatencyMetrics.Stage.PREPROCESS, startTimeForLoadImage);
+    Trace.endSection();
+
+    List<Recognition> recognitions = recognize(inputImageBuffer);
     Trace.endSection();
-    Log.v(TAG, "Timecost to load the image: " + (endTimeForLoadImage - startTimeForLoadImage));
+    return recognitions;
+  }
+
+  /**
+   * Runs inference on an input image already preprocessed with {@link #preprocess}, and returns
+   * the classification results.
+   */
+  public List<Recognition> recognize(final ByteBuffer input) {
+    Recognitions results = new Recognitions(topK.getK());
+    recognize(input, results);
+    return results.toList();
+  }
+
+  /**
+   * Runs inference on an input image already preprocessed with {@link #preprocess}, and writes
+   * the classification results into {@code results} without allocating.
+   */
+  public void recognize(final ByteBuffer input, Recognitions results) {
+    resizeBatch(1);
 
-    // Runs the inference call.
     Trace.beginSection("runInference");
-    long startTimeForReference = SystemClock.uptimeMillis();
-    tflite.run(inputImageBuffer.getBuffer(), outputProbabilityBuffer.getBuffer().rewind());
-    long endTimeForReference = SystemClock.uptimeMillis();
+    Tracer.begin(TRACE_INFERENCE);
+    long startTimeForReference = LatencyMetrics.now();
+    tflite.run(input.rewind(), outputProbabilityBuffer.getBuffer().rewind());
+    metrics.recordSince(LatencyMetrics.Stage.INFERENCE, startTimeForReference);
+    Tracer.end(TRACE_INFERENCE);
     Trace.endSection();
-    Log.v(TAG, "Timecost to run model inference: " + (endTimeForReference - startTimeForReference));
 
-    // Gets the map of label and probability.
-    Map<String, Float> labeledProbability =
-        new TensorLabel(labels, probabilityProcessor.process(outputProbabilityBuffer))
-            .getMapWithFloatValue();
+    getTopKProbability(outputProbabilityBuffer.getBuffer(), 0, results);
+  }
+
+  /**
+   * Writes the highest confidences of the last {@link #recognize(ByteBuffer, Recognitions)} call
+   * into {@code confidences}, best first, whatever the minimum confidence and maximum number of
+   * results. Meant for a few values, such as the margin between the two best classes; entries
+   * beyond the number of classes are set to 0.
+   */
+  public void getTopConfidences(float[] confidences) {
+    getTopConfidences(
+        outputProbabilityBuffer.getBuffer(),
+        min(outputProbabilityBuffer.getFlatSize(), labels.size()),
+        probabilities == null,
+        getProbabilityMean(),
+        getProbabilityStd(),
+        confidences);
+  }
+
+  /**
+   * Writes the highest confidences of a model output into {@code confidences}, best first, and 0
+   * into entries beyond {@code numClasses}.
+   *
+   * @param output Raw scores, one byte per class if {@code quantized} and one float otherwise.
+   * @param numClasses Number of scores to read from the start of {@code output}.
+   * @param quantized Whether scores are unsigned bytes.
+   * @param mean Mean subtracted from the raw scores.
+   * @param std Standard deviation the raw scores are divided by.
+   * @param confidences Destination, whose length is the number of confidences kept.
+   */
+  static void getTopConfidences(
+      ByteBuffer output,
+      int numClasses,
+      boolean quantized,
+      float mean,
+      float std,
+      float[] confidences) {
+    if (confidences.length == 0) {
+      return;
+    }
+    int count = 0;
+    for (int i = 0; i < numClasses; ++i) {
+      float raw = quantized ? output.get(i) & 0xff : output.getFloat(i * 4);
+      float confidence = (raw - mean) / std;
+      if (count == confidences.length && confidence <= confidences[count - 1]) {
+        continue;
+      }
+      // Insertion into the few best so far.
+      int position = count < confidences.length ? count++ : count - 1;
+      while (position > 0 && confidences[position - 1] < confidence) {
+        confidences[position] = confidences[position - 1];
+        --position;
+      }
+      confidences[position] = confidence;
+    }
+    for (int i = count; i < confidences.length; ++i) {
+      confidences[i] = 0;
+    }
+  }
+
+  /** Gets the labels of the classes of the model. */
+  public LabelTable getLabels() {
+    return labels;
+  }
+
+  /**
+   * Crops, resizes, rotates and normalizes ARGB pixels into {@code input}.
+   *
+   * <p>Unlike inference, preprocessing does not touch the interpreter and may run on any thread,
+   * for instance while the previous image is being classified.
+   *
+   * @param pixels ARGB pixels of the image, with a row stride equal to {@code width}.
+   * @param width Width of the image.
+   * @param height Height of the image.
+   * @param sensorOrientation The orientation of the image.
+   * @param input A direct buffer of {@link #getInputByteSize()} bytes in native byte order.
+   */
+  public void preprocess(
+      final int[] pixels, int width, int height, int sensorOrientation, final ByteBuffer input) {
+    Tracer.begin(TRACE_PREPROCESS);
+    long startTime = LatencyMetrics.now();
+    getPreprocessor(width, height, sensorOrientation).apply(pixels, input, 0);
+    metrics.recordSince(LatencyMetrics.Stage.PREPROCESS, startTime);
+    Tracer.end(TRACE_PREPROCESS);
+  }
+
+  /**
+   * Converts, crops, resizes, rotates and normalizes a YUV 4:2:0 frame into {@code input}, reading
+   * only the pixels the model needs.
+   *
+   * <p>For an NV21 buffer, pass it as all three planes with {@code uOffset = width * height + 1},
+   * {@code vOffset = width * height}, {@code uvRowStride = width} and {@code uvPixelStride = 2}.
+   *
+   * @param yData The Y plane.
+   * @param uData The array holding the U samples.
+   * @param uOffset Offset of the first U sample in {@code uData}.
+   * @param vData The array holding the V samples.
+   * @param vOffset Offset of the first V sample in {@code vData}.
+   * @param width Width of the frame.
+   * @param height Height of the frame.
+   * @param yRowStride Row stride of the Y plane.
+   * @param uvRowStride Row stride of the U and V planes.
+   * @param uvPixelStride Pixel stride of the U and V planes.
+   * @param sensorOrientation The orientation of the frame.
+   * @param input A direct buffer of {@link #getInputByteSize()} bytes in native byte order.
+   */
+  public void preprocessYuv(
+      final byte[] yData,
+      final byte[] uData,
+      int uOffset,
+      final byte[] vData,
+      int vOffset,
+      int width,
+      int height,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride,
+      int sensorOrientation,
+      final ByteBuffer input) {
+    Tracer.begin(TRACE_PREPROCESS);
+    long startTime = LatencyMetrics.now();
+    FusedPreprocessor geometry = getPreprocessor(width, height, sensorOrientation);
+    YuvPreprocessor.get(geometry, yRowStride, uvRowStride, uvPixelStride)
+        .apply(yData, uData, uOffset, vData, vOffset, input, 0);
+    metrics.recordSince(LatencyMetrics.Stage.PREPROCESS, startTime);
+    Tracer.end(TRACE_PREPROCESS);
+  }
+
+  /** Gets the size in bytes of one preprocessed input image. */
+  public int getInputByteSize() {
+    return inputImageBuffer.capacity();
+  }
+
+  /** Allocates a buffer that can hold one preprocessed input image. */
+  public ByteBuffer createInputBuffer() {
+    return ByteBuffer.allocateDirect(getInputByteSize()).order(ByteOrder.nativeOrder());
+  }
+
+  /**
+   * Runs inference on several images and returns the classification results of each, in order.
+   *
+   * <p>Images are preprocessed in parallel into one contiguous input buffer and run through the
+   * model in batches of at most {@link #getMaxBatchSize()} images. Batching resizes the input
+   * tensor, which is meant for the CPU and may not be supported by every delegate.
+   */
+  public List<List<Recognition>> recognizeImages(
+      final List<Bitmap> bitmaps, int sensorOrientation) {
+    Trace.beginSection("recognizeImages");
+    List<List<Recognition>> results = new ArrayList<>(bitmaps.size());
+    for (int start = 0; start < bitmaps.size(); start += maxBatchSize) {
+      int end = min(bitmaps.size(), start + maxBatchSize);
+      recognizeBatch(bitmaps.subList(start, end), sensorOrientation, results);
+    }
+    Trace.endSection();
+    return results;
+  }
+
+  /** Runs a single batch of at most {@code maxBatchSize} images and appends its results. */
+  private void recognizeBatch(
+      final List<Bitmap> bitmaps, int sensorOrientation, List<List<Recognition>> results) {
+    int size = bitmaps.size();
+    resizeBatch(size);
+    if (batchInputBuffers == null) {
+      batchInputBuffers = new ByteBuffer[maxBatchSize + 1];
+      batchOutputBuffers = new ByteBuffer[maxBatchSize + 1];
+      batchPixels = new int[maxBatchSize][];
+    }
+    int inputBytes = inputImageBuffer.capacity();
+    int outputBytes = outputProbabilityBuffer.getBuffer().capacity();
+    if (batchInputBuffers[size] == null) {
+      // The interpreter expects buffers of exactly the tensor size, so every batch size gets its
+      // own buffers.
+      batchInputBuffers[size] =
+          ByteBuffer.allocateDirect(size * inputBytes).order(ByteOrder.nativeOrder());
+      batchOutputBuffers[size] =
+          ByteBuffer.allocateDirect(size * outputBytes).order(ByteOrder.nativeOrder());
+    }
+    ByteBuffer input = batchInputBuffers[size];
+    ByteBuffer output = batchOutputBuffers[size];
+
+    Trace.beginSection("loadImages");
+    long startTimeForLoadImages = LatencyMetrics.now();
+    loadImages(bitmaps, sensorOrientation, input);
+    recordPerImage(LatencyMetrics.Stage.PREPROCESS, startTimeForLoadImages, size);
     Trace.endSection();
 
-    // Gets top-k results.
-    return getTopKProbability(labeledProbability);
+    Trace.beginSection("runInference");
+    Tracer.begin(TRACE_INFERENCE);
+    long startTimeForReference = LatencyMetrics.now();
+    tflite.run(input.rewind(), output.rewind());
+    recordPerImage(LatencyMetrics.Stage.INFERENCE, startTimeForReference, size);
+    Tracer.end(TRACE_INFERENCE);
+    Trace.endSection();
+
+    for (int i = 0; i < size; ++i) {
+      results.add(getTopKProbability(output, i * outputBytes));
+    }
+  }
+
+  /**
+   * Records a stage that ran on a whole batch as {@code size} images, each taking an equal share,
+   * so that the latencies and throughput of the stage stay per image.
+   */
+  private void recordPerImage(LatencyMetrics.Stage stage, long startNanos, int size) {
+    long share = (LatencyMetrics.now() - startNanos) / size;
+    for (int i = 0; i < size; ++i) {
+      metrics.record(stage, share);
+    }
+  }
+
+  /**
+   * Measures the throughput of batch sizes 1, 2, 4... up to {@link #getMaxBatchSize()} on {@code
+   * sample} and returns the fastest one.
+   *
+   * @param sample The image to classify.
+   * @param sensorOrientation The orientation of the image.
+   * @param numRuns The number of batches timed for each batch size.
+   * @return The batch size with the highest number of images per second.
+   */
+  public int findBestBatchSize(final Bitmap sample, int sensorOrientation, int numRuns) {
+    int bestBatchSize = 1;
+    double bestThroughput = 0;
+    for (int size = 1; size <= maxBatchSize; size *= 2) {
+      List<Bitmap> batch = Collections.nCopies(size, sample);
+      // The first run pays for resizing and preparing the graph, so it is not timed.
+      recognizeImages(batch, sensorOrientation);
+      long startTime = SystemClock.elapsedRealtimeNanos();
+      for (int run = 0; run < numRuns; ++run) {
+        recognizeImages(batch, sensorOrientation);
+      }
+      long elapsed = SystemClock.elapsedRealtimeNanos() - startTime;
+      double throughput = size * numRuns * 1e9 / Math.max(1, elapsed);
+      if (Log.isLoggable(TAG, Log.DEBUG)) {
+        Log.d(TAG, String.format("Batch size %d: %.1f images/s", size, throughput));
+      }
+      if (throughput > bestThroughput) {
+        bestThroughput = throughput;
+        bestBatchSize = size;
+      }
+    }
+    return bestBatchSize;
+  }
+
+  /** Sets the upper bound on the number of images run through the model at once. */
+  public void setMaxBatchSize(int maxBatchSize) {
+    if (maxBatchSize <= 0) {
+      throw new IllegalArgumentException("maxBatchSize must be positive, was " + maxBatchSize);
+    }
+    if (maxBatchSize != this.maxBatchSize) {
+      this.maxBatchSize = maxBatchSize;
+      batchInputBuffers = null;
+      batchOutputBuffers = null;
+      batchPixels = null;
+    }
+  }
+
+  /** Gets the upper bound on the number of images run through the model at once. */
+  public int getMaxBatchSize() {
+    return maxBatchSize;
+  }
+
+  /** Sets the maximum number of results returned by {@link #recognizeImage}. */
+  public void setMaxResults(int maxResults) {
+    if (maxResults != topK.getK()) {
+      topK = new TopK(maxResults);
+    }
+  }
+
+  /** Gets the maximum number of results returned by {@link #recognizeImage}. */
+  public int getMaxResults() {
+    return topK.getK();
+  }
+
+  /** Sets the confidence below which classes are skipped instead of returned. */
+  public void setMinConfidence(float minConfidence) {
+    this.minConfidence = minConfidence;
+  }
+
+  /** Gets the confidence below which classes are skipped instead of returned. */
+  public float getMinConfidence() {
+    return minConfidence;
+  }
+
+  /**
+   * Sets where latencies are recorded, so that they can be aggregated with other stages of a frame
+   * or kept across classifiers.
+   */
+  public void setMetrics(LatencyMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /** Gets where latencies are recorded. */
+  public LatencyMetrics getMetrics() {
+    return metrics;
+  }
+
+  /** Gets the latency histograms recorded so far. */
+  public LatencyMetrics.Snapshot getMetricsSnapshot() {
+    return metrics.getSnapshot();
   }
 
   /** Closes the interpreter and model to release resources. */
@@ -296,6 +734,57 @@ public abstract class Classifier {
       nnApiDelegate.close();
       nnApiDelegate = null;
     }
+    if (modelHandle != null) {
+      modelHandle.close();
+      modelHandle = null;
+    }
+  }
+
+  /** Gets the model this classifier runs, or null if it was not built by {@link #create}. */
+  public Model getModel() {
+    return model;
+  }
+
+  /** Gets the device this classifier runs on. */
+  public Device getDevice() {
+    return device;
+  }
+
+  /** Gets the number of threads this classifier runs with. */
+  public int getNumThreads() {
+    return numThreads;
+  }
+
+  /**
+   * Gets a rough estimate of the memory held by this classifier alone: about the size of the model
+   * for the interpreter's packed weights and activations, and the input and output buffers. The
+   * mapped model file is not counted, as it is shared by every classifier of the model through the
+   * {@link ModelRepository} and its clean pages can be dropped by the system at any time.
+   */
+  public long getEstimatedMemoryBytes() {
+    return tfliteModel.capacity()
+        + inputImageBuffer.capacity()
+        + outputProbabilityBuffer.getBuffer().capacity();
+  }
+
+  /**
+   * Gets the SHA-256 of the model in hex, which tells apart the versions of a model of the same
+   * name. It comes from the {@link ModelRepository}, or is computed on first call if the model was
+   * not hashed yet.
+   */
+  public String getModelSha256() {
+    if (modelSha256 == null) {
+      modelSha256 = modelHandle != null ? modelHandle.getSha256() : null;
+      if (modelSha256 == null) {
+        modelSha256 = ModelRepository.sha256(tfliteModel);
+      }
+    }
+    return modelSha256;
+  }
+
+  /** Gets the mapped model file, which can be shared with other classifiers of the same model. */
+  public MappedByteBuffer getModelBuffer() {
+    return tfliteModel;
   }
 
   /** Get the image size along the x axis. */
@@ -308,52 +797,187 @@ public abstract class Classifier {
     return imageSizeY;
   }
 
+  /**
+   * Tells whether an image preprocessed for this classifier is also a valid input of {@code other},
+   * that is whether both models take inputs of the same size, type and normalization.
+   */
+  public boolean hasSameInput(Classifier other) {
+    return imageSizeX == other.imageSizeX
+        && imageSizeY == other.imageSizeY
+        && imageDataType == other.imageDataType
+        && getImageMean() == other.getImageMean()
+        && getImageStd() == other.getImageStd();
+  }
+
   /** Loads input image, and applies preprocessing. */
-  private TensorImage loadImage(final Bitmap bitmap, int sensorOrientation) {
-    // Loads bitmap into a TensorImage.
-    inputImageBuffer.load(bitmap);
-
-    // Creates processor for the TensorImage.
-    int cropSize = min(bitmap.getWidth(), bitmap.getHeight());
-    int numRotation = sensorOrientation / 90;
-    // TODO(b/143564309): Fuse ops inside ImageProcessor.
-    ImageProcessor imageProcessor =
-        new ImageProcessor.Builder()
-            .add(new ResizeWithCropOrPadOp(cropSize, cropSize))
-            // TODO(b/169379396): investigate the impact of the resize algorithm on accuracy.
-            // To get the same inference results as lib_task_api, which is built on top of the Task
-            // Library, use ResizeMethod.BILINEAR.
-            .add(new ResizeOp(imageSizeX, imageSizeY, ResizeMethod.NEAREST_NEIGHBOR))
-            .add(new Rot90Op(numRotation))
-            .add(getPreprocessNormalizeOp())
-            .build();
-    return imageProcessor.process(inputImageBuffer);
-  }
-
-  /** Gets the top-k results. */
-  private static List<Recognition> getTopKProbability(Map<String, Float> labelProb) {
-    // Find the best classifications.
-    PriorityQueue<Recognition> pq =
-        new PriorityQueue<>(
-            MAX_RESULTS,
-            new Comparator<Recognition>() {
-              @Override
-              public int compare(Recognition lhs, Recognition rhs) {
-                // Intentionally reversed to put high confidence at the head of the queue.
-                return Float.compare(rhs.getConfidence(), lhs.getConfidence());
-              }
-            });
-
-    for (Map.Entry<String, Float> entry : labelProb.entrySet()) {
-      pq.add(new Recognition("" + entry.getKey(), entry.getKey(), entry.getValue(), null));
-    }
-
-    final ArrayList<Recognition> recognitions = new ArrayList<>();
-    int recognitionsSize = min(pq.size(), MAX_RESULTS);
-    for (int i = 0; i < recognitionsSize; ++i) {
-      recognitions.add(pq.poll());
+  private void loadImage(final Bitmap bitmap, int sensorOrientation) {
+    pixels = getPixels(bitmap, pixels);
+
+    // The kernel only changes with the bitmap geometry, so it is looked up again only when that
+    // changes.
+    int width = bitmap.getWidth();
+    int height = bitmap.getHeight();
+    if (preprocessor == null || !preprocessor.matches(width, height, sensorOrientation)) {
+      preprocessor = getPreprocessor(width, height, sensorOrientation);
     }
-    return recognitions;
+    preprocessor.apply(pixels, inputImageBuffer, 0);
+  }
+
+  /** Loads a batch of input images in parallel, and applies preprocessing. */
+  private void loadImages(
+      final List<Bitmap> bitmaps, final int sensorOrientation, final ByteBuffer input) {
+    final int inputBytes = inputImageBuffer.capacity();
+    List<Callable<Void>> tasks = new ArrayList<>(bitmaps.size());
+    for (int i = 0; i < bitmaps.size(); ++i) {
+      final int index = i;
+      tasks.add(
+          () -> {
+            Bitmap bitmap = bitmaps.get(index);
+            batchPixels[index] = getPixels(bitmap, batchPixels[index]);
+            getPreprocessor(bitmap.getWidth(), bitmap.getHeight(), sensorOrientation)
+                .apply(batchPixels[index], input, index * inputBytes);
+            return null;
+          });
+    }
+    try {
+      for (Future<Void> future : getPreprocessExecutor().invokeAll(tasks)) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while preprocessing a batch.", e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Failed to preprocess a batch.", e.getCause());
+    }
+  }
+
+  /** Copies the pixels of {@code bitmap} into {@code pixels}, reallocating it if needed. */
+  private static int[] getPixels(final Bitmap bitmap, int[] pixels) {
+    int width = bitmap.getWidth();
+    int height = bitmap.getHeight();
+    if (pixels == null || pixels.length != width * height) {
+      pixels = new int[width * height];
+    }
+    bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+    return pixels;
+  }
+
+  /** Gets the kernel that crops, resizes, rotates and normalizes images in a single pass. */
+  private FusedPreprocessor getPreprocessor(int width, int height, int sensorOrientation) {
+    FusedPreprocessor kernel =
+        FusedPreprocessor.get(
+            width,
+            height,
+            sensorOrientation,
+            imageSizeX,
+            imageSizeY,
+            imageDataType,
+            new float[] {getImageMean()},
+            new float[] {getImageStd()});
+    if (kernel.getOutputByteSize() != inputImageBuffer.capacity()) {
+      throw new IllegalStateException(
+          "Preprocessed image does not fit the input tensor of the model.");
+    }
+    return kernel;
+  }
+
+  /** Resizes the input tensor to hold {@code size} images, if it does not already. */
+  private void resizeBatch(int size) {
+    if (size != batchSize) {
+      tflite.resizeInput(0, new int[] {size, imageSizeY, imageSizeX, 3});
+      tflite.allocateTensors();
+      batchSize = size;
+    }
+  }
+
+  private static synchronized ExecutorService getPreprocessExecutor() {
+    if (preprocessExecutor == null) {
+      preprocessExecutor =
+          Executors.newFixedThreadPool(
+              Runtime.getRuntime().availableProcessors(),
+              runnable -> {
+                Thread thread = new Thread(runnable, "preprocess");
+                thread.setDaemon(true);
+                return thread;
+              });
+    }
+    return preprocessExecutor;
+  }
+
+  /** Waits for labels loaded in the background, rethrowing their loading error if any. */
+  private static LabelTable awaitLabels(Future<LabelTable> pendingLabels) throws IOException {
+    try {
+      return pendingLabels.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while loading labels.", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Failed to load labels.", e.getCause());
+    }
+  }
+
+  /** Dequantizes the raw float output starting at the absolute {@code offset}. */
+  private void postprocess(ByteBuffer output, int offset) {
+    float mean = getProbabilityMean();
+    float std = getProbabilityStd();
+    int count = probabilities.length;
+    for (int i = 0; i < count; ++i) {
+      probabilities[i] = (output.getFloat(offset + i * 4) - mean) / std;
+    }
+  }
+
+  /** Gets the top-k results of the raw output starting at the absolute {@code offset}. */
+  private List<Recognition> getTopKProbability(ByteBuffer output, int offset) {
+    Recognitions results = new Recognitions(topK.getK());
+    getTopKProbability(output, offset, results);
+    return results.toList();
+  }
+
+  /**
+   * Writes the top-k results of the raw output starting at the absolute {@code offset} into
+   * {@code results}.
+   */
+  private void getTopKProbability(ByteBuffer output, int offset, Recognitions results) {
+    int numClasses = min(outputProbabilityBuffer.getFlatSize(), labels.size());
+    int size;
+    boolean quantized = probabilities == null;
+    long startTime = LatencyMetrics.now();
+    if (quantized) {
+      size = topK.selectUint8(output, offset, numClasses, getMinQuantizedProbability());
+    } else {
+      postprocess(output, offset);
+      long endTimeForPostprocess = LatencyMetrics.now();
+      metrics.record(LatencyMetrics.Stage.POSTPROCESS, endTimeForPostprocess - startTime);
+      startTime = endTimeForPostprocess;
+      size = topK.select(probabilities, numClasses, minConfidence);
+    }
+
+    results.reset(labels);
+    for (int i = 0; i < size; ++i) {
+      float confidence = topK.getScore(i);
+      if (quantized) {
+        confidence = (confidence - getProbabilityMean()) / getProbabilityStd();
+      }
+      results.add(topK.getIndex(i), confidence);
+    }
+    metrics.recordSince(LatencyMetrics.Stage.TOP_K, startTime);
+  }
+
+  /** Gets the smallest raw quantized output that dequantizes to at least {@code minConfidence}. */
+  private int getMinQuantizedProbability() {
+    return getMinQuantizedProbability(minConfidence, getProbabilityMean(), getProbabilityStd());
+  }
+
+  /**
+   * Gets the smallest raw quantized output that dequantizes to at least {@code minConfidence}
+   * with {@code mean} and {@code std}, or 256 if no byte does.
+   */
+  static int getMinQuantizedProbability(float minConfidence, float mean, float std) {
+    double minValue = Math.ceil(minConfidence * std + mean);
+    return (int) Math.max(0, Math.min(256, minValue));
   }
 
   /** Gets the name of the model file stored in Assets. */
@@ -362,16 +986,26 @@ public abstract class Classifier {
   /** Gets the name of the label file stored in Assets. */
   protected abstract String getLabelPath();
 
-  /** Gets the TensorOperator to nomalize the input image in preprocessing. */
-  protected abstract TensorOperator getPreprocessNormalizeOp();
+  /** Gets the mean used to normalize the input image in preprocessing. */
+  protected abstract float getImageMean();
+
+  /** Gets the standard deviation used to normalize the input image in preprocessing. */
+  protected abstract float getImageStd();
+
+  /**
+   * Gets the mean used to dequantize the output probability in post processing.
+   *
+   * <p>For quantized model, we need de-quantize the prediction as {@code (value - mean) / std} (as
+   * they are all essentially linear transformation). For float model, de-quantize is not required.
+   * But to uniform the API, de-quantize is added to float model too. Mean and std are set to 0.0f
+   * and 1.0f, respectively.
+   */
+  protected abstract float getProbabilityMean();
 
   /**
-   * Gets the TensorOperator to dequantize the output probability in post processing.
+   * Gets the standard deviation used to dequantize the output probability in post processing.
    *
-   * <p>For quantized model, we need de-quantize the prediction with NormalizeOp (as they are all
-   * essentially linear transformation). For float model, de-quantize is not required. But to
-   * uniform the API, de-quantize is added to float model too. Mean and std are set to 0.0f and
-   * 1.0f, respectively.
+   * @see #getProbabilityMean()
    */
-  protected abstract TensorOperator getPostprocessNormalizeOp();
+  protected abstract float getProbabilityStd();
 }
@@ -0,0 +1,319 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.tflite;
+
+import android.content.Context;
+import android.util.Log;
+import com.example.tflite.Classifier.Device;
+import com.example.tflite.Classifier.Model;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Keeps idle classifiers alive by configuration, so that switching back to a recently used model,
+ * device or thread count, or recreating an Activity, does not load the model again.
+ *
+ * <p>A classifier is either checked out by {@link #get} and owned by its caller, or idle in the
+ * cache after {@link #release}. Idle classifiers are evicted least recently used first whenever
+ * their estimated memory exceeds the budget, and can be dropped on memory pressure with {@link
+ * #trimToSize} or {@link #clear}. Classifiers in use are never counted nor closed by the cache.
+ */
+public final class ClassifierCache {
+  public static final String TAG = "ClassifierCache";
+
+  /** Default memory budget of the idle classifiers. */
+  public static final long DEFAULT_MEMORY_BUDGET_BYTES = 64L * 1024 * 1024;
+
+  /** Identifies a classifier configuration. */
+  private static final class Key {
+    final Model model;
+    final Device device;
+    final int numThreads;
+
+    Key(Model model, Device device, int numThreads) {
+      this.model = model;
+      this.device = device;
+      this.numThreads = numThreads;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return model == other.model && device == other.device && numThreads == other.numThreads;
+    }
+
+    @Override
+    public int hashCode() {
+      return (model.hashCode() * 31 + device.hashCode()) * 31 + numThreads;
+    }
+
+    @Override
+    public String toString() {
+      return model + "/" + device + "/" + numThreads;
+    }
+  }
+
+  /** Counters of a cache at one point in time. */
+  public static final class Stats {
+    public final long hits;
+    public final long misses;
+    public final long evictions;
+    public final int idleClassifiers;
+    public final long idleBytes;
+
+    Stats(long hits, long misses, long evictions, int idleClassifiers, long idleBytes) {
+      this.hits = hits;
+      this.misses = misses;
+      this.evictions = evictions;
+      this.idleClassifiers = idleClassifiers;
+      this.idleBytes = idleBytes;
+    }
+
+    @Override
+    public String toString() {
+      return "hits="
+          + hits
+          + " misses="
+          + misses
+          + " evictions="
+          + evictions
+          + " idle="
+          + idleClassifiers
+          + " ("
+          + idleBytes / 1024
+          + " KB)";
+    }
+  }
+
+  /**
+   * Values in access order with their total size, the bookkeeping of the cache kept apart from
+   * classifiers so that it can be tested on the JVM. Not thread-safe.
+   */
+  static final class IdleMap<K, V> {
+    /** Gets the size of a value, which must not change while the value is in the map. */
+    interface Sizer<V> {
+      long sizeOf(V value);
+    }
+
+    /** Values in access order, least recently used first. */
+    private final LinkedHashMap<K, V> entries = new LinkedHashMap<>(8, 0.75f, true);
+
+    private final Sizer<V> sizer;
+    private long bytes;
+    private long evictions;
+
+    IdleMap(Sizer<V> sizer) {
+      this.sizer = sizer;
+    }
+
+    /** Takes a value out of the map, or returns null if absent. */
+    V remove(K key) {
+      V value = entries.remove(key);
+      if (value != null) {
+        bytes -= sizer.sizeOf(value);
+      }
+      return value;
+    }
+
+    /**
+     * Puts a value as the most recently used one.
+     *
+     * @return the value it replaced, if another one, or null.
+     */
+    V put(K key, V value) {
+      V replaced = entries.put(key, value);
+      bytes += sizer.sizeOf(value);
+      if (replaced != null) {
+        bytes -= sizer.sizeOf(replaced);
+      }
+      return replaced != value ? replaced : null;
+    }
+
+    /** Evicts the least recently used values until the rest fit in {@code maxBytes}. */
+    void evict(long maxBytes, List<V> evicted) {
+      Iterator<Map.Entry<K, V>> it = entries.entrySet().iterator();
+      while (bytes > maxBytes && it.hasNext()) {
+        V eldest = it.next().getValue();
+        it.remove();
+        bytes -= sizer.sizeOf(eldest);
+        ++evictions;
+        evicted.add(eldest);
+      }
+    }
+
+    int size() {
+      return entries.size();
+    }
+
+    long getBytes() {
+      return bytes;
+    }
+
+    long getEvictions() {
+      return evictions;
+    }
+  }
+
+  /** Idle classifiers, least recently used first. */
+  private final IdleMap<Key, Classifier> idle = new IdleMap<>(Classifier::getEstimatedMemoryBytes);
+
+  private long memoryBudgetBytes;
+  private long hits;
+  private long misses;
+
+  public ClassifierCache() {
+    this(DEFAULT_MEMORY_BUDGET_BYTES);
+  }
+
+  public ClassifierCache(long memoryBudgetBytes) {
+    this.memoryBudgetBytes = memoryBudgetBytes;
+  }
+
+  /**
+   * Checks out a classifier with the given configuration: an idle one if cached, or a new one
+   * built and warmed up in the background otherwise.
+   *
+   * @see ClassifierLoader#loadAsync
+   */
+  public Future<Classifier> get(
+      Context context,
+      Model model,
+      Device device,
+      int numThreads,
+      int numWarmupRuns,
+      LatencyMetrics metrics) {
+    final Classifier cached = acquire(model, device, numThreads);
+    if (cached != null) {
+      cached.setMetrics(metrics);
+      FutureTask<Classifier> done = new FutureTask<>(() -> cached);
+      done.run();
+      return done;
+    }
+    return ClassifierLoader.loadAsync(context, model, device, numThreads, numWarmupRuns, metrics);
+  }
+
+  /** Checks out an idle classifier with the given configuration, or returns null on a miss. */
+  public synchronized Classifier acquire(Model model, Device device, int numThreads) {
+    Classifier classifier = idle.remove(new Key(model, device, numThreads));
+    if (classifier == null) {
+      ++misses;
+      return null;
+    }
+    ++hits;
+    return classifier;
+  }
+
+  /**
+   * Returns a classifier that is no longer used, keeping it for later {@link #get}s within the
+   * memory budget. Classifiers not built by {@link Classifier#create} are closed.
+   */
+  public void release(Classifier classifier) {
+    List<Classifier> evicted = new ArrayList<>();
+    if (classifier.getModel() == null) {
+      evicted.add(classifier);
+    } else {
+      synchronized (this) {
+        Key key =
+            new Key(classifier.getModel(), classifier.getDevice(), classifier.getNumThreads());
+        Classifier replaced = idle.put(key, classifier);
+        if (replaced != null) {
+          // Only one idle classifier is kept per configuration.
+          evicted.add(replaced);
+        }
+        evictLocked(memoryBudgetBytes, evicted);
+      }
+    }
+    closeAll(evicted);
+  }
+
+  /** Releases the classifier of {@code pending} once it is loaded, for loads no longer needed. */
+  public void releaseWhenLoaded(Future<Classifier> pending) {
+    ClassifierLoader.whenLoaded(
+        pending,
+        new ClassifierLoader.Callback() {
+          @Override
+          public void onLoaded(Classifier classifier) {
+            release(classifier);
+          }
+
+          @Override
+          public void onFailed(Throwable error) {
+            // Nothing to release.
+          }
+        });
+  }
+
+  /** Sets the memory budget of the idle classifiers, evicting some if they exceed it. */
+  public void setMemoryBudgetBytes(long memoryBudgetBytes) {
+    List<Classifier> evicted = new ArrayList<>();
+    synchronized (this) {
+      this.memoryBudgetBytes = memoryBudgetBytes;
+      evictLocked(memoryBudgetBytes, evicted);
+    }
+    closeAll(evicted);
+  }
+
+  /** Gets the memory budget of the idle classifiers. */
+  public synchronized long getMemoryBudgetBytes() {
+    return memoryBudgetBytes;
+  }
+
+  /** Evicts the least recently used idle classifiers until they fit in {@code maxBytes}. */
+  public void trimToSize(long maxBytes) {
+    List<Classifier> evicted = new ArrayList<>();
+    synchronized (this) {
+      evictLocked(maxBytes, evicted);
+    }
+    closeAll(evicted);
+  }
+
+  /** Closes every idle classifier. */
+  public void clear() {
+    trimToSize(-1);
+  }
+
+  /** Gets the hit, miss and eviction counts and the current size of the cache. */
+  public synchronized Stats getStats() {
+    return new Stats(hits, misses, idle.getEvictions(), idle.size(), idle.getBytes());
+  }
+
+  private void evictLocked(long maxBytes, List<Classifier> evicted) {
+    int start = evicted.size();
+    idle.evict(maxBytes, evicted);
+    for (int i = start; i < evicted.size(); ++i) {
+      Classifier classifier = evicted.get(i);
+      Log.d(
+          TAG,
+          "Evicting classifier "
+              + new Key(classifier.getModel(), classifier.getDevice(), classifier.getNumThreads()));
+    }
+  }
+
+  /** Closes classifiers outside of the lock, as closing an interpreter may take a while. */
+  private static void closeAll(List<Classifier> classifiers) {
+    for (Classifier classifier : classifiers) {
+      classifier.close();
+    }
+  }
+}
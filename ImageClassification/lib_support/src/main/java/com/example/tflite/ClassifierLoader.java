@@ -0,0 +1,165 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.tflite;
+
+import android.content.Context;
+import android.util.Log;
+import com.example.tflite.Classifier.Device;
+import com.example.tflite.Classifier.Model;
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds and warms up classifiers in the background, so that the first camera frame does not wait
+ * for the model to be mapped, the interpreter to be built or the delegate to prepare its graph.
+ */
+public final class ClassifierLoader {
+  public static final String TAG = "ClassifierLoader";
+
+  /** Default number of blank inferences run before a classifier is handed over. */
+  public static final int DEFAULT_NUM_WARMUP_RUNS = 2;
+
+  /** Receives the outcome of a background load. */
+  public interface Callback {
+    /** Called with the loaded classifier, which the callback then owns. */
+    void onLoaded(Classifier classifier);
+
+    /** Called if the load failed or was cancelled. */
+    void onFailed(Throwable error);
+  }
+
+  /** Runs loads, and the label loading of every classifier constructor. */
+  private static ExecutorService executor;
+
+  private ClassifierLoader() {}
+
+  /**
+   * Starts building and warming up a classifier in the background.
+   *
+   * @param context The context to load the model and labels from. Only its application context is
+   *     kept.
+   * @param model The model to use for classification.
+   * @param device The device to use for classification.
+   * @param numThreads The number of threads to use for classification.
+   * @param numWarmupRuns The number of blank inferences to run before the classifier is ready.
+   * @param metrics Where the classifier records its latencies, including the load itself.
+   * @return The classifier, once ready.
+   */
+  public static Future<Classifier> loadAsync(
+      Context context,
+      final Model model,
+      final Device device,
+      final int numThreads,
+      final int numWarmupRuns,
+      final LatencyMetrics metrics) {
+    final Context appContext = context.getApplicationContext();
+    return getExecutor()
+        .submit(() -> load(appContext, model, device, numThreads, numWarmupRuns, metrics));
+  }
+
+  /**
+   * Builds and warms up a classifier on the calling thread.
+   *
+   * @see #loadAsync
+   */
+  public static Classifier load(
+      Context context,
+      Model model,
+      Device device,
+      int numThreads,
+      int numWarmupRuns,
+      LatencyMetrics metrics)
+      throws IOException {
+    long startTime = LatencyMetrics.now();
+    Classifier classifier = Classifier.create(context, model, device, numThreads);
+    classifier.setMetrics(metrics);
+    try {
+      classifier.warmUp(numWarmupRuns);
+    } catch (RuntimeException e) {
+      classifier.close();
+      throw e;
+    }
+    long elapsed = LatencyMetrics.now() - startTime;
+    metrics.record(LatencyMetrics.Stage.LOAD, elapsed);
+    Log.d(
+        TAG,
+        String.format(
+            "Loaded %s on %s with %d threads in %d ms (%d warm-up runs)",
+            model, device, numThreads, elapsed / 1000000, numWarmupRuns));
+    return classifier;
+  }
+
+  /**
+   * Calls {@code callback} on a loader thread once {@code pending} completes, without blocking the
+   * caller.
+   */
+  public static void whenLoaded(final Future<Classifier> pending, final Callback callback) {
+    getExecutor()
+        .execute(
+            () -> {
+              Classifier classifier;
+              try {
+                classifier = pending.get();
+              } catch (ExecutionException e) {
+                callback.onFailed(e.getCause());
+                return;
+              } catch (InterruptedException | CancellationException e) {
+                callback.onFailed(e);
+                return;
+              }
+              callback.onLoaded(classifier);
+            });
+  }
+
+  /** Closes the classifier of {@code pending} once it is loaded, for loads no longer needed. */
+  public static void closeWhenLoaded(final Future<Classifier> pending) {
+    whenLoaded(
+        pending,
+        new Callback() {
+          @Override
+          public void onLoaded(Classifier classifier) {
+            classifier.close();
+          }
+
+          @Override
+          public void onFailed(Throwable error) {
+            // Nothing to close.
+          }
+        });
+  }
+
+  /** Gets the shared executor, whose threads are created on demand and never block the process. */
+  static synchronized ExecutorService getExecutor() {
+    if (executor == null) {
+      final AtomicInteger threadCount = new AtomicInteger();
+      // Unbounded, as a load waits on the label loading it submits itself.
+      executor =
+          Executors.newCachedThreadPool(
+              runnable -> {
+                Thread thread =
+                    new Thread(runnable, "classifier-loader-" + threadCount.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+              });
+    }
+    return executor;
+  }
+}
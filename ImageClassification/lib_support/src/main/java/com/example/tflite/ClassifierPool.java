@@ -0,0 +1,251 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.tflite;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.util.Log;
+import androidx.annotation.RequiresApi;
+import com.example.tflite.Classifier.Device;
+import com.example.tflite.Classifier.Model;
+import com.example.tflite.Classifier.Recognition;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of classifiers over one shared mapped model, for use from several threads.
+ *
+ * <p>A {@link Classifier} is not thread-safe, so each one is used by a single thread at a time:
+ * callers either check one out with {@link #acquire()} and hand it back with {@link
+ * #release(Classifier)}, or let the pool do it with {@link #recognizeAsync}.
+ */
+public class ClassifierPool {
+  public static final String TAG = "ClassifierPool";
+
+  /** All classifiers of the pool. */
+  private final List<Classifier> classifiers;
+
+  /** Classifiers that are not checked out, and those that are. */
+  private final Members<Classifier> members;
+
+  /** Runs {@link #recognizeAsync} requests, one thread per classifier. */
+  private final ExecutorService executor;
+
+  /**
+   * Creates a pool of classifiers with the provided configuration.
+   *
+   * @param context The context to load the model and labels from.
+   * @param model The model to use for classification.
+   * @param device The device to use for classification.
+   * @param poolSize The number of classifiers, and thus of concurrent inferences.
+   * @param numThreads The number of threads each classifier uses for one inference.
+   * @return A pool of classifiers with the desired configuration.
+   */
+  public static ClassifierPool create(
+      Context context, Model model, Device device, int poolSize, int numThreads)
+      throws IOException {
+    if (poolSize <= 0) {
+      throw new IllegalArgumentException("poolSize must be positive, was " + poolSize);
+    }
+    List<Classifier> classifiers = new ArrayList<>(poolSize);
+    try {
+      // Every classifier shares the model mapped once by the ModelRepository.
+      for (int i = 0; i < poolSize; ++i) {
+        classifiers.add(Classifier.create(context, model, device, numThreads));
+      }
+    } catch (IOException | RuntimeException e) {
+      for (Classifier classifier : classifiers) {
+        classifier.close();
+      }
+      throw e;
+    }
+    Log.d(
+        TAG,
+        String.format(
+            "Created a pool of %d classifiers (model=%s, device=%s, numThreads=%d)",
+            poolSize, model, device, numThreads));
+    return new ClassifierPool(classifiers);
+  }
+
+  /**
+   * Gets a number of threads per classifier that spreads a pool of {@code poolSize} classifiers
+   * over the available cores.
+   */
+  public static int getDefaultNumThreads(int poolSize) {
+    return Math.max(1, Runtime.getRuntime().availableProcessors() / poolSize);
+  }
+
+  private ClassifierPool(List<Classifier> classifiers) {
+    this.classifiers = classifiers;
+    members = new Members<>(classifiers);
+    final AtomicInteger threadCount = new AtomicInteger();
+    executor =
+        Executors.newFixedThreadPool(
+            classifiers.size(),
+            runnable -> {
+              Thread thread = new Thread(runnable, "inference-" + threadCount.getAndIncrement());
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  /** Gets the number of classifiers in the pool. */
+  public int getPoolSize() {
+    return classifiers.size();
+  }
+
+  /** Checks out a classifier, waiting until one is available. */
+  public Classifier acquire() throws InterruptedException {
+    return members.take();
+  }
+
+  /** Checks out a classifier if one is available, or returns null otherwise. */
+  public Classifier tryAcquire() {
+    return members.poll();
+  }
+
+  /**
+   * Returns a classifier obtained from {@link #acquire()} or {@link #tryAcquire()}.
+   *
+   * @throws IllegalArgumentException if the classifier does not belong to this pool.
+   * @throws IllegalStateException if the classifier is not checked out, for instance when it was
+   *     already returned.
+   */
+  public void release(Classifier classifier) {
+    members.release(classifier);
+  }
+
+  /**
+   * Classifies {@code bitmap} on the next available classifier.
+   *
+   * <p>The bitmap is read on a pool thread, so it must not be modified until the returned future
+   * completes.
+   */
+  @RequiresApi(api = Build.VERSION_CODES.N)
+  public CompletableFuture<List<Recognition>> recognizeAsync(
+      final Bitmap bitmap, final int sensorOrientation) {
+    return CompletableFuture.supplyAsync(
+        () -> {
+          Classifier classifier;
+          try {
+            classifier = acquire();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+          }
+          try {
+            return classifier.recognizeImage(bitmap, sensorOrientation);
+          } finally {
+            release(classifier);
+          }
+        },
+        executor);
+  }
+
+  /** Waits for checked out classifiers to be returned, then closes all of them. */
+  public void close() {
+    executor.shutdown();
+    boolean interrupted = false;
+    for (int i = 0; i < classifiers.size(); ++i) {
+      Classifier classifier = null;
+      while (classifier == null) {
+        try {
+          classifier = members.take();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      classifier.close();
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * The members of a pool, each handed out to one caller at a time. Returning a member that is not
+   * checked out would put it in the idle queue twice, for two callers to share.
+   */
+  static final class Members<T> {
+    private final List<T> all;
+    private final BlockingQueue<T> idle;
+    private final Set<T> checkedOut = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    Members(List<T> all) {
+      this.all = all;
+      idle = new ArrayBlockingQueue<>(all.size(), false, all);
+    }
+
+    /** Checks out a member, waiting until one is idle. */
+    T take() throws InterruptedException {
+      return checkOut(idle.take());
+    }
+
+    /** Checks out a member if one is idle, or returns null otherwise. */
+    T poll() {
+      T member = idle.poll();
+      return member != null ? checkOut(member) : null;
+    }
+
+    /** Returns a checked out member. */
+    void release(T member) {
+      synchronized (checkedOut) {
+        if (!checkedOut.remove(member)) {
+          if (!containsInstance(member)) {
+            throw new IllegalArgumentException("Member does not belong to this pool.");
+          }
+          throw new IllegalStateException("Member is not checked out.");
+        }
+      }
+      idle.add(member);
+    }
+
+    /** Gets the number of members checked out. */
+    int getCheckedOut() {
+      synchronized (checkedOut) {
+        return checkedOut.size();
+      }
+    }
+
+    private T checkOut(T member) {
+      synchronized (checkedOut) {
+        checkedOut.add(member);
+      }
+      return member;
+    }
+
+    private boolean containsInstance(T member) {
+      for (T candidate : all) {
+        if (candidate == member) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+}
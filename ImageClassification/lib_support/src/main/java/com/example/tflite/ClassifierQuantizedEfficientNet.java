@@ -15,10 +15,9 @@ limitations under the License.
 
 package com.example.tflite;
 
-import android.app.Activity;
+import android.content.Context;
 import java.io.IOException;
-import org.tensorflow.lite.support.common.TensorOperator;
-import org.tensorflow.lite.support.common.ops.NormalizeOp;
+import java.nio.MappedByteBuffer;
 
 /** This TensorFlow Lite classifier works with the quantized EfficientNet model. */
 public class ClassifierQuantizedEfficientNet extends Classifier {
@@ -39,11 +38,23 @@ public class ClassifierQuantizedEfficientNet extends Classifier {
   /**
    * Initializes a {@code ClassifierQuantizedMobileNet}.
    *
-   * @param activity
+   * @param context
    */
-  public ClassifierQuantizedEfficientNet(Activity activity, Device device, int numThreads)
+  public ClassifierQuantizedEfficientNet(Context context, Device device, int numThreads)
       throws IOException {
-    super(activity, device, numThreads);
+    super(context, device, numThreads);
+  }
+
+  /**
+   * Initializes a {@code ClassifierQuantizedEfficientNet} over an already mapped model.
+   *
+   * @param context
+   * @param tfliteModel
+   */
+  public ClassifierQuantizedEfficientNet(
+      Context context, Device device, int numThreads, MappedByteBuffer tfliteModel)
+      throws IOException {
+    super(context, device, numThreads, tfliteModel);
   }
 
   @Override
@@ -60,12 +71,22 @@ public class ClassifierQuantizedEfficientNet extends Classifier {
   }
 
   @Override
-  protected TensorOperator getPreprocessNormalizeOp() {
-    return new NormalizeOp(IMAGE_MEAN, IMAGE_STD);
+  protected float getImageMean() {
+    return IMAGE_MEAN;
+  }
+
+  @Override
+  protected float getImageStd() {
+    return IMAGE_STD;
+  }
+
+  @Override
+  protected float getProbabilityMean() {
+    return PROBABILITY_MEAN;
   }
 
   @Override
-  protected TensorOperator getPostprocessNormalizeOp() {
-    return new NormalizeOp(PROBABILITY_MEAN, PROBABILITY_STD);
+  protected float getProbabilityStd() {
+    return PROBABILITY_STD;
   }
 }
@@ -15,11 +15,10 @@ limitations under the License.
 
 package com.example.tflite;
 
-import android.app.Activity;
+import android.content.Context;
 import java.io.IOException;
+import java.nio.MappedByteBuffer;
 import com.example.tflite.Classifier.Device;
-import org.tensorflow.lite.support.common.TensorOperator;
-import org.tensorflow.lite.support.common.ops.NormalizeOp;
 
 /** This TensorFlow Lite classifier works with the quantized MobileNet model. */
 public class ClassifierQuantizedMobileNet extends Classifier {
@@ -40,11 +39,23 @@ public class ClassifierQuantizedMobileNet extends Classifier {
   /**
    * Initializes a {@code ClassifierQuantizedMobileNet}.
    *
-   * @param activity
+   * @param context
    */
-  public ClassifierQuantizedMobileNet(Activity activity, Device device, int numThreads)
+  public ClassifierQuantizedMobileNet(Context context, Device device, int numThreads)
       throws IOException {
-    super(activity, device, numThreads);
+    super(context, device, numThreads);
+  }
+
+  /**
+   * Initializes a {@code ClassifierQuantizedMobileNet} over an already mapped model.
+   *
+   * @param context
+   * @param tfliteModel
+   */
+  public ClassifierQuantizedMobileNet(
+      Context context, Device device, int numThreads, MappedByteBuffer tfliteModel)
+      throws IOException {
+    super(context, device, numThreads, tfliteModel);
   }
 
   @Override
@@ -61,12 +72,22 @@ public class ClassifierQuantizedMobileNet extends Classifier {
   }
 
   @Override
-  protected TensorOperator getPreprocessNormalizeOp() {
-    return new NormalizeOp(IMAGE_MEAN, IMAGE_STD);
+  protected float getImageMean() {
+    return IMAGE_MEAN;
+  }
+
+  @Override
+  protected float getImageStd() {
+    return IMAGE_STD;
+  }
+
+  @Override
+  protected float getProbabilityMean() {
+    return PROBABILITY_MEAN;
   }
 
   @Override
-  protected TensorOperator getPostprocessNormalizeOp() {
-    return new NormalizeOp(PROBABILITY_MEAN, PROBABILITY_STD);
+  protected float getProbabilityStd() {
+    return PROBABILITY_STD;
   }
 }
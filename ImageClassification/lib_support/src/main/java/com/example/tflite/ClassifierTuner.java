@@ -0,0 +1,353 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.tflite;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+import com.example.tflite.Classifier.Device;
+import com.example.tflite.Classifier.Model;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Finds the fastest classifier configuration on the current hardware.
+ *
+ * <p>Every candidate model, device and thread count is built, warmed up and timed on synthetic
+ * input. With a target latency, the first model in preference order that meets it is picked, in
+ * its fastest configuration; without one, or if nothing meets it, the configuration with the
+ * highest throughput wins. The outcome is saved in the app's files, keyed by a fingerprint of the
+ * hardware and of the search, so that later starts skip the search altogether.
+ */
+public final class ClassifierTuner {
+  public static final String TAG = "ClassifierTuner";
+
+  /** Name of the file holding the tuning results of every fingerprint seen. */
+  public static final String FILE_NAME = "classifier_tuning.properties";
+
+  /** Default number of timed inferences per configuration. */
+  public static final int DEFAULT_NUM_RUNS = 10;
+
+  /** Number of untimed inferences run before timing a configuration. */
+  private static final int NUM_WARMUP_RUNS = 2;
+
+  /** Receives the outcome of a background search. */
+  public interface Callback {
+    /** Called with the best configuration. */
+    void onTuned(Result result);
+
+    /** Called if no configuration could be measured. */
+    void onFailed(Throwable error);
+  }
+
+  /** The best configuration found and its measured latency. */
+  public static final class Result {
+    public final Model model;
+    public final Device device;
+    public final int numThreads;
+    public final long meanLatencyNanos;
+
+    public Result(Model model, Device device, int numThreads, long meanLatencyNanos) {
+      this.model = model;
+      this.device = device;
+      this.numThreads = numThreads;
+      this.meanLatencyNanos = meanLatencyNanos;
+    }
+
+    /** Gets the number of images classified per second, one at a time. */
+    public double getThroughput() {
+      return meanLatencyNanos <= 0 ? 0 : 1e9 / meanLatencyNanos;
+    }
+
+    @Override
+    public String toString() {
+      return model
+          + "/"
+          + device
+          + "/"
+          + numThreads
+          + " threads: "
+          + meanLatencyNanos / 1000
+          + " us";
+    }
+  }
+
+  private final Context context;
+  private final File file;
+  private List<Model> models = Arrays.asList(Model.values());
+  private List<Device> devices = Arrays.asList(Device.CPU);
+  private int[] threadCounts = getDefaultThreadCounts(Runtime.getRuntime().availableProcessors());
+  private long targetLatencyNanos;
+  private int numRuns = DEFAULT_NUM_RUNS;
+
+  /** Creates a tuner saving its results in the files of {@code context}. */
+  public ClassifierTuner(Context context) {
+    this.context = context.getApplicationContext();
+    file = new File(this.context.getFilesDir(), FILE_NAME);
+  }
+
+  /** Sets the candidate models, most preferred first. */
+  public void setModels(Model... models) {
+    this.models = Arrays.asList(models);
+  }
+
+  /** Sets the candidate devices. Only the CPU, with XNNPACK, is searched by default. */
+  public void setDevices(Device... devices) {
+    this.devices = Arrays.asList(devices);
+  }
+
+  /** Sets the candidate thread counts, used on the CPU only. */
+  public void setThreadCounts(int... threadCounts) {
+    this.threadCounts = threadCounts.clone();
+  }
+
+  /** Sets the latency to meet with the most preferred model, or 0 to maximize throughput. */
+  public void setTargetLatencyNanos(long targetLatencyNanos) {
+    this.targetLatencyNanos = targetLatencyNanos;
+  }
+
+  /** Sets the number of timed inferences per configuration. */
+  public void setNumRuns(int numRuns) {
+    this.numRuns = numRuns;
+  }
+
+  /**
+   * Gets the best configuration, searching for it only if no result was saved for this hardware
+   * and these candidates. Runs on the calling thread, for up to a few seconds per model, and
+   * concurrent calls wait for the first search rather than running their own.
+   */
+  public synchronized Result tune() throws IOException {
+    Result result = getSavedResult();
+    if (result != null) {
+      Log.d(TAG, "Using saved tuning result " + result);
+      return result;
+    }
+    result = search();
+    save(result);
+    return result;
+  }
+
+  /** Runs {@link #tune()} in the background. */
+  public void tuneAsync(final Callback callback) {
+    ClassifierLoader.getExecutor()
+        .execute(
+            () -> {
+              Result result;
+              try {
+                result = tune();
+              } catch (IOException | RuntimeException e) {
+                callback.onFailed(e);
+                return;
+              }
+              callback.onTuned(result);
+            });
+  }
+
+  /** Gets the result saved for this hardware and these candidates, or null if there is none. */
+  public Result getSavedResult() {
+    Properties properties = load();
+    String value = properties.getProperty(getKey());
+    if (value == null) {
+      return null;
+    }
+    try {
+      String[] fields = value.split(",");
+      return new Result(
+          Model.valueOf(fields[0]),
+          Device.valueOf(fields[1]),
+          Integer.parseInt(fields[2]),
+          Long.parseLong(fields[3]));
+    } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+      Log.w(TAG, "Ignoring malformed tuning result " + value);
+      return null;
+    }
+  }
+
+  /** Forgets the result saved for this hardware and these candidates. */
+  public synchronized void clearSavedResult() throws IOException {
+    Properties properties = load();
+    if (properties.remove(getKey()) != null) {
+      store(properties);
+    }
+  }
+
+  /** Measures every candidate configuration and picks the best, without reading saved results. */
+  public Result search() throws IOException {
+    Result fastest = null;
+    for (Model model : models) {
+      Result fastestOfModel = null;
+      for (Device device : devices) {
+        Result result = searchThreadCounts(model, device);
+        if (result != null
+            && (fastestOfModel == null
+                || result.meanLatencyNanos < fastestOfModel.meanLatencyNanos)) {
+          fastestOfModel = result;
+        }
+      }
+      if (fastestOfModel == null) {
+        continue;
+      }
+      if (targetLatencyNanos > 0 && fastestOfModel.meanLatencyNanos <= targetLatencyNanos) {
+        // Models are in preference order, so the first one fast enough wins.
+        return fastestOfModel;
+      }
+      if (fastest == null || fastestOfModel.meanLatencyNanos < fastest.meanLatencyNanos) {
+        fastest = fastestOfModel;
+      }
+    }
+    if (fastest == null) {
+      throw new IOException("No classifier configuration could be measured.");
+    }
+    return fastest;
+  }
+
+  /** Measures every thread count of a model on a device, mapping the model only once. */
+  private Result searchThreadCounts(Model model, Device device) {
+    int[] counts = device == Device.CPU ? threadCounts : new int[] {1};
+    MappedByteBuffer tfliteModel = null;
+    Result fastest = null;
+    for (int numThreads : counts) {
+      Classifier classifier;
+      try {
+        classifier = Classifier.create(context, model, device, numThreads, tfliteModel);
+      } catch (IOException | RuntimeException e) {
+        // For instance a delegate that does not support the model.
+        Log.w(TAG, "Skipping " + model + "/" + device + ": " + e);
+        return fastest;
+      }
+      try {
+        tfliteModel = classifier.getModelBuffer();
+        Result result = new Result(model, device, numThreads, measure(classifier));
+        Log.d(TAG, "Measured " + result);
+        if (fastest == null || result.meanLatencyNanos < fastest.meanLatencyNanos) {
+          fastest = result;
+        }
+      } catch (RuntimeException e) {
+        Log.w(TAG, "Skipping " + model + "/" + device + "/" + numThreads + ": " + e);
+      } finally {
+        classifier.close();
+      }
+    }
+    return fastest;
+  }
+
+  /** Gets the mean latency of a classifier on a synthetic image, preprocessing excluded. */
+  private long measure(Classifier classifier) {
+    int width = classifier.getImageSizeX();
+    int height = classifier.getImageSizeY();
+    int[] pixels = new int[width * height];
+    Random random = new Random(width * 31L + height);
+    for (int i = 0; i < pixels.length; ++i) {
+      pixels[i] = 0xff000000 | random.nextInt(0x1000000);
+    }
+    ByteBuffer input = classifier.createInputBuffer();
+    classifier.preprocess(pixels, width, height, 0, input);
+    Recognitions results = new Recognitions(classifier.getMaxResults());
+    classifier.warmUp(NUM_WARMUP_RUNS);
+    long startTime = LatencyMetrics.now();
+    for (int i = 0; i < numRuns; ++i) {
+      classifier.recognize(input, results);
+    }
+    return (LatencyMetrics.now() - startTime) / Math.max(1, numRuns);
+  }
+
+  /** Gets the key of the saved result: the hardware fingerprint and the search space. */
+  private String getKey() {
+    StringBuilder key = new StringBuilder(getHardwareFingerprint());
+    key.append('|').append(models).append(devices).append(Arrays.toString(threadCounts));
+    key.append('|').append(targetLatencyNanos);
+    return key.toString().replace(" ", "");
+  }
+
+  /**
+   * Gets a string identifying the hardware and OS, which decide how fast every configuration
+   * runs.
+   */
+  public static String getHardwareFingerprint() {
+    String abi =
+        Build.SUPPORTED_ABIS != null && Build.SUPPORTED_ABIS.length > 0
+            ? Build.SUPPORTED_ABIS[0]
+            : "";
+    return Build.MANUFACTURER
+        + "/"
+        + Build.MODEL
+        + "/"
+        + Build.HARDWARE
+        + "/"
+        + abi
+        + "/"
+        + Runtime.getRuntime().availableProcessors()
+        + "/"
+        + Build.VERSION.SDK_INT;
+  }
+
+  /** Gets 1, 2, 4... up to the number of processors, and the number of processors itself. */
+  static int[] getDefaultThreadCounts(int numProcessors) {
+    List<Integer> counts = new ArrayList<>();
+    for (int count = 1; count < numProcessors; count *= 2) {
+      counts.add(count);
+    }
+    counts.add(Math.max(1, numProcessors));
+    int[] result = new int[counts.size()];
+    for (int i = 0; i < result.length; ++i) {
+      result[i] = counts.get(i);
+    }
+    return result;
+  }
+
+  private synchronized void save(Result result) throws IOException {
+    String value =
+        result.model + "," + result.device + "," + result.numThreads + ","
+            + result.meanLatencyNanos;
+    Properties properties = load();
+    properties.setProperty(getKey(), value);
+    store(properties);
+  }
+
+  private synchronized Properties load() {
+    Properties properties = new Properties();
+    if (file.exists()) {
+      try (InputStream in = new FileInputStream(file)) {
+        properties.load(in);
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to read " + file + ", tuning again.", e);
+      }
+    }
+    return properties;
+  }
+
+  private void store(Properties properties) throws IOException {
+    // Written next to the file then renamed, so a crash never leaves it half written.
+    File tmp = new File(file.getPath() + ".tmp");
+    try (OutputStream out = new FileOutputStream(tmp)) {
+      properties.store(out, "Classifier tuning results by hardware fingerprint");
+    }
+    if (!tmp.renameTo(file)) {
+      throw new IOException("Failed to write " + file);
+    }
+  }
+}
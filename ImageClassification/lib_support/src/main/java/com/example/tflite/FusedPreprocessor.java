@@ -0,0 +1,317 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.tflite;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.tensorflow.lite.DataType;
+
+/**
+ * A single-pass replacement for the {@code ImageProcessor} chain used by {@link Classifier}.
+ *
+ * <p>The chain {@code ResizeWithCropOrPadOp -> ResizeOp(NEAREST_NEIGHBOR) -> Rot90Op ->
+ * NormalizeOp} only ever moves pixels around and applies a per-channel affine transform, so for a
+ * fixed geometry every output element comes from one known source pixel. The kernel precomputes
+ * that mapping once as a gather table and then writes each frame straight into the model input
+ * buffer, without any intermediate tensors.
+ *
+ * <p>Kernels are immutable and cached per geometry and normalization, so they can be shared
+ * between classifiers and threads.
+ */
+public final class FusedPreprocessor {
+
+  /** Number of kernels kept alive in the process-wide cache. */
+  private static final int MAX_CACHED_KERNELS = 8;
+
+  private static final Map<Key, FusedPreprocessor> CACHE =
+      new LinkedHashMap<Key, FusedPreprocessor>(MAX_CACHED_KERNELS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, FusedPreprocessor> eldest) {
+          return size() > MAX_CACHED_KERNELS;
+        }
+      };
+
+  private final Key key;
+
+  /** Width of the output image, after rotation. */
+  private final int outputWidth;
+
+  /** Height of the output image, after rotation. */
+  private final int outputHeight;
+
+  /** For every output pixel, the index of the source pixel in the ARGB input array. */
+  private final int[] sourceIndex;
+
+  /** Normalized values of every 8-bit input, as three 256-entry tables for R, G and B. */
+  private final float[] normalized;
+
+  /**
+   * Returns a kernel for the given geometry, building and caching it on first use.
+   *
+   * @param sourceWidth Width of the ARGB source image.
+   * @param sourceHeight Height of the ARGB source image.
+   * @param sensorOrientation Rotation of the source in degrees, a multiple of 90.
+   * @param imageSizeX Model input size along the x axis.
+   * @param imageSizeY Model input size along the y axis.
+   * @param dataType Data type of the model input tensor, {@code UINT8} or {@code FLOAT32}.
+   * @param mean Normalization mean, either one value or one per channel.
+   * @param std Normalization standard deviation, either one value or one per channel.
+   */
+  public static FusedPreprocessor get(
+      int sourceWidth,
+      int sourceHeight,
+      int sensorOrientation,
+      int imageSizeX,
+      int imageSizeY,
+      DataType dataType,
+      float[] mean,
+      float[] std) {
+    Key key =
+        new Key(
+            sourceWidth,
+            sourceHeight,
+            toNumRotation(sensorOrientation),
+            imageSizeX,
+            imageSizeY,
+            dataType,
+            expand(mean),
+            expand(std));
+    synchronized (CACHE) {
+      FusedPreprocessor kernel = CACHE.get(key);
+      if (kernel == null) {
+        kernel = new FusedPreprocessor(key);
+        CACHE.put(key, kernel);
+      }
+      return kernel;
+    }
+  }
+
+  private FusedPreprocessor(Key key) {
+    if (key.dataType != DataType.UINT8 && key.dataType != DataType.FLOAT32) {
+      throw new IllegalArgumentException("Unsupported input data type: " + key.dataType);
+    }
+    this.key = key;
+
+    // Mirrors ResizeWithCropOrPadOp(cropSize, cropSize) with a centered crop.
+    int cropSize = Math.min(key.sourceWidth, key.sourceHeight);
+    int cropLeft = (key.sourceWidth - cropSize) / 2;
+    int cropTop = (key.sourceHeight - cropSize) / 2;
+
+    // Mirrors ResizeOp(imageSizeX, imageSizeY), which takes the target height first.
+    int resizedWidth = key.imageSizeY;
+    int resizedHeight = key.imageSizeX;
+
+    // Mirrors Rot90Op, which rotates counter-clockwise.
+    boolean transposed = (key.numRotation & 1) == 1;
+    outputWidth = transposed ? resizedHeight : resizedWidth;
+    outputHeight = transposed ? resizedWidth : resizedHeight;
+
+    // Nearest neighbour sampling at pixel centers, as Bitmap.createScaledBitmap does.
+    int[] columnOffset = new int[resizedWidth];
+    for (int x = 0; x < resizedWidth; ++x) {
+      columnOffset[x] = cropLeft + (int) ((2L * x + 1) * cropSize / (2L * resizedWidth));
+    }
+    int[] rowOffset = new int[resizedHeight];
+    for (int y = 0; y < resizedHeight; ++y) {
+      int sourceY = cropTop + (int) ((2L * y + 1) * cropSize / (2L * resizedHeight));
+      rowOffset[y] = sourceY * key.sourceWidth;
+    }
+
+    sourceIndex = new int[outputWidth * outputHeight];
+    int i = 0;
+    for (int y = 0; y < outputHeight; ++y) {
+      for (int x = 0; x < outputWidth; ++x) {
+        int resizedX;
+        int resizedY;
+        switch (key.numRotation) {
+          case 1:
+            resizedX = resizedWidth - 1 - y;
+            resizedY = x;
+            break;
+          case 2:
+            resizedX = resizedWidth - 1 - x;
+            resizedY = resizedHeight - 1 - y;
+            break;
+          case 3:
+            resizedX = y;
+            resizedY = resizedHeight - 1 - x;
+            break;
+          default:
+            resizedX = x;
+            resizedY = y;
+            break;
+        }
+        sourceIndex[i++] = rowOffset[resizedY] + columnOffset[resizedX];
+      }
+    }
+
+    if (key.dataType == DataType.FLOAT32) {
+      normalized = new float[3 * 256];
+      for (int c = 0; c < 3; ++c) {
+        for (int v = 0; v < 256; ++v) {
+          normalized[c * 256 + v] = (v - key.mean[c]) / key.std[c];
+        }
+      }
+    } else {
+      // Quantized models take raw pixel values, as NormalizeOp(0, 1) is an identity op.
+      normalized = null;
+    }
+  }
+
+  /** Whether this kernel was built for the given source geometry. */
+  public boolean matches(int sourceWidth, int sourceHeight, int sensorOrientation) {
+    return key.sourceWidth == sourceWidth
+        && key.sourceHeight == sourceHeight
+        && key.numRotation == toNumRotation(sensorOrientation);
+  }
+
+  /** Width of the output image, after rotation. */
+  public int getOutputWidth() {
+    return outputWidth;
+  }
+
+  /** Height of the output image, after rotation. */
+  public int getOutputHeight() {
+    return outputHeight;
+  }
+
+  /** Width of the source image this kernel was built for. */
+  int getSourceWidth() {
+    return key.sourceWidth;
+  }
+
+  /** For every output pixel, the index of the source pixel in a row-major source image. */
+  int[] getSourceIndex() {
+    return sourceIndex;
+  }
+
+  /** Normalization tables for R, G and B, or null if values are written raw. */
+  float[] getNormalized() {
+    return normalized;
+  }
+
+  /** Number of bytes written by one call to {@link #apply}. */
+  public int getOutputByteSize() {
+    return outputWidth * outputHeight * 3 * key.dataType.byteSize();
+  }
+
+  /**
+   * Crops, resizes, rotates and normalizes {@code pixels} into {@code output}.
+   *
+   * @param pixels ARGB pixels of the source image, with a row stride equal to its width.
+   * @param output Destination buffer, in native byte order for float models.
+   * @param offset Absolute byte offset in {@code output} at which to start writing.
+   */
+  public void apply(int[] pixels, ByteBuffer output, int offset) {
+    final int[] sourceIndex = this.sourceIndex;
+    final int count = sourceIndex.length;
+    int position = offset;
+    if (normalized == null) {
+      for (int i = 0; i < count; ++i) {
+        int pixel = pixels[sourceIndex[i]];
+        output.put(position, (byte) (pixel >> 16));
+        output.put(position + 1, (byte) (pixel >> 8));
+        output.put(position + 2, (byte) pixel);
+        position += 3;
+      }
+    } else {
+      final float[] normalized = this.normalized;
+      for (int i = 0; i < count; ++i) {
+        int pixel = pixels[sourceIndex[i]];
+        output.putFloat(position, normalized[(pixel >> 16) & 0xff]);
+        output.putFloat(position + 4, normalized[256 + ((pixel >> 8) & 0xff)]);
+        output.putFloat(position + 8, normalized[512 + (pixel & 0xff)]);
+        position += 12;
+      }
+    }
+  }
+
+  private static int toNumRotation(int sensorOrientation) {
+    return ((sensorOrientation / 90) % 4 + 4) % 4;
+  }
+
+  private static float[] expand(float[] values) {
+    if (values.length == 3) {
+      return values.clone();
+    }
+    if (values.length == 1) {
+      return new float[] {values[0], values[0], values[0]};
+    }
+    throw new IllegalArgumentException("Expected 1 or 3 normalization values.");
+  }
+
+  /** Everything a kernel depends on. */
+  private static final class Key {
+    final int sourceWidth;
+    final int sourceHeight;
+    final int numRotation;
+    final int imageSizeX;
+    final int imageSizeY;
+    final DataType dataType;
+    final float[] mean;
+    final float[] std;
+
+    Key(
+        int sourceWidth,
+        int sourceHeight,
+        int numRotation,
+        int imageSizeX,
+        int imageSizeY,
+        DataType dataType,
+        float[] mean,
+        float[] std) {
+      this.sourceWidth = sourceWidth;
+      this.sourceHeight = sourceHeight;
+      this.numRotation = numRotation;
+      this.imageSizeX = imageSizeX;
+      this.imageSizeY = imageSizeY;
+      this.dataType = dataType;
+      this.mean = mean;
+      this.std = std;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return sourceWidth == other.sourceWidth
+          && sourceHeight == other.sourceHeight
+          && numRotation == other.numRotation
+          && imageSizeX == other.imageSizeX
+          && imageSizeY == other.imageSizeY
+          && dataType == other.dataType
+          && Arrays.equals(mean, other.mean)
+          && Arrays.equals(std, other.std);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = sourceWidth;
+      result = 31 * result + sourceHeight;
+      result = 31 * result + numRotation;
+      result = 31 * result + imageSizeX;
+      result = 31 * result + imageSizeY;
+      result = 31 * result + dataType.hashCode();
+      result = 31 * result + Arrays.hashCode(mean);
+      result = 31 * result + Arrays.hashCode(std);
+      return result;
+    }
+  }
+}
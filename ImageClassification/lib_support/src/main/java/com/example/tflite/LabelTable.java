@@ -0,0 +1,122 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.tflite;
+
+import android.content.Context;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.tensorflow.lite.support.common.FileUtil;
+
+/**
+ * The class names of a model, indexed by class.
+ *
+ * <p>A label file is read once while in use and its table shared, read-only, by every classifier
+ * of that model. Labels are interned, so results can hand them out and compare them without
+ * copying, and per-frame code only ever deals with class indices.
+ */
+public final class LabelTable {
+
+  /**
+   * Tables already loaded, by asset path. A table stays loaded only while classifiers or results
+   * refer to it, so the labels of models no longer in use can be collected.
+   */
+  private static final Map<String, WeakReference<LabelTable>> LOADED = new HashMap<>();
+
+  /** Reads the labels of a table. */
+  interface Reader {
+    List<String> read() throws IOException;
+  }
+
+  private final String[] labels;
+
+  /** Class index of every label, built on the first {@link #indexOf} call. */
+  private Map<String, Integer> indices;
+
+  /**
+   * Gets the table of a label file stored in assets, reading it on first use.
+   *
+   * @param context The context to read the assets from.
+   * @param path The path of the label file, one label per line.
+   */
+  public static LabelTable load(Context context, String path) throws IOException {
+    return load(path, () -> FileUtil.loadLabels(context, path));
+  }
+
+  /** Gets the table loaded for {@code path}, or reads it with {@code reader}. */
+  static LabelTable load(String path, Reader reader) throws IOException {
+    synchronized (LOADED) {
+      WeakReference<LabelTable> loaded = LOADED.get(path);
+      LabelTable table = loaded != null ? loaded.get() : null;
+      if (table == null) {
+        removeCollectedLocked();
+        table = new LabelTable(reader.read());
+        LOADED.put(path, new WeakReference<>(table));
+      }
+      return table;
+    }
+  }
+
+  /** Gets the number of paths with a loaded table, including tables not yet noticed collected. */
+  static int getLoadedCount() {
+    synchronized (LOADED) {
+      return LOADED.size();
+    }
+  }
+
+  private static void removeCollectedLocked() {
+    Iterator<WeakReference<LabelTable>> it = LOADED.values().iterator();
+    while (it.hasNext()) {
+      if (it.next().get() == null) {
+        it.remove();
+      }
+    }
+  }
+
+  /** Creates a table holding a copy of {@code labels}. */
+  public LabelTable(List<String> labels) {
+    this.labels = new String[labels.size()];
+    for (int i = 0; i < this.labels.length; ++i) {
+      this.labels[i] = labels.get(i).intern();
+    }
+  }
+
+  /** Gets the number of classes. */
+  public int size() {
+    return labels.length;
+  }
+
+  /** Gets the label of class {@code index}. */
+  public String get(int index) {
+    return labels[index];
+  }
+
+  /** Gets the class index of {@code label}, or -1 if the model has no such class. */
+  public synchronized int indexOf(String label) {
+    if (indices == null) {
+      indices = new HashMap<>(labels.length * 2);
+      for (int i = labels.length - 1; i >= 0; --i) {
+        // The first of duplicated labels wins.
+        indices.put(labels[i], i);
+      }
+    }
+    Integer index = indices.get(label);
+    return index == null ? -1 : index;
+  }
+}
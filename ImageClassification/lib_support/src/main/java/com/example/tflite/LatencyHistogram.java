@@ -0,0 +1,156 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.tflite;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size histogram of latencies in nanoseconds, safe to record into from any thread without
+ * locking.
+ *
+ * <p>Buckets are log-linear: every power of two is split into 16 equal buckets, so a percentile is
+ * reported within 1/16 (about 6%) of its true value whatever its magnitude, from nanoseconds to
+ * minutes, in under 8 KB. Recording a value is a few atomic increments.
+ */
+public final class LatencyHistogram {
+
+  /** log2 of the number of buckets per power of two. */
+  private static final int SUB_BUCKET_BITS = 4;
+
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+  /** Enough buckets for any positive {@code long}. */
+  private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong total = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  /** Records one latency. Negative values are counted as zero. */
+  public void record(long nanos) {
+    long value = Math.max(0, nanos);
+    buckets.incrementAndGet(bucketOf(value));
+    count.incrementAndGet();
+    total.addAndGet(value);
+    long currentMax = max.get();
+    while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+      currentMax = max.get();
+    }
+  }
+
+  /**
+   * Clears every recorded value. Values recorded concurrently with a reset may be partly kept.
+   */
+  public void reset() {
+    for (int i = 0; i < BUCKET_COUNT; ++i) {
+      buckets.set(i, 0);
+    }
+    count.set(0);
+    total.set(0);
+    max.set(0);
+  }
+
+  /** Takes a consistent enough copy of the histogram, without blocking recording threads. */
+  public Snapshot getSnapshot() {
+    long[] copy = new long[BUCKET_COUNT];
+    long copied = 0;
+    for (int i = 0; i < BUCKET_COUNT; ++i) {
+      copy[i] = buckets.get(i);
+      copied += copy[i];
+    }
+    // Percentiles come from the copied buckets, which may include a few more or fewer values than
+    // the counters read here.
+    return new Snapshot(copied, total.get(), max.get(), copy);
+  }
+
+  static int bucketOf(long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int shift = exponent - SUB_BUCKET_BITS;
+    int subBucket = (int) (value >>> shift) & (SUB_BUCKET_COUNT - 1);
+    return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+  }
+
+  /** Gets the largest value that falls in {@code bucket}. */
+  static long upperBoundOf(int bucket) {
+    if (bucket < SUB_BUCKET_COUNT) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKET_COUNT - 1;
+    long subBucket = bucket % SUB_BUCKET_COUNT;
+    long lowerBound = (SUB_BUCKET_COUNT + subBucket) << shift;
+    return lowerBound + (1L << shift) - 1;
+  }
+
+  /** An immutable copy of a histogram. */
+  public static final class Snapshot {
+    private final long count;
+    private final long total;
+    private final long max;
+    private final long[] buckets;
+
+    Snapshot(long count, long total, long max, long[] buckets) {
+      this.count = count;
+      this.total = total;
+      this.max = max;
+      this.buckets = buckets;
+    }
+
+    /** Gets the number of recorded values. */
+    public long getCount() {
+      return count;
+    }
+
+    /** Gets the sum of the recorded values, in nanoseconds. */
+    public long getTotalNanos() {
+      return total;
+    }
+
+    /** Gets the largest recorded value, in nanoseconds. */
+    public long getMaxNanos() {
+      return max;
+    }
+
+    /** Gets the mean of the recorded values, in nanoseconds. */
+    public long getMeanNanos() {
+      return count == 0 ? 0 : total / count;
+    }
+
+    /**
+     * Gets the value below which {@code percentile} percent of the recorded values fall, in
+     * nanoseconds, rounded up to its bucket and capped at the maximum.
+     */
+    public long getPercentileNanos(double percentile) {
+      if (count == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(percentile / 100.0 * count);
+      rank = Math.max(1, Math.min(count, rank));
+      long seen = 0;
+      for (int i = 0; i < buckets.length; ++i) {
+        seen += buckets[i];
+        if (seen >= rank) {
+          return Math.min(upperBoundOf(i), max);
+        }
+      }
+      return max;
+    }
+  }
+}
@@ -0,0 +1,175 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.tflite;
+
+import java.util.Locale;
+
+/**
+ * Latency histograms for every stage a camera frame goes through, from YUV conversion to showing
+ * the results, and for the startup work before the first frame.
+ *
+ * <p>Stages are timed with {@link #now()} and recorded from whichever thread runs them. A single
+ * instance is meant to be shared by the pipeline, the classifier and the UI so that one {@link
+ * #getSnapshot()} covers the whole frame.
+ */
+public final class LatencyMetrics {
+
+  /** The timed stages of a frame. */
+  public enum Stage {
+    /** Copy of the planes of a camera frame into the pipeline. */
+    COPY("copy"),
+    /** YUV to ARGB conversion of the whole frame. */
+    CONVERT("convert"),
+    /** Comparison of a frame with the last classified one, to skip unchanged scenes. */
+    SCENE_CHECK("scene_check"),
+    /** Crop, resize, rotation and normalization into the model input. */
+    PREPROCESS("preprocess"),
+    /** The interpreter run. */
+    INFERENCE("inference"),
+    /** Dequantization of the model output. */
+    POSTPROCESS("postprocess"),
+    /** Selection of the best results and creation of their recognitions. */
+    TOP_K("top_k"),
+    /** From results being ready to them being shown on screen. */
+    PUBLISH("publish"),
+    /** Creation and warm-up of a classifier. */
+    LOAD("load"),
+    /** From process start to the first results shown on screen. */
+    FIRST_RESULT("first_result");
+
+    private final String label;
+
+    Stage(String label) {
+      this.label = label;
+    }
+
+    /** Gets the name of the stage in text exports. */
+    public String getLabel() {
+      return label;
+    }
+  }
+
+  private static final Stage[] STAGES = Stage.values();
+
+  private final LatencyHistogram[] histograms = new LatencyHistogram[STAGES.length];
+
+  private volatile long startNanos = now();
+
+  public LatencyMetrics() {
+    for (int i = 0; i < histograms.length; ++i) {
+      histograms[i] = new LatencyHistogram();
+    }
+  }
+
+  /** Gets the current time of the monotonic clock stages are timed with, in nanoseconds. */
+  public static long now() {
+    return System.nanoTime();
+  }
+
+  /** Records a stage that started at {@code startNanos}, as returned by {@link #now()}. */
+  public void recordSince(Stage stage, long startNanos) {
+    histograms[stage.ordinal()].record(now() - startNanos);
+  }
+
+  /** Records one latency of {@code stage}. */
+  public void record(Stage stage, long nanos) {
+    histograms[stage.ordinal()].record(nanos);
+  }
+
+  /** Clears every histogram and restarts the throughput clock. */
+  public void reset() {
+    for (LatencyHistogram histogram : histograms) {
+      histogram.reset();
+    }
+    startNanos = now();
+  }
+
+  /** Takes a copy of every histogram. */
+  public Snapshot getSnapshot() {
+    LatencyHistogram.Snapshot[] stages = new LatencyHistogram.Snapshot[histograms.length];
+    for (int i = 0; i < histograms.length; ++i) {
+      stages[i] = histograms[i].getSnapshot();
+    }
+    return new Snapshot(stages, now() - startNanos);
+  }
+
+  /** The histograms of every stage at one point in time. */
+  public static final class Snapshot {
+    private final LatencyHistogram.Snapshot[] stages;
+    private final long elapsedNanos;
+
+    Snapshot(LatencyHistogram.Snapshot[] stages, long elapsedNanos) {
+      this.stages = stages;
+      this.elapsedNanos = elapsedNanos;
+    }
+
+    /** Gets the histogram of {@code stage}. */
+    public LatencyHistogram.Snapshot get(Stage stage) {
+      return stages[stage.ordinal()];
+    }
+
+    /** Gets the time covered by the snapshot, since creation or the last reset. */
+    public long getElapsedNanos() {
+      return elapsedNanos;
+    }
+
+    /** Gets the number of times {@code stage} ran per second. */
+    public double getThroughput(Stage stage) {
+      return elapsedNanos <= 0 ? 0 : get(stage).getCount() * 1e9 / elapsedNanos;
+    }
+
+    /**
+     * Formats the snapshot as a table with one line per stage and latencies in microseconds, for
+     * logs and bug reports.
+     */
+    public String toText() {
+      StringBuilder text = new StringBuilder();
+      text.append(
+          String.format(
+              Locale.US,
+              "%-12s %8s %10s %10s %10s %10s %10s %8s%n",
+              "stage",
+              "count",
+              "p50_us",
+              "p90_us",
+              "p99_us",
+              "max_us",
+              "mean_us",
+              "per_s"));
+      for (Stage stage : STAGES) {
+        LatencyHistogram.Snapshot histogram = get(stage);
+        text.append(
+            String.format(
+                Locale.US,
+                "%-12s %8d %10.1f %10.1f %10.1f %10.1f %10.1f %8.1f%n",
+                stage.getLabel(),
+                histogram.getCount(),
+                histogram.getPercentileNanos(50) / 1e3,
+                histogram.getPercentileNanos(90) / 1e3,
+                histogram.getPercentileNanos(99) / 1e3,
+                histogram.getMaxNanos() / 1e3,
+                histogram.getMeanNanos() / 1e3,
+                getThroughput(stage)));
+      }
+      return text.toString();
+    }
+
+    @Override
+    public String toString() {
+      return toText();
+    }
+  }
+}
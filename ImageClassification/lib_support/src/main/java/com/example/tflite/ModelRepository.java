@@ -0,0 +1,380 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.tflite;
+
+import android.content.Context;
+import android.util.Log;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import org.tensorflow.lite.support.common.FileUtil;
+
+/**
+ * Maps every model file once per process and shares it between all the interpreters using it.
+ *
+ * <p>Models are registered by name, either from assets or from a local file. Files dropped in the
+ * {@link #MODELS_DIRECTORY} directory of the app's files are registered at startup and take
+ * precedence over assets of the same name, so a model can be added or replaced without a rebuild.
+ * Names never registered are looked up in assets.
+ *
+ * <p>{@link #acquire} maps a model on first use and counts its users; the mapping is dropped once
+ * the last {@link Handle} is closed. The first mapping of a model with an expected SHA-256, given
+ * at registration or in a {@code .sha256} file next to a local model, is hashed before the first
+ * handle is returned, so a corrupt model never runs: a mismatch makes every acquisition fail.
+ * Models without one are hashed in the background, off the path of the first inference.
+ *
+ * <p>Checksums and sizes are kept in a small sidecar index, and every entry of a model is dropped
+ * when its checksum changes.
+ */
+public final class ModelRepository {
+  public static final String TAG = "ModelRepository";
+
+  /** Directory of the app's files scanned for {@code .tflite} models. */
+  public static final String MODELS_DIRECTORY = "models";
+
+  /** Name of the sidecar index in the app's files. */
+  public static final String INDEX_FILE_NAME = "model_index.properties";
+
+  /** Suffix of the files holding the expected SHA-256 of a local model, in hex. */
+  public static final String CHECKSUM_SUFFIX = ".sha256";
+
+  private static final String MODEL_SUFFIX = ".tflite";
+
+  /** Suffixes of every index key of a model. */
+  private static final String[] INDEX_KEYS = {".sha256", ".size"};
+
+  /** State of the checksum verification of a model. */
+  public enum Verification {
+    /** Not mapped yet since registration. */
+    UNVERIFIED,
+    /** Being hashed in the background. */
+    VERIFYING,
+    /** Hashed, and matching its expected checksum if it has one. */
+    VERIFIED,
+    /** Not matching its expected checksum, or unreadable. */
+    FAILED
+  }
+
+  /** A counted reference to a mapped model. Closing it more than once has no effect. */
+  public final class Handle implements Closeable {
+    private final Entry entry;
+    private final MappedByteBuffer buffer;
+    private boolean closed;
+
+    private Handle(Entry entry, MappedByteBuffer buffer) {
+      this.entry = entry;
+      this.buffer = buffer;
+    }
+
+    /** Gets the name the model was acquired with. */
+    public String getName() {
+      return entry.name;
+    }
+
+    /** Gets the mapped model, shared with every other handle of the same model. */
+    public MappedByteBuffer getBuffer() {
+      return buffer;
+    }
+
+    /** Gets the SHA-256 of the model in hex, or null while it is being hashed in the background. */
+    public String getSha256() {
+      synchronized (ModelRepository.this) {
+        return entry.sha256;
+      }
+    }
+
+    @Override
+    public void close() {
+      synchronized (ModelRepository.this) {
+        if (closed) {
+          return;
+        }
+        closed = true;
+        if (--entry.refCount == 0) {
+          // Unmapped by the garbage collector once no interpreter references it anymore.
+          entry.buffer = null;
+          Log.d(TAG, "Released model " + entry.name);
+        }
+      }
+    }
+  }
+
+  /** A registered model. */
+  private static final class Entry {
+    final String name;
+    final String assetPath;
+    final File file;
+    final String expectedSha256;
+    MappedByteBuffer buffer;
+    int refCount;
+    Verification verification = Verification.UNVERIFIED;
+    /** SHA-256 of the model in hex, once hashed. */
+    String sha256;
+
+    Entry(String name, String assetPath, File file, String expectedSha256) {
+      this.name = name;
+      this.assetPath = assetPath;
+      this.file = file;
+      this.expectedSha256 = expectedSha256 == null ? null : expectedSha256.toLowerCase(Locale.US);
+    }
+  }
+
+  private static ModelRepository instance;
+
+  private final Context context;
+  private final File indexFile;
+  private final Map<String, Entry> entries = new HashMap<>();
+
+  /** The sidecar index, loaded on first use. */
+  private Properties index;
+
+  /** Gets the repository of the process, registering the models of the app's files first. */
+  public static synchronized ModelRepository getInstance(Context context) {
+    if (instance == null) {
+      instance = new ModelRepository(context.getApplicationContext());
+      instance.registerDirectory(new File(instance.context.getFilesDir(), MODELS_DIRECTORY));
+    }
+    return instance;
+  }
+
+  private ModelRepository(Context context) {
+    this.context = context;
+    indexFile = new File(context.getFilesDir(), INDEX_FILE_NAME);
+  }
+
+  /** Registers a model stored in assets under {@code name}, unless it is already registered. */
+  public synchronized void registerAsset(String name, String assetPath) {
+    if (!entries.containsKey(name)) {
+      entries.put(name, new Entry(name, assetPath, null, null));
+    }
+  }
+
+  /**
+   * Registers a local model file under {@code name}, replacing any previous registration once
+   * the current users of the previous model are done with it.
+   *
+   * @param name The name to acquire the model with, usually the asset path it replaces.
+   * @param file The model file.
+   * @param sha256 The expected SHA-256 of the file in hex, or null to only record it.
+   */
+  public synchronized void registerFile(String name, File file, String sha256) {
+    entries.put(name, new Entry(name, null, file, sha256));
+  }
+
+  /**
+   * Registers every {@code .tflite} file of a directory under its file name, with the checksum in
+   * the {@code .sha256} file next to it if any.
+   *
+   * @return The number of models registered.
+   */
+  public synchronized int registerDirectory(File directory) {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return 0;
+    }
+    int count = 0;
+    for (File file : files) {
+      if (!file.isFile() || !file.getName().endsWith(MODEL_SUFFIX)) {
+        continue;
+      }
+      registerFile(file.getName(), file, readChecksum(new File(file.getPath() + CHECKSUM_SUFFIX)));
+      Log.d(TAG, "Registered local model " + file);
+      ++count;
+    }
+    return count;
+  }
+
+  /**
+   * Maps a model, or shares its existing mapping, and verifies it on first use. A model with an
+   * expected checksum is hashed on the calling thread before the handle is returned.
+   *
+   * @param name The registered name of the model, or its path in assets.
+   * @return A handle to close once the model is no longer used.
+   * @throws IOException If the model cannot be read or failed its checksum.
+   */
+  public synchronized Handle acquire(String name) throws IOException {
+    Entry entry = entries.get(name);
+    if (entry == null) {
+      entry = new Entry(name, name, null, null);
+      entries.put(name, entry);
+    }
+    if (entry.verification == Verification.FAILED) {
+      throw new IOException("Model " + name + " failed its checksum verification.");
+    }
+    if (entry.buffer == null) {
+      MappedByteBuffer buffer = map(entry);
+      Log.d(TAG, "Mapped model " + name + " (" + buffer.capacity() + " bytes)");
+      if (entry.verification == Verification.UNVERIFIED) {
+        if (entry.expectedSha256 != null) {
+          onHashed(entry, buffer, sha256(buffer));
+          if (entry.verification == Verification.FAILED) {
+            throw new IOException("Model " + name + " failed its checksum verification.");
+          }
+        } else {
+          verifyInBackground(entry, buffer);
+        }
+      }
+      entry.buffer = buffer;
+    }
+    ++entry.refCount;
+    return new Handle(entry, entry.buffer);
+  }
+
+  /** Gets the number of open handles of a model. */
+  public synchronized int getRefCount(String name) {
+    Entry entry = entries.get(name);
+    return entry == null ? 0 : entry.refCount;
+  }
+
+  /** Gets the checksum verification state of a model. */
+  public synchronized Verification getVerification(String name) {
+    Entry entry = entries.get(name);
+    return entry == null ? Verification.UNVERIFIED : entry.verification;
+  }
+
+  private MappedByteBuffer map(Entry entry) throws IOException {
+    if (entry.file == null) {
+      return FileUtil.loadMappedFile(context, entry.assetPath);
+    }
+    try (FileInputStream in = new FileInputStream(entry.file)) {
+      FileChannel channel = in.getChannel();
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+  }
+
+  /** Hashes a fresh mapping on the loader threads, off the path of the first inference. */
+  private void verifyInBackground(final Entry entry, final ByteBuffer buffer) {
+    entry.verification = Verification.VERIFYING;
+    ClassifierLoader.getExecutor()
+        .execute(
+            () -> {
+              String sha256 = sha256(buffer);
+              synchronized (ModelRepository.this) {
+                if (entries.get(entry.name) != entry) {
+                  // Registered again while being hashed.
+                  return;
+                }
+                onHashed(entry, buffer, sha256);
+              }
+            });
+  }
+
+  /**
+   * Checks the hash of a model against its expected checksum, and brings the index up to date with
+   * it: when the checksum of the model changed, nothing recorded about the previous file holds.
+   */
+  private void onHashed(Entry entry, ByteBuffer buffer, String sha256) {
+    if (entry.expectedSha256 != null && !entry.expectedSha256.equals(sha256)) {
+      Log.e(
+          TAG,
+          "Model " + entry.name + " has checksum " + sha256 + ", expected " + entry.expectedSha256);
+      entry.verification = Verification.FAILED;
+      return;
+    }
+    entry.verification = Verification.VERIFIED;
+    entry.sha256 = sha256;
+    Properties index = getIndex();
+    if (!sha256.equals(index.getProperty(entry.name + ".sha256"))) {
+      for (String key : INDEX_KEYS) {
+        index.remove(entry.name + key);
+      }
+      index.setProperty(entry.name + ".sha256", sha256);
+      index.setProperty(entry.name + ".size", String.valueOf(buffer.capacity()));
+      storeIndex();
+    }
+  }
+
+  /** Gets the SHA-256 of the whole content of {@code buffer} in hex. */
+  static String sha256(ByteBuffer buffer) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    // A duplicate, so that the position of the shared buffer is left alone.
+    ByteBuffer view = buffer.duplicate();
+    view.rewind();
+    digest.update(view);
+    StringBuilder hex = new StringBuilder(64);
+    for (byte b : digest.digest()) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+
+  private static String readChecksum(File file) {
+    if (!file.isFile()) {
+      return null;
+    }
+    byte[] bytes = new byte[64];
+    try (InputStream in = new FileInputStream(file)) {
+      int length = 0;
+      int read;
+      while (length < bytes.length && (read = in.read(bytes, length, bytes.length - length)) > 0) {
+        length += read;
+      }
+      // Also accepts the "<hash>  <file name>" output of sha256sum.
+      String text = new String(bytes, 0, length, StandardCharsets.US_ASCII).trim();
+      return text.isEmpty() ? null : text.split("\\s+")[0];
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to read " + file, e);
+      return null;
+    }
+  }
+
+  private Properties getIndex() {
+    if (index == null) {
+      index = new Properties();
+      if (indexFile.exists()) {
+        try (InputStream in = new FileInputStream(indexFile)) {
+          index.load(in);
+        } catch (IOException e) {
+          Log.w(TAG, "Failed to read " + indexFile + ", rebuilding it.", e);
+        }
+      }
+    }
+    return index;
+  }
+
+  private void storeIndex() {
+    // Written next to the index then renamed, so a crash never leaves it half written.
+    File tmp = new File(indexFile.getPath() + ".tmp");
+    try (OutputStream out = new FileOutputStream(tmp)) {
+      index.store(out, "Model checksums by name");
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to write " + indexFile, e);
+      return;
+    }
+    if (!tmp.renameTo(indexFile)) {
+      Log.w(TAG, "Failed to write " + indexFile);
+    }
+  }
+}
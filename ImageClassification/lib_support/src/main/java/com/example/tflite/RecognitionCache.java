@@ -0,0 +1,427 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.tflite;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the top-K results of images already classified, so that classifying the same image
+ * again does not touch the interpreter.
+ *
+ * <p>Images are keyed by model and either an exact hash of their pixels, or a perceptual hash of a
+ * 9x8 luma thumbnail and the coarse mean colour of the image, that also matches re-encoded,
+ * resized or slightly edited copies. Models are told apart by the ids callers give, which should
+ * identify the content of the model and every setting the results depend on. Recent
+ * results are kept in an LRU map of bounded size, and optionally in a fixed-size memory-mapped
+ * file that survives restarts: a direct-mapped table in which a new result simply overwrites the
+ * slot its key falls in, so the file never grows.
+ *
+ * <p>The cache only stores class indices and confidences and has no Android dependency, so it can
+ * also be used by host tools. All methods are thread-safe.
+ */
+public final class RecognitionCache {
+
+  /** How images are turned into keys. */
+  public enum KeyMode {
+    /** Identical pixels only. */
+    EXACT,
+    /** Images that look the same once reduced to a tiny grayscale thumbnail. */
+    PERCEPTUAL
+  }
+
+  /** Counters of a cache at one point in time. */
+  public static final class Stats {
+    public final long hits;
+    public final long persistentHits;
+    public final long misses;
+    public final int size;
+
+    Stats(long hits, long persistentHits, long misses, int size) {
+      this.hits = hits;
+      this.persistentHits = persistentHits;
+      this.misses = misses;
+      this.size = size;
+    }
+
+    /** Gets the fraction of lookups answered from memory or from the persistent store. */
+    public double getHitRate() {
+      long lookups = hits + misses;
+      return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public String toString() {
+      return "hits="
+          + hits
+          + " (persistent="
+          + persistentHits
+          + ") misses="
+          + misses
+          + " hitRate="
+          + Math.round(getHitRate() * 1000) / 10.0
+          + "% size="
+          + size;
+    }
+  }
+
+  /** Identifies the persistent store, and its layout version. */
+  private static final int MAGIC = 0x52434332;
+
+  /** Magic, slot count, maximum number of results and hash of the store key. */
+  private static final int HEADER_BYTES = 20;
+
+  /** Side of the perceptual thumbnail: one column more than bits per row. */
+  private static final int THUMBNAIL_WIDTH = 9;
+
+  private static final int THUMBNAIL_HEIGHT = 8;
+
+  /** Upper bound of the samples averaged along each side of a thumbnail cell. */
+  private static final int MAX_SAMPLES_PER_CELL = 4;
+
+  /** Bits kept of each channel of the mean colour of a perceptual key. */
+  private static final int COLOUR_BITS = 3;
+
+  /** Results of one image. */
+  private static final class Entry {
+    final int size;
+    final int[] indices;
+    final float[] scores;
+
+    Entry(int size, int[] indices, float[] scores) {
+      this.size = size;
+      this.indices = indices;
+      this.scores = scores;
+    }
+  }
+
+  /** Key of an image for one model. */
+  private static final class Key {
+    final long model;
+    final long image;
+
+    Key(long model, long image) {
+      this.model = model;
+      this.image = image;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return model == other.model && image == other.image;
+    }
+
+    @Override
+    public int hashCode() {
+      return (int) (mix(model ^ image) >>> 32);
+    }
+  }
+
+  private final KeyMode keyMode;
+  private final int maxResults;
+  private final LinkedHashMap<Key, Entry> entries;
+  private final int recordBytes;
+
+  private MappedByteBuffer store;
+  private int storeSlots;
+  private long hits;
+  private long persistentHits;
+  private long misses;
+
+  /**
+   * Creates an empty cache.
+   *
+   * @param maxEntries The number of results kept in memory.
+   * @param maxResults The number of results kept per image.
+   * @param keyMode How images are turned into keys.
+   */
+  public RecognitionCache(final int maxEntries, int maxResults, KeyMode keyMode) {
+    if (maxEntries <= 0 || maxResults <= 0) {
+      throw new IllegalArgumentException("maxEntries and maxResults must be positive");
+    }
+    this.keyMode = keyMode;
+    this.maxResults = maxResults;
+    // Model, image, size, then the indices and scores.
+    recordBytes = 8 + 8 + 4 + maxResults * 8;
+    entries =
+        new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+            return size() > maxEntries;
+          }
+        };
+  }
+
+  /** Gets how images are turned into keys. */
+  public KeyMode getKeyMode() {
+    return keyMode;
+  }
+
+  /** Gets the number of results kept per image. */
+  public int getMaxResults() {
+    return maxResults;
+  }
+
+  /**
+   * Also keeps results in a memory-mapped file of {@code slots} records, creating it if needed.
+   * A file written with another layout, or for another store key, is cleared.
+   *
+   * @param storeKey Identifies what the stored results were computed with, such as the checksum
+   *     of the model and its settings, so that a store is never read for another model that
+   *     replaced it under the same name.
+   */
+  public synchronized void openPersistentStore(File file, int slots, String storeKey)
+      throws IOException {
+    if (slots <= 0) {
+      throw new IllegalArgumentException("slots must be positive, was " + slots);
+    }
+    long length = HEADER_BYTES + (long) slots * recordBytes;
+    long storeHash = hashModel(storeKey);
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      boolean valid = raf.length() == length;
+      raf.setLength(length);
+      store = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+      store.order(ByteOrder.LITTLE_ENDIAN);
+      valid = valid
+          && store.getInt(0) == MAGIC
+          && store.getInt(4) == slots
+          && store.getInt(8) == maxResults
+          && store.getLong(12) == storeHash;
+      if (!valid) {
+        for (long i = 0; i < length; ++i) {
+          store.put((int) i, (byte) 0);
+        }
+        store.putInt(0, MAGIC);
+        store.putInt(4, slots);
+        store.putInt(8, maxResults);
+        store.putLong(12, storeHash);
+      }
+    }
+    storeSlots = slots;
+  }
+
+  /** Computes the key of ARGB pixels in the mode of this cache. */
+  public long computeKey(int[] pixels, int width, int height, int sensorOrientation) {
+    long hash =
+        keyMode == KeyMode.EXACT
+            ? exactHash(pixels, width, height)
+            : perceptualHash(pixels, width, height);
+    // The same pixels give other results once rotated.
+    return hash ^ mix(sensorOrientation / 90 + 1);
+  }
+
+  /**
+   * Looks up the results of an image.
+   *
+   * @param modelId Identifies the model the results come from.
+   * @param key The key of the image, from {@link #computeKey}.
+   * @param indices Receives the class indices, best first.
+   * @param scores Receives the confidences, best first.
+   * @return The number of results, or -1 on a miss.
+   */
+  public synchronized int lookup(String modelId, long key, int[] indices, float[] scores) {
+    Key k = new Key(hashModel(modelId), key);
+    Entry entry = entries.get(k);
+    if (entry == null && store != null) {
+      entry = readRecord(k);
+      if (entry != null) {
+        ++persistentHits;
+        entries.put(k, entry);
+      }
+    }
+    if (entry == null) {
+      ++misses;
+      return -1;
+    }
+    ++hits;
+    int size = Math.min(entry.size, Math.min(indices.length, scores.length));
+    System.arraycopy(entry.indices, 0, indices, 0, size);
+    System.arraycopy(entry.scores, 0, scores, 0, size);
+    return size;
+  }
+
+  /** Stores the results of an image, keeping at most {@link #getMaxResults()} of them. */
+  public synchronized void put(
+      String modelId, long key, int size, int[] indices, float[] scores) {
+    size = Math.min(size, maxResults);
+    Key k = new Key(hashModel(modelId), key);
+    Entry entry =
+        new Entry(
+            size,
+            java.util.Arrays.copyOf(indices, size),
+            java.util.Arrays.copyOf(scores, size));
+    entries.put(k, entry);
+    if (store != null) {
+      writeRecord(k, entry);
+    }
+  }
+
+  /** Forgets every result, in memory and in the persistent store. */
+  public synchronized void clear() {
+    entries.clear();
+    if (store != null) {
+      for (int i = HEADER_BYTES; i < store.capacity(); ++i) {
+        store.put(i, (byte) 0);
+      }
+    }
+  }
+
+  /** Writes the persistent store back to its file. */
+  public synchronized void flush() {
+    if (store != null) {
+      store.force();
+    }
+  }
+
+  /** Gets the hit and miss counts and the number of results in memory. */
+  public synchronized Stats getStats() {
+    return new Stats(hits, persistentHits, misses, entries.size());
+  }
+
+  private Entry readRecord(Key k) {
+    int offset = getRecordOffset(k);
+    if (store.getLong(offset) != k.model || store.getLong(offset + 8) != k.image) {
+      return null;
+    }
+    int size = Math.min(store.getInt(offset + 16), maxResults);
+    if (size <= 0) {
+      return null;
+    }
+    int[] indices = new int[size];
+    float[] scores = new float[size];
+    int position = offset + 20;
+    for (int i = 0; i < size; ++i) {
+      indices[i] = store.getInt(position);
+      scores[i] = store.getFloat(position + 4);
+      position += 8;
+    }
+    return new Entry(size, indices, scores);
+  }
+
+  private void writeRecord(Key k, Entry entry) {
+    int offset = getRecordOffset(k);
+    store.putLong(offset, k.model);
+    store.putLong(offset + 8, k.image);
+    store.putInt(offset + 16, entry.size);
+    int position = offset + 20;
+    for (int i = 0; i < entry.size; ++i) {
+      store.putInt(position, entry.indices[i]);
+      store.putFloat(position + 4, entry.scores[i]);
+      position += 8;
+    }
+  }
+
+  private int getRecordOffset(Key k) {
+    int slot = (int) ((mix(k.model ^ k.image) >>> 1) % storeSlots);
+    return HEADER_BYTES + slot * recordBytes;
+  }
+
+  /** Hashes every pixel and the size of an image. */
+  public static long exactHash(int[] pixels, int width, int height) {
+    long hash = 0xcbf29ce484222325L ^ ((long) width << 32 | height);
+    int count = width * height;
+    for (int i = 0; i < count; ++i) {
+      hash = (hash ^ pixels[i]) * 0x100000001b3L;
+    }
+    return mix(hash);
+  }
+
+  /**
+   * Computes the difference hash of an image: its luma is averaged down to a 9x8 thumbnail, and
+   * each of the 64 bits tells whether a cell is brighter than its right neighbor. Flat images have
+   * no such gradient, so the hash is combined with the mean colour of the samples, a few bits per
+   * channel, to tell a blank frame from a dark one or a red wall from a blue one.
+   */
+  public static long perceptualHash(int[] pixels, int width, int height) {
+    int[] cells = new int[THUMBNAIL_WIDTH * THUMBNAIL_HEIGHT];
+    long sumRed = 0;
+    long sumGreen = 0;
+    long sumBlue = 0;
+    int samples = 0;
+    for (int cy = 0; cy < THUMBNAIL_HEIGHT; ++cy) {
+      int top = cy * height / THUMBNAIL_HEIGHT;
+      int bottom = Math.max(top + 1, (cy + 1) * height / THUMBNAIL_HEIGHT);
+      int stepY = Math.max(1, (bottom - top) / MAX_SAMPLES_PER_CELL);
+      for (int cx = 0; cx < THUMBNAIL_WIDTH; ++cx) {
+        int left = cx * width / THUMBNAIL_WIDTH;
+        int right = Math.max(left + 1, (cx + 1) * width / THUMBNAIL_WIDTH);
+        int stepX = Math.max(1, (right - left) / MAX_SAMPLES_PER_CELL);
+        int sum = 0;
+        int count = 0;
+        for (int y = top; y < bottom && y < height; y += stepY) {
+          for (int x = left; x < right && x < width; x += stepX) {
+            int pixel = pixels[y * width + x];
+            int red = (pixel >> 16) & 0xff;
+            int green = (pixel >> 8) & 0xff;
+            int blue = pixel & 0xff;
+            // Integer BT.601 luma.
+            sum += (77 * red + 150 * green + 29 * blue) >> 8;
+            ++count;
+            sumRed += red;
+            sumGreen += green;
+            sumBlue += blue;
+          }
+        }
+        cells[cy * THUMBNAIL_WIDTH + cx] = count == 0 ? 0 : sum / count;
+        samples += count;
+      }
+    }
+    long hash = 0;
+    for (int cy = 0; cy < THUMBNAIL_HEIGHT; ++cy) {
+      for (int cx = 0; cx < THUMBNAIL_WIDTH - 1; ++cx) {
+        int cell = cy * THUMBNAIL_WIDTH + cx;
+        hash = hash << 1 | (cells[cell] > cells[cell + 1] ? 1 : 0);
+      }
+    }
+    int shift = 8 - COLOUR_BITS;
+    int colour = 0;
+    if (samples > 0) {
+      colour =
+          (int) (sumRed / samples) >> shift << (2 * COLOUR_BITS)
+              | (int) (sumGreen / samples) >> shift << COLOUR_BITS
+              | (int) (sumBlue / samples) >> shift;
+    }
+    return hash ^ mix(colour + 1);
+  }
+
+  private static long hashModel(String modelId) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < modelId.length(); ++i) {
+      hash = (hash ^ modelId.charAt(i)) * 0x100000001b3L;
+    }
+    // Never 0, so that an empty slot of the store never matches.
+    return mix(hash) | 1;
+  }
+
+  /** The finalizer of MurmurHash3, spreading every input bit over the whole hash. */
+  private static long mix(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
@@ -0,0 +1,141 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.tflite;
+
+import com.example.tflite.Classifier.Recognition;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The top classes of one classification, as class indices and primitive confidences, best first.
+ *
+ * <p>Unlike a list of {@link Recognition}s, an instance is meant to be filled again for every frame:
+ * its arrays are allocated once, and titles are only resolved from the shared {@link LabelTable}
+ * when asked for, so neither post-processing nor handing results over allocates anything.
+ */
+public final class Recognitions {
+
+  private final int[] indices;
+
+  private final float[] confidences;
+
+  private int size;
+
+  private LabelTable labels;
+
+  /** Creates results holding at most {@code capacity} classes. */
+  public Recognitions(int capacity) {
+    indices = new int[capacity];
+    confidences = new float[capacity];
+  }
+
+  /** Gets the maximum number of classes these results can hold. */
+  public int getCapacity() {
+    return indices.length;
+  }
+
+  /** Gets the number of classes recognized. */
+  public int size() {
+    return size;
+  }
+
+  /** Gets the class index of the {@code rank}-th result, best first. */
+  public int getIndex(int rank) {
+    return indices[rank];
+  }
+
+  /** Gets the confidence of the {@code rank}-th result, best first. */
+  public float getConfidence(int rank) {
+    return confidences[rank];
+  }
+
+  /** Gets the label of the {@code rank}-th result, best first. */
+  public String getTitle(int rank) {
+    return labels.get(indices[rank]);
+  }
+
+  /** Gets the labels the class indices refer to, or null if no results were set yet. */
+  public LabelTable getLabels() {
+    return labels;
+  }
+
+  /** Removes every result. */
+  public void clear() {
+    size = 0;
+  }
+
+  /** Replaces these results with {@code other}, keeping at most {@link #getCapacity()} of them. */
+  public void copyFrom(Recognitions other) {
+    size = Math.min(other.size, indices.length);
+    labels = other.labels;
+    System.arraycopy(other.indices, 0, indices, 0, size);
+    System.arraycopy(other.confidences, 0, confidences, 0, size);
+  }
+
+  /** Whether {@code other} holds the same classes with the same confidences, in the same order. */
+  public boolean contentEquals(Recognitions other) {
+    if (size != other.size || labels != other.labels) {
+      return false;
+    }
+    for (int i = 0; i < size; ++i) {
+      if (indices[i] != other.indices[i] || confidences[i] != other.confidences[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Converts the results to {@link Recognition}s, for callers of the list based API. */
+  public List<Recognition> toList() {
+    List<Recognition> recognitions = new ArrayList<>(size);
+    for (int i = 0; i < size; ++i) {
+      String label = getTitle(i);
+      recognitions.add(new Recognition(label, label, confidences[i], null));
+    }
+    return recognitions;
+  }
+
+  /** Starts filling the results of a new classification. */
+  void reset(LabelTable labels) {
+    this.labels = labels;
+    size = 0;
+  }
+
+  /** Appends a result. Results must be added best first, and beyond capacity are dropped. */
+  void add(int index, float confidence) {
+    if (size < indices.length) {
+      indices[size] = index;
+      confidences[size] = confidence;
+      ++size;
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder("[");
+    for (int i = 0; i < size; ++i) {
+      if (i > 0) {
+        builder.append(", ");
+      }
+      builder
+          .append(getTitle(i))
+          .append(' ')
+          .append(Math.round(confidences[i] * 1000) / 10f)
+          .append('%');
+    }
+    return builder.append(']').toString();
+  }
+}
@@ -0,0 +1,132 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.tflite;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Selects the K highest scores out of a primitive array.
+ *
+ * <p>The winners are kept in small arrays sorted by descending score and reused across calls, so a
+ * selection does not allocate. Ties keep the lower class index first.
+ *
+ * <p>Dequantization is monotonic, so quantized outputs can be ranked on their raw bytes with
+ * {@link #selectUint8} and only the winners need to be dequantized.
+ */
+public final class TopK {
+
+  /** Class indices of the winners, best first. */
+  private final int[] indices;
+
+  /** Scores of the winners, best first. */
+  private final float[] scores;
+
+  /** Number of valid winners from the last selection. */
+  private int size;
+
+  /** Creates a selector for the {@code k} highest scores. */
+  public TopK(int k) {
+    if (k <= 0) {
+      throw new IllegalArgumentException("k must be positive, was " + k);
+    }
+    indices = new int[k];
+    scores = new float[k];
+  }
+
+  /**
+   * Selects the highest of the first {@code count} values.
+   *
+   * @return The number of winners, at most K.
+   */
+  public int select(float[] values, int count) {
+    return select(values, count, Float.NEGATIVE_INFINITY);
+  }
+
+  /**
+   * Selects the highest of the first {@code count} values, skipping values below {@code minScore}.
+   *
+   * @return The number of winners, at most K.
+   */
+  public int select(float[] values, int count, float minScore) {
+    final int k = indices.length;
+    size = 0;
+    for (int i = 0; i < count; ++i) {
+      float value = values[i];
+      if (!(value >= minScore) || (size == k && !(value > scores[k - 1]))) {
+        continue;
+      }
+      insert(i, value);
+    }
+    return size;
+  }
+
+  /**
+   * Selects the highest of {@code count} unsigned bytes of {@code values} starting at the absolute
+   * {@code offset}, skipping bytes below {@code minValue}. Indices of the winners are relative to
+   * {@code offset} and their scores are the raw byte values.
+   *
+   * @return The number of winners, at most K.
+   */
+  public int selectUint8(ByteBuffer values, int offset, int count, int minValue) {
+    final int k = indices.length;
+    size = 0;
+    // Anything at or below the floor cannot win. It only rises once all K slots are taken.
+    int floor = minValue - 1;
+    for (int i = 0; i < count; ++i) {
+      int value = values.get(offset + i) & 0xff;
+      if (value <= floor) {
+        continue;
+      }
+      insert(i, value);
+      if (size == k) {
+        floor = (int) scores[k - 1];
+      }
+    }
+    return size;
+  }
+
+  /** Inserts a candidate known to beat the current last winner. */
+  private void insert(int index, float score) {
+    int j = size < indices.length ? size++ : size - 1;
+    while (j > 0 && score > scores[j - 1]) {
+      indices[j] = indices[j - 1];
+      scores[j] = scores[j - 1];
+      --j;
+    }
+    indices[j] = index;
+    scores[j] = score;
+  }
+
+  /** Gets the number of winners from the last selection. */
+  public int size() {
+    return size;
+  }
+
+  /** Gets K, the maximum number of winners. */
+  public int getK() {
+    return indices.length;
+  }
+
+  /** Gets the class index of the {@code rank}-th winner, best first. */
+  public int getIndex(int rank) {
+    return indices[rank];
+  }
+
+  /** Gets the score of the {@code rank}-th winner, best first. */
+  public float getScore(int rank) {
+    return scores[rank];
+  }
+}
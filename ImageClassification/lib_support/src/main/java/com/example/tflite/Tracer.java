@@ -0,0 +1,241 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.tflite;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records spans and counters into a preallocated ring buffer, as a lightweight equivalent of
+ * {@code android.os.Trace} that can also be collected on the JVM and from devices in the field.
+ *
+ * <p>Names are registered once, typically into static constants, and events only store their id,
+ * the thread and a timestamp, so recording allocates nothing and costs a few atomic operations.
+ * When tracing is disabled, recording costs a volatile read. A single consumer, usually a {@link
+ * ChromeTraceExporter}, drains the buffer in the background. If it falls behind, the oldest events
+ * are overwritten and counted as dropped.
+ *
+ * <pre>
+ *   private static final int TRACE_INFERENCE = Tracer.registerName("runInference");
+ *
+ *   Tracer.begin(TRACE_INFERENCE);
+ *   tflite.run(input, output);
+ *   Tracer.end(TRACE_INFERENCE);
+ * </pre>
+ */
+public final class Tracer {
+  /** Default number of events the buffer holds. */
+  public static final int DEFAULT_CAPACITY = 1 << 14;
+
+  /** Type of the event starting a span. */
+  public static final int BEGIN = 0;
+
+  /** Type of the event ending the span started last on the same thread. */
+  public static final int END = 1;
+
+  /** Type of the event setting the value of a counter. */
+  public static final int COUNTER = 2;
+
+  /** Receives the events drained from the buffer. */
+  public interface Sink {
+    /**
+     * @param type {@link #BEGIN}, {@link #END} or {@link #COUNTER}.
+     * @param name The registered name of the span or counter.
+     * @param threadId The id of the thread that recorded the event.
+     * @param timestampNanos The time of the event, from {@link System#nanoTime()}.
+     * @param value The value of a counter, 0 for spans.
+     */
+    void onEvent(int type, String name, long threadId, long timestampNanos, long value);
+  }
+
+  /** Events of the buffer, one slot per event, in parallel arrays. */
+  private static final class Ring {
+    final int mask;
+    final long[] timestamps;
+    final long[] headers;
+    final long[] values;
+    // Index + 1 of the event a slot holds once written, or minus that while being written.
+    final AtomicLongArray sequences;
+    final AtomicLong writeIndex = new AtomicLong();
+    long readIndex;
+
+    Ring(int capacity) {
+      mask = capacity - 1;
+      timestamps = new long[capacity];
+      headers = new long[capacity];
+      values = new long[capacity];
+      sequences = new AtomicLongArray(capacity);
+    }
+
+    void record(int type, int nameId, long value) {
+      long index = writeIndex.getAndIncrement();
+      int slot = (int) (index & mask);
+      sequences.set(slot, -(index + 1));
+      timestamps[slot] = System.nanoTime();
+      headers[slot] = (long) type << 62 | (getThreadId() & 0x3fffffffL) << 32 | nameId;
+      values[slot] = value;
+      sequences.lazySet(slot, index + 1);
+    }
+  }
+
+  private static final Map<String, Integer> nameIds = new HashMap<>();
+  private static volatile String[] names = new String[64];
+  private static final Map<Long, String> threadNames = new ConcurrentHashMap<>();
+  private static final ThreadLocal<Long> threadIds =
+      new ThreadLocal<Long>() {
+        @Override
+        protected Long initialValue() {
+          Thread thread = Thread.currentThread();
+          threadNames.put(thread.getId(), thread.getName());
+          return thread.getId();
+        }
+      };
+  private static final AtomicLong droppedEvents = new AtomicLong();
+  private static volatile Ring ring;
+
+  private Tracer() {}
+
+  /** Starts recording into a buffer of {@link #DEFAULT_CAPACITY} events. */
+  public static void enable() {
+    enable(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Starts recording into a new buffer, discarding the events not drained yet.
+   *
+   * @param capacity The number of events the buffer holds, rounded up to a power of two.
+   */
+  public static synchronized void enable(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be positive, was " + capacity);
+    }
+    ring = new Ring(capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1);
+  }
+
+  /** Stops recording and discards the events not drained yet. */
+  public static synchronized void disable() {
+    ring = null;
+  }
+
+  /** Whether events are being recorded. */
+  public static boolean isEnabled() {
+    return ring != null;
+  }
+
+  /** Gets the id of a span or counter name, registering it on first use. */
+  public static synchronized int registerName(String name) {
+    Integer id = nameIds.get(name);
+    if (id == null) {
+      id = nameIds.size();
+      String[] current = names;
+      if (id == current.length) {
+        String[] grown = new String[current.length * 2];
+        System.arraycopy(current, 0, grown, 0, current.length);
+        current = grown;
+      }
+      current[id] = name;
+      nameIds.put(name, id);
+      names = current;
+    }
+    return id;
+  }
+
+  /** Starts a span on the current thread. */
+  public static void begin(int nameId) {
+    Ring ring = Tracer.ring;
+    if (ring != null) {
+      ring.record(BEGIN, nameId, 0);
+    }
+  }
+
+  /** Ends the span started last on the current thread. */
+  public static void end(int nameId) {
+    Ring ring = Tracer.ring;
+    if (ring != null) {
+      ring.record(END, nameId, 0);
+    }
+  }
+
+  /** Records the current value of a counter. */
+  public static void counter(int nameId, long value) {
+    Ring ring = Tracer.ring;
+    if (ring != null) {
+      ring.record(COUNTER, nameId, value);
+    }
+  }
+
+  /**
+   * Hands the events recorded since the last drain to {@code sink}, oldest first. Events still
+   * being written are left for the next drain.
+   *
+   * @return The number of events drained.
+   */
+  public static synchronized int drain(Sink sink) {
+    Ring ring = Tracer.ring;
+    if (ring == null) {
+      return 0;
+    }
+    String[] names = Tracer.names;
+    long writeIndex = ring.writeIndex.get();
+    int capacity = ring.mask + 1;
+    if (writeIndex - ring.readIndex > capacity) {
+      droppedEvents.addAndGet(writeIndex - capacity - ring.readIndex);
+      ring.readIndex = writeIndex - capacity;
+    }
+    int drained = 0;
+    while (ring.readIndex < writeIndex) {
+      int slot = (int) (ring.readIndex & ring.mask);
+      long expected = ring.readIndex + 1;
+      long sequence = ring.sequences.get(slot);
+      if (Math.abs(sequence) < expected || sequence == -expected) {
+        // Not written yet.
+        break;
+      }
+      long timestamp = ring.timestamps[slot];
+      long header = ring.headers[slot];
+      long value = ring.values[slot];
+      // Best effort: an event overwritten while being read is dropped.
+      if (sequence != expected || ring.sequences.get(slot) != expected) {
+        droppedEvents.incrementAndGet();
+      } else {
+        int nameId = (int) header;
+        String name = nameId < names.length && names[nameId] != null ? names[nameId] : "?";
+        sink.onEvent(
+            (int) (header >>> 62), name, (header >>> 32) & 0x3fffffffL, timestamp, value);
+        ++drained;
+      }
+      ++ring.readIndex;
+    }
+    return drained;
+  }
+
+  /** Gets the number of events overwritten before they could be drained. */
+  public static long getDroppedEvents() {
+    return droppedEvents.get();
+  }
+
+  /** Gets the name of a thread that recorded events, or null if unknown. */
+  public static String getThreadName(long threadId) {
+    return threadNames.get(threadId);
+  }
+
+  private static long getThreadId() {
+    return threadIds.get();
+  }
+}
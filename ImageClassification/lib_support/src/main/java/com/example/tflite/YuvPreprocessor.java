@@ -0,0 +1,189 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.tflite;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Writes the model input of a camera frame straight from its YUV 4:2:0 planes.
+ *
+ * <p>A {@link FusedPreprocessor} knows which source pixel every output pixel comes from. This
+ * kernel turns that gather table into luma and chroma offsets for a given plane layout, so only
+ * the pixels the model actually sees are converted to RGB, and no full-resolution ARGB frame or
+ * {@code Bitmap} is ever produced. On a 640x480 preview and a 224x224 model that is about 50k
+ * conversions instead of 300k.
+ *
+ * <p>Both camera2 {@code YUV_420_888} planes and legacy NV21 buffers are supported: NV21 is simply
+ * a single array whose V and U samples are interleaved with a pixel stride of 2.
+ */
+public final class YuvPreprocessor {
+
+  /** Number of kernels kept alive in the process-wide cache. */
+  private static final int MAX_CACHED_KERNELS = 8;
+
+  private static final Map<Key, YuvPreprocessor> CACHE =
+      new LinkedHashMap<Key, YuvPreprocessor>(MAX_CACHED_KERNELS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, YuvPreprocessor> eldest) {
+          return size() > MAX_CACHED_KERNELS;
+        }
+      };
+
+  private final Key key;
+
+  private final FusedPreprocessor geometry;
+
+  /** For every output pixel, the offset of its luma sample in the Y plane. */
+  private final int[] lumaIndex;
+
+  /** For every output pixel, the offset of its chroma samples in the U and V planes. */
+  private final int[] chromaIndex;
+
+  /**
+   * Returns a kernel for the given geometry and plane layout, building and caching it on first
+   * use.
+   *
+   * @param geometry The kernel for the same frame size, orientation and model input.
+   * @param yRowStride Row stride of the Y plane, in bytes.
+   * @param uvRowStride Row stride of the U and V planes, in bytes.
+   * @param uvPixelStride Pixel stride of the U and V planes, in bytes.
+   */
+  public static YuvPreprocessor get(
+      FusedPreprocessor geometry, int yRowStride, int uvRowStride, int uvPixelStride) {
+    Key key = new Key(geometry, yRowStride, uvRowStride, uvPixelStride);
+    synchronized (CACHE) {
+      YuvPreprocessor kernel = CACHE.get(key);
+      if (kernel == null) {
+        kernel = new YuvPreprocessor(key);
+        CACHE.put(key, kernel);
+      }
+      return kernel;
+    }
+  }
+
+  private YuvPreprocessor(Key key) {
+    this.key = key;
+    geometry = key.geometry;
+    int sourceWidth = geometry.getSourceWidth();
+    int[] sourceIndex = geometry.getSourceIndex();
+    lumaIndex = new int[sourceIndex.length];
+    chromaIndex = new int[sourceIndex.length];
+    for (int i = 0; i < sourceIndex.length; ++i) {
+      int x = sourceIndex[i] % sourceWidth;
+      int y = sourceIndex[i] / sourceWidth;
+      lumaIndex[i] = y * key.yRowStride + x;
+      chromaIndex[i] = (y >> 1) * key.uvRowStride + (x >> 1) * key.uvPixelStride;
+    }
+  }
+
+  /** Whether this kernel was built for the given plane layout. */
+  public boolean matches(
+      FusedPreprocessor geometry, int yRowStride, int uvRowStride, int uvPixelStride) {
+    return key.geometry == geometry
+        && key.yRowStride == yRowStride
+        && key.uvRowStride == uvRowStride
+        && key.uvPixelStride == uvPixelStride;
+  }
+
+  /** Number of bytes written by one call to {@link #apply}. */
+  public int getOutputByteSize() {
+    return geometry.getOutputByteSize();
+  }
+
+  /**
+   * Converts, crops, resizes, rotates and normalizes a YUV frame into {@code output}.
+   *
+   * @param yData The Y plane.
+   * @param uData The array holding the U samples.
+   * @param uOffset Offset of the first U sample in {@code uData}.
+   * @param vData The array holding the V samples.
+   * @param vOffset Offset of the first V sample in {@code vData}.
+   * @param output Destination buffer, in native byte order for float models.
+   * @param offset Absolute byte offset in {@code output} at which to start writing.
+   */
+  public void apply(
+      byte[] yData,
+      byte[] uData,
+      int uOffset,
+      byte[] vData,
+      int vOffset,
+      ByteBuffer output,
+      int offset) {
+    final int[] lumaIndex = this.lumaIndex;
+    final int[] chromaIndex = this.chromaIndex;
+    final float[] normalized = geometry.getNormalized();
+    final int count = lumaIndex.length;
+    int position = offset;
+    for (int i = 0; i < count; ++i) {
+      // The conversion of full ARGB frames, so that both paths feed the model alike.
+      int luma = YuvToRgb.lumaTerm(yData[lumaIndex[i]] & 0xff);
+      int u = uData[uOffset + chromaIndex[i]] & 0xff;
+      int v = vData[vOffset + chromaIndex[i]] & 0xff;
+      int r = YuvToRgb.channel(luma + YuvToRgb.redTerm(v));
+      int g = YuvToRgb.channel(luma + YuvToRgb.greenTerm(u, v));
+      int b = YuvToRgb.channel(luma + YuvToRgb.blueTerm(u));
+      if (normalized == null) {
+        output.put(position, (byte) r);
+        output.put(position + 1, (byte) g);
+        output.put(position + 2, (byte) b);
+        position += 3;
+      } else {
+        output.putFloat(position, normalized[r]);
+        output.putFloat(position + 4, normalized[256 + g]);
+        output.putFloat(position + 8, normalized[512 + b]);
+        position += 12;
+      }
+    }
+  }
+
+  /** Everything a kernel depends on. Geometry kernels are cached, so identity is enough. */
+  private static final class Key {
+    final FusedPreprocessor geometry;
+    final int yRowStride;
+    final int uvRowStride;
+    final int uvPixelStride;
+
+    Key(FusedPreprocessor geometry, int yRowStride, int uvRowStride, int uvPixelStride) {
+      this.geometry = geometry;
+      this.yRowStride = yRowStride;
+      this.uvRowStride = uvRowStride;
+      this.uvPixelStride = uvPixelStride;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return geometry == other.geometry
+          && yRowStride == other.yRowStride
+          && uvRowStride == other.uvRowStride
+          && uvPixelStride == other.uvPixelStride;
+    }
+
+    @Override
+    public int hashCode() {
+      int result = System.identityHashCode(geometry);
+      result = 31 * result + yRowStride;
+      result = 31 * result + uvRowStride;
+      result = 31 * result + uvPixelStride;
+      return result;
+    }
+  }
+}
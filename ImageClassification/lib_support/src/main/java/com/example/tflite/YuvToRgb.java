@@ -0,0 +1,93 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.example.tflite;
+
+/**
+ * The integer YUV to RGB conversion shared by every path that feeds camera frames to a model, so
+ * that they all convert alike.
+ *
+ * <p>A channel is the sum of a luma term and of chroma terms in 10-bit fixed point, clamped to
+ * [0, 2^18 - 1] and scaled down to 8 bits. Every term is looked up in a per-channel table, so that
+ * callers converting 2x2 blocks can compute the chroma terms once per block.
+ */
+public final class YuvToRgb {
+
+  // Clamping to [0, 2^18 - 1] before keeping the top eight bits is the same as clamping the top
+  // bits to [0, 255]. Sums of terms stay within [-CLAMP_OFFSET << 10, (CLAMP_SIZE - CLAMP_OFFSET)
+  // << 10).
+  private static final int CLAMP_OFFSET = 384;
+  private static final int CLAMP_SIZE = 1024;
+  private static final int[] CLAMP = new int[CLAMP_SIZE];
+  // 1192 * max(y - 16, 0).
+  private static final int[] Y_TERM = new int[256];
+  // 1634 * (v - 128), added to red.
+  private static final int[] V_RED = new int[256];
+  // -833 * (v - 128), added to green.
+  private static final int[] V_GREEN = new int[256];
+  // -400 * (u - 128), added to green.
+  private static final int[] U_GREEN = new int[256];
+  // 2066 * (u - 128), added to blue.
+  private static final int[] U_BLUE = new int[256];
+
+  static {
+    for (int i = 0; i < CLAMP_SIZE; ++i) {
+      CLAMP[i] = Math.max(0, Math.min(255, i - CLAMP_OFFSET));
+    }
+    for (int i = 0; i < 256; ++i) {
+      Y_TERM[i] = 1192 * Math.max(i - 16, 0);
+      V_RED[i] = 1634 * (i - 128);
+      V_GREEN[i] = -833 * (i - 128);
+      U_GREEN[i] = -400 * (i - 128);
+      U_BLUE[i] = 2066 * (i - 128);
+    }
+  }
+
+  private YuvToRgb() {}
+
+  /** Gets the term of a luma sample, added to every channel. */
+  public static int lumaTerm(int y) {
+    return Y_TERM[y];
+  }
+
+  /** Gets the term of the chroma samples added to red. */
+  public static int redTerm(int v) {
+    return V_RED[v];
+  }
+
+  /** Gets the term of the chroma samples added to green. */
+  public static int greenTerm(int u, int v) {
+    return V_GREEN[v] + U_GREEN[u];
+  }
+
+  /** Gets the term of the chroma samples added to blue. */
+  public static int blueTerm(int u) {
+    return U_BLUE[u];
+  }
+
+  /** Gets the 8-bit value of a channel from the sum of its luma and chroma terms. */
+  public static int channel(int sum) {
+    return CLAMP[(sum >> 10) + CLAMP_OFFSET];
+  }
+
+  /** Converts unsigned Y, U and V samples into an opaque ARGB pixel. */
+  public static int toArgb(int y, int u, int v) {
+    int luma = Y_TERM[y];
+    return 0xff000000
+        | channel(luma + V_RED[v]) << 16
+        | channel(luma + V_GREEN[v] + U_GREEN[u]) << 8
+        | channel(luma + U_BLUE[u]);
+  }
+}
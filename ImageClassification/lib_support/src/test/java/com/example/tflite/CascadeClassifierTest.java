@@ -0,0 +1,129 @@
+package com.example.tflite;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+/**
+ * Checks which fast results {@link CascadeClassifier} keeps, and which it escalates, and the top
+ * confidences of the raw outputs it decides on.
+ */
+public class CascadeClassifierTest {
+
+  private static final float MIN_CONFIDENCE = CascadeClassifier.DEFAULT_MIN_CONFIDENCE;
+  private static final float MIN_MARGIN = CascadeClassifier.DEFAULT_MIN_MARGIN;
+
+  private static boolean accepts(float top1, float top2) {
+    return CascadeClassifier.isConfident(top1, top2, MIN_CONFIDENCE, MIN_MARGIN);
+  }
+
+  private static ByteBuffer float32(float... values) {
+    ByteBuffer output = ByteBuffer.allocate(values.length * 4);
+    for (int i = 0; i < values.length; ++i) {
+      output.putFloat(i * 4, values[i]);
+    }
+    return output;
+  }
+
+  private static ByteBuffer uint8(int... values) {
+    ByteBuffer output = ByteBuffer.allocate(values.length);
+    for (int i = 0; i < values.length; ++i) {
+      output.put(i, (byte) values[i]);
+    }
+    return output;
+  }
+
+  /** Gets the top-2 confidences, as the cascade does to measure the margin of the fast model. */
+  private static float[] topConfidences(
+      ByteBuffer output, int numClasses, boolean quantized, float mean, float std) {
+    return topConfidences(output, numClasses, quantized, mean, std, 2);
+  }
+
+  private static float[] topConfidences(
+      ByteBuffer output, int numClasses, boolean quantized, float mean, float std, int count) {
+    float[] confidences = new float[count];
+    Classifier.getTopConfidences(output, numClasses, quantized, mean, std, confidences);
+    return confidences;
+  }
+
+  @Test
+  public void acceptsConfidentTop1() {
+    assertTrue(accepts(0.6f, 0.4f));
+    assertTrue(accepts(0.9f, 0.05f));
+  }
+
+  @Test
+  public void acceptsClearLead() {
+    assertTrue(accepts(0.45f, 0.1f));
+  }
+
+  @Test
+  public void escalatesCloseCall() {
+    assertFalse(accepts(0.5f, 0.45f));
+    assertFalse(accepts(0.3f, 0.25f));
+  }
+
+  @Test
+  public void escalatesCloseCallWhateverTheResultsShown() {
+    // With a minimum confidence of 0.48 on the fast classifier, its results only hold the top-1:
+    // the runner-up of the raw output still makes it a close call.
+    float top1 = 0.5f;
+    float rawTop2 = 0.47f;
+    assertFalse(accepts(top1, rawTop2));
+    // Taking a missing runner-up as 0 would have overstated the margin.
+    assertTrue(accepts(top1, 0));
+  }
+
+  @Test
+  public void followsThresholds() {
+    assertTrue(CascadeClassifier.isConfident(0.5f, 0.45f, 0.5f, 1.0f));
+    assertTrue(CascadeClassifier.isConfident(0.5f, 0.45f, 1.0f, 0.05f));
+    assertFalse(CascadeClassifier.isConfident(0.5f, 0.45f, 1.0f, 0.1f));
+  }
+
+  @Test
+  public void topConfidencesOfFloatOutput() {
+    ByteBuffer output = float32(0.1f, 0.5f, 0.05f, 0.3f, 0.05f);
+    assertArrayEquals(
+        new float[] {0.5f, 0.3f}, topConfidences(output, 5, false, 0f, 1f), 0f);
+    assertArrayEquals(
+        new float[] {0.5f, 0.3f, 0.1f}, topConfidences(output, 5, false, 0f, 1f, 3), 0f);
+    // Only the first numClasses scores count.
+    assertArrayEquals(
+        new float[] {0.5f, 0.1f}, topConfidences(output, 3, false, 0f, 1f), 0f);
+  }
+
+  @Test
+  public void topConfidencesOfUint8Output() {
+    // Raw bytes above 127 rank as unsigned, and are dequantized with the mean and std.
+    ByteBuffer output = uint8(10, 255, 128, 200, 0);
+    assertArrayEquals(
+        new float[] {1f, 200 / 255f}, topConfidences(output, 5, true, 0f, 255f), 1e-6f);
+    assertArrayEquals(
+        new float[] {127f, 72f}, topConfidences(output, 5, true, 128f, 1f), 0f);
+  }
+
+  @Test
+  public void topConfidencesKeepTies() {
+    assertArrayEquals(
+        new float[] {0.4f, 0.4f},
+        topConfidences(float32(0.2f, 0.4f, 0.4f), 3, false, 0f, 1f),
+        0f);
+  }
+
+  @Test
+  public void missingTopConfidencesAreZero() {
+    assertArrayEquals(
+        new float[] {0.7f, 0f, 0f}, topConfidences(float32(0.7f), 1, false, 0f, 1f, 3), 0f);
+    assertArrayEquals(
+        new float[] {0f, 0f}, topConfidences(uint8(), 0, true, 0f, 255f), 0f);
+  }
+
+  @Test
+  public void noTopConfidenceIsWrittenToEmptyArray() {
+    assertArrayEquals(new float[0], topConfidences(float32(0.7f, 0.3f), 2, false, 0f, 1f, 0), 0f);
+  }
+}
@@ -0,0 +1,251 @@
+package com.example.tflite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that {@link ChromeTraceExporter} writes the events drained from {@link Tracer} as valid
+ * JSON, within the size limit of its files.
+ */
+public class ChromeTraceExporterTest {
+
+  @Before
+  public void setUp() {
+    Tracer.enable();
+  }
+
+  @After
+  public void tearDown() {
+    Tracer.disable();
+  }
+
+  @Test
+  public void writesEmptyArrayWithoutEvents() throws IOException {
+    StringWriter output = new StringWriter();
+    new ChromeTraceExporter(output).close();
+    assertEquals(new ArrayList<>(), parse(output.toString()));
+  }
+
+  @Test
+  public void writesEventsAsJson() throws IOException {
+    int span = Tracer.registerName("load \"model\"\\\n");
+    int counter = Tracer.registerName("ChromeTraceExporterTest.counter");
+    Tracer.begin(span);
+    Tracer.counter(counter, -42);
+    Tracer.end(span);
+
+    StringWriter output = new StringWriter();
+    try (ChromeTraceExporter exporter = new ChromeTraceExporter(output)) {
+      exporter.flush();
+      // Later events append to the same array.
+      Tracer.counter(counter, 7);
+    }
+
+    List<?> events = (List<?>) parse(output.toString());
+    assertEquals(5, events.size());
+    long threadId = Thread.currentThread().getId();
+    Map<?, ?> metadata = (Map<?, ?>) events.get(0);
+    assertEquals("thread_name", metadata.get("name"));
+    assertEquals("M", metadata.get("ph"));
+    assertEquals((double) threadId, metadata.get("tid"));
+    assertEquals(
+        Thread.currentThread().getName(), ((Map<?, ?>) metadata.get("args")).get("name"));
+
+    String[] phases = {"B", "C", "E", "C"};
+    double lastTimestamp = 0;
+    for (int i = 1; i < events.size(); ++i) {
+      Map<?, ?> event = (Map<?, ?>) events.get(i);
+      assertEquals(phases[i - 1], event.get("ph"));
+      assertEquals(1.0, event.get("pid"));
+      assertEquals((double) threadId, event.get("tid"));
+      double timestamp = (Double) event.get("ts");
+      assertTrue(timestamp >= lastTimestamp);
+      lastTimestamp = timestamp;
+    }
+    assertEquals("load \"model\"\\\n", ((Map<?, ?>) events.get(1)).get("name"));
+    assertEquals(-42.0, ((Map<?, ?>) ((Map<?, ?>) events.get(2)).get("args")).get("value"));
+    assertEquals(7.0, ((Map<?, ?>) ((Map<?, ?>) events.get(4)).get("args")).get("value"));
+  }
+
+  @Test
+  public void rollsOverFilesReachingTheLimit() throws IOException {
+    int counter = Tracer.registerName("ChromeTraceExporterTest.counter");
+    File file = File.createTempFile("trace", ".json");
+    File previous = ChromeTraceExporter.getPreviousFile(file);
+    file.deleteOnExit();
+    previous.deleteOnExit();
+
+    try (ChromeTraceExporter exporter = ChromeTraceExporter.open(file, 1024)) {
+      for (int i = 0; i < 100; ++i) {
+        Tracer.counter(counter, i);
+        exporter.flush();
+      }
+    }
+
+    // One event at most is written past the limit.
+    assertTrue(file.length() < 1024 + 256);
+    assertTrue(previous.length() < 1024 + 256);
+    List<?> current = (List<?>) parse(read(file));
+    List<?> older = (List<?>) parse(read(previous));
+    // Each file names the threads it has events of.
+    assertEquals("thread_name", ((Map<?, ?>) current.get(0)).get("name"));
+    assertEquals("thread_name", ((Map<?, ?>) older.get(0)).get("name"));
+    // The files hold the most recent events, in order.
+    List<Object> values = new ArrayList<>();
+    for (List<?> events : new List<?>[] {older, current}) {
+      for (Object event : events.subList(1, events.size())) {
+        values.add(((Map<?, ?>) ((Map<?, ?>) event).get("args")).get("value"));
+      }
+    }
+    for (int i = 0; i < values.size(); ++i) {
+      assertEquals((double) (100 - values.size() + i), values.get(i));
+    }
+  }
+
+  private static String read(File file) throws IOException {
+    return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+  }
+
+  /** Parses JSON into lists, maps, strings and doubles, failing on anything malformed. */
+  private static Object parse(String json) {
+    Parser parser = new Parser(json);
+    Object value = parser.parseValue();
+    parser.skipWhitespace();
+    if (parser.position != json.length()) {
+      throw parser.error();
+    }
+    return value;
+  }
+
+  private static final class Parser {
+    final String json;
+    int position;
+
+    Parser(String json) {
+      this.json = json;
+    }
+
+    Object parseValue() {
+      skipWhitespace();
+      char c = peek();
+      if (c == '[') {
+        ++position;
+        List<Object> list = new ArrayList<>();
+        skipWhitespace();
+        if (peek() == ']') {
+          ++position;
+          return list;
+        }
+        do {
+          list.add(parseValue());
+          skipWhitespace();
+        } while (accept(','));
+        expect(']');
+        return list;
+      } else if (c == '{') {
+        ++position;
+        Map<String, Object> map = new LinkedHashMap<>();
+        skipWhitespace();
+        if (peek() == '}') {
+          ++position;
+          return map;
+        }
+        do {
+          skipWhitespace();
+          String key = parseString();
+          skipWhitespace();
+          expect(':');
+          if (map.put(key, parseValue()) != null) {
+            throw error();
+          }
+          skipWhitespace();
+        } while (accept(','));
+        expect('}');
+        return map;
+      } else if (c == '"') {
+        return parseString();
+      } else {
+        int start = position;
+        while (position < json.length() && "+-.0123456789eE".indexOf(peek()) >= 0) {
+          ++position;
+        }
+        String number = json.substring(start, position);
+        if (!number.matches("-?(0|[1-9]\\d*)(\\.\\d+)?([eE][+-]?\\d+)?")) {
+          throw error();
+        }
+        return Double.parseDouble(number);
+      }
+    }
+
+    String parseString() {
+      expect('"');
+      StringBuilder value = new StringBuilder();
+      while (true) {
+        char c = json.charAt(position++);
+        if (c == '"') {
+          return value.toString();
+        } else if (c < 0x20) {
+          throw error();
+        } else if (c != '\\') {
+          value.append(c);
+        } else {
+          char escaped = json.charAt(position++);
+          if (escaped == 'u') {
+            value.append((char) Integer.parseInt(json.substring(position, position + 4), 16));
+            position += 4;
+          } else if ("\"\\/".indexOf(escaped) >= 0) {
+            value.append(escaped);
+          } else if ("bfnrt".indexOf(escaped) >= 0) {
+            value.append("\b\f\n\r\t".charAt("bfnrt".indexOf(escaped)));
+          } else {
+            throw error();
+          }
+        }
+      }
+    }
+
+    void skipWhitespace() {
+      while (position < json.length() && " \t\r\n".indexOf(json.charAt(position)) >= 0) {
+        ++position;
+      }
+    }
+
+    char peek() {
+      if (position == json.length()) {
+        throw error();
+      }
+      return json.charAt(position);
+    }
+
+    boolean accept(char c) {
+      if (position < json.length() && json.charAt(position) == c) {
+        ++position;
+        return true;
+      }
+      return false;
+    }
+
+    void expect(char c) {
+      if (!accept(c)) {
+        throw error();
+      }
+    }
+
+    IllegalArgumentException error() {
+      return new IllegalArgumentException("Malformed JSON at " + position + ": " + json);
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package com.example.tflite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Checks the least recently used order and the memory budget of {@link ClassifierCache}, on its
+ * {@link ClassifierCache.IdleMap} with strings standing for classifiers of their length in bytes.
+ */
+public class ClassifierCacheTest {
+
+  private static ClassifierCache.IdleMap<String, String> newIdleMap() {
+    return new ClassifierCache.IdleMap<>(String::length);
+  }
+
+  @Test
+  public void tracksBytesOfIdleValues() {
+    ClassifierCache.IdleMap<String, String> idle = newIdleMap();
+    idle.put("a", "aaaa");
+    idle.put("b", "bb");
+    assertEquals(2, idle.size());
+    assertEquals(6, idle.getBytes());
+
+    assertEquals("aaaa", idle.remove("a"));
+    assertNull(idle.remove("a"));
+    assertEquals(1, idle.size());
+    assertEquals(2, idle.getBytes());
+  }
+
+  @Test
+  public void putReturnsReplacedValue() {
+    ClassifierCache.IdleMap<String, String> idle = newIdleMap();
+    String value = "aaaa";
+    assertNull(idle.put("a", value));
+    // Putting the same value back replaces nothing.
+    assertNull(idle.put("a", value));
+    assertEquals(4, idle.getBytes());
+    assertSame(value, idle.put("a", "aaaaaa"));
+    assertEquals(1, idle.size());
+    assertEquals(6, idle.getBytes());
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedFirst() {
+    ClassifierCache.IdleMap<String, String> idle = newIdleMap();
+    idle.put("a", "aaa");
+    idle.put("b", "bbb");
+    idle.put("c", "ccc");
+    // Taking and releasing a classifier makes it the most recently used.
+    idle.put("a", idle.remove("a"));
+
+    List<String> evicted = new ArrayList<>();
+    idle.evict(6, evicted);
+    assertEquals(1, evicted.size());
+    assertEquals("bbb", evicted.get(0));
+    assertEquals(6, idle.getBytes());
+
+    idle.evict(3, evicted);
+    assertEquals(2, evicted.size());
+    assertEquals("ccc", evicted.get(1));
+    assertEquals(2, idle.getEvictions());
+    assertEquals("aaa", idle.remove("a"));
+  }
+
+  @Test
+  public void evictsNothingWithinBudget() {
+    ClassifierCache.IdleMap<String, String> idle = newIdleMap();
+    idle.put("a", "aaa");
+    idle.put("b", "bbb");
+    List<String> evicted = new ArrayList<>();
+    idle.evict(6, evicted);
+    assertEquals(0, evicted.size());
+    idle.evict(0, evicted);
+    assertEquals(2, evicted.size());
+    assertEquals(0, idle.size());
+    assertEquals(0, idle.getBytes());
+  }
+}
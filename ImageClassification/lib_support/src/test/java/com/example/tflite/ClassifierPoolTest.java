@@ -0,0 +1,74 @@
+package com.example.tflite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Checks that {@link ClassifierPool} hands out each classifier to one caller at a time, on its
+ * {@link ClassifierPool.Members} with plain objects standing for classifiers.
+ */
+public class ClassifierPoolTest {
+
+  private final Object first = new Object();
+  private final Object second = new Object();
+  private final List<Object> all = Arrays.asList(first, second);
+
+  @Test
+  public void handsOutEachMemberOnce() throws Exception {
+    ClassifierPool.Members<Object> members = new ClassifierPool.Members<>(all);
+    assertSame(first, members.take());
+    assertSame(second, members.poll());
+    assertNull(members.poll());
+    assertEquals(2, members.getCheckedOut());
+
+    members.release(first);
+    assertEquals(1, members.getCheckedOut());
+    assertSame(first, members.poll());
+  }
+
+  @Test
+  public void rejectsDoubleRelease() throws Exception {
+    ClassifierPool.Members<Object> members = new ClassifierPool.Members<>(all);
+    Object member = members.take();
+    Object other = members.take();
+    members.release(member);
+    try {
+      members.release(member);
+      fail("Released twice");
+    } catch (IllegalStateException expected) {
+    }
+    // The member was not queued twice, for two callers to share.
+    assertSame(member, members.take());
+    assertNull(members.poll());
+    members.release(other);
+    members.release(member);
+    assertEquals(0, members.getCheckedOut());
+  }
+
+  @Test
+  public void rejectsReleaseWithoutAcquire() {
+    ClassifierPool.Members<Object> members = new ClassifierPool.Members<>(all);
+    Object checkedOut = members.poll();
+    try {
+      // Idle, while another member is checked out and the queue has room.
+      members.release(second);
+      fail("Released an idle member");
+    } catch (IllegalStateException expected) {
+    }
+    members.release(checkedOut);
+    assertEquals(0, members.getCheckedOut());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsForeignMembers() {
+    ClassifierPool.Members<Object> members = new ClassifierPool.Members<>(all);
+    members.poll();
+    members.release(new Object());
+  }
+}
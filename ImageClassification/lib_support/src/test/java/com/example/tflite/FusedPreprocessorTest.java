@@ -0,0 +1,156 @@
+package com.example.tflite;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import org.junit.Test;
+import org.tensorflow.lite.DataType;
+
+/**
+ * Checks {@link FusedPreprocessor} against the {@code ImageProcessor} chain it replaces.
+ *
+ * <p>The support library ops rely on {@code android.graphics.Bitmap}, so the chain is reproduced
+ * here op by op on plain arrays: a centered {@code ResizeWithCropOrPadOp}, a nearest neighbour
+ * {@code ResizeOp} taking the target height first, a counter-clockwise {@code Rot90Op} and a
+ * {@code NormalizeOp}.
+ */
+public class FusedPreprocessorTest {
+
+  private static final int[][] SOURCE_SIZES = {{640, 480}, {480, 640}, {224, 224}, {37, 61}};
+  private static final int[] ORIENTATIONS = {0, 90, 180, 270, -90};
+
+  @Test
+  public void uint8_matchesImageProcessorChain() {
+    for (int[] size : SOURCE_SIZES) {
+      for (int orientation : ORIENTATIONS) {
+        check(size[0], size[1], orientation, 224, 224, DataType.UINT8, 0.0f, 1.0f);
+      }
+    }
+  }
+
+  @Test
+  public void float_matchesImageProcessorChain() {
+    for (int[] size : SOURCE_SIZES) {
+      for (int orientation : ORIENTATIONS) {
+        check(size[0], size[1], orientation, 224, 224, DataType.FLOAT32, 127.5f, 127.5f);
+        check(size[0], size[1], orientation, 224, 224, DataType.FLOAT32, 127.0f, 128.0f);
+      }
+    }
+  }
+
+  @Test
+  public void nonSquareModel_matchesImageProcessorChain() {
+    for (int orientation : ORIENTATIONS) {
+      check(640, 480, orientation, 160, 96, DataType.FLOAT32, 127.5f, 127.5f);
+    }
+  }
+
+  private static void check(
+      int width,
+      int height,
+      int orientation,
+      int imageSizeX,
+      int imageSizeY,
+      DataType dataType,
+      float mean,
+      float std) {
+    int[] pixels = new int[width * height];
+    Random random = new Random(width * 31 + height);
+    for (int i = 0; i < pixels.length; ++i) {
+      pixels[i] = 0xff000000 | random.nextInt(0x1000000);
+    }
+
+    // Reference: one pass and one intermediate image per op.
+    Image image = new Image(width, height, pixels);
+    int cropSize = Math.min(width, height);
+    image = crop(image, cropSize, cropSize);
+    image = resizeNearest(image, imageSizeY, imageSizeX);
+    image = rotateCounterClockwise(image, orientation / 90);
+
+    FusedPreprocessor kernel =
+        FusedPreprocessor.get(
+            width,
+            height,
+            orientation,
+            imageSizeX,
+            imageSizeY,
+            dataType,
+            new float[] {mean},
+            new float[] {std});
+    assertEquals(image.width, kernel.getOutputWidth());
+    assertEquals(image.height, kernel.getOutputHeight());
+
+    int offset = 8;
+    ByteBuffer output =
+        ByteBuffer.allocateDirect(offset + kernel.getOutputByteSize())
+            .order(ByteOrder.nativeOrder());
+    kernel.apply(pixels, output, offset);
+
+    for (int i = 0; i < image.pixels.length; ++i) {
+      int pixel = image.pixels[i];
+      int[] rgb = {(pixel >> 16) & 0xff, (pixel >> 8) & 0xff, pixel & 0xff};
+      for (int c = 0; c < 3; ++c) {
+        String message = "pixel " + i + " channel " + c + " at " + width + "x" + height;
+        if (dataType == DataType.UINT8) {
+          assertEquals(message, rgb[c], output.get(offset + i * 3 + c) & 0xff);
+        } else {
+          float expected = (rgb[c] - mean) / std;
+          assertEquals(message, expected, output.getFloat(offset + (i * 3 + c) * 4), 0.0f);
+        }
+      }
+    }
+  }
+
+  private static Image crop(Image image, int targetWidth, int targetHeight) {
+    int left = (image.width - targetWidth) / 2;
+    int top = (image.height - targetHeight) / 2;
+    int[] out = new int[targetWidth * targetHeight];
+    for (int y = 0; y < targetHeight; ++y) {
+      for (int x = 0; x < targetWidth; ++x) {
+        out[y * targetWidth + x] = image.pixels[(top + y) * image.width + left + x];
+      }
+    }
+    return new Image(targetWidth, targetHeight, out);
+  }
+
+  private static Image resizeNearest(Image image, int targetWidth, int targetHeight) {
+    int[] out = new int[targetWidth * targetHeight];
+    for (int y = 0; y < targetHeight; ++y) {
+      int sourceY = (int) Math.floor((y + 0.5) * image.height / targetHeight);
+      for (int x = 0; x < targetWidth; ++x) {
+        int sourceX = (int) Math.floor((x + 0.5) * image.width / targetWidth);
+        out[y * targetWidth + x] = image.pixels[sourceY * image.width + sourceX];
+      }
+    }
+    return new Image(targetWidth, targetHeight, out);
+  }
+
+  private static Image rotateCounterClockwise(Image image, int numRotation) {
+    int turns = ((numRotation % 4) + 4) % 4;
+    for (int t = 0; t < turns; ++t) {
+      int[] out = new int[image.pixels.length];
+      // A quarter turn counter-clockwise sends (x, y) to (y, width - 1 - x).
+      for (int y = 0; y < image.height; ++y) {
+        for (int x = 0; x < image.width; ++x) {
+          out[(image.width - 1 - x) * image.height + y] = image.pixels[y * image.width + x];
+        }
+      }
+      image = new Image(image.height, image.width, out);
+    }
+    return image;
+  }
+
+  private static final class Image {
+    final int width;
+    final int height;
+    final int[] pixels;
+
+    Image(int width, int height, int[] pixels) {
+      this.width = width;
+      this.height = height;
+      this.pixels = pixels;
+    }
+  }
+}
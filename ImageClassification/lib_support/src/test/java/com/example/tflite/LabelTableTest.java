@@ -0,0 +1,75 @@
+package com.example.tflite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+/** Checks the lookups of {@link LabelTable} and the sharing of loaded tables. */
+public class LabelTableTest {
+
+  @Test
+  public void looksUpLabelsAndIndices() {
+    LabelTable table = new LabelTable(Arrays.asList("cat", "dog", "cat", "bird"));
+    assertEquals(4, table.size());
+    assertEquals("dog", table.get(1));
+    assertEquals(1, table.indexOf("dog"));
+    assertEquals(3, table.indexOf("bird"));
+    // The first of duplicated labels wins.
+    assertEquals(0, table.indexOf("cat"));
+    assertEquals(-1, table.indexOf("fish"));
+  }
+
+  @Test
+  public void internsLabels() {
+    LabelTable table = new LabelTable(Arrays.asList(new String("tabby")));
+    assertSame("tabby", table.get(0));
+  }
+
+  @Test
+  public void sharesTableWhileInUse() throws Exception {
+    AtomicInteger reads = new AtomicInteger();
+    LabelTable.Reader reader =
+        () -> {
+          reads.incrementAndGet();
+          return Arrays.asList("a", "b");
+        };
+    LabelTable first = LabelTable.load("shared.txt", reader);
+    LabelTable second = LabelTable.load("shared.txt", reader);
+    assertSame(first, second);
+    assertEquals(1, reads.get());
+    assertNotSame(first, LabelTable.load("other.txt", reader));
+    assertEquals(2, reads.get());
+  }
+
+  @Test
+  public void releasesTableNoLongerInUse() throws Exception {
+    AtomicInteger reads = new AtomicInteger();
+    LabelTable.Reader reader =
+        () -> {
+          reads.incrementAndGet();
+          return Arrays.asList("a", "b");
+        };
+    WeakReference<LabelTable> loaded =
+        new WeakReference<>(LabelTable.load("released.txt", reader));
+    long deadline = System.currentTimeMillis() + 5000;
+    while (loaded.get() != null && System.currentTimeMillis() < deadline) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertNull(loaded.get());
+
+    int loadedCount = LabelTable.getLoadedCount();
+    LabelTable reloaded = LabelTable.load("released.txt", reader);
+    assertEquals(2, reads.get());
+    assertEquals(2, reloaded.size());
+    // Loading prunes the paths of collected tables, so they do not pile up.
+    assertTrue(LabelTable.getLoadedCount() <= loadedCount);
+  }
+}
@@ -0,0 +1,126 @@
+package com.example.tflite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Checks the log-linear buckets of {@link LatencyHistogram} at their boundaries, and its
+ * percentiles against a sorted copy of the recorded values.
+ */
+public class LatencyHistogramTest {
+
+  private static final double[] PERCENTILES = {0, 1, 10, 50, 90, 99, 99.9, 100};
+
+  /** Gets the value at {@code percentile} the way a histogram ranks it, from sorted values. */
+  private static long referencePercentile(long[] sorted, double percentile) {
+    long rank = (long) Math.ceil(percentile / 100.0 * sorted.length);
+    rank = Math.max(1, Math.min(sorted.length, rank));
+    return sorted[(int) rank - 1];
+  }
+
+  @Test
+  public void bucketsAreExactBelowSixteen() {
+    for (int value = 0; value < 16; ++value) {
+      assertEquals(value, LatencyHistogram.bucketOf(value));
+      assertEquals(value, LatencyHistogram.upperBoundOf(value));
+    }
+  }
+
+  @Test
+  public void bucketsAtPowersOfTwo() {
+    assertEquals(15, LatencyHistogram.bucketOf(15));
+    assertEquals(16, LatencyHistogram.bucketOf(16));
+    assertEquals(16, LatencyHistogram.upperBoundOf(16));
+    assertEquals(31, LatencyHistogram.bucketOf(31));
+    assertEquals(31, LatencyHistogram.upperBoundOf(31));
+    // From 32 on, every bucket is two values wide.
+    assertEquals(32, LatencyHistogram.bucketOf(32));
+    assertEquals(32, LatencyHistogram.bucketOf(33));
+    assertEquals(33, LatencyHistogram.upperBoundOf(32));
+    assertEquals(33, LatencyHistogram.bucketOf(34));
+  }
+
+  @Test
+  public void lastBucketHoldsLongMaxValue() {
+    int bucket = LatencyHistogram.bucketOf(Long.MAX_VALUE);
+    assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBoundOf(bucket));
+    assertEquals(bucket, LatencyHistogram.bucketOf(LatencyHistogram.upperBoundOf(bucket - 1) + 1));
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(Long.MAX_VALUE);
+    assertEquals(Long.MAX_VALUE, histogram.getSnapshot().getPercentileNanos(50));
+  }
+
+  @Test
+  public void everyValueFallsWithinItsBucket() {
+    Random random = new Random(3);
+    for (int i = 0; i < 100000; ++i) {
+      long value = (random.nextLong() & Long.MAX_VALUE) >>> random.nextInt(63);
+      int bucket = LatencyHistogram.bucketOf(value);
+      assertTrue(value <= LatencyHistogram.upperBoundOf(bucket));
+      if (bucket > 0) {
+        assertTrue(value > LatencyHistogram.upperBoundOf(bucket - 1));
+      }
+    }
+  }
+
+  @Test
+  public void percentilesAreWithinOneSixteenthOfSortedValues() {
+    Random random = new Random(11);
+    LatencyHistogram histogram = new LatencyHistogram();
+    long[] values = new long[10000];
+    for (int i = 0; i < values.length; ++i) {
+      // Spread over several orders of magnitude, like frame latencies with a long tail.
+      values[i] = (long) Math.exp(10 + 3 * random.nextGaussian());
+      histogram.record(values[i]);
+    }
+    Arrays.sort(values);
+    LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+    assertEquals(values.length, snapshot.getCount());
+    for (double percentile : PERCENTILES) {
+      long expected = referencePercentile(values, percentile);
+      long actual = snapshot.getPercentileNanos(percentile);
+      assertTrue(percentile + ": " + actual + " < " + expected, actual >= expected);
+      assertTrue(
+          percentile + ": " + actual + " too far above " + expected,
+          actual - expected <= expected / 16);
+    }
+  }
+
+  @Test
+  public void percentilesAreCappedAtMax() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    // 1000 falls in the bucket [992, 1023].
+    histogram.record(1000);
+    histogram.record(10);
+    LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+    assertEquals(1000, snapshot.getMaxNanos());
+    assertEquals(1000, snapshot.getPercentileNanos(100));
+    assertEquals(1000, snapshot.getPercentileNanos(99));
+    assertEquals(10, snapshot.getPercentileNanos(50));
+  }
+
+  @Test
+  public void countsNegativeValuesAsZero() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(-5);
+    LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+    assertEquals(1, snapshot.getCount());
+    assertEquals(0, snapshot.getTotalNanos());
+    assertEquals(0, snapshot.getPercentileNanos(100));
+  }
+
+  @Test
+  public void resetClearsEveryValue() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(500);
+    histogram.reset();
+    LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+    assertEquals(0, snapshot.getCount());
+    assertEquals(0, snapshot.getMaxNanos());
+    assertEquals(0, snapshot.getPercentileNanos(50));
+  }
+}
@@ -0,0 +1,149 @@
+package com.example.tflite;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.File;
+import java.util.Arrays;
+import org.junit.Test;
+
+/**
+ * Checks the keys of {@link RecognitionCache}, the eviction of its in-memory results and the
+ * reopening of its persistent store.
+ */
+public class RecognitionCacheTest {
+
+  private static final int WIDTH = 64;
+  private static final int HEIGHT = 48;
+
+  private static int[] flat(int argb) {
+    int[] pixels = new int[WIDTH * HEIGHT];
+    Arrays.fill(pixels, argb);
+    return pixels;
+  }
+
+  /** A horizontal luma gradient, dark on the left. */
+  private static int[] gradient() {
+    int[] pixels = new int[WIDTH * HEIGHT];
+    for (int y = 0; y < HEIGHT; ++y) {
+      for (int x = 0; x < WIDTH; ++x) {
+        int luma = x * 255 / (WIDTH - 1);
+        pixels[y * WIDTH + x] = 0xff000000 | luma << 16 | luma << 8 | luma;
+      }
+    }
+    return pixels;
+  }
+
+  private static void put(RecognitionCache cache, String modelId, long key, int index) {
+    cache.put(modelId, key, 2, new int[] {index, index + 1}, new float[] {0.75f, 0.25f});
+  }
+
+  private static int lookup(RecognitionCache cache, String modelId, long key) {
+    return cache.lookup(modelId, key, new int[2], new float[2]);
+  }
+
+  @Test
+  public void exactKeysChangeWithAnyPixel() {
+    RecognitionCache cache = new RecognitionCache(16, 2, RecognitionCache.KeyMode.EXACT);
+    int[] pixels = gradient();
+    long key = cache.computeKey(pixels, WIDTH, HEIGHT, 0);
+    assertEquals(key, cache.computeKey(gradient(), WIDTH, HEIGHT, 0));
+    pixels[WIDTH + 1] ^= 1;
+    assertNotEquals(key, cache.computeKey(pixels, WIDTH, HEIGHT, 0));
+  }
+
+  @Test
+  public void perceptualKeysIgnoreSmallEdits() {
+    RecognitionCache cache = new RecognitionCache(16, 2, RecognitionCache.KeyMode.PERCEPTUAL);
+    int[] pixels = gradient();
+    long key = cache.computeKey(pixels, WIDTH, HEIGHT, 0);
+    pixels[WIDTH + 1] ^= 1;
+    assertEquals(key, cache.computeKey(pixels, WIDTH, HEIGHT, 0));
+    // The same pixels are classified differently once rotated.
+    assertNotEquals(key, cache.computeKey(pixels, WIDTH, HEIGHT, 90));
+  }
+
+  @Test
+  public void perceptualKeysTellFlatImagesApartByColour() {
+    long white = RecognitionCache.perceptualHash(flat(0xffffffff), WIDTH, HEIGHT);
+    long black = RecognitionCache.perceptualHash(flat(0xff000000), WIDTH, HEIGHT);
+    long red = RecognitionCache.perceptualHash(flat(0xffff0000), WIDTH, HEIGHT);
+    long blue = RecognitionCache.perceptualHash(flat(0xff0000ff), WIDTH, HEIGHT);
+    assertNotEquals(white, black);
+    assertNotEquals(red, blue);
+    assertNotEquals(red, black);
+    // Noise within a colour step keeps the key.
+    assertEquals(black, RecognitionCache.perceptualHash(flat(0xff010203), WIDTH, HEIGHT));
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedResults() {
+    RecognitionCache cache = new RecognitionCache(2, 2, RecognitionCache.KeyMode.EXACT);
+    put(cache, "model", 1, 10);
+    put(cache, "model", 2, 20);
+    // Looking up a result makes it the most recently used.
+    assertEquals(2, lookup(cache, "model", 1));
+    put(cache, "model", 3, 30);
+    assertEquals(-1, lookup(cache, "model", 2));
+    assertEquals(2, lookup(cache, "model", 1));
+    assertEquals(2, lookup(cache, "model", 3));
+
+    RecognitionCache.Stats stats = cache.getStats();
+    assertEquals(3, stats.hits);
+    assertEquals(1, stats.misses);
+    assertEquals(2, stats.size);
+  }
+
+  @Test
+  public void keepsResultsOfModelsApart() {
+    RecognitionCache cache = new RecognitionCache(16, 2, RecognitionCache.KeyMode.EXACT);
+    put(cache, "model-a", 1, 10);
+    assertEquals(-1, lookup(cache, "model-b", 1));
+    int[] indices = new int[2];
+    float[] scores = new float[2];
+    assertEquals(2, cache.lookup("model-a", 1, indices, scores));
+    assertArrayEquals(new int[] {10, 11}, indices);
+    assertArrayEquals(new float[] {0.75f, 0.25f}, scores, 0.0f);
+  }
+
+  @Test
+  public void reopensPersistentStore() throws Exception {
+    File file = File.createTempFile("recognitions", ".cache");
+    file.deleteOnExit();
+    RecognitionCache cache = new RecognitionCache(16, 2, RecognitionCache.KeyMode.EXACT);
+    cache.openPersistentStore(file, 64, "sha/preset/top2");
+    put(cache, "model", 1, 10);
+    cache.flush();
+
+    RecognitionCache reopened = new RecognitionCache(16, 2, RecognitionCache.KeyMode.EXACT);
+    reopened.openPersistentStore(file, 64, "sha/preset/top2");
+    int[] indices = new int[2];
+    float[] scores = new float[2];
+    assertEquals(2, reopened.lookup("model", 1, indices, scores));
+    assertArrayEquals(new int[] {10, 11}, indices);
+    assertEquals(1, reopened.getStats().persistentHits);
+    assertEquals(-1, lookup(reopened, "model", 2));
+  }
+
+  @Test
+  public void clearsStoreOfAnotherKeyOrLayout() throws Exception {
+    File file = File.createTempFile("recognitions", ".cache");
+    file.deleteOnExit();
+    RecognitionCache cache = new RecognitionCache(16, 2, RecognitionCache.KeyMode.EXACT);
+    cache.openPersistentStore(file, 64, "old-sha/preset/top2");
+    put(cache, "model", 1, 10);
+    cache.flush();
+
+    // A model replaced under the same name.
+    RecognitionCache replaced = new RecognitionCache(16, 2, RecognitionCache.KeyMode.EXACT);
+    replaced.openPersistentStore(file, 64, "new-sha/preset/top2");
+    assertEquals(-1, lookup(replaced, "model", 1));
+    put(replaced, "model", 1, 10);
+    replaced.flush();
+
+    RecognitionCache resized = new RecognitionCache(16, 2, RecognitionCache.KeyMode.EXACT);
+    resized.openPersistentStore(file, 32, "new-sha/preset/top2");
+    assertEquals(-1, lookup(resized, "model", 1));
+  }
+}
@@ -0,0 +1,76 @@
+package com.example.tflite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import org.junit.Test;
+
+/** Checks that {@link Recognitions} keep, copy and compare the top classes of a frame. */
+public class RecognitionsTest {
+
+  private static final LabelTable LABELS = new LabelTable(Arrays.asList("cat", "dog", "bird"));
+
+  private static Recognitions recognitions(int capacity, float... pairs) {
+    Recognitions results = new Recognitions(capacity);
+    results.reset(LABELS);
+    for (int i = 0; i < pairs.length; i += 2) {
+      results.add((int) pairs[i], pairs[i + 1]);
+    }
+    return results;
+  }
+
+  @Test
+  public void keepsResultsUpToCapacity() {
+    Recognitions results = recognitions(2, 1, 0.5f, 0, 0.25f, 2, 0.125f);
+    assertEquals(2, results.getCapacity());
+    assertEquals(2, results.size());
+    assertEquals(1, results.getIndex(0));
+    assertEquals("dog", results.getTitle(0));
+    assertEquals(0.25f, results.getConfidence(1), 0.0f);
+    assertEquals("cat", results.getTitle(1));
+    assertSame(LABELS, results.getLabels());
+    assertEquals("[dog 50.0%, cat 25.0%]", results.toString());
+  }
+
+  @Test
+  public void resetAndClearRemoveResults() {
+    Recognitions results = recognitions(3, 1, 0.5f);
+    results.clear();
+    assertEquals(0, results.size());
+    assertEquals("[]", results.toString());
+    results.add(2, 0.75f);
+    results.reset(LABELS);
+    assertEquals(0, results.size());
+    assertNull(new Recognitions(1).getLabels());
+  }
+
+  @Test
+  public void copyFromTruncatesToCapacity() {
+    Recognitions source = recognitions(3, 2, 0.5f, 1, 0.25f, 0, 0.125f);
+    Recognitions copy = new Recognitions(2);
+    copy.copyFrom(source);
+    assertEquals(2, copy.size());
+    assertEquals("bird", copy.getTitle(0));
+    assertEquals(0.25f, copy.getConfidence(1), 0.0f);
+    assertSame(LABELS, copy.getLabels());
+  }
+
+  @Test
+  public void contentEqualsComparesClassesConfidencesAndLabels() {
+    Recognitions results = recognitions(3, 1, 0.5f, 0, 0.25f);
+    assertTrue(results.contentEquals(recognitions(5, 1, 0.5f, 0, 0.25f)));
+    assertFalse(results.contentEquals(recognitions(3, 1, 0.5f)));
+    assertFalse(results.contentEquals(recognitions(3, 0, 0.5f, 1, 0.25f)));
+    assertFalse(results.contentEquals(recognitions(3, 1, 0.5f, 0, 0.26f)));
+
+    Recognitions otherLabels = new Recognitions(3);
+    otherLabels.reset(new LabelTable(Arrays.asList("cat", "dog", "bird")));
+    otherLabels.add(1, 0.5f);
+    otherLabels.add(0, 0.25f);
+    assertFalse(results.contentEquals(otherLabels));
+  }
+}
@@ -0,0 +1,171 @@
+package com.example.tflite;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Checks {@link TopK} against a full sort of the scores, and its ranking of raw quantized outputs
+ * above the confidence floor of {@link Classifier}.
+ */
+public class TopKTest {
+
+  /** Gets the indices of the {@code k} highest values, ties broken by the lower index first. */
+  private static List<Integer> sortedIndices(float[] values, int count, float minScore, int k) {
+    List<Integer> indices = new ArrayList<>();
+    for (int i = 0; i < count; ++i) {
+      if (values[i] >= minScore) {
+        indices.add(i);
+      }
+    }
+    indices.sort(
+        (a, b) -> values[a] != values[b] ? Float.compare(values[b], values[a]) : a - b);
+    return indices.subList(0, Math.min(k, indices.size()));
+  }
+
+  private static List<Integer> winners(TopK topK) {
+    List<Integer> indices = new ArrayList<>();
+    for (int i = 0; i < topK.size(); ++i) {
+      indices.add(topK.getIndex(i));
+    }
+    return indices;
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsNonPositiveK() {
+    new TopK(0);
+  }
+
+  @Test
+  public void selectsInDescendingOrder() {
+    TopK topK = new TopK(3);
+    assertEquals(3, topK.select(new float[] {0.1f, 0.5f, 0.2f, 0.9f, 0.3f}, 5));
+    assertEquals(3, topK.getIndex(0));
+    assertEquals(1, topK.getIndex(1));
+    assertEquals(4, topK.getIndex(2));
+    assertEquals(0.9f, topK.getScore(0), 0.0f);
+    assertEquals(0.5f, topK.getScore(1), 0.0f);
+    assertEquals(0.3f, topK.getScore(2), 0.0f);
+  }
+
+  @Test
+  public void selectsEveryClassWhenKIsLarger() {
+    TopK topK = new TopK(10);
+    assertEquals(3, topK.select(new float[] {0.2f, 0.7f, 0.1f}, 3));
+    assertEquals(3, topK.size());
+    assertEquals(10, topK.getK());
+    assertEquals(1, topK.getIndex(0));
+    assertEquals(0, topK.getIndex(1));
+    assertEquals(2, topK.getIndex(2));
+    // Only the first count values are considered.
+    assertEquals(2, topK.select(new float[] {0.2f, 0.7f, 0.1f}, 2));
+    assertEquals(0, topK.select(new float[0], 0));
+  }
+
+  @Test
+  public void keepsLowerIndexFirstOnTies() {
+    TopK topK = new TopK(3);
+    assertEquals(3, topK.select(new float[] {0.5f, 0.1f, 0.5f, 0.5f, 0.5f}, 5));
+    assertEquals(0, topK.getIndex(0));
+    assertEquals(2, topK.getIndex(1));
+    assertEquals(3, topK.getIndex(2));
+  }
+
+  @Test
+  public void skipsScoresBelowMinimum() {
+    TopK topK = new TopK(3);
+    assertEquals(2, topK.select(new float[] {0.1f, 0.5f, 0.3f, Float.NaN}, 4, 0.3f));
+    assertEquals(1, topK.getIndex(0));
+    assertEquals(2, topK.getIndex(1));
+  }
+
+  @Test
+  public void agreesWithSortOnRandomScores() {
+    Random random = new Random(42);
+    for (int trial = 0; trial < 1000; ++trial) {
+      int count = random.nextInt(50);
+      int k = 1 + random.nextInt(8);
+      float[] values = new float[count];
+      for (int i = 0; i < count; ++i) {
+        // Few distinct values, so that ties are common.
+        values[i] = random.nextInt(20) / 20f;
+      }
+      float minScore = random.nextBoolean() ? Float.NEGATIVE_INFINITY : random.nextFloat();
+      TopK topK = new TopK(k);
+      topK.select(values, count, minScore);
+      assertEquals(sortedIndices(values, count, minScore, k), winners(topK));
+      for (int i = 0; i < topK.size(); ++i) {
+        assertEquals(values[topK.getIndex(i)], topK.getScore(i), 0.0f);
+      }
+    }
+  }
+
+  /** Raw outputs of a quantized model, two bytes before the first class. */
+  private static ByteBuffer uint8(int... values) {
+    ByteBuffer buffer = ByteBuffer.allocate(values.length + 2);
+    for (int i = 0; i < values.length; ++i) {
+      buffer.put(i + 2, (byte) values[i]);
+    }
+    return buffer;
+  }
+
+  @Test
+  public void convertsConfidenceFloorToRawScale() {
+    // The quantized models dequantize with a mean of 0 and a std of 255.
+    for (int value = 0; value < 256; ++value) {
+      float confidence = value / 255f;
+      assertEquals(value, Classifier.getMinQuantizedProbability(confidence, 0f, 255f));
+      // Just above a raw value, the floor moves to the next one.
+      assertEquals(
+          value + 1, Classifier.getMinQuantizedProbability(Math.nextUp(confidence), 0f, 255f));
+    }
+    assertEquals(0, Classifier.getMinQuantizedProbability(-1f, 0f, 255f));
+    assertEquals(256, Classifier.getMinQuantizedProbability(1.5f, 0f, 255f));
+  }
+
+  @Test
+  public void ranksRawBytesAtBoundaryOfFloor() {
+    TopK topK = new TopK(3);
+    int floor = Classifier.getMinQuantizedProbability(100 / 255f, 0f, 255f);
+    assertEquals(2, topK.selectUint8(uint8(99, 100, 101, 0), 2, 4, floor));
+    assertEquals(2, topK.getIndex(0));
+    assertEquals(1, topK.getIndex(1));
+    assertEquals(100f, topK.getScore(1), 0.0f);
+  }
+
+  @Test
+  public void keepsEveryRawByteWithZeroFloor() {
+    TopK topK = new TopK(4);
+    assertEquals(3, topK.selectUint8(uint8(0, 3, 0), 2, 3, 0));
+    assertEquals(1, topK.getIndex(0));
+    assertEquals(0, topK.getIndex(1));
+    assertEquals(2, topK.getIndex(2));
+    assertEquals(0f, topK.getScore(2), 0.0f);
+  }
+
+  @Test
+  public void selectsNothingBelowFloor() {
+    TopK topK = new TopK(3);
+    assertEquals(0, topK.selectUint8(uint8(10, 200, 255), 2, 3, 256));
+    assertEquals(0, topK.selectUint8(uint8(10, 20, 30), 2, 3, 31));
+    assertEquals(0, topK.size());
+  }
+
+  @Test
+  public void ranksRawBytesAsUnsigned() {
+    TopK topK = new TopK(3);
+    // Signed, 200 and 128 would rank below 5.
+    assertEquals(3, topK.selectUint8(uint8(5, 200, 128, 127, 255), 2, 5, 0));
+    assertEquals(4, topK.getIndex(0));
+    assertEquals(1, topK.getIndex(1));
+    assertEquals(2, topK.getIndex(2));
+    assertEquals(255f, topK.getScore(0), 0.0f);
+    assertEquals(128f, topK.getScore(2), 0.0f);
+    // A floor above 127 only keeps the high bytes.
+    assertEquals(2, topK.selectUint8(uint8(5, 200, 128, 127, 255), 2, 5, 129));
+  }
+}
@@ -0,0 +1,137 @@
+package com.example.tflite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.After;
+import org.junit.Test;
+
+/** Checks that {@link Tracer} drops the oldest events when full and never hands out torn ones. */
+public class TracerTest {
+
+  private static final int NUM_WRITERS = 4;
+  private static final int EVENTS_PER_WRITER = 200000;
+
+  @After
+  public void tearDown() {
+    Tracer.disable();
+  }
+
+  @Test
+  public void dropsOldestEventsWhenFull() {
+    int name = Tracer.registerName("TracerTest.counter");
+    // Rounded up to 8.
+    Tracer.enable(5);
+    long dropped = Tracer.getDroppedEvents();
+    for (int i = 0; i < 20; ++i) {
+      Tracer.counter(name, i);
+    }
+
+    List<Long> values = new ArrayList<>();
+    assertEquals(
+        8,
+        Tracer.drain(
+            (type, eventName, threadId, timestampNanos, value) -> {
+              assertEquals(Tracer.COUNTER, type);
+              assertEquals("TracerTest.counter", eventName);
+              assertEquals(Thread.currentThread().getId(), threadId);
+              values.add(value);
+            }));
+    for (int i = 0; i < 8; ++i) {
+      assertEquals(12L + i, (long) values.get(i));
+    }
+    assertEquals(12, Tracer.getDroppedEvents() - dropped);
+    assertEquals(0, Tracer.drain((type, eventName, threadId, timestampNanos, value) -> {}));
+
+    // The ring keeps going after a wrap.
+    Tracer.counter(name, 20);
+    values.clear();
+    assertEquals(
+        1, Tracer.drain((type, eventName, threadId, timestampNanos, value) -> values.add(value)));
+    assertEquals(20L, (long) values.get(0));
+  }
+
+  /** Each writer records its own counter, with its index in the high bits of every value. */
+  private static final class Checker implements Tracer.Sink {
+    final long[] threadIds = new long[NUM_WRITERS];
+    final long[] lastValues = new long[NUM_WRITERS];
+    long drained;
+    String error;
+
+    Checker() {
+      for (int i = 0; i < NUM_WRITERS; ++i) {
+        lastValues[i] = -1;
+      }
+    }
+
+    @Override
+    public void onEvent(int type, String name, long threadId, long timestampNanos, long value) {
+      ++drained;
+      int writer = (int) (value >>> 32);
+      long index = value & 0xffffffffL;
+      if (error != null) {
+        return;
+      }
+      if (type != Tracer.COUNTER
+          || writer >= NUM_WRITERS
+          || !name.equals("TracerTest.writer" + writer)
+          || threadId != threadIds[writer]) {
+        error = "Torn event " + type + " " + name + " " + threadId + " " + Long.toHexString(value);
+      } else if (index <= lastValues[writer]) {
+        error = "Event " + index + " of writer " + writer + " after " + lastValues[writer];
+      }
+      lastValues[writer] = index;
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void drainsConsistentEventsWhileWriting() throws Exception {
+    Tracer.enable(1024);
+    long dropped = Tracer.getDroppedEvents();
+    Checker checker = new Checker();
+    CountDownLatch start = new CountDownLatch(1);
+    Thread[] writers = new Thread[NUM_WRITERS];
+    for (int i = 0; i < NUM_WRITERS; ++i) {
+      int writer = i;
+      int name = Tracer.registerName("TracerTest.writer" + writer);
+      writers[i] =
+          new Thread(
+              () -> {
+                try {
+                  start.await();
+                } catch (InterruptedException e) {
+                  return;
+                }
+                for (long j = 0; j < EVENTS_PER_WRITER; ++j) {
+                  Tracer.counter(name, (long) writer << 32 | j);
+                }
+              });
+      checker.threadIds[i] = writers[i].getId();
+      writers[i].start();
+    }
+
+    start.countDown();
+    boolean writing = true;
+    while (writing) {
+      writing = false;
+      for (Thread writer : writers) {
+        writing |= writer.isAlive();
+      }
+      Tracer.drain(checker);
+    }
+    for (Thread writer : writers) {
+      writer.join();
+    }
+    Tracer.drain(checker);
+
+    assertEquals(null, checker.error);
+    assertTrue(checker.drained > 0);
+    // Every event was either drained once or counted as dropped.
+    assertEquals(
+        (long) NUM_WRITERS * EVENTS_PER_WRITER,
+        checker.drained + Tracer.getDroppedEvents() - dropped);
+  }
+}